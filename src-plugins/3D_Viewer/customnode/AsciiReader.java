@@ -0,0 +1,217 @@
+package customnode;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads text files made of lines of whitespace separated tokens, like
+ * Wavefront obj and ASCII STL files, directly from a large byte buffer.
+ * In contrast to BufferedReader.readLine() and String.split(), no
+ * objects are created per line, except for the tokens that are
+ * explicitly requested as Strings.
+ */
+class AsciiReader {
+
+	private final InputStream in;
+	private byte[] buf = new byte[1 << 20];
+	private int pos = 0, limit = 0, lineEnd = 0;
+	private boolean eof = false;
+
+	AsciiReader(String path) throws IOException {
+		this.in = new FileInputStream(path);
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Advances to the next line. Returns false at the end of the file.
+	 */
+	boolean nextLine() throws IOException {
+		pos = lineEnd;
+		// "\r\n" gives an additional empty line, which doesn't matter
+		if(pos < limit && (buf[pos] == '\n' || buf[pos] == '\r'))
+			pos++;
+		while(true) {
+			for(int i = pos; i < limit; i++) {
+				if(buf[i] == '\n' || buf[i] == '\r') {
+					lineEnd = i;
+					return true;
+				}
+			}
+			if(eof) {
+				lineEnd = limit;
+				return pos < limit;
+			}
+			fill();
+		}
+	}
+
+	/* Keeps the current line, and reads more data behind it */
+	private void fill() throws IOException {
+		if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			lineEnd -= pos;
+			pos = 0;
+		}
+		if(limit == buf.length) {
+			byte[] tmp = new byte[2 * buf.length];
+			System.arraycopy(buf, 0, tmp, 0, limit);
+			buf = tmp;
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if(n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	private void skipSpace() {
+		while(pos < lineEnd && (buf[pos] == ' ' || buf[pos] == '\t'
+				|| buf[pos] == '\r' || buf[pos] == '\0'))
+			pos++;
+	}
+
+	private boolean isSeparator(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\0';
+	}
+
+	/**
+	 * Whether there is another token on the current line.
+	 */
+	boolean hasToken() {
+		skipSpace();
+		return pos < lineEnd;
+	}
+
+	/**
+	 * Consumes the next token if it equals the given word
+	 * (ignoring case if requested).
+	 */
+	boolean keyword(String word, boolean ignoreCase) {
+		skipSpace();
+		int n = word.length();
+		if(pos + n > lineEnd)
+			return false;
+		if(pos + n < lineEnd && !isSeparator(buf[pos + n]))
+			return false;
+		for(int i = 0; i < n; i++) {
+			char c = (char)(buf[pos + i] & 0xff);
+			char w = word.charAt(i);
+			if(c != w && !(ignoreCase &&
+				Character.toLowerCase(c) == Character.toLowerCase(w)))
+				return false;
+		}
+		pos += n;
+		return true;
+	}
+
+	boolean keyword(String word) {
+		return keyword(word, false);
+	}
+
+	String nextToken() {
+		skipSpace();
+		int start = pos;
+		while(pos < lineEnd && !isSeparator(buf[pos]))
+			pos++;
+		return new String(buf, start, pos - start, LATIN1);
+	}
+
+	/**
+	 * The rest of the line, without leading and trailing white space.
+	 */
+	String restOfLine() {
+		skipSpace();
+		int end = lineEnd;
+		while(end > pos && isSeparator(buf[end - 1]))
+			end--;
+		String s = new String(buf, pos, end - pos, LATIN1);
+		pos = lineEnd;
+		return s;
+	}
+
+	/**
+	 * Parses an integer, which may be followed by a slash
+	 * (as in obj faces); the rest of the token is skipped.
+	 */
+	int nextInt() {
+		skipSpace();
+		boolean negative = false;
+		if(pos < lineEnd && (buf[pos] == '-' || buf[pos] == '+'))
+			negative = buf[pos++] == '-';
+		int start = pos;
+		int v = 0;
+		while(pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9')
+			v = 10 * v + (buf[pos++] - '0');
+		if(pos == start)
+			throw new NumberFormatException("Expected a number: "
+				+ restOfLine());
+		while(pos < lineEnd && !isSeparator(buf[pos]))
+			pos++;
+		return negative ? -v : v;
+	}
+
+	float nextFloat() {
+		skipSpace();
+		int start = pos;
+		while(pos < lineEnd && !isSeparator(buf[pos]))
+			pos++;
+		return parseFloat(buf, start, pos);
+	}
+
+	/*
+	 * Plain decimal numbers like "-12.375" are parsed directly;
+	 * everything else (exponents, many digits, "NaN", ...) is left
+	 * to Float.parseFloat(). The result is the same in both cases.
+	 */
+	private static float parseFloat(byte[] b, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if(i < end && (b[i] == '-' || b[i] == '+'))
+			negative = b[i++] == '-';
+		long mantissa = 0;
+		int digits = 0, decimals = -1;
+		for(; i < end; i++) {
+			byte c = b[i];
+			if(c >= '0' && c <= '9') {
+				mantissa = 10 * mantissa + (c - '0');
+				digits++;
+				if(decimals >= 0)
+					decimals++;
+			} else if(c == '.' && decimals < 0)
+				decimals = 0;
+			else
+				break;
+		}
+		if(i == end && digits > 0 && digits <= 15) {
+			// mantissa and 10^decimals are exact doubles, so
+			// v is the correctly rounded double of the number
+			double v = mantissa;
+			if(decimals > 0)
+				v /= POW10[decimals];
+			float f = (float)v;
+			// rounding v to float can differ from rounding the
+			// number only if v is this close to a float midpoint
+			double err = Math.abs(v - f);
+			if(Math.abs(err - Math.ulp(f) / 2) > Math.ulp(v)
+					&& (Float.floatToIntBits(f) & 0x7fffff) != 0)
+				return negative ? -f : f;
+		}
+		return Float.parseFloat(new String(b, start, end - start, LATIN1));
+	}
+
+	private static final double[] POW10 = new double[16];
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++)
+			POW10[i] = 10 * POW10[i - 1];
+	}
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+}
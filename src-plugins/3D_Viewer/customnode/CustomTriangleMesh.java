@@ -41,6 +41,46 @@ public CustomTriangleMesh(List<Point3f> mesh, Color3f col, float trans) {
 		}
 	}
 
+	/**
+	 * Merges the given meshes into a single mesh with one geometry;
+	 * the color of each mesh is kept as vertex colors. Thousands of
+	 * small static meshes render much faster this way, but they can
+	 * not be selected or transformed individually any more.
+	 * The transparency and shading are those of the first mesh.
+	 */
+	public static CustomTriangleMesh merge(List<CustomTriangleMesh> meshes) {
+		int n = 0;
+		for(CustomTriangleMesh m : meshes)
+			n += m.getMesh().size();
+		List<Point3f> vertices = new ArrayList<Point3f>(n);
+		List<Color3f> colors = new ArrayList<Color3f>(n);
+		for(CustomTriangleMesh m : meshes) {
+			List<Point3f> v = m.getMesh();
+			vertices.addAll(v);
+			Color3f color = m.getColor();
+			if(color != null) {
+				for(int i = 0; i < v.size(); i++)
+					colors.add(color);
+				continue;
+			}
+			// vertex-wise colors are only stored in the geometry
+			Color3f[] c = new Color3f[v.size()];
+			for(int i = 0; i < c.length; i++)
+				c[i] = new Color3f(DEFAULT_COLOR);
+			GeometryArray ga = (GeometryArray)m.getGeometry();
+			if(ga != null && c.length > 0)
+				ga.getColors(0, c);
+			colors.addAll(Arrays.asList(c));
+		}
+		CustomTriangleMesh merged = new CustomTriangleMesh(vertices);
+		if(meshes.isEmpty())
+			return merged;
+		merged.setColor(colors);
+		merged.setTransparency(meshes.get(0).getTransparency());
+		merged.setShaded(meshes.get(0).isShaded());
+		return merged;
+	}
+
 	public void setMesh(List<Point3f> mesh) {
 		this.mesh = mesh;
 		update();
@@ -0,0 +1,93 @@
+package customnode;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Formats large amounts of text, such as the vertex and face lines of
+ * mesh files, in several threads. The items 0 to n - 1 are cut into
+ * chunks which are formatted in parallel, and written in order.
+ */
+public abstract class ParallelFormatter {
+
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	private final int nThreads;
+
+	public ParallelFormatter() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelFormatter(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Appends the text for the items from (inclusive) to to
+	 * (exclusive) to sb. Called concurrently for different chunks.
+	 */
+	public abstract void format(int from, int to, StringBuilder sb);
+
+	/**
+	 * Formats the items 0 to n - 1 and writes them to w.
+	 */
+	public void write(final Writer w, final int n) throws IOException {
+		final int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if(nThreads == 1 || nChunks <= 1) {
+			StringBuilder sb = new StringBuilder();
+			for(int c = 0; c < nChunks; c++) {
+				format(c * CHUNK_SIZE, Math.min(n, (c + 1) * CHUNK_SIZE), sb);
+				w.append(sb);
+				sb.setLength(0);
+			}
+			return;
+		}
+
+		// format a batch of chunks at a time, to bound the memory
+		final int batch = 4 * nThreads;
+		final StringBuilder[] text = new StringBuilder[batch];
+		final RuntimeException[] exception = new RuntimeException[1];
+		for(int i = 0; i < batch; i++)
+			text[i] = new StringBuilder();
+		for(int first = 0; first < nChunks; first += batch) {
+			final int start = first;
+			final int end = Math.min(nChunks, first + batch);
+			final AtomicInteger ai = new AtomicInteger(start);
+			Thread[] threads = new Thread[Math.min(nThreads, end - start)];
+			for(int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							for(int c = ai.getAndIncrement(); c < end;
+									c = ai.getAndIncrement()) {
+								StringBuilder sb = text[c - start];
+								sb.setLength(0);
+								format(c * CHUNK_SIZE, Math.min(n,
+									(c + 1) * CHUNK_SIZE), sb);
+							}
+						} catch(RuntimeException e) {
+							synchronized(exception) {
+								exception[0] = e;
+							}
+							ai.set(end);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try {
+				for(Thread t : threads)
+					t.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			}
+			if(exception[0] != null)
+				throw exception[0];
+			for(int c = start; c < end; c++)
+				w.append(text[c - start]);
+		}
+	}
+}
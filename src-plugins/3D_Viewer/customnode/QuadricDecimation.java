@@ -0,0 +1,738 @@
+package customnode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Simplifies a triangle mesh by repeatedly contracting the edge whose
+ * contraction introduces the smallest quadric error, as described in
+ * Garland and Heckbert, "Surface Simplification Using Quadric Error
+ * Metrics", SIGGRAPH 1997.
+ *
+ * In contrast to EdgeContraction, the mesh is kept in flat indexed
+ * arrays, so that meshes with millions of triangles can be simplified.
+ * To make use of several processors, the mesh is cut into slabs along
+ * its longest axis, which are simplified in parallel while the vertices
+ * shared by several slabs stay fixed. A final pass over the whole mesh
+ * then continues until the requested number of triangles is reached.
+ *
+ * simplify() may be called repeatedly with decreasing targets, to obtain
+ * a series of levels of detail from one instance.
+ */
+public class QuadricDecimation {
+
+	/* The weight of the planes keeping the borders of open meshes */
+	private static final double BORDER_WEIGHT = 1000;
+
+	/* Contractions which turn a triangle by more than this are refused */
+	private static final double MIN_COS = 0.1;
+
+	/* Don't split meshes with fewer triangles per slab than this */
+	private static final int MIN_SLAB_FACES = 20000;
+
+	private final int nVertices;
+	private final float[] coords;
+	private final int[] faces;
+	private final boolean[] faceRemoved;
+	private final boolean[] vertexRemoved;
+	private final boolean[] border;
+	private final double[] quadrics;
+	private final int[][] vertexFaces;
+	private final int[] vertexFaceCount;
+	private final int[] version;
+	private int faceCount;
+
+	/* The slab of each face, and the vertices shared by several slabs */
+	private int[] faceSlab;
+	private boolean[] locked;
+
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Creates a decimation for a mesh given as a list of triangles,
+	 * three consecutive points each, like in CustomTriangleMesh.
+	 * Equal points are merged into one vertex.
+	 */
+	public QuadricDecimation(List<Point3f> triangles) {
+		this(new int[triangles.size() - triangles.size() % 3], triangles);
+	}
+
+	private QuadricDecimation(int[] faces, List<Point3f> triangles) {
+		this(index(triangles, faces), faces);
+	}
+
+	/**
+	 * Creates a decimation for an indexed mesh: the coordinates of
+	 * vertex i are coords[3 * i] to coords[3 * i + 2], and triangle
+	 * j consists of the vertices faces[3 * j] to faces[3 * j + 2].
+	 * The arrays are not modified.
+	 */
+	public QuadricDecimation(float[] coords, int[] faces) {
+		this.coords = coords.clone();
+		this.faces = faces.clone();
+		nVertices = coords.length / 3;
+		int nFaces = faces.length / 3;
+		faceRemoved = new boolean[nFaces];
+		vertexRemoved = new boolean[nVertices];
+		border = new boolean[nVertices];
+		quadrics = new double[10 * nVertices];
+		vertexFaces = new int[nVertices][];
+		vertexFaceCount = new int[nVertices];
+		version = new int[nVertices];
+
+		for(int f = 0; f < nFaces; f++) {
+			int a = faces[3 * f], b = faces[3 * f + 1], c = faces[3 * f + 2];
+			if(a == b || b == c || c == a) {
+				faceRemoved[f] = true;
+				continue;
+			}
+			faceCount++;
+			vertexFaceCount[a]++;
+			vertexFaceCount[b]++;
+			vertexFaceCount[c]++;
+		}
+		for(int v = 0; v < nVertices; v++) {
+			vertexFaces[v] = new int[vertexFaceCount[v]];
+			vertexRemoved[v] = vertexFaceCount[v] == 0;
+			vertexFaceCount[v] = 0;
+		}
+		for(int f = 0; f < nFaces; f++) {
+			if(faceRemoved[f])
+				continue;
+			for(int i = 0; i < 3; i++) {
+				int v = faces[3 * f + i];
+				vertexFaces[v][vertexFaceCount[v]++] = f;
+			}
+		}
+		initQuadrics();
+	}
+
+	public void setNumberOfThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	public int getTriangleCount() {
+		return faceCount;
+	}
+
+	/**
+	 * Contracts edges until at most targetCount triangles are left,
+	 * or no edge can be contracted without damaging the mesh.
+	 */
+	public void simplify(int targetCount) {
+		if(faceCount <= targetCount)
+			return;
+		if(nThreads > 1 && faceCount >= 2 * MIN_SLAB_FACES)
+			simplifySlabs(targetCount);
+		Worker w = new Worker(-1);
+		w.init(null);
+		w.run(targetCount);
+		faceCount = w.faceCount;
+	}
+
+	/**
+	 * Returns the remaining triangles, three points per triangle.
+	 */
+	public List<Point3f> getTriangles() {
+		List<Point3f> ret = new ArrayList<Point3f>(3 * faceCount);
+		for(int f = 0; f < faceRemoved.length; f++) {
+			if(faceRemoved[f])
+				continue;
+			for(int i = 0; i < 3; i++) {
+				int v = 3 * faces[3 * f + i];
+				ret.add(new Point3f(
+					coords[v], coords[v + 1], coords[v + 2]));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the mean length of the edges of the remaining triangles.
+	 */
+	public double getMeanEdgeLength() {
+		double sum = 0;
+		for(int f = 0; f < faceRemoved.length; f++) {
+			if(faceRemoved[f])
+				continue;
+			for(int i = 0; i < 3; i++)
+				sum += Math.sqrt(distanceSq(faces[3 * f + i],
+					faces[3 * f + (i + 1) % 3]));
+		}
+		return faceCount == 0 ? 0 : sum / (3 * faceCount);
+	}
+
+	/*
+	 * Maps equal points to the same vertex; fills in the faces
+	 * and returns the vertex coordinates.
+	 */
+	private static float[] index(List<Point3f> triangles, int[] faces) {
+		HashMap<Point3f, Integer> indices = new HashMap<Point3f, Integer>();
+		float[] coords = new float[3 * faces.length];
+		for(int i = 0; i < faces.length; i++) {
+			Point3f p = triangles.get(i);
+			Integer index = indices.get(p);
+			if(index == null) {
+				index = indices.size();
+				indices.put(p, index);
+				coords[3 * index] = p.x;
+				coords[3 * index + 1] = p.y;
+				coords[3 * index + 2] = p.z;
+			}
+			faces[i] = index;
+		}
+		float[] ret = new float[3 * indices.size()];
+		System.arraycopy(coords, 0, ret, 0, ret.length);
+		return ret;
+	}
+
+	/*
+	 * Sums the (area weighted) planes of the triangles around each
+	 * vertex; at borders, planes perpendicular to the triangle
+	 * through the border edge are added with a high weight.
+	 */
+	private void initQuadrics() {
+		double[] n = new double[3];
+		double[] x = new double[9];
+		for(int f = 0; f < faceRemoved.length; f++) {
+			if(faceRemoved[f])
+				continue;
+			int a = faces[3 * f], b = faces[3 * f + 1], c = faces[3 * f + 2];
+			double area = normal(a, b, c, n, x) / 2;
+			if(area == 0)
+				continue;
+			for(int i = 0; i < 3; i++)
+				n[i] /= 2 * area;
+			double d = -(n[0] * coords[3 * a] + n[1] * coords[3 * a + 1]
+				+ n[2] * coords[3 * a + 2]);
+			addPlane(a, n, d, area);
+			addPlane(b, n, d, area);
+			addPlane(c, n, d, area);
+
+			for(int i = 0; i < 3; i++) {
+				int u = faces[3 * f + i], v = faces[3 * f + (i + 1) % 3];
+				if(countSharedFaces(u, v) != 1)
+					continue;
+				border[u] = border[v] = true;
+				double ex = coords[3 * v] - coords[3 * u];
+				double ey = coords[3 * v + 1] - coords[3 * u + 1];
+				double ez = coords[3 * v + 2] - coords[3 * u + 2];
+				double len2 = ex * ex + ey * ey + ez * ez;
+				double[] m = new double[] {
+					ey * n[2] - ez * n[1],
+					ez * n[0] - ex * n[2],
+					ex * n[1] - ey * n[0]};
+				double len = Math.sqrt(m[0] * m[0] + m[1] * m[1] + m[2] * m[2]);
+				if(len == 0)
+					continue;
+				for(int j = 0; j < 3; j++)
+					m[j] /= len;
+				double md = -(m[0] * coords[3 * u] + m[1] * coords[3 * u + 1]
+					+ m[2] * coords[3 * u + 2]);
+				addPlane(u, m, md, BORDER_WEIGHT * len2);
+				addPlane(v, m, md, BORDER_WEIGHT * len2);
+			}
+		}
+	}
+
+	private void addPlane(int v, double[] n, double d, double w) {
+		int o = 10 * v;
+		quadrics[o]     += w * n[0] * n[0];
+		quadrics[o + 1] += w * n[0] * n[1];
+		quadrics[o + 2] += w * n[0] * n[2];
+		quadrics[o + 3] += w * n[0] * d;
+		quadrics[o + 4] += w * n[1] * n[1];
+		quadrics[o + 5] += w * n[1] * n[2];
+		quadrics[o + 6] += w * n[1] * d;
+		quadrics[o + 7] += w * n[2] * n[2];
+		quadrics[o + 8] += w * n[2] * d;
+		quadrics[o + 9] += w * d * d;
+	}
+
+	/*
+	 * Assigns the faces to slabs along the longest axis of the mesh
+	 * and simplifies each slab in its own thread.
+	 */
+	private void simplifySlabs(final int targetCount) {
+		float[] min = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for(int v = 0; v < nVertices; v++) {
+			if(vertexRemoved[v])
+				continue;
+			for(int i = 0; i < 3; i++) {
+				min[i] = Math.min(min[i], coords[3 * v + i]);
+				max[i] = Math.max(max[i], coords[3 * v + i]);
+			}
+		}
+		int axis = 0;
+		for(int i = 1; i < 3; i++)
+			if(max[i] - min[i] > max[axis] - min[axis])
+				axis = i;
+		final int nSlabs = Math.min(nThreads, faceCount / MIN_SLAB_FACES);
+		double scale = nSlabs / Math.max(max[axis] - min[axis], 1e-6f);
+
+		faceSlab = new int[faceRemoved.length];
+		locked = new boolean[nVertices];
+		int[] vertexSlab = new int[nVertices];
+		Arrays.fill(vertexSlab, -1);
+		final int[] slabSize = new int[nSlabs];
+		for(int f = 0; f < faceRemoved.length; f++) {
+			if(faceRemoved[f])
+				continue;
+			double c = 0;
+			for(int i = 0; i < 3; i++)
+				c += coords[3 * faces[3 * f + i] + axis];
+			int s = (int)((c / 3 - min[axis]) * scale);
+			s = Math.max(0, Math.min(nSlabs - 1, s));
+			faceSlab[f] = s;
+			slabSize[s]++;
+			for(int i = 0; i < 3; i++) {
+				int v = faces[3 * f + i];
+				if(vertexSlab[v] == -1)
+					vertexSlab[v] = s;
+				else if(vertexSlab[v] != s)
+					locked[v] = true;
+			}
+		}
+		final int[][] slabFaces = new int[nSlabs][];
+		for(int s = 0; s < nSlabs; s++) {
+			slabFaces[s] = new int[slabSize[s]];
+			slabSize[s] = 0;
+		}
+		for(int f = 0; f < faceRemoved.length; f++)
+			if(!faceRemoved[f])
+				slabFaces[faceSlab[f]][slabSize[faceSlab[f]]++] = f;
+
+		final int total = faceCount;
+		final Worker[] workers = new Worker[nSlabs];
+		Thread[] threads = new Thread[nSlabs];
+		for(int s = 0; s < nSlabs; s++) {
+			final int slab = s;
+			threads[s] = new Thread() {
+				public void run() {
+					Worker w = new Worker(slab);
+					w.init(slabFaces[slab]);
+					w.run((int)Math.ceil((double)slabFaces[slab].length
+						* targetCount / total));
+					workers[slab] = w;
+				}
+			};
+			threads[s].start();
+		}
+		try {
+			for(Thread t : threads)
+				t.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted", e);
+		}
+		faceCount = 0;
+		for(Worker w : workers)
+			faceCount += w.faceCount;
+		faceSlab = null;
+		locked = null;
+	}
+
+	/*
+	 * Contracts the edges of one slab (or of the whole mesh if slab
+	 * is -1), in the order of increasing error.
+	 */
+	private final class Worker {
+		final int slab;
+		final EdgeHeap heap = new EdgeHeap();
+		int faceCount;
+
+		/* scratch space */
+		final double[] q = new double[10];
+		final double[] p = new double[3];
+		final double[] n0 = new double[3];
+		final double[] n1 = new double[3];
+		final double[] x = new double[9];
+		int[] neighbors = new int[32];
+		int nNeighbors;
+
+		Worker(int slab) {
+			this.slab = slab;
+		}
+
+		void init(int[] slabFaces) {
+			int n = slabFaces == null ? faceRemoved.length : slabFaces.length;
+			for(int i = 0; i < n; i++) {
+				int f = slabFaces == null ? i : slabFaces[i];
+				if(faceRemoved[f])
+					continue;
+				faceCount++;
+				for(int j = 0; j < 3; j++) {
+					int u = faces[3 * f + j], v = faces[3 * f + (j + 1) % 3];
+					if(!isContractible(u, v))
+						continue;
+					// interior edges are visited twice
+					if(u < v || countSharedFaces(u, v) == 1)
+						push(u, v);
+				}
+			}
+		}
+
+		void run(int targetCount) {
+			while(faceCount > targetCount && !heap.isEmpty()) {
+				heap.pop();
+				int u = heap.u, v = heap.v;
+				if(vertexRemoved[u] || vertexRemoved[v]
+						|| version[u] != heap.vu
+						|| version[v] != heap.vv)
+					continue;
+				optimize(u, v);
+				if(canContract(u, v))
+					contract(u, v);
+			}
+		}
+
+		boolean isContractible(int u, int v) {
+			if(slab < 0)
+				return true;
+			return !locked[u] && !locked[v];
+		}
+
+		void push(int u, int v) {
+			if(!isContractible(u, v))
+				return;
+			double cost = optimize(u, v);
+			heap.push(cost, u, v, version[u], version[v]);
+		}
+
+		/*
+		 * Finds the position p for the contracted vertex which
+		 * minimizes the summed quadrics of u and v, and returns the
+		 * error there.
+		 */
+		double optimize(int u, int v) {
+			for(int i = 0; i < 10; i++)
+				q[i] = quadrics[10 * u + i] + quadrics[10 * v + i];
+			double c00 = q[4] * q[7] - q[5] * q[5];
+			double c01 = q[2] * q[5] - q[1] * q[7];
+			double c02 = q[1] * q[5] - q[2] * q[4];
+			double det = q[0] * c00 + q[1] * c01 + q[2] * c02;
+			double tr = (q[0] + q[4] + q[7]) / 3;
+			if(Math.abs(det) > 1e-9 * tr * tr * tr) {
+				double c11 = q[0] * q[7] - q[2] * q[2];
+				double c12 = q[1] * q[2] - q[0] * q[5];
+				double c22 = q[0] * q[4] - q[1] * q[1];
+				p[0] = -(c00 * q[3] + c01 * q[6] + c02 * q[8]) / det;
+				p[1] = -(c01 * q[3] + c11 * q[6] + c12 * q[8]) / det;
+				p[2] = -(c02 * q[3] + c12 * q[6] + c22 * q[8]) / det;
+				// reject solutions far away from the edge
+				double dx = p[0] - (coords[3 * u] + coords[3 * v]) / 2;
+				double dy = p[1] - (coords[3 * u + 1] + coords[3 * v + 1]) / 2;
+				double dz = p[2] - (coords[3 * u + 2] + coords[3 * v + 2]) / 2;
+				if(dx * dx + dy * dy + dz * dz <= distanceSq(u, v))
+					return error(p[0], p[1], p[2]);
+			}
+			// fall back to the best of the end points and the midpoint
+			double best = Double.MAX_VALUE;
+			for(int i = 0; i < 3; i++) {
+				double w = i * 0.5;
+				double x = (1 - w) * coords[3 * u] + w * coords[3 * v];
+				double y = (1 - w) * coords[3 * u + 1] + w * coords[3 * v + 1];
+				double z = (1 - w) * coords[3 * u + 2] + w * coords[3 * v + 2];
+				double e = error(x, y, z);
+				if(e < best) {
+					best = e;
+					p[0] = x; p[1] = y; p[2] = z;
+				}
+			}
+			return best;
+		}
+
+		double error(double x, double y, double z) {
+			double e = q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z
+				+ 2 * q[3] * x + q[4] * y * y + 2 * q[5] * y * z
+				+ 2 * q[6] * y + q[7] * z * z + 2 * q[8] * z + q[9];
+			return Math.max(0, e);
+		}
+
+		/*
+		 * Checks that contracting u and v into p leaves a manifold
+		 * mesh and does not fold over any triangle.
+		 */
+		boolean canContract(int u, int v) {
+			int shared = countSharedFaces(u, v);
+			if(shared == 0)
+				return false;
+			// don't pinch two borders together
+			if(border[u] && border[v] && shared != 1)
+				return false;
+
+			// link condition: the common neighbors of u and v
+			// must be exactly the opposite vertices
+			collectNeighbors(u);
+			int common = 0;
+			int[] fv = vertexFaces[v];
+			int nv = vertexFaceCount[v];
+			for(int i = 0; i < nv; i++) {
+				int f = fv[i];
+				if(faceRemoved[f])
+					continue;
+				for(int j = 0; j < 3; j++) {
+					int w = faces[3 * f + j];
+					if(w != u && w != v && isNeighbor(w)) {
+						common++;
+						// count each neighbor once
+						removeNeighbor(w);
+					}
+				}
+			}
+			if(common != shared)
+				return false;
+
+			return !foldsOver(u, v) && !foldsOver(v, u);
+		}
+
+		/*
+		 * Whether moving vertex 'moved' to p turns one of its faces
+		 * which does not contain 'other' by too much.
+		 */
+		boolean foldsOver(int moved, int other) {
+			int[] fs = vertexFaces[moved];
+			int n = vertexFaceCount[moved];
+			for(int i = 0; i < n; i++) {
+				int f = fs[i];
+				if(faceRemoved[f] || contains(f, other))
+					continue;
+				int a = faces[3 * f], b = faces[3 * f + 1], c = faces[3 * f + 2];
+				double l0 = normal(a, b, c, n0, x);
+				if(l0 <= 1e-6 * perimeterSq(f))
+					// degenerate already, can't fold
+					continue;
+				double l1 = movedNormal(f, moved, n1);
+				if(l1 <= 1e-6 * perimeterSq(f))
+					return true;
+				double cos = (n0[0] * n1[0] + n0[1] * n1[1]
+					+ n0[2] * n1[2]) / (l0 * l1);
+				if(cos < MIN_COS)
+					return true;
+			}
+			return false;
+		}
+
+		double perimeterSq(int f) {
+			double s = 0;
+			for(int i = 0; i < 3; i++)
+				s += distanceSq(faces[3 * f + i], faces[3 * f + (i + 1) % 3]);
+			return s;
+		}
+
+		/* The normal of face f with vertex 'moved' at p */
+		double movedNormal(int f, int moved, double[] ret) {
+			for(int i = 0; i < 3; i++) {
+				int w = faces[3 * f + i];
+				for(int j = 0; j < 3; j++)
+					x[3 * i + j] = w == moved ? p[j] : coords[3 * w + j];
+			}
+			return cross(x, ret);
+		}
+
+		/*
+		 * Moves u to p, and lets the faces of v use u instead.
+		 */
+		void contract(int u, int v) {
+			coords[3 * u]     = (float)p[0];
+			coords[3 * u + 1] = (float)p[1];
+			coords[3 * u + 2] = (float)p[2];
+			for(int i = 0; i < 10; i++)
+				quadrics[10 * u + i] += quadrics[10 * v + i];
+			border[u] |= border[v];
+
+			int[] fu = vertexFaces[u], fv = vertexFaces[v];
+			int nu = vertexFaceCount[u], nv = vertexFaceCount[v];
+			int[] merged = new int[nu + nv];
+			int n = 0;
+			for(int i = 0; i < nv; i++) {
+				int f = fv[i];
+				if(faceRemoved[f])
+					continue;
+				if(contains(f, u)) {
+					faceRemoved[f] = true;
+					faceCount--;
+					continue;
+				}
+				for(int j = 0; j < 3; j++)
+					if(faces[3 * f + j] == v)
+						faces[3 * f + j] = u;
+				merged[n++] = f;
+			}
+			for(int i = 0; i < nu; i++)
+				if(!faceRemoved[fu[i]])
+					merged[n++] = fu[i];
+			vertexFaces[u] = merged;
+			vertexFaceCount[u] = n;
+			vertexFaces[v] = null;
+			vertexFaceCount[v] = 0;
+			vertexRemoved[v] = true;
+			version[u]++;
+			version[v]++;
+
+			collectNeighbors(u);
+			for(int i = 0; i < nNeighbors; i++)
+				push(u, neighbors[i]);
+		}
+
+		void collectNeighbors(int u) {
+			nNeighbors = 0;
+			int[] fu = vertexFaces[u];
+			int nu = vertexFaceCount[u];
+			for(int i = 0; i < nu; i++) {
+				int f = fu[i];
+				if(faceRemoved[f])
+					continue;
+				for(int j = 0; j < 3; j++) {
+					int w = faces[3 * f + j];
+					if(w != u && !isNeighbor(w)) {
+						if(nNeighbors == neighbors.length) {
+							int[] tmp = new int[2 * nNeighbors];
+							System.arraycopy(neighbors, 0, tmp, 0, nNeighbors);
+							neighbors = tmp;
+						}
+						neighbors[nNeighbors++] = w;
+					}
+				}
+			}
+		}
+
+		boolean isNeighbor(int w) {
+			for(int i = 0; i < nNeighbors; i++)
+				if(neighbors[i] == w)
+					return true;
+			return false;
+		}
+
+		void removeNeighbor(int w) {
+			for(int i = 0; i < nNeighbors; i++) {
+				if(neighbors[i] == w) {
+					neighbors[i] = neighbors[--nNeighbors];
+					return;
+				}
+			}
+		}
+	}
+
+	/* The number of faces containing both u and v */
+	private int countSharedFaces(int u, int v) {
+		int[] fu = vertexFaces[u];
+		int nu = vertexFaceCount[u];
+		int shared = 0;
+		for(int i = 0; i < nu; i++)
+			if(!faceRemoved[fu[i]] && contains(fu[i], v))
+				shared++;
+		return shared;
+	}
+
+	private boolean contains(int f, int v) {
+		return faces[3 * f] == v || faces[3 * f + 1] == v
+			|| faces[3 * f + 2] == v;
+	}
+
+	private double distanceSq(int u, int v) {
+		double dx = coords[3 * u] - coords[3 * v];
+		double dy = coords[3 * u + 1] - coords[3 * v + 1];
+		double dz = coords[3 * u + 2] - coords[3 * v + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/* Stores the (unnormalized) normal in ret and returns its length */
+	private double normal(int a, int b, int c, double[] ret, double[] x) {
+		for(int j = 0; j < 3; j++) {
+			x[j]     = coords[3 * a + j];
+			x[3 + j] = coords[3 * b + j];
+			x[6 + j] = coords[3 * c + j];
+		}
+		return cross(x, ret);
+	}
+
+	private static double cross(double[] x, double[] ret) {
+		double ux = x[3] - x[0], uy = x[4] - x[1], uz = x[5] - x[2];
+		double vx = x[6] - x[0], vy = x[7] - x[1], vz = x[8] - x[2];
+		ret[0] = uy * vz - uz * vy;
+		ret[1] = uz * vx - ux * vz;
+		ret[2] = ux * vy - uy * vx;
+		return Math.sqrt(ret[0] * ret[0] + ret[1] * ret[1] + ret[2] * ret[2]);
+	}
+
+	/*
+	 * A binary min-heap of edges, keyed by the contraction error,
+	 * in primitive arrays to keep the memory footprint small.
+	 * Edges whose vertices have changed since they were pushed
+	 * are recognized by the vertex versions and skipped.
+	 */
+	private static final class EdgeHeap {
+		private double[] cost = new double[1024];
+		private int[] data = new int[4 * 1024];
+		private int size = 0;
+
+		/* the edge popped last */
+		int u, v, vu, vv;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(double c, int u, int v, int vu, int vv) {
+			if(size == cost.length) {
+				double[] tmpc = new double[2 * size];
+				System.arraycopy(cost, 0, tmpc, 0, size);
+				cost = tmpc;
+				int[] tmpd = new int[8 * size];
+				System.arraycopy(data, 0, tmpd, 0, 4 * size);
+				data = tmpd;
+			}
+			int i = size++;
+			while(i > 0) {
+				int parent = (i - 1) / 2;
+				if(cost[parent] <= c)
+					break;
+				move(parent, i);
+				i = parent;
+			}
+			set(i, c, u, v, vu, vv);
+		}
+
+		void pop() {
+			u = data[0]; v = data[1]; vu = data[2]; vv = data[3];
+			size--;
+			if(size == 0)
+				return;
+			double c = cost[size];
+			int lu = data[4 * size], lv = data[4 * size + 1];
+			int lvu = data[4 * size + 2], lvv = data[4 * size + 3];
+			int i = 0;
+			while(true) {
+				int child = 2 * i + 1;
+				if(child >= size)
+					break;
+				if(child + 1 < size && cost[child + 1] < cost[child])
+					child++;
+				if(c <= cost[child])
+					break;
+				move(child, i);
+				i = child;
+			}
+			set(i, c, lu, lv, lvu, lvv);
+		}
+
+		private void move(int from, int to) {
+			cost[to] = cost[from];
+			System.arraycopy(data, 4 * from, data, 4 * to, 4);
+		}
+
+		private void set(int i, double c, int u, int v, int vu, int vv) {
+			cost[i] = c;
+			data[4 * i] = u;
+			data[4 * i + 1] = v;
+			data[4 * i + 2] = vu;
+			data[4 * i + 3] = vv;
+		}
+	}
+}
@@ -2,16 +2,16 @@
 
 import ij.IJ;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.ParseException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.vecmath.Point3f;
@@ -39,17 +39,11 @@ public static Map<String, CustomMesh> load(String stlfile)
 	private STLLoader() {
 	}
 
-	String line;
-	BufferedReader in;
-
 	// attributes of the currently read mesh
-	private ArrayList<Point3f> vertices = new ArrayList<Point3f>();
+	private List<Point3f> vertices = new ArrayList<Point3f>();
 	private String name = null;
 	private String stlfile = null;
-	private Point3f normal = new Point3f(0.0f, 0.0f, 0.0f); //to be used for file checking
-	private FileInputStream fis;
 	private int triangles;
-	private DecimalFormat decimalFormat = new DecimalFormat("0.0E0");
 
 	private void parse(String stlfile) throws IOException {
 		this.stlfile = stlfile;
@@ -59,116 +53,106 @@ private void parse(String stlfile) throws IOException {
 		// determine if this is a binary or ASCII STL
 		// and send to the appropriate parsing method
 
-		// Hypothesis 1: this is an ASCII STL
-		BufferedReader br = new BufferedReader(new FileReader(stlfile));
-		String line = br.readLine();
-		String[] words = line.trim().split("\\s+");
-		if (line.indexOf('\0') < 0 && words[0].equalsIgnoreCase("solid")) {
-			IJ.log("Looks like an ASCII STL");
-			parseAscii(f);
-			return;
-		}
-
-		// Hypothesis 2: this is a binary STL
-		FileInputStream fs = new FileInputStream(f);
+		// Hypothesis 1: this is a binary STL. Check this first,
+		// because the header of binary STLs may start with "solid"
 
 		// bytes 80, 81, 82 and 83 form a little-endian int
 		// that contains the number of triangles
-		byte[] buffer = new byte[84];
-		fs.read(buffer, 0, 84);
-		triangles = (int) (((buffer[83] & 0xff) << 24)
-				| ((buffer[82] & 0xff) << 16) | ((buffer[81] & 0xff) << 8) | (buffer[80] & 0xff));
-		if (((f.length() - 84) / 50) == triangles) {
-			IJ.log("Looks like a binary STL");
-			parseBinary(f);
-			return;
+		long length = f.length();
+		if (length >= 84) {
+			byte[] buffer = new byte[4];
+			RandomAccessFile ra = new RandomAccessFile(f, "r");
+			try {
+				ra.seek(80);
+				ra.readFully(buffer);
+			} finally {
+				ra.close();
+			}
+			triangles = (int) (((buffer[3] & 0xff) << 24)
+					| ((buffer[2] & 0xff) << 16) | ((buffer[1] & 0xff) << 8) | (buffer[0] & 0xff));
+			if (84 + 50 * (triangles & 0xffffffffl) == length) {
+				IJ.log("Looks like a binary STL");
+				parseBinary(f);
+				return;
+			}
 		}
-		IJ.error("STL Import", "File is not a valid STL");
-	}
 
-	private void parseAscii(File f) {
+		// Hypothesis 2: this is an ASCII STL
+		AsciiReader in = new AsciiReader(stlfile);
 		try {
-			in = new BufferedReader(new FileReader(stlfile));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		meshes = new HashMap<String, CustomMesh>();
-		vertices = new ArrayList<Point3f>();
-		try {
-			while ((line = in.readLine()) != null) {
-				String[] numbers = line.trim().split("\\s+");
-				if (numbers[0].equals("vertex")) {
-					float x = parseFloat(numbers[1]);
-					float y = parseFloat(numbers[2]);
-					float z = parseFloat(numbers[3]);
-					Point3f vertex = new Point3f(x, y, z);
-					vertices.add(vertex);
-				} else if (numbers[0].equals("facet") && numbers[1].equals("normal")) {
-					normal.x = parseFloat(numbers[2]);
-					normal.y = parseFloat(numbers[3]);
-					normal.z = parseFloat(numbers[4]);
-				}
+			if (in.nextLine() && in.keyword("solid", true)) {
+				IJ.log("Looks like an ASCII STL");
+				parseAscii(in);
+				return;
 			}
+		} finally {
 			in.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ParseException e) {
-			e.printStackTrace();
 		}
+		IJ.error("STL Import", "File is not a valid STL");
+	}
+
+	/*
+	 * Only the vertices are read; the normals are recomputed
+	 * anyway. Equal vertices are merged.
+	 */
+	private void parseAscii(AsciiReader in) throws IOException {
+		meshes = new HashMap<String, CustomMesh>();
+		VertexTable table = new VertexTable();
+		int[] indices = new int[3 * 1024];
+		int n = 0;
+		do {
+			if (in.keyword("vertex")) {
+				if (n == indices.length)
+					indices = Arrays.copyOf(indices, 2 * n);
+				float x = in.nextFloat();
+				float y = in.nextFloat();
+				float z = in.nextFloat();
+				indices[n++] = table.add(x, y, z);
+			}
+		} while (in.nextLine());
+		vertices = table.getMesh(indices, n - n % 3);
 		CustomMesh cm = createCustomMesh();
 		meshes.put(name, cm);
 	}
 
-	private void parseBinary(File f) {
+	/*
+	 * The file is mapped into memory (in parts of at most 1GB);
+	 * equal vertices are merged.
+	 */
+	private void parseBinary(File f) throws IOException {
 		meshes = new HashMap<String, CustomMesh>();
-		vertices = new ArrayList<Point3f>();
+		VertexTable table = new VertexTable();
+		int[] indices = new int[3 * triangles];
+		RandomAccessFile ra = new RandomAccessFile(f, "r");
 		try {
-			fis = new FileInputStream(f);
-			for (int h = 0; h < 84; h++)
-				fis.read();// skip the header bytes
-			for (int t = 0; t < triangles; t++) {
-				byte[] tri = new byte[50];
-				for (int tb = 0; tb < 50; tb++) {
-					tri[tb] = (byte) fis.read();
-				}
-				normal.x = leBytesToFloat(tri[0], tri[1], tri[2], tri[3]);
-				normal.y = leBytesToFloat(tri[4], tri[5], tri[6], tri[7]);
-				normal.z = leBytesToFloat(tri[8], tri[9], tri[10], tri[11]);
-				for (int i = 0; i < 3; i++) {
-					final int j = i * 12 + 12;
-					float px = leBytesToFloat(tri[j], tri[j + 1], tri[j + 2],
-							tri[j + 3]);
-					float py = leBytesToFloat(tri[j + 4], tri[j + 5],
-							tri[j + 6], tri[j + 7]);
-					float pz = leBytesToFloat(tri[j + 8], tri[j + 9],
-							tri[j + 10], tri[j + 11]);
-					Point3f p = new Point3f(px, py, pz);
-					vertices.add(p);
+			FileChannel channel = ra.getChannel();
+			int perMapping = (1 << 30) / 50;
+			long offset = 84;
+			for (int t = 0; t < triangles; ) {
+				int n = Math.min(perMapping, triangles - t);
+				ByteBuffer bb = channel.map(
+					FileChannel.MapMode.READ_ONLY, offset, 50l * n);
+				bb.order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < n; i++) {
+					// skip the normal
+					int j = 50 * i + 12;
+					for (int v = 0; v < 3; v++, j += 12)
+						indices[3 * (t + i) + v] = table.add(
+							bb.getFloat(j),
+							bb.getFloat(j + 4),
+							bb.getFloat(j + 8));
 				}
+				t += n;
+				offset += 50l * n;
 			}
-			fis.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		} finally {
+			ra.close();
 		}
+		vertices = table.getMesh(indices, indices.length);
 		CustomMesh cm = createCustomMesh();
 		meshes.put(name, cm);
 	}
 
-	private float parseFloat(String string) throws ParseException {
-		//E+05 -> E05, e+05 -> E05
-		string = string.replaceFirst("[eE]\\+", "E");
-		//E-05 -> E-05, e-05 -> E-05
-		string = string.replaceFirst("e\\-", "E-");
-	  	return decimalFormat.parse(string).floatValue();
-	}
-	
-	private float leBytesToFloat(byte b0, byte b1, byte b2, byte b3) {
-		return Float.intBitsToFloat((((b3 & 0xff) << 24) | ((b2 & 0xff) << 16)
-				| ((b1 & 0xff) << 8) | (b0 & 0xff)));
-	}
-
 	private CustomMesh createCustomMesh() {
 		if (vertices.size() == 0)
 			return null;
@@ -0,0 +1,111 @@
+package customnode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Welds vertices: maps equal coordinates to the same index, like a
+ * HashMap&lt;Point3f, Integer&gt; would, but in primitive arrays, so that
+ * meshes with millions of vertices can be indexed quickly.
+ */
+class VertexTable {
+
+	private float[] coords = new float[3 * 1024];
+	private int size = 0;
+
+	/* open addressing; -1 marks an empty slot */
+	private int[] table = newTable(2048);
+
+	/**
+	 * Returns the index of the vertex with the given coordinates,
+	 * adding it if necessary. Indices are given out in the order
+	 * of first appearance, starting at 0.
+	 */
+	int add(float x, float y, float z) {
+		int mask = table.length - 1;
+		int i = hash(x, y, z) & mask;
+		while(true) {
+			int index = table[i];
+			if(index == -1)
+				break;
+			if(coords[3 * index] == x && coords[3 * index + 1] == y
+					&& coords[3 * index + 2] == z)
+				return index;
+			i = (i + 1) & mask;
+		}
+		if(3 * size == coords.length)
+			coords = Arrays.copyOf(coords, 2 * coords.length);
+		int index = size++;
+		coords[3 * index] = x;
+		coords[3 * index + 1] = y;
+		coords[3 * index + 2] = z;
+		table[i] = index;
+		if(2 * size > table.length)
+			rehash();
+		return index;
+	}
+
+	int add(Point3f p) {
+		return add(p.x, p.y, p.z);
+	}
+
+	int size() {
+		return size;
+	}
+
+	float[] getCoordinates() {
+		return coords;
+	}
+
+	/**
+	 * One Point3f per vertex.
+	 */
+	Point3f[] getPoints() {
+		Point3f[] points = new Point3f[size];
+		for(int i = 0; i < size; i++)
+			points[i] = new Point3f(coords[3 * i],
+				coords[3 * i + 1], coords[3 * i + 2]);
+		return points;
+	}
+
+	/**
+	 * The list of points referenced by the given indices; equal
+	 * vertices share the same Point3f, as in WavefrontLoader.
+	 */
+	List<Point3f> getMesh(int[] indices, int n) {
+		Point3f[] points = getPoints();
+		List<Point3f> mesh = new ArrayList<Point3f>(n);
+		for(int i = 0; i < n; i++)
+			mesh.add(points[indices[i]]);
+		return mesh;
+	}
+
+	private void rehash() {
+		table = newTable(2 * table.length);
+		int mask = table.length - 1;
+		for(int index = 0; index < size; index++) {
+			int i = hash(coords[3 * index], coords[3 * index + 1],
+				coords[3 * index + 2]) & mask;
+			while(table[i] != -1)
+				i = (i + 1) & mask;
+			table[i] = index;
+		}
+	}
+
+	private static int[] newTable(int n) {
+		int[] t = new int[n];
+		Arrays.fill(t, -1);
+		return t;
+	}
+
+	private static int hash(float x, float y, float z) {
+		// 0.0f == -0.0f, so they must have the same hash
+		int h = Float.floatToIntBits(x + 0.0f);
+		h = 31 * h + Float.floatToIntBits(y + 0.0f);
+		h = 31 * h + Float.floatToIntBits(z + 0.0f);
+		return h ^ (h >>> 16);
+	}
+}
@@ -10,7 +10,6 @@
 import java.io.BufferedOutputStream;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -36,7 +35,7 @@ public static void save(
 		try {
 			dos_obj = new OutputStreamWriter(
 				new BufferedOutputStream(
-				new FileOutputStream(objF)), "8859_1");
+				new FileOutputStream(objF), 1 << 20), "8859_1");
 			dos_mtl = new OutputStreamWriter(
 				new BufferedOutputStream(
 				new FileOutputStream(
@@ -86,8 +85,6 @@ public static void save(
 		// object. Starting at '1' because vert indices start at one.
 		int j = 1; 
 
-		final StringBuffer tmp = new StringBuffer(100);
-
 		for(String name : meshes.keySet()) {
 			CustomMesh cmesh = meshes.get(name);
 
@@ -109,8 +106,7 @@ public static void save(
 			// make list of vertices
 			String title = name.replaceAll(" ", "_").
 					replaceAll("#", "--");
-			HashMap<Point3f, Integer> ht_points =
-					new HashMap<Point3f, Integer>();
+			VertexTable table = new VertexTable();
 			objWriter.write("g ");
 			objWriter.write(title);
 			objWriter.write('\n');
@@ -119,26 +115,10 @@ public static void save(
 
 			// index over index array, to make faces later
 			int k = 0;
-			for (Point3f p : vertices) {
-				// check if point already exists
-				if(ht_points.containsKey(p)) {
-					index[k] = ht_points.get(p);
-				} else {
-					// new point
-					index[k] = j;
-					// record
-					ht_points.put(p, j);
-					// append vertex
-					tmp.append('v').append(' ')
-					   .append(p.x).append(' ')
-					   .append(p.y).append(' ')
-					   .append(p.z).append('\n');
-					objWriter.write(tmp.toString());
-					tmp.setLength(0);
-					j++;
-				}
-				k++;
-			}
+			for (Point3f p : vertices)
+				index[k++] = j + table.add(p);
+			writeVertices(table, objWriter);
+			j += table.size();
 			objWriter.write("usemtl ");
 			objWriter.write(mat.name);
 			objWriter.write('\n');
@@ -178,6 +158,45 @@ else if(cmesh.getClass() == CustomLineMesh.class) {
 		}
 	}
 
+	/**
+	 * Write the vertices of the given table, in parallel.
+	 */
+	static void writeVertices(VertexTable table, Writer objWriter)
+						throws IOException {
+		final float[] coords = table.getCoordinates();
+		new ParallelFormatter() {
+			public void format(int from, int to, StringBuilder sb) {
+				for (int i = from; i < to; i++) {
+					sb.append('v').append(' ')
+					  .append(coords[3 * i]).append(' ')
+					  .append(coords[3 * i + 1]).append(' ')
+					  .append(coords[3 * i + 2]).append('\n');
+				}
+			}
+		}.write(objWriter, table.size());
+	}
+
+	/**
+	 * Write nFaces faces of n vertices each, in parallel; face i
+	 * starts at indices[i * step].
+	 */
+	private static void writeFaces(final int[] indices, final int n,
+			final int step, int nFaces, Writer objWriter)
+						throws IOException {
+		objWriter.write("s 1\n");
+		new ParallelFormatter() {
+			public void format(int from, int to, StringBuilder sb) {
+				for (int i = from; i < to; i++) {
+					sb.append('f');
+					for (int v = 0; v < n; v++)
+						sb.append(' ').append(indices[i * step + v]);
+					sb.append('\n');
+				}
+			}
+		}.write(objWriter, nFaces);
+		objWriter.write('\n');
+	}
+
 	/**
 	 * Write faces for triangle meshes.
 	 */
@@ -186,17 +205,7 @@ static void writeTriangleFaces(int[] indices, Writer objWriter, String name)
 		if(indices.length % 3 != 0)
 			throw new IllegalArgumentException(
 				"list of triangles not multiple of 3: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 3) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+		writeFaces(indices, 3, 3, indices.length / 3, objWriter);
 	}
 
 	/**
@@ -204,15 +213,7 @@ static void writeTriangleFaces(int[] indices, Writer objWriter, String name)
 	 */
 	static void writePointFaces(int[] indices, Writer objWriter, String name)
 						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+		writeFaces(indices, 1, 1, indices.length, objWriter);
 	}
 
 	/**
@@ -223,18 +224,7 @@ static void writeQuadFaces(int[] indices, Writer objWriter, String name)
 		if(indices.length % 4 != 0)
 			throw new IllegalArgumentException(
 				"list of quads not multiple of 4: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 4) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append(' ')
-				.append(indices[i+3]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+		writeFaces(indices, 4, 4, indices.length / 4, objWriter);
 	}
 
 	/**
@@ -247,16 +237,7 @@ static void writePairwiseLineFaces(int[] indices, Writer objWriter, String name)
 		if(indices.length % 2 != 0)
 			throw new IllegalArgumentException(
 				"list of lines not multiple of 2: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 2) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+		writeFaces(indices, 2, 2, indices.length / 2, objWriter);
 	}
 
 	/**
@@ -265,16 +246,8 @@ static void writePairwiseLineFaces(int[] indices, Writer objWriter, String name)
 	 */
 	static void writeContinuousLineFaces(int[] indices, Writer objWriter, String name)
 						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length - 1; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+		writeFaces(indices, 2, 1, Math.max(0, indices.length - 1),
+			objWriter);
 	}
 
 	/** A Material, but avoiding name colisions. Not thread-safe. */
@@ -5,12 +5,12 @@
 import javax.vecmath.Color3f;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import java.io.IOException;
 import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
 
 public class WavefrontLoader {
 
@@ -35,12 +35,17 @@ public static HashMap<String, CustomMesh> load(String objfile)
 
 	private  WavefrontLoader() {}
 
-	private BufferedReader in;
-	private String line;
+	private AsciiReader in;
+
+	// the vertices of the file, and one point per vertex,
+	// created when it is used first
+	private float[] coords = new float[3 * 1024];
+	private int nVertices = 0;
+	private Point3f[] points = new Point3f[1024];
 
 	// attributes of the currently read mesh
-	private ArrayList<Point3f> vertices = new ArrayList<Point3f>();
-	private ArrayList<Point3f> indices = new ArrayList<Point3f>();
+	private int[] indices = new int[1024];
+	private int nIndices = 0;
 	private String name = null;
 	private Color4f material = null;
 	private int type = -1;
@@ -50,55 +55,62 @@ private void parse(String objfile) throws IOException {
 		this.objfile = objfile;
 		File f = new File(objfile);
 
-		in = new BufferedReader(new FileReader(objfile));
+		in = new AsciiReader(objfile);
 		HashMap<String, Color4f> materials = null;
 
 		meshes = new HashMap<String, CustomMesh>();
 
-		while((line = in.readLine()) != null) {
-			if(line.startsWith("mtllib")) {
-				String mtlName = line.split("\\s+")[1].trim();
-				materials = readMaterials(f, mtlName);
-			} else if(line.startsWith("g ")) {
-				if(name != null) {
-					CustomMesh cm = createCustomMesh();
-					if(cm != null)
-						meshes.put(name, cm);
-					indices = new ArrayList<Point3f>();
-					material = null;
+		try {
+			while(in.nextLine()) {
+				if(in.keyword("v")) {
+					readVertex();
+				} else if(in.keyword("f")) {
+					readFace();
+				} else if(in.keyword("l")) {
+					readFace();
+				} else if(in.keyword("p")) {
+					readFace();
+				} else if(in.keyword("mtllib")) {
+					String mtlName = in.nextToken();
+					materials = readMaterials(f, mtlName);
+				} else if(in.keyword("g")) {
+					if(name != null) {
+						CustomMesh cm = createCustomMesh();
+						if(cm != null)
+							meshes.put(name, cm);
+						nIndices = 0;
+						material = null;
+					}
+					name = in.nextToken();
+				} else if(in.keyword("usemtl")) {
+					if(materials != null)
+						material = materials.get(in.nextToken());
 				}
-				name = line.split("\\s+")[1].trim();
-			} else if(line.startsWith("usemtl ")) {
-				if(materials != null)
-					material = materials.get(line.split("\\s+")[1]);
-			} else if(line.startsWith("v ")) {
-				readVertex();
-			} else if(line.startsWith("f ")) {
-				readFace();
-			} else if(line.startsWith("l ")) {
-				readFace();
-			} else if(line.startsWith("p ")) {
-				readFace();
 			}
+		} finally {
+			in.close();
 		}
-		if(name != null && indices.size() > 0) {
+		if(name != null && nIndices > 0) {
 			CustomMesh cm = createCustomMesh();
 			if(cm != null)
 				meshes.put(name, cm);
-			indices = new ArrayList<Point3f>();
+			nIndices = 0;
 			material = null;
 		}
 	}
 
 	private CustomMesh createCustomMesh() {
-		if(indices.size() == 0)
+		if(nIndices == 0)
 			return null;
+		List<Point3f> mesh = new ArrayList<Point3f>(nIndices);
+		for(int i = 0; i < nIndices; i++)
+			mesh.add(getPoint(indices[i]));
 		CustomMesh cm = null;
 		switch(type) {
-			case 1: cm = new CustomPointMesh(indices); break;
-			case 2: cm = new CustomLineMesh(indices, CustomLineMesh.PAIRWISE); break;
-			case 3: cm = new CustomTriangleMesh(indices); break;
-			case 4: cm = new CustomQuadMesh(indices); break;
+			case 1: cm = new CustomPointMesh(mesh); break;
+			case 2: cm = new CustomLineMesh(mesh, CustomLineMesh.PAIRWISE); break;
+			case 3: cm = new CustomTriangleMesh(mesh); break;
+			case 4: cm = new CustomQuadMesh(mesh); break;
 			default: throw new RuntimeException(
 				"Unexpected number of vertices for faces");
 		}
@@ -113,33 +125,41 @@ private CustomMesh createCustomMesh() {
 		return cm;
 	}
 
+	/* Faces which use the same vertex share its Point3f */
+	private Point3f getPoint(int v) {
+		if(points.length < nVertices)
+			points = Arrays.copyOf(points,
+				Math.max(nVertices, 2 * points.length));
+		if(points[v] == null)
+			points[v] = new Point3f(coords[3 * v],
+				coords[3 * v + 1], coords[3 * v + 2]);
+		return points[v];
+	}
+
 	private void readFace() {
-		String[] sp = line.split("\\s+");
-		type = sp.length - 1;
-		for(int i = 1; i < sp.length; i++) {
-			int idx = -1;
-			try {
-				idx = Integer.parseInt(sp[i]) - 1;
-			} catch(NumberFormatException e) {
-				int l = sp[i].indexOf('/');
-				if(l != -1) {
-					sp[i] = sp[i].substring(0, l);
-					idx = Integer.parseInt(sp[i]) - 1;
-				}
-			}
-			if(idx == -1)
+		int n = 0;
+		while(in.hasToken()) {
+			// negative indices are relative to the last vertex
+			int idx = in.nextInt();
+			idx = idx < 0 ? nVertices + idx : idx - 1;
+			if(idx < 0 || idx >= nVertices)
 				throw new RuntimeException(
 					"Error parsing faces: " + name);
-			indices.add(vertices.get(idx));
+			if(nIndices == indices.length)
+				indices = Arrays.copyOf(indices, 2 * nIndices);
+			indices[nIndices++] = idx;
+			n++;
 		}
+		type = n;
 	}
 
 	private void readVertex() {
-		String[] sp = line.split("\\s+");
-		vertices.add(new Point3f(
-			Float.parseFloat(sp[1]),
-			Float.parseFloat(sp[2]),
-			Float.parseFloat(sp[3])));
+		if(3 * nVertices == coords.length)
+			coords = Arrays.copyOf(coords, 2 * coords.length);
+		coords[3 * nVertices] = in.nextFloat();
+		coords[3 * nVertices + 1] = in.nextFloat();
+		coords[3 * nVertices + 2] = in.nextFloat();
+		nVertices++;
 	}
 
 	private HashMap<String, Color4f> readMaterials(
@@ -167,34 +187,29 @@ private static HashMap<String, Color4f> readMaterials(String file)
 		HashMap<String, Color4f> materials =
 				new HashMap<String, Color4f>();
 
-		BufferedReader in = new BufferedReader(new FileReader(file));
-		String line;
-		while((line = in.readLine()) != null) {
-			// newmtl: if we've read one before
-			// add it to the hash map
-			if(line.startsWith("newmtl")) {
-				if(name != null && color != null)
-					materials.put(name, color);
-				String[] sp = line.split("\\s+");
-				name = sp[1].trim();
-				color = null;
-			}
-
-			if(line.startsWith("Kd")) {
-				String[] sp = line.split("\\s+");
-				color = new Color4f(
-					Float.parseFloat(sp[1]),
-					Float.parseFloat(sp[2]),
-					Float.parseFloat(sp[3]),
-					1);
-			}
-
-			if(line.startsWith("d ")) {
-				if(color == null)
-					color = new Color4f(1, 1, 1, 1);
-				String[] sp = line.split("\\s+");
-				color.w = 1 - Float.parseFloat(sp[1]);
+		AsciiReader in = new AsciiReader(file);
+		try {
+			while(in.nextLine()) {
+				// newmtl: if we've read one before
+				// add it to the hash map
+				if(in.keyword("newmtl")) {
+					if(name != null && color != null)
+						materials.put(name, color);
+					name = in.nextToken();
+					color = null;
+				} else if(in.keyword("Kd")) {
+					float r = in.nextFloat();
+					float g = in.nextFloat();
+					float b = in.nextFloat();
+					color = new Color4f(r, g, b, 1);
+				} else if(in.keyword("d")) {
+					if(color == null)
+						color = new Color4f(1, 1, 1, 1);
+					color.w = 1 - in.nextFloat();
+				}
 			}
+		} finally {
+			in.close();
 		}
 
 		if(name != null && color != null)
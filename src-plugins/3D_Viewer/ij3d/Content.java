@@ -46,6 +46,9 @@ public class Content extends BranchGroup implements UniverseListener, ContentCon
 
 	private final boolean swapTimelapseData;
 
+	/** The number of timepoints to prefetch when swapping */
+	private static final int PREFETCH_TIMEPOINTS = 2;
+
 	public Content(String name) {
 		this(name, 0);
 	}
@@ -111,7 +114,7 @@ public void removeInstant(int timepoint) {
 			return;
 		int sIdx = timepointToSwitchIndex.get(timepoint);
 		contentSwitch.removeChild(sIdx);
-		contents.remove(timepoint);
+		contents.remove(timepoint).discardSwappedData();
 		timepointToSwitchIndex.remove(timepoint);
 		// update the following switch indices.
 		for(int i = sIdx; i < contentSwitch.numChildren(); i++) {
@@ -140,6 +143,7 @@ public void showTimepoint(int tp) {
 	public void showTimepoint(int tp, boolean force) {
 		if(tp == currentTimePoint && !force)
 			return;
+		int step = tp < currentTimePoint ? -1 : +1;
 		ContentInstant old = getCurrent();
 		if(old != null && !showAllTimepoints) {
 			if(swapTimelapseData)
@@ -157,6 +161,8 @@ public void showTimepoint(int tp, boolean force) {
 		ContentInstant next = getCurrent();
 		if(next != null && swapTimelapseData)
 				next.restoreDisplayedData();
+		if(swapTimelapseData)
+			prefetch(tp, step);
 
 		Integer idx = timepointToSwitchIndex.get(tp);
 		if(idx == null)
@@ -165,6 +171,22 @@ public void showTimepoint(int tp, boolean force) {
 			contentSwitch.setWhichChild(idx);
 	}
 
+	/**
+	 * Prefetch the swapped out data of the timepoints following tp
+	 * in the given direction (+1 or -1).
+	 */
+	private void prefetch(int tp, int step) {
+		TimepointCache.getInstance().cancelPrefetch();
+		Integer t = tp;
+		for(int i = 0; i < PREFETCH_TIMEPOINTS; i++) {
+			t = step > 0 ? contents.higherKey(t) :
+				contents.lowerKey(t);
+			if(t == null)
+				break;
+			contents.get(t).prefetchDisplayedData();
+		}
+	}
+
 	public void setShowAllTimepoints(boolean b) {
 		this.showAllTimepoints = b;
 		if(b) {
@@ -533,6 +555,8 @@ public void contentAdded(Content c) {}
 	public void contentRemoved(Content c) {
 		for(ContentInstant co : contents.values()) {
 			co.contentRemoved(c);
+			if(c == this)
+				co.discardSwappedData();
 		}
 	}
 	public void canvasResized() {}
@@ -542,6 +566,7 @@ public void contentChanged(Content c) {}
 	public void universeClosed() {
 		for(ContentInstant c : contents.values()) {
 			c.universeClosed();
+			c.discardSwappedData();
 		}
 	}
 
@@ -22,7 +22,20 @@
 
 public class ContentCreator {
 
-	private static final boolean SWAP_TIMELAPSE_DATA = false;
+	private static boolean swapTimelapseData = false;
+
+	/**
+	 * Specify whether the data of timelapse contents which are created
+	 * later on should be swapped out (see TimepointCache) while the
+	 * respective timepoint is not displayed.
+	 */
+	public static void setSwapTimelapseData(boolean b) {
+		swapTimelapseData = b;
+	}
+
+	public static boolean getSwapTimelapseData() {
+		return swapTimelapseData;
+	}
 
 	public static Content createContent(
 				String name,
@@ -91,7 +104,7 @@ public static Content createContent(
 		TreeMap<Integer, ContentInstant> instants =
 			new TreeMap<Integer, ContentInstant>();
 		boolean timelapse = images.length > 1;
-		boolean shouldSwap = SWAP_TIMELAPSE_DATA && timelapse;
+		boolean shouldSwap = swapTimelapseData && timelapse;
 		for(ImagePlus imp : images) {
 			ContentInstant content = new ContentInstant(name);
 			content.image = imp;
@@ -289,6 +289,16 @@ public void restoreDisplayedData() {
 		available = true;
 	}
 
+	/**
+	 * Start reading the swapped out data in the background, if this
+	 * instant is swapped out.
+	 */
+	public void prefetchDisplayedData() {
+		if(available)
+			return;
+		contentNode.prefetchDisplayedData(getDisplayedDataSwapfile(), getName());
+	}
+
 	public void clearDisplayedData() {
 		if(!available) return;
 		contentNode.clearDisplayedData();
@@ -299,6 +309,16 @@ public boolean isAvailable() {
 		return available;
 	}
 
+	/**
+	 * Forget the swapped out data of this instant, and delete its
+	 * swap file; used when the content is removed.
+	 */
+	public void discardSwappedData() {
+		if(displayedDataSwapfile != null)
+			TimepointCache.getInstance().remove(
+				displayedDataSwapfile, true);
+	}
+
 	private String displayedDataSwapfile = null;
 	private String originalDataSwapfile = null;
 
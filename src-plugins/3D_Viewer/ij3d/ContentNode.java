@@ -96,5 +96,13 @@ public ContentNode() {
 	public abstract void clearDisplayedData();
 
 	public abstract void restoreDisplayedData(String path, String name);
+
+	/**
+	 * Called for timepoints which are likely to be shown soon, so
+	 * that their swapped out data can be read in the background.
+	 * The default implementation does nothing.
+	 */
+	public void prefetchDisplayedData(String path, String name) {
+	}
 }
 
@@ -23,6 +23,7 @@
 import java.awt.event.WindowListener;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -32,9 +33,11 @@
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.j3d.BranchGroup;
 import javax.media.j3d.Canvas3D;
+import javax.media.j3d.Group;
 import javax.media.j3d.Transform3D;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JMenu;
@@ -1160,6 +1163,48 @@ public Content addCustomMesh(CustomMultiMesh mesh, String name) {
 		return addContent(content);
 	}
 
+	/**
+	 * Add many custom meshes to the universe at once. The contents are
+	 * created in parallel and then added in one go, see
+	 * addContents(Collection). Meshes whose name exists already are
+	 * skipped.
+	 *
+	 * Thousands of small meshes which need not be selected or
+	 * transformed individually render much faster when they are merged
+	 * into a single mesh first, see CustomTriangleMesh.merge(List).
+	 * @param meshes maps the names of the contents to the meshes
+	 * @return the added contents
+	 */
+	public Collection<Content> addCustomMeshes(Map<String, CustomMesh> meshes) {
+		final List<String> names = new ArrayList<String>(meshes.keySet());
+		final List<CustomMesh> list = new ArrayList<CustomMesh>(names.size());
+		for(String name : names)
+			list.add(meshes.get(name));
+		final Content[] created = new Content[names.size()];
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min(created.length,
+			Runtime.getRuntime().availableProcessors())];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for(int i = ai.getAndIncrement(); i < created.length;
+							i = ai.getAndIncrement())
+						created[i] = createContent(list.get(i),
+							names.get(i));
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for(Thread t : threads)
+				t.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted", e);
+		}
+		return addContents(Arrays.asList(created));
+	}
+
 	/**
 	 * Create a Content object from the mesh.
 	 *
@@ -1372,7 +1417,10 @@ public void removeContent(String name) {
 			Content content = contents.get(name);
 			if(content == null)
 				return;
-			scene.removeChild(content);
+			// contents added by addContents() are not direct
+			// children of the scene
+			content.detach();
+			removeEmptyBatches();
 			contents.remove(name);
 			if(selected == content)
 				clearSelection();
@@ -1698,6 +1746,126 @@ private boolean addContentToScene(Content c) {
 		return true;
 	}
 
+	/* The branches holding contents which were added together */
+	private List<BranchGroup> batches = new ArrayList<BranchGroup>();
+
+	/*
+	 * Adds the contents as one branch to the scene, so that the
+	 * scene graph is only updated once. Returns the added contents.
+	 */
+	private List<Content> addContentsToScene(Collection<Content> cc) {
+		List<Content> added = new ArrayList<Content>(cc.size());
+		synchronized (lock) {
+			BranchGroup batch = new BranchGroup();
+			batch.setCapability(BranchGroup.ALLOW_DETACH);
+			batch.setCapability(Group.ALLOW_CHILDREN_READ);
+			batch.setCapability(Group.ALLOW_CHILDREN_WRITE);
+			// update start and end time
+			int st = startTime;
+			int e = endTime;
+			for(Content c : cc) {
+				String name = c.getName();
+				if(contents.containsKey(name)) {
+					IJ.log("Mesh named '" + name + "' exists already");
+					continue;
+				}
+				if(c.getStartTime() < st)
+					st = c.getStartTime();
+				if(c.getEndTime() > e)
+					e = c.getEndTime();
+
+				batch.addChild(c);
+				this.contents.put(name, c);
+				this.recalculateGlobalMinMax(c);
+
+				c.setPointListDialog(plDialog);
+
+				c.showTimepoint(currentTimepoint, true);
+				added.add(c);
+			}
+			if(added.isEmpty())
+				return added;
+			updateStartAndEndTime(st, e);
+			this.scene.addChild(batch);
+			batches.add(batch);
+		}
+		return added;
+	}
+
+	/* Removes the branches of batches whose contents were all removed */
+	private void removeEmptyBatches() {
+		for(Iterator<BranchGroup> it = batches.iterator(); it.hasNext();) {
+			BranchGroup batch = it.next();
+			if(batch.numChildren() == 0) {
+				batch.detach();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Add the specified contents to the universe in one go. It is
+	 * assumed that the contents are constructed correctly.
+	 * In contrast to adding them one by one, the scene graph, the
+	 * timeline and the view are updated only once, and the listeners
+	 * are notified after all contents were added, which makes a big
+	 * difference for thousands of contents.
+	 * Will wait until the contents are fully added; for asynchronous
+	 * additions, use the @addContentsLater method.
+	 * @param cc
+	 * @return the added contents, or null if an error occurred.
+	 *         Contents whose name exists already are not added.
+	 */
+	public Collection<Content> addContents(Collection<Content> cc) {
+		try {
+			return addContentsLater(cc).get();
+		} catch (InterruptedException ie) {
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Add the specified contents to the universe in one go, see
+	 * addContents(Collection).
+	 * The contents are added asynchronously, and this method returns
+	 * immediately.
+	 * @param cc The contents to add
+	 * @return a Future holding the added contents.
+	 */
+	public Future<Collection<Content>> addContentsLater(
+			final Collection<Content> cc) {
+		final Image3DUniverse univ = this;
+		return adder.submit(new Callable<Collection<Content>>() {
+			@Override
+			public Collection<Content> call() {
+				List<Content> added;
+				synchronized (lock) {
+					added = addContentsToScene(cc);
+					if (added.isEmpty())
+						return added;
+					if (univ.autoAdjustView) {
+						univ.getViewPlatformTransformer()
+							.centerAt(univ.globalCenter);
+						float range = (float)(univ.globalMax.x
+							- univ.globalMin.x);
+						univ.ensureScale(range);
+					}
+				}
+				// notify the listeners before registering the new
+				// contents as listeners, as addContentLater() does
+				for (Content c : added)
+					univ.fireContentAdded(c);
+				for (Content c : added)
+					univ.addUniverseListener(c);
+				univ.waitForNextFrame();
+				univ.fireTransformationUpdated();
+				return added;
+			}
+		});
+	}
+
 	/**
 	 * Add the specified Content to the universe. It is assumed that the
 	 * specified Content is constructed correctly.
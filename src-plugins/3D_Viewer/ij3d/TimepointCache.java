@@ -0,0 +1,520 @@
+package ij3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps the swapped out data of timelapse contents.
+ *
+ * Swapped images are kept in memory, in least-recently-used order, as long
+ * as their total size fits into the memory budget; only images which are
+ * evicted from memory are written to disk, in a simple raw format (which
+ * can optionally be deflated). When a timepoint is shown, the upcoming
+ * timepoints can be prefetched by a background thread, so that playing a
+ * timelapse does not wait for the disk.
+ *
+ * The images are identified by the path of their swap file (without
+ * extension), as passed to Volume.swap() and Volume.restore().
+ */
+public class TimepointCache {
+
+	/** The extension of the swap files */
+	public static final String EXTENSION = ".raw";
+
+	private static final int MAGIC = 0x33445654; // "3DVT"
+	private static final int VERSION = 1;
+
+	private static TimepointCache instance;
+
+	private static class Entry {
+		ImagePlus imp;
+		long bytes;
+		// whether the swap file needs to be (re)written on eviction
+		boolean dirty;
+	}
+
+	private final Map<String, Entry> cache =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long cacheBytes, maxBytes;
+
+	/*
+	 * Counts the images put under a given path, so that the prefetcher
+	 * does not insert data which was read before a newer version was put.
+	 */
+	private final Map<String, Integer> versions =
+		new HashMap<String, Integer>();
+
+	/*
+	 * Held while a swap file is read or written, and while entries are
+	 * evicted, so that a file is never read while it is being written.
+	 */
+	private final Object ioLock = new Object();
+
+	private final LinkedList<String> prefetchQueue = new LinkedList<String>();
+	private Thread prefetcher;
+
+	private boolean compressed = false;
+
+	public static synchronized TimepointCache getInstance() {
+		if(instance == null)
+			instance = new TimepointCache();
+		return instance;
+	}
+
+	public TimepointCache() {
+		maxBytes = Math.min(Runtime.getRuntime().maxMemory() / 4,
+				1l << 30);
+	}
+
+	/**
+	 * Set the maximum number of bytes of image data which are kept
+	 * in memory.
+	 */
+	public void setMaxBytes(long bytes) {
+		synchronized(ioLock) {
+			synchronized(cache) {
+				maxBytes = bytes;
+			}
+			trim();
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Specify whether swap files are written deflated. This saves
+	 * disk space and bandwidth, at the cost of CPU time.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Take over the given image, which is swapped out. The caller
+	 * must not use the image anymore.
+	 */
+	public void put(String path, ImagePlus imp) {
+		Entry entry = new Entry();
+		entry.imp = imp;
+		entry.bytes = getBytes(imp);
+		entry.dirty = true;
+		synchronized(ioLock) {
+			synchronized(cache) {
+				Entry old = cache.put(path, entry);
+				if(old != null)
+					cacheBytes -= old.bytes;
+				cacheBytes += entry.bytes;
+				Integer version = versions.get(path);
+				versions.put(path, version == null ? 1 : version + 1);
+			}
+			trim();
+		}
+	}
+
+	/**
+	 * Returns the image swapped out under the given path, either from
+	 * memory or from the swap file, or null if there is none. The image
+	 * is handed back to the caller, which has to put() it again when it
+	 * is swapped out again.
+	 */
+	public ImagePlus get(String path) {
+		synchronized(cache) {
+			Entry entry = remove(path);
+			if(entry != null)
+				return entry.imp;
+		}
+		synchronized(ioLock) {
+			// the prefetcher might have been faster
+			synchronized(cache) {
+				Entry entry = remove(path);
+				if(entry != null)
+					return entry.imp;
+			}
+			File file = new File(path + EXTENSION);
+			if(!file.exists())
+				return null;
+			try {
+				return read(file);
+			} catch(IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the image swapped out under the given path is
+	 * currently held in memory.
+	 */
+	public boolean isCached(String path) {
+		synchronized(cache) {
+			return cache.containsKey(path);
+		}
+	}
+
+	/**
+	 * Forget the image swapped out under the given path, and delete
+	 * its swap file.
+	 */
+	public void remove(String path, boolean deleteFile) {
+		synchronized(ioLock) {
+			synchronized(cache) {
+				remove(path);
+				versions.remove(path);
+			}
+			synchronized(prefetchQueue) {
+				prefetchQueue.remove(path);
+			}
+			if(deleteFile)
+				new File(path + EXTENSION).delete();
+		}
+	}
+
+	/**
+	 * Forget all images held in memory, writing those which are not
+	 * on disk yet.
+	 */
+	public void flush() {
+		synchronized(ioLock) {
+			long max;
+			synchronized(cache) {
+				max = maxBytes;
+				maxBytes = 0;
+			}
+			trim();
+			synchronized(cache) {
+				maxBytes = max;
+			}
+		}
+	}
+
+	/**
+	 * Drop the pending prefetch requests, e.g. when the user jumps
+	 * to a different timepoint.
+	 */
+	public void cancelPrefetch() {
+		synchronized(prefetchQueue) {
+			prefetchQueue.clear();
+		}
+	}
+
+	/**
+	 * Read the image swapped out under the given path into memory
+	 * in the background. The requests are served in order.
+	 */
+	public void prefetch(String path) {
+		synchronized(prefetchQueue) {
+			if(isCached(path) || prefetchQueue.contains(path))
+				return;
+			prefetchQueue.add(path);
+			if(prefetcher == null) {
+				prefetcher = new Thread("3D Viewer timepoint prefetcher") {
+					public void run() {
+						prefetchLoop();
+					}
+				};
+				prefetcher.setDaemon(true);
+				prefetcher.setPriority(Thread.MIN_PRIORITY);
+				prefetcher.start();
+			}
+			prefetchQueue.notifyAll();
+		}
+	}
+
+	private void prefetchLoop() {
+		for(;;) {
+			String path;
+			synchronized(prefetchQueue) {
+				if(prefetchQueue.isEmpty()) try {
+					// do not keep the thread alive
+					prefetchQueue.wait(5000);
+				} catch(InterruptedException e) {
+					prefetcher = null;
+					return;
+				}
+				if(prefetchQueue.isEmpty()) {
+					prefetcher = null;
+					return;
+				}
+				path = prefetchQueue.removeFirst();
+			}
+			synchronized(ioLock) {
+				Integer version;
+				synchronized(cache) {
+					if(cache.containsKey(path))
+						continue;
+					version = versions.get(path);
+				}
+				File file = new File(path + EXTENSION);
+				// nothing was swapped out there (yet)
+				if(version == null || !file.exists())
+					continue;
+				ImagePlus imp;
+				try {
+					imp = read(file);
+				} catch(IOException e) {
+					// will be reported when it is restored
+					continue;
+				}
+				Entry entry = new Entry();
+				entry.imp = imp;
+				entry.bytes = getBytes(imp);
+				entry.dirty = false;
+				synchronized(cache) {
+					// do not evict to make room for a guess
+					if(cache.containsKey(path) ||
+						!version.equals(versions.get(path)) ||
+						cacheBytes + entry.bytes > maxBytes)
+						continue;
+					cache.put(path, entry);
+					cacheBytes += entry.bytes;
+				}
+			}
+		}
+	}
+
+	/* Must be called with the cache lock held */
+	private Entry remove(String path) {
+		Entry entry = cache.remove(path);
+		if(entry != null)
+			cacheBytes -= entry.bytes;
+		return entry;
+	}
+
+	/*
+	 * Evict the least recently used images until the budget is met,
+	 * writing them to their swap files. Must be called with the ioLock
+	 * held, but not the cache lock.
+	 */
+	private void trim() {
+		for(;;) {
+			String path;
+			Entry entry;
+			synchronized(cache) {
+				if(cacheBytes <= maxBytes || cache.isEmpty())
+					return;
+				Iterator<Map.Entry<String, Entry>> it =
+					cache.entrySet().iterator();
+				Map.Entry<String, Entry> eldest = it.next();
+				it.remove();
+				path = eldest.getKey();
+				entry = eldest.getValue();
+				cacheBytes -= entry.bytes;
+			}
+			if(!entry.dirty)
+				continue;
+			try {
+				write(entry.imp, new File(path + EXTENSION),
+						compressed);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static long getBytes(ImagePlus imp) {
+		long voxels = (long)imp.getWidth() * imp.getHeight() *
+			imp.getStackSize();
+		return imp.getType() == ImagePlus.COLOR_RGB ?
+			4 * voxels : voxels;
+	}
+
+	/* **********************************************************
+	 * The swap file format: a header, followed by the raw slices,
+	 * optionally deflated.
+	 * *********************************************************/
+
+	/**
+	 * Write an 8-bit or RGB image to a swap file.
+	 */
+	public static void write(ImagePlus imp, File file, boolean deflate)
+			throws IOException {
+		int w = imp.getWidth(), h = imp.getHeight();
+		int d = imp.getStackSize();
+		int type = imp.getType();
+		if(type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256 &&
+				type != ImagePlus.COLOR_RGB)
+			throw new IllegalArgumentException(
+				"Unsupported image type");
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			DataOutputStream header = new DataOutputStream(
+				new BufferedOutputStream(out));
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeBoolean(deflate);
+			header.writeUTF(imp.getTitle());
+			header.writeInt(type);
+			header.writeInt(w);
+			header.writeInt(h);
+			header.writeInt(d);
+			Calibration c = imp.getCalibration();
+			header.writeDouble(c.pixelWidth);
+			header.writeDouble(c.pixelHeight);
+			header.writeDouble(c.pixelDepth);
+			header.writeDouble(c.xOrigin);
+			header.writeDouble(c.yOrigin);
+			header.writeDouble(c.zOrigin);
+			header.writeUTF(c.getUnit());
+			ColorModel cm = imp.getProcessor().getColorModel();
+			boolean hasLUT = type != ImagePlus.COLOR_RGB &&
+				cm instanceof IndexColorModel;
+			header.writeBoolean(hasLUT);
+			if(hasLUT) {
+				byte[] lut = new byte[3 * 256];
+				IndexColorModel icm = (IndexColorModel)cm;
+				int n = Math.min(256, icm.getMapSize());
+				byte[] channel = new byte[n];
+				for(int ch = 0; ch < 3; ch++) {
+					if(ch == 0)
+						icm.getReds(channel);
+					else if(ch == 1)
+						icm.getGreens(channel);
+					else
+						icm.getBlues(channel);
+					System.arraycopy(channel, 0,
+						lut, ch * 256, n);
+				}
+				header.write(lut);
+			}
+			header.flush();
+
+			OutputStream data = out;
+			Deflater deflater = null;
+			if(deflate) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				data = new DeflaterOutputStream(out,
+						deflater, 1 << 16);
+			}
+			ImageStack stack = imp.getStack();
+			ByteBuffer buffer = type == ImagePlus.COLOR_RGB ?
+				ByteBuffer.allocate(4 * w * h) : null;
+			for(int z = 1; z <= d; z++) {
+				Object pixels = stack.getPixels(z);
+				if(buffer == null)
+					data.write((byte[])pixels);
+				else {
+					buffer.clear();
+					buffer.asIntBuffer().put((int[])pixels);
+					data.write(buffer.array());
+				}
+			}
+			if(deflater != null) {
+				((DeflaterOutputStream)data).finish();
+				deflater.end();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read an image from a swap file written by write().
+	 */
+	public static ImagePlus read(File file) throws IOException {
+		InputStream in = new BufferedInputStream(
+				new FileInputStream(file), 1 << 16);
+		try {
+			DataInputStream header = new DataInputStream(in);
+			if(header.readInt() != MAGIC)
+				throw new IOException("Not a swap file: " + file);
+			if(header.readInt() > VERSION)
+				throw new IOException("Unsupported version: " +
+						file);
+			boolean deflated = header.readBoolean();
+			String title = header.readUTF();
+			int type = header.readInt();
+			int w = header.readInt();
+			int h = header.readInt();
+			int d = header.readInt();
+			Calibration c = new Calibration();
+			c.pixelWidth = header.readDouble();
+			c.pixelHeight = header.readDouble();
+			c.pixelDepth = header.readDouble();
+			c.xOrigin = header.readDouble();
+			c.yOrigin = header.readDouble();
+			c.zOrigin = header.readDouble();
+			c.setUnit(header.readUTF());
+			ColorModel cm = null;
+			if(header.readBoolean()) {
+				byte[] lut = new byte[3 * 256];
+				header.readFully(lut);
+				byte[] r = new byte[256], g = new byte[256],
+					b = new byte[256];
+				System.arraycopy(lut, 0, r, 0, 256);
+				System.arraycopy(lut, 256, g, 0, 256);
+				System.arraycopy(lut, 512, b, 0, 256);
+				cm = new IndexColorModel(8, 256, r, g, b);
+			}
+
+			DataInputStream data = deflated ?
+				new DataInputStream(new InflaterInputStream(
+					in, new Inflater(),
+					1 << 16)) :
+				header;
+			ImageStack stack = new ImageStack(w, h);
+			boolean rgb = type == ImagePlus.COLOR_RGB;
+			byte[] bytes = rgb ? new byte[4 * w * h] : null;
+			for(int z = 0; z < d; z++) {
+				if(rgb) {
+					data.readFully(bytes);
+					int[] pixels = new int[w * h];
+					ByteBuffer.wrap(bytes).asIntBuffer()
+						.get(pixels);
+					stack.addSlice("", pixels);
+				} else {
+					byte[] pixels = new byte[w * h];
+					data.readFully(pixels);
+					stack.addSlice("", pixels);
+				}
+			}
+			if(cm != null)
+				stack.setColorModel(cm);
+			ImagePlus imp = new ImagePlus(title, stack);
+			if(cm != null) {
+				ImageProcessor ip = imp.getProcessor();
+				ip.setColorModel(cm);
+			}
+			imp.setCalibration(c);
+			return imp;
+		} finally {
+			in.close();
+		}
+	}
+}
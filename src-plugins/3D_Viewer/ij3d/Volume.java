@@ -3,7 +3,6 @@
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.IJ;
 import java.awt.image.IndexColorModel;
 import javax.vecmath.Point3d;
 
@@ -168,15 +167,27 @@ public void clear() {
 		loader = null;
 	}
 
+	/**
+	 * Hand the image over to the TimepointCache, which keeps it in
+	 * memory or writes it to the swap file at the given path (without
+	 * extension).
+	 */
 	public void swap(String path) {
-		IJ.save(imp, path + ".tif");
+		TimepointCache.getInstance().put(path, imp);
 		imp = null;
 		image = null;
 		loader = null;
 	}
 
+	/**
+	 * Get the image back from the TimepointCache.
+	 */
 	public void restore(String path) {
-		setImage(IJ.openImage(path + ".tif"), channels);
+		ImagePlus imp = TimepointCache.getInstance().get(path);
+		if(imp == null)
+			throw new IllegalArgumentException(
+				"Cannot load image from " + path);
+		setImage(imp, channels);
 	}
 
 	/**
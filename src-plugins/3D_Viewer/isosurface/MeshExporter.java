@@ -10,11 +10,11 @@
 import customnode.CustomMeshNode;
 import customnode.CustomMesh;
 import customnode.CustomMultiMesh;
+import customnode.ParallelFormatter;
 
 import ij.IJ;
 import ij.io.SaveDialog;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.BufferedOutputStream;
 import java.io.OutputStreamWriter;
@@ -24,13 +24,16 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import java.util.Collection;
+import java.util.Formatter;
 import java.util.Iterator;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 import javax.vecmath.Point3f;
 import javax.vecmath.Color3f;
@@ -178,18 +181,16 @@ public static void saveAsSTL(Collection meshgroups, File stl_file, int filetype)
 		}
 
 		OutputStreamWriter dos = null;
-		DataOutputStream out = null;
+		FileChannel out = null;
 		try {
 			if (filetype == ASCII) {
 				dos = new OutputStreamWriter(new BufferedOutputStream(
-						new FileOutputStream(stl_file)), "8859_1");
+						new FileOutputStream(stl_file), 1 << 20), "8859_1");
 				writeAsciiSTL(meshgroups, dos, stl_file.getName());
 				dos.flush();
 			} else {
-				out = new DataOutputStream(new BufferedOutputStream(
-						new FileOutputStream(stl_file)));
+				out = new FileOutputStream(stl_file).getChannel();
 				writeBinarySTL(meshgroups, out);
-				out.flush();
 			}
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -205,7 +206,7 @@ public static void saveAsSTL(Collection meshgroups, File stl_file, int filetype)
 	}
 
 	private static void writeBinarySTL(Collection meshgroups,
-			DataOutputStream out) {
+			FileChannel out) {
 			
 		// get all the meshes and sort them into a hash
 		HashMap<String, CustomMesh> meshes = new HashMap<String, CustomMesh>();
@@ -257,20 +258,26 @@ private static void writeBinarySTL(Collection meshgroups,
 		for (int i = header.length(); i < 80; i++){
 			header = header+".";
 		}
+		// the triangles are collected in a large direct buffer,
+		// which is written whenever it is full
+		ByteBuffer bb = ByteBuffer.allocateDirect(50 * (1 << 15));
+		bb.order(ByteOrder.LITTLE_ENDIAN);
 		try {
-			out.writeBytes(header);
-			out.writeByte(triangles & 0xFF);
-			out.writeByte((triangles >> 8) & 0xFF);
-			out.writeByte((triangles >> 16) & 0xFF);
-			out.writeByte((triangles >> 24) & 0xFF);
+			for (int i = 0; i < 80; i++)
+				bb.put((byte) header.charAt(i));
+			bb.putInt(triangles);
 			for (List<Point3f> vertices : surfaces){
 				for (int i = 0; i < vertices.size(); i+=3){
+					if (bb.remaining() < 50) {
+						bb.flip();
+						while (bb.hasRemaining())
+							out.write(bb);
+						bb.clear();
+					}
 					Point3f p0 = vertices.get(i);
 					Point3f p1 = vertices.get(i+1);
 					Point3f p2 = vertices.get(i+2);
 					Point3f n = unitNormal(p0, p1, p2);
-					ByteBuffer bb = ByteBuffer.allocate(50);
-					bb.order(ByteOrder.LITTLE_ENDIAN);
 					bb.putFloat(n.x);
 					bb.putFloat(n.y);
 					bb.putFloat(n.z);
@@ -284,9 +291,11 @@ private static void writeBinarySTL(Collection meshgroups,
 					bb.putFloat(p2.y);
 					bb.putFloat(p2.z);
 					bb.putShort((short)0);
-					out.write(bb.array());
 				}
 			}
+			bb.flip();
+			while (bb.hasRemaining())
+				out.write(bb);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -351,35 +360,30 @@ private static void writeAsciiSTL(Collection<Content> meshgroups,
 							+ " as STL");
 					continue;
 				}
-				List<Point3f> vertices = cmesh.getMesh();
-				final int nPoints = vertices.size();
-				for (int p = 0; p < nPoints; p += 3) {
-					Point3f p0 = vertices.get(p);
-					Point3f p1 = vertices.get(p+1);
-					Point3f p2 = vertices.get(p+2);
-					Point3f n = unitNormal(p0, p1, p2);
-
-					final String e = "%E"; //Scientific format -3.141569E+03
-					dos.write("\nfacet normal ");
-					dos.write(String.format(e, n.x)+" ");
-					dos.write(String.format(e, n.y)+" ");
-					dos.write(String.format(e, n.z)+"\n");
-					dos.write(" outer loop\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p0.x)+" ");
-					dos.write(String.format(e, p0.y)+" ");
-					dos.write(String.format(e, p0.z)+"\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p1.x)+" ");
-					dos.write(String.format(e, p1.y)+" ");
-					dos.write(String.format(e, p1.z)+"\n");
-					dos.write("  vertex ");
-					dos.write(String.format(e, p2.x)+" ");
-					dos.write(String.format(e, p2.y)+" ");
-					dos.write(String.format(e, p2.z)+"\n");
-					dos.write(" endloop\n");
-					dos.write("endfacet");
-				}
+				final List<Point3f> vertices = cmesh.getMesh();
+				// the facets are formatted in parallel; always use
+				// a decimal point, whatever the default locale
+				new ParallelFormatter() {
+					public void format(int from, int to, StringBuilder sb) {
+						Formatter f = new Formatter(sb, Locale.US);
+						for (int p = 3 * from; p < 3 * to; p += 3) {
+							Point3f p0 = vertices.get(p);
+							Point3f p1 = vertices.get(p+1);
+							Point3f p2 = vertices.get(p+2);
+							Point3f n = unitNormal(p0, p1, p2);
+
+							//Scientific format -3.141569E+03
+							sb.append("\nfacet normal ");
+							f.format("%E %E %E\n", n.x, n.y, n.z);
+							sb.append(" outer loop\n");
+							f.format("  vertex %E %E %E\n", p0.x, p0.y, p0.z);
+							f.format("  vertex %E %E %E\n", p1.x, p1.y, p1.z);
+							f.format("  vertex %E %E %E\n", p2.x, p2.y, p2.z);
+							sb.append(" endloop\n");
+							sb.append("endfacet");
+						}
+					}
+				}.write(dos, vertices.size() / 3);
 			}
 			dos.write("\n endsolid ");
 			dos.write(stl_filename);
@@ -6,23 +6,72 @@
 import ij3d.ContentNode;
 
 import java.awt.Color;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.media.j3d.BranchGroup;
+import javax.media.j3d.Canvas3D;
+import javax.media.j3d.Geometry;
+import javax.media.j3d.Switch;
+import javax.media.j3d.Transform3D;
 import javax.media.j3d.View;
 import javax.vecmath.Color3f;
+import javax.vecmath.Point2d;
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
 import javax.vecmath.Tuple3d;
 
 import marchingcubes.MCTriangulator;
 import customnode.CustomTriangleMesh;
+import customnode.QuadricDecimation;
 
+/**
+ * Displays the isosurface of an image.
+ *
+ * Surfaces with many triangles get additional, simplified levels of
+ * detail, each with a quarter of the triangles of the previous one.
+ * They are computed in the background, and the coarsest level whose
+ * mean edge length on the screen is at most LOD_EDGE_PIXELS is shown.
+ * The full resolution mesh returned by getMesh() is shown when it was
+ * modified after the levels were computed.
+ */
 public class MeshGroup extends ContentNode {
 
+	/** The maximum mean edge length, in pixels, of a shown level */
+	public static final double LOD_EDGE_PIXELS = 2;
+
+	/** The maximum number of simplified levels */
+	public static final int LOD_MAX_LEVELS = 4;
+
+	private static int lodThreshold = 100000;
+
 	private CustomTriangleMesh mesh;
 	private Triangulator triangulator = new MCTriangulator();
 	private ContentInstant c;
 	private Point3f min, max, center;
 
+	/* Child 0 is the full resolution mesh, the others the levels */
+	private final Switch lodSwitch;
+	private CustomTriangleMesh[] levels;
+	/* The mean edge lengths of the full mesh and the levels */
+	private double[] edgeLengths;
+	/* The geometry of the full mesh the levels were computed from */
+	private Geometry lodSource;
+	private volatile int lodGeneration = 0;
+	private int currentLevel = 0;
+	private volatile View lastView;
+
+	/**
+	 * Surfaces with fewer triangles than this get no levels of detail.
+	 */
+	public static void setLevelsOfDetailThreshold(int triangles) {
+		lodThreshold = triangles;
+	}
+
+	public static int getLevelsOfDetailThreshold() {
+		return lodThreshold;
+	}
+
 	public MeshGroup (Content c) {
 		this(c.getCurrent());
 	}
@@ -41,7 +90,15 @@ public MeshGroup (ContentInstant c) {
 		}
 		mesh = new CustomTriangleMesh(tri, color, c.getTransparency());
 		calculateMinMaxCenterPoint();
-		addChild(mesh);
+		setCapability(ALLOW_LOCAL_TO_VWORLD_READ);
+		lodSwitch = new Switch();
+		lodSwitch.setCapability(Switch.ALLOW_SWITCH_WRITE);
+		lodSwitch.setCapability(Switch.ALLOW_CHILDREN_WRITE);
+		lodSwitch.setCapability(Switch.ALLOW_CHILDREN_EXTEND);
+		lodSwitch.addChild(mesh);
+		lodSwitch.setWhichChild(0);
+		addChild(lodSwitch);
+		updateLevelsOfDetail();
 	}
 
 	public CustomTriangleMesh getMesh() {
@@ -60,8 +117,160 @@ public void getCenter(Tuple3d center) {
 		center.set(this.center);
 	}
 
-	public void eyePtChanged(View view) {
-		// do nothing
+	/**
+	 * Recomputes the levels of detail from the current full
+	 * resolution mesh, in a background thread. Until they are
+	 * available, the full resolution mesh is shown.
+	 */
+	public void updateLevelsOfDetail() {
+		final int generation;
+		synchronized(this) {
+			removeLevelsOfDetail();
+			generation = lodGeneration;
+		}
+		final List<Point3f> tri = mesh.getMesh();
+		if(tri == null || tri.size() / 3 < lodThreshold)
+			return;
+		final Geometry source = mesh.getGeometry();
+		final Color3f color = mesh.getColor();
+		final float transparency = mesh.getTransparency();
+		final boolean shaded = mesh.isShaded();
+		Thread thread = new Thread("Levels of detail") {
+			public void run() {
+				QuadricDecimation qd = new QuadricDecimation(tri);
+				List<CustomTriangleMesh> meshes = new ArrayList<CustomTriangleMesh>();
+				List<Double> lengths = new ArrayList<Double>();
+				lengths.add(qd.getMeanEdgeLength());
+				int n = qd.getTriangleCount();
+				for(int l = 1; l <= LOD_MAX_LEVELS; l++) {
+					n /= 4;
+					if(n < lodThreshold / 16 || lodGeneration != generation)
+						break;
+					qd.simplify(n);
+					CustomTriangleMesh m = new CustomTriangleMesh(
+						qd.getTriangles(), color, transparency);
+					m.setShaded(shaded);
+					meshes.add(m);
+					lengths.add(qd.getMeanEdgeLength());
+				}
+				synchronized(MeshGroup.this) {
+					if(lodGeneration != generation || mesh.getGeometry() != source)
+						return;
+					double[] el = new double[lengths.size()];
+					for(int i = 0; i < el.length; i++)
+						el[i] = lengths.get(i);
+					for(CustomTriangleMesh m : meshes) {
+						BranchGroup bg = new BranchGroup();
+						bg.setCapability(BranchGroup.ALLOW_DETACH);
+						bg.addChild(m);
+						lodSwitch.addChild(bg);
+					}
+					edgeLengths = el;
+					lodSource = source;
+					levels = meshes.toArray(new CustomTriangleMesh[meshes.size()]);
+				}
+				if(lastView != null)
+					eyePtChanged(lastView);
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Removes the levels of detail and shows the full resolution mesh.
+	 */
+	public synchronized void removeLevelsOfDetail() {
+		lodGeneration++;
+		showLevel(0);
+		for(int i = lodSwitch.numChildren() - 1; i > 0; i--)
+			lodSwitch.removeChild(i);
+		levels = null;
+		edgeLengths = null;
+		lodSource = null;
+	}
+
+	public synchronized CustomTriangleMesh[] getLevelsOfDetail() {
+		return levels;
+	}
+
+	private void showLevel(int level) {
+		if(level != currentLevel) {
+			lodSwitch.setWhichChild(level);
+			currentLevel = level;
+		}
+	}
+
+	/**
+	 * Shows the coarsest level whose edges are short enough on
+	 * the screen.
+	 */
+	public synchronized void eyePtChanged(View view) {
+		lastView = view;
+		if(levels == null || !isLive())
+			return;
+		if(mesh.getGeometry() != lodSource) {
+			// modified since the levels were computed
+			showLevel(0);
+			return;
+		}
+		double pixelsPerUnit = getPixelsPerUnit(view);
+		int level = 0;
+		for(int l = levels.length; l > 0; l--) {
+			if(edgeLengths[l] * pixelsPerUnit <= LOD_EDGE_PIXELS) {
+				level = l;
+				break;
+			}
+		}
+		showLevel(level);
+	}
+
+	private final Transform3D volToIP = new Transform3D();
+	private final Transform3D toVWorld = new Transform3D();
+	private final Point3d eye = new Point3d();
+	private final Point3d ptmp = new Point3d();
+	private final Point2d[] corners = new Point2d[] {new Point2d(), new Point2d()};
+
+	/*
+	 * The length of the diagonal of the bounding box on the screen,
+	 * divided by its real length.
+	 */
+	private double getPixelsPerUnit(View view) {
+		Canvas3D canvas = view.getCanvas3D(0);
+		canvas.getImagePlateToVworld(volToIP);
+		volToIP.invert();
+		getLocalToVworld(toVWorld);
+		volToIP.mul(toVWorld);
+		canvas.getCenterEyeInImagePlate(eye);
+		boolean parallel =
+			view.getProjectionPolicy() == View.PARALLEL_PROJECTION;
+
+		double diag = 0;
+		for(int i = 0; i < 4; i++) {
+			// the four diagonals of the bounding box
+			for(int j = 0; j < 2; j++) {
+				boolean first = j == 0;
+				ptmp.set(
+					((i & 1) == 0) == first ? min.x : max.x,
+					((i & 2) == 0) == first ? min.y : max.y,
+					first ? min.z : max.z);
+				volToIP.transform(ptmp);
+				if(!parallel) {
+					// project through the eye onto the image plate
+					if(ptmp.z >= eye.z)
+						return Double.POSITIVE_INFINITY;
+					double f = eye.z / (eye.z - ptmp.z);
+					ptmp.x = eye.x + (ptmp.x - eye.x) * f;
+					ptmp.y = eye.y + (ptmp.y - eye.y) * f;
+					ptmp.z = 0;
+				}
+				canvas.getPixelLocationFromImagePlate(ptmp, corners[j]);
+			}
+			diag = Math.max(diag, corners[0].distance(corners[1]));
+		}
+		double length = min.distance(max);
+		return length == 0 ? Double.POSITIVE_INFINITY : diag / length;
 	}
 
 	public void thresholdUpdated(int threshold) {
@@ -74,6 +283,7 @@ public void thresholdUpdated(int threshold) {
 				c.getThreshold(), c.getChannels(),
 				c.getResamplingFactor());
 		mesh.setMesh(tri);
+		updateLevelsOfDetail();
 	}
 
 	public void lutUpdated(int[] r, int[] g, int[] b, int[] a) {
@@ -90,6 +300,7 @@ public void channelsUpdated(boolean[] channels) {
 			c.getThreshold(), c.getChannels(),
 			c.getResamplingFactor());
 		mesh.setMesh(tri);
+		updateLevelsOfDetail();
 	}
 
 	public void calculateMinMaxCenterPoint() {
@@ -106,8 +317,11 @@ public float getVolume() {
 		return mesh.getVolume();
 	}
 
-	public void shadeUpdated(boolean shaded) {
+	public synchronized void shadeUpdated(boolean shaded) {
 		mesh.setShaded(shaded);
+		if(levels != null)
+			for(CustomTriangleMesh m : levels)
+				m.setShaded(shaded);
 	}
 
 	public void colorUpdated(Color3f newColor) {
@@ -117,21 +331,32 @@ public void colorUpdated(Color3f newColor) {
 			newColor = new Color3f(new Color(val));
 		}
 		mesh.setColor(newColor);
+		synchronized(this) {
+			if(levels != null)
+				for(CustomTriangleMesh m : levels)
+					m.setColor(newColor);
+		}
 	}
 
-	public void transparencyUpdated(float transparency) {
+	public synchronized void transparencyUpdated(float transparency) {
 		mesh.setTransparency(transparency);
+		if(levels != null)
+			for(CustomTriangleMesh m : levels)
+				m.setTransparency(transparency);
 	}
 
 	public void restoreDisplayedData(String path, String name) {
 		mesh.restoreDisplayedData(path, name);
+		updateLevelsOfDetail();
 	}
 
 	public void clearDisplayedData() {
+		removeLevelsOfDetail();
 		mesh.clearDisplayedData();
 	}
 
 	public void swapDisplayedData(String path, String name) {
+		removeLevelsOfDetail();
 		mesh.swapDisplayedData(path, name);
 	}
 }
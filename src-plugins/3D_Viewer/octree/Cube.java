@@ -29,6 +29,11 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 	private boolean visible = false;
 	private boolean subtreeVisible = false;
 
+	/* Set by collectCubesToShow() if this cube should be shown */
+	private boolean needed = false;
+	/* The length of the longest diagonal, in pixels on the canvas */
+	private double projectedSize;
+
 	final CubeData cdata;
 
 	final VolumeOctree octree;
@@ -137,7 +142,15 @@ public void hideSubtree() {
 		}
 	}
 
-	private void showSelf() {
+	boolean isVisible() {
+		return visible;
+	}
+
+	double getProjectedSize() {
+		return projectedSize;
+	}
+
+	void showSelf() {
 		if (!(this.visible)) {
 			this.cdata.show();
 			this.visible = true;
@@ -170,6 +183,47 @@ public void update(Canvas3D canvas, Transform3D volToIP) {
 		}
 	}
 
+	/**
+	 * Like update(), but instead of showing the cubes which have a
+	 * sufficient resolution, adds them to the given list, so that
+	 * they can be loaded in the order of their priority. Cubes
+	 * outside the canvas are hidden right away; the others stay as
+	 * they are until hideUnneeded() is called.
+	 */
+	public void collectCubesToShow(Canvas3D canvas, Transform3D volToIP,
+			List<Cube> cubes) {
+		needed = false;
+		int i = checkResolution(canvas, volToIP);
+		if (i == OUTSIDE_CANVAS) {
+			hideSelf();
+			hideSubtree();
+			return;
+		}
+		if ((i == RESOLUTION_UNSUFFICIENT) && (this.children != null)) {
+			this.subtreeVisible = true;
+			for (Cube localCube : this.children)
+				if (localCube != null)
+					localCube.collectCubesToShow(canvas, volToIP, cubes);
+		} else {
+			needed = true;
+			cubes.add(this);
+		}
+	}
+
+	/**
+	 * Hides all the cubes which were not collected by the last call
+	 * to collectCubesToShow(), after the collected ones were shown.
+	 */
+	public void hideUnneeded() {
+		if (needed)
+			return;
+		hideSelf();
+		if (this.subtreeVisible && this.children != null)
+			for (Cube localCube : this.children)
+				if (localCube != null)
+					localCube.hideUnneeded();
+	}
+
 	public int checkResolution(Canvas3D canvas, Transform3D volToIP) {
 		for (int i = 0; i < this.corners.length; ++i)
 			volumePointInCanvas(canvas, volToIP, this.corners[i], this.cornersInCanvas[i]);
@@ -180,6 +234,7 @@ public int checkResolution(Canvas3D canvas, Transform3D volToIP) {
 		double d1 = this.cornersInCanvas[1].distance(this.cornersInCanvas[6]); if (d1 > d2) d2 = d1;
 		d1 = this.cornersInCanvas[2].distance(this.cornersInCanvas[5]); if (d1 > d2) d2 = d1;
 		d1 = this.cornersInCanvas[3].distance(this.cornersInCanvas[4]); if (d1 > d2) d2 = d1;
+		projectedSize = d2;
 
 		return ((d2 <= RES_THRESHOLD) ? RESOLUTION_SUFFICIENT : RESOLUTION_UNSUFFICIENT);
 	}
@@ -0,0 +1,116 @@
+package octree;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the slices of the most recently used cubes in memory, so that
+ * cubes which are shown again while navigating need not be read from disk
+ * again. The cache is bounded by a number of bytes; the least recently
+ * used cubes are dropped first.
+ *
+ * The images are shared by all users of a cube and must not be modified.
+ */
+public class CubeCache {
+
+	private static final int SIZE = VolumeOctree.SIZE;
+	private static final long CUBE_BYTES = (long)SIZE * SIZE * SIZE;
+
+	private static CubeCache instance;
+
+	private final Map<String, BufferedImage[]> cache =
+		new LinkedHashMap<String, BufferedImage[]>(16, 0.75f, true);
+	private long maxBytes;
+
+	private CubeCache() {
+		maxBytes = Math.min(Runtime.getRuntime().maxMemory() / 4, 512l << 20);
+	}
+
+	public static synchronized CubeCache getInstance() {
+		if(instance == null)
+			instance = new CubeCache();
+		return instance;
+	}
+
+	public void setCacheSize(long bytes) {
+		synchronized(cache) {
+			maxBytes = bytes;
+			trim();
+		}
+	}
+
+	public long getCacheSize() {
+		return maxBytes;
+	}
+
+	public boolean isCached(String path) {
+		synchronized(cache) {
+			return cache.containsKey(path);
+		}
+	}
+
+	/**
+	 * Returns the slices of the cube stored in the given file,
+	 * reading them if they are not cached. May be called from
+	 * several threads at once.
+	 */
+	public BufferedImage[] get(String path) throws IOException {
+		synchronized(cache) {
+			BufferedImage[] images = cache.get(path);
+			if(images != null)
+				return images;
+		}
+		BufferedImage[] images = read(path);
+		synchronized(cache) {
+			// another thread might have been faster
+			BufferedImage[] cached = cache.get(path);
+			if(cached != null)
+				return cached;
+			cache.put(path, images);
+			trim();
+		}
+		return images;
+	}
+
+	public void clear() {
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+
+	private void trim() {
+		Iterator<String> it = cache.keySet().iterator();
+		// always keep the most recently used cube
+		while(cache.size() * CUBE_BYTES > maxBytes && cache.size() > 1) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static BufferedImage[] read(String path) throws IOException {
+		BufferedImage[] images = new BufferedImage[SIZE];
+		DataInputStream is = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(path), SIZE * SIZE));
+		try {
+			for(int i = 0; i < SIZE; i++) {
+				images[i] = new BufferedImage(SIZE, SIZE,
+					BufferedImage.TYPE_BYTE_GRAY);
+				byte[] pixels = ((DataBufferByte)images[i]
+					.getRaster().getDataBuffer()).getData();
+				is.readFully(pixels);
+			}
+		} finally {
+			is.close();
+		}
+		return images;
+	}
+}
@@ -1,6 +1,5 @@
 package octree;
 
-import java.awt.image.DataBufferByte;
 import java.awt.image.BufferedImage;
 
 import java.io.IOException;
@@ -17,7 +16,6 @@
 public class CubeData implements AxisConstants {
 
 	private static final int SIZE = VolumeOctree.SIZE;
-	private static final int B_IMG_TYPE = BufferedImage.TYPE_BYTE_GRAY;
 
 	final float[] cal = new float[3];
 	final float[] min = new float[3];
@@ -64,8 +62,6 @@ public CubeData(Cube c) {
 		shapes = new ShapeGroup[SIZE];
 		for(int i = 0; i < SIZE; i++)
 			shapes[i] = new ShapeGroup();
-
-		images = new BufferedImage[SIZE];
 	}
 
 	public void prepareForAxis(int axis) {
@@ -95,17 +91,24 @@ public void hide() {
 		releaseData();
 	}
 
-	private void createData() throws IOException {
+	/**
+	 * The file containing the slices for the current axis.
+	 */
+	String getDataPath() {
 		switch(axis) {
-			case X_AXIS: createImages(cube.dir + "/x/" + cube.name); break;
-			case Y_AXIS: createImages(cube.dir + "/y/" + cube.name); break;
-			case Z_AXIS: createImages(cube.dir + "/z/" + cube.name); break;
+			case X_AXIS: return cube.dir + "/x/" + cube.name;
+			case Y_AXIS: return cube.dir + "/y/" + cube.name;
+			default:     return cube.dir + "/z/" + cube.name;
 		}
 	}
 
+	private void createData() throws IOException {
+		images = CubeCache.getInstance().get(getDataPath());
+	}
+
 	private void releaseData() {
-		for(int i = 0; i < SIZE; i++)
-			images[i] = null;
+		// the images are shared with the cache, don't clear them
+		images = null;
 		tg = null;
 	}
 
@@ -128,15 +131,4 @@ public static final float[] readCalibration(String path, float[] ret) {
 		}
 		return ret;
 	}
-
-	private void createImages(String path) throws IOException {
-		DataInputStream is = new DataInputStream(new FileInputStream(path));
-		for(int i = 0; i < SIZE; i++) {
-			images[i] = new BufferedImage(SIZE, SIZE, B_IMG_TYPE);
-			byte[] pixels = ((DataBufferByte) images[i].getRaster().getDataBuffer()).getData();
-			is.readFully(pixels);
-		}
-		is.close();
-	}
 }
-
@@ -6,204 +6,326 @@
 import java.io.FileOutputStream;
 import java.io.DataOutputStream;
 
-import java.util.Arrays;
 import java.util.Properties;
-import vib.NaiveResampler;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the files for a VolumeOctree from a raw 8-bit image file.
+ *
+ * The input is read only once: slabs of 'size' slices are read in bands
+ * of 'size' rows, and each band is cut into the cubes of the finest
+ * level. At the same time, the band is downsampled into the current slab
+ * of the next level, which is cut into cubes and downsampled further as
+ * soon as it is complete, and so on. Hence no intermediate files are
+ * needed, and the memory required is about size / 3 slices of the input
+ * image. Writing the cubes and downsampling is done in parallel.
+ */
 public class FilePreparer {
 
-	private static final NaiveResampler.Averager accu = new NaiveResampler.Averager();
+	/* One level of the octree, i.e. the image downsampled by scale */
+	private static final class Level {
+		int w, h, d, scale;
+		double pw, ph, pd;
+		/* the downsampling factors for the next level */
+		int fx, fy, fz;
+		Level next;
+
+		/* The slab of slices currently being filled by the previous
+		 * level; slices which were not filled are null. */
+		byte[][] slab;
+		int slabZ;
+	}
 
-	private static final class Volume {
-		private int w, h, d;
-		private double pw, ph, pd;
-		private long wh;
-		private RandomAccessFile ra;
+	private final int size;
+	private final String dir;
+	private final int nThreads;
 
-		Volume(File file, int w, int h, int d,
+	private FilePreparer(int size, String dir, int nThreads) {
+		this.size = size;
+		this.dir = dir;
+		this.nThreads = nThreads;
+	}
+
+	public static final void createFiles(String path, int size, String dir,
+			int w, int h, int d,
 			double pw, double ph, double pd) throws IOException {
+		createFiles(path, size, dir, w, h, d, pw, ph, pd,
+			Runtime.getRuntime().availableProcessors());
+	}
 
-			ra = new RandomAccessFile(file, "rw");
-			this.w = w; this.h = h; this.d = d;
-			this.pw = pw; this.ph = ph; this.pd = pd;
-			this.wh = w * h;
-		}
+	public static final void createFiles(String path, int size, String dir,
+			int w, int h, int d,
+			double pw, double ph, double pd,
+			int nThreads) throws IOException {
 
-		final void close() throws IOException {
-			ra.close();
-		}
+		new File(dir, "x").mkdir();
+		new File(dir, "y").mkdir();
+		new File(dir, "z").mkdir();
 
-		final int get(int x, int y, int z) throws IOException {
-			if(x < 0 || x >= w || y < 0 || y >= h || z < 0 || z >= d)
-				return 0;
-			long i = z * wh + y * w + x;
-			ra.seek(i);
-			return (int)(0xff & ra.readByte());
-		}
+		Level first = createLevels(size, w, h, d, pw, ph, pd);
+		FilePreparer fp = new FilePreparer(size, dir, nThreads);
 
-		final void createBlock(int x, int y, int z, String dir, String file, int size) throws IOException {
-			byte[] blob = new byte[size * size * size];
-			int i = 0;
-			for(int iz = 0; iz < size && z + iz < d; iz++) {
-				for(int iy = 0; iy < size && y + iy < h; iy++, i += size) {
-					int n = Math.min(size, w - x);
-					long pos = (z + iz) * wh + (y + iy) * w + x;
-					ra.seek(pos);
-					ra.readFully(blob, i, n);
+		RandomAccessFile ra = new RandomAccessFile(path, "r");
+		try {
+			long wh = (long)w * h;
+			byte[][] band = new byte[size][];
+			for(int z = 0; z < d; z += size) {
+				int nz = Math.min(size, d - z);
+				for(int y = 0; y < h; y += size) {
+					int ny = Math.min(size, h - y);
+					for(int k = 0; k < nz; k++) {
+						if(band[k] == null || band[k].length < ny * w)
+							band[k] = new byte[ny * w];
+						ra.seek((z + k) * wh + (long)y * w);
+						ra.readFully(band[k], 0, ny * w);
+					}
+					fp.processBand(first, band, 0, z, nz, y, ny);
 				}
+				fp.slabDone(first, z, nz);
 			}
+		} finally {
+			ra.close();
+		}
 
-			DataOutputStream fos = new DataOutputStream(
-				new FileOutputStream(dir + "/" + file + ".info"));
-			fos.writeFloat((float)pw);
-			fos.writeFloat((float)ph);
-			fos.writeFloat((float)pd);
-			fos.close();
-
-			writeBlob(blob, dir + "/z/" + file);
-
-			byte[] b = createYBlobFromZ(blob, size);
-			writeBlob(b, dir + "/y/" + file);
+		Level last = first;
+		while(last.next != null)
+			last = last.next;
+		writeProperties(w, h, d, pw, ph, pd, last.scale, dir + "/props.txt");
+	}
 
-			b = createXBlobFromZ(blob, size);
-			writeBlob(b, dir + "/x/" + file);
+	/*
+	 * The levels: each level is the previous one, padded to the next
+	 * power of two and downsampled by two in each dimension which is
+	 * still larger than size.
+	 */
+	private static Level createLevels(int size, int w, int h, int d,
+			double pw, double ph, double pd) {
+		Level first = null, prev = null;
+		int scale = 1;
+		while(true) {
+			Level l = new Level();
+			l.w = w; l.h = h; l.d = d;
+			l.pw = pw; l.ph = ph; l.pd = pd;
+			l.scale = scale;
+			l.fx = w > size ? 2 : 1;
+			l.fy = h > size ? 2 : 1;
+			l.fz = d > size ? 2 : 1;
+			if(prev == null)
+				first = l;
+			else
+				prev.next = l;
+			prev = l;
+
+			if(l.fx == 1 && l.fy == 1 && l.fz == 1)
+				break;
+			pw *= l.fx;
+			ph *= l.fy;
+			pd *= l.fz;
+			w = nextPow2(w) / l.fx;
+			h = nextPow2(h) / l.fy;
+			d = nextPow2(d) / l.fz;
+			scale <<= 1;
 		}
+		return first;
+	}
 
-		final void writeBlob(byte[] blob, String file) throws IOException {
-			DataOutputStream fos = new DataOutputStream(
-				new FileOutputStream(file));
-			fos.write(blob, 0, blob.length);
-			fos.close();
-		}
+	/*
+	 * Writes the cubes of a band of the given level and downsamples it
+	 * into the next level. Row r of slice k of the band starts at
+	 * (rowOffset + r) * l.w in slices[k].
+	 */
+	private void processBand(Level l, byte[][] slices, int rowOffset,
+			int z, int nz, int y, int ny) throws IOException {
+		writeCubes(l, slices, rowOffset, z, nz, y, ny);
+		if(l.next != null)
+			downsample(l, slices, rowOffset, z, nz, y, ny);
+	}
 
-		static final byte[] createYBlobFromZ(byte[] blob, int size) {
-			byte[] ret = new byte[blob.length];
-			int s2 = size * size;
-			for(int y = 0; y < size; y++) {
-				for(int z = 0; z < size; z++) {
-					System.arraycopy(blob,
-						z * s2 + y * size,
-						ret,
-						y * s2 + z * size,
-						size);
-				}
-			}
-			return ret;
+	/*
+	 * Called when a slab of the given level was processed. If this
+	 * completes slabs of the next level, process them.
+	 */
+	private void slabDone(Level l, int z, int nz) throws IOException {
+		Level n = l.next;
+		if(n == null)
+			return;
+		boolean last = z + nz >= l.d;
+		int done = (z + nz + l.fz - 1) / l.fz;
+		while(n.slabZ < n.d && (last || done >= n.slabZ + size)) {
+			int snz = Math.min(size, n.d - n.slabZ);
+			byte[][] slab = n.slab != null ? n.slab : new byte[size][];
+			n.slab = null;
+			for(int sy = 0; sy < n.h; sy += size)
+				processBand(n, slab, sy, n.slabZ, snz,
+					sy, Math.min(size, n.h - sy));
+			int sz = n.slabZ;
+			n.slabZ += size;
+			slabDone(n, sz, snz);
 		}
+	}
 
-		static final byte[] createXBlobFromZ(byte[] blob, int size) {
-			byte[] ret = new byte[blob.length];
-			int s2 = size * size;
-			for(int z = 0; z < size; z++) {
-				for(int y = 0; y < size; y++) {
-					for(int x = 0; x < size; x++) {
-						ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
-					}
+	private void writeCubes(final Level l, final byte[][] slices,
+			final int rowOffset, final int z, final int nz,
+			final int y, final int ny) throws IOException {
+		final int nCubes = (l.w + size - 1) / size;
+		parallel(nCubes, new Task() {
+			public void run(int i) throws IOException {
+				int x = i * size;
+				int n = Math.min(size, l.w - x);
+				byte[] blob = new byte[size * size * size];
+				for(int iz = 0; iz < nz; iz++) {
+					if(slices[iz] == null)
+						continue;
+					for(int iy = 0; iy < ny; iy++)
+						System.arraycopy(slices[iz],
+							(rowOffset + iy) * l.w + x,
+							blob, (iz * size + iy) * size, n);
 				}
+				String name = (x * l.scale) + "_" + (y * l.scale)
+					+ "_" + (z * l.scale) + "_" + l.scale;
+				writeCube(blob, name, l);
 			}
-			return ret;
-		}
+		});
+	}
 
-		final void downsample(String file, int fx, int fy, int fz) throws IOException {
-			FileOutputStream out = new FileOutputStream(file);
-
-			int ws = nextPow2(w), hs = nextPow2(h), ds = nextPow2(d);
-			int wn = ws / fx, hn = hs / fy, dn = ds / fz;
-			byte[] bytes = new byte[wn];
-			byte[][] cache = new byte[fz * fy][ws];
-			for(int tmp = 0; tmp < fz*fy; tmp++)
-				Arrays.fill(cache[tmp], (byte)0);
-			int z = 0, y = 0;
-			for(z = 0; z < ds; z += fz) {
-				// update cache
-				System.arraycopy(cache, fy, cache, 0, (fz - 1) * fy);
-				for(int ytmp = 0; ytmp < fy; ytmp++) {
-					Arrays.fill(cache[(fz - 1) * fy], (byte)0);
-					if(y + ytmp < h) {
-						long pos = z * wh + (y + ytmp) * w;
-						ra.seek(pos);
-						ra.readFully(cache[(fz - 1) * fy]);
-					}
-				}
+	private void writeCube(byte[] blob, String file, Level l)
+			throws IOException {
+		DataOutputStream fos = new DataOutputStream(
+			new FileOutputStream(dir + "/" + file + ".info"));
+		fos.writeFloat((float)l.pw);
+		fos.writeFloat((float)l.ph);
+		fos.writeFloat((float)l.pd);
+		fos.close();
+
+		writeBlob(blob, dir + "/z/" + file);
+		writeBlob(createYBlobFromZ(blob, size), dir + "/y/" + file);
+		writeBlob(createXBlobFromZ(blob, size), dir + "/x/" + file);
+	}
 
-				for(y = 0; y < hs; y += fy) {
-					// update cache
-					for(int ztmp = 0; ztmp < fz; ztmp++) {
-						System.arraycopy(cache, ztmp * fy + 1, cache, ztmp * fy, fy - 1);
-						Arrays.fill(cache[ztmp + fy - 1], (byte)0);
-						if(z + ztmp < d) {
-							long pos = (z+ztmp) * wh + (y+fy-1) * w;
-							ra.seek(pos);
-							ra.readFully(cache[ztmp + fy - 1]);
+	/*
+	 * Averages blocks of fx * fy * fz voxels of the band into the slab of
+	 * the next level; voxels outside the band count as zero, just like
+	 * the padding to the next power of two.
+	 */
+	private void downsample(final Level l, final byte[][] slices,
+			final int rowOffset, final int z, final int nz,
+			final int y, final int ny) {
+		final Level n = l.next;
+		if(n.slab == null)
+			n.slab = new byte[size][];
+		final int fx = l.fx, fy = l.fy, fz = l.fz;
+		final int zn0 = z / fz, zn1 = (z + nz + fz - 1) / fz;
+		final int yn0 = y / fy, yn1 = (y + ny + fy - 1) / fy;
+		final int xn1 = (l.w + fx - 1) / fx;
+		final int count = fx * fy * fz;
+		for(int zn = zn0; zn < zn1; zn++)
+			if(n.slab[zn - n.slabZ] == null)
+				n.slab[zn - n.slabZ] = new byte[n.w * n.h];
+
+		final int rows = yn1 - yn0;
+		try {
+			parallel((zn1 - zn0) * rows, new Task() {
+				public void run(int i) {
+					int zn = zn0 + i / rows;
+					int yn = yn0 + i % rows;
+					byte[] dst = n.slab[zn - n.slabZ];
+					int[] sum = new int[xn1];
+					for(int k = 0; k < fz; k++) {
+						int iz = zn * fz + k - z;
+						if(iz >= nz || slices[iz] == null)
+							continue;
+						for(int j = 0; j < fy; j++) {
+							int iy = yn * fy + j - y;
+							if(iy >= ny)
+								continue;
+							int offs = (rowOffset + iy) * l.w;
+							for(int x = 0; x < l.w; x++)
+								sum[x / fx] += slices[iz][offs + x] & 0xff;
 						}
 					}
+					int offs = yn * n.w;
+					for(int xn = 0; xn < xn1; xn++)
+						dst[offs + xn] = (byte)(sum[xn] / count);
+				}
+			});
+		} catch(IOException e) {
+			// downsampling does no I/O
+			throw new RuntimeException(e);
+		}
+	}
 
-					for(int x = 0; x < ws; x += fx) {
-						accu.reset();
-						for(int k = 0; k < fz; k++) {
-							int iz = z + k;
-							for(int j = 0; j < fy; j++) {
-								int iy = y + j;
-								for(int i = 0; i < fx; i++) {
-									int ix = x + i;
-									accu.add((int)(0xff & cache[k * fy + j][ix]));
-								}
-							}
+	private interface Task {
+		void run(int i) throws IOException;
+	}
+
+	/* Runs task.run(0 .. n - 1) in nThreads threads */
+	private void parallel(final int n, final Task task) throws IOException {
+		final AtomicInteger ai = new AtomicInteger(0);
+		final IOException[] exception = new IOException[1];
+		Thread[] threads = new Thread[Math.max(1, Math.min(nThreads, n))];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for(int i = ai.getAndIncrement(); i < n;
+								i = ai.getAndIncrement())
+							task.run(i);
+					} catch(IOException e) {
+						synchronized(exception) {
+							exception[0] = e;
 						}
-						bytes[x / fx] = (byte)accu.get();
+						ai.set(n);
 					}
-					out.write(bytes, 0, wn);
 				}
-			}
+			};
+			threads[t].start();
+		}
+		try {
+			for(Thread thread : threads)
+				thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted", e);
 		}
+		if(exception[0] != null)
+			throw exception[0];
 	}
 
-	public static final void createFiles(String path, int size, String dir,
-			int w, int h, int d,
-			double pw, double ph, double pd) throws IOException {
-
-		int wOrg = w, hOrg = h, dOrg = d;
-		double pwOrg = pw, phOrg = ph, pdOrg = pd;
-		int level = 1;
+	static final void writeBlob(byte[] blob, String file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(blob, 0, blob.length);
+		} finally {
+			fos.close();
+		}
+	}
 
-		new File(dir, "x").mkdir();
-		new File(dir, "y").mkdir();
-		new File(dir, "z").mkdir();
+	static final byte[] createYBlobFromZ(byte[] blob, int size) {
+		byte[] ret = new byte[blob.length];
+		int s2 = size * size;
+		for(int y = 0; y < size; y++) {
+			for(int z = 0; z < size; z++) {
+				System.arraycopy(blob,
+					z * s2 + y * size,
+					ret,
+					y * s2 + z * size,
+					size);
+			}
+		}
+		return ret;
+	}
 
-		while(true) {
-			File file = new File(path);
-			Volume v = new Volume(file, w, h, d, pw, ph, pd);
-			for(int z = 0; z < d; z += size) {
-				for(int y = 0; y < h; y += size) {
-					for(int x = 0; x < w; x += size) {
-						String n = (x*level) + "_" + (y*level) + "_" + (z*level) + "_" + level;
-						v.createBlock(x, y, z, dir, n, size);
-					}
+	static final byte[] createXBlobFromZ(byte[] blob, int size) {
+		byte[] ret = new byte[blob.length];
+		int s2 = size * size;
+		for(int z = 0; z < size; z++) {
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++) {
+					ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
 				}
 			}
-			int fx = w > size ? 2 : 1;
-			int fy = h > size ? 2 : 1;
-			int fz = d > size ? 2 : 1;
-
-			if(fx == 1 && fy == 1 && fz == 1)
-				break;
-
-			File downs = new File(dir, file.getName() + ".l" + level);
-			v.downsample(downs.getPath(), fx, fy, fz);
-			v.close();
-			pw *= fx;
-			ph *= fy;
-			pd *= fz;
-			w = nextPow2(w) / fx;
-			h = nextPow2(h) / fy;
-			d = nextPow2(d) / fz;
-
-			if(level > 1)
-				file.delete();
-			path = downs.getPath();
-			level <<= 1;
 		}
-		writeProperties(wOrg, hOrg, dOrg, pwOrg, phOrg, pdOrg, level, dir + "/props.txt");
+		return ret;
 	}
 
 	private static final void writeProperties(int w, int h, int d,
@@ -221,6 +343,7 @@ private static final void writeProperties(int w, int h, int d,
 
 		FileOutputStream fw = new FileOutputStream(new File(path));
 		props.store(fw, "octree");
+		fw.close();
 	}
 
 	private static final int nextPow2(int n) {
@@ -231,4 +354,3 @@ private static final int nextPow2(int n) {
 		return retval;
 	}
 }
-
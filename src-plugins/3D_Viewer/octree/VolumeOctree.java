@@ -5,13 +5,22 @@
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Properties;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import javax.media.j3d.BoundingSphere;
 import javax.media.j3d.BranchGroup;
 import javax.media.j3d.View;
@@ -420,7 +429,10 @@ public void run() {
 						}
 						System.out.println("updateCubes");
 						stopUpdating = false;
-						rootCube.update(canvas, runningT);
+						List<Cube> cubes = new ArrayList<Cube>();
+						rootCube.collectCubesToShow(canvas, runningT, cubes);
+						if(showCubes(cubes))
+							rootCube.hideUnneeded();
 						setWhichChild(DETAIL_AXIS);
 						System.out.println("updateCubes finished");
 					}
@@ -430,7 +442,81 @@ public void run() {
 			thread.start();
 		}
 
+		/*
+		 * Shows the given cubes, those with the largest error on
+		 * the screen first. The cubes are read in parallel by the
+		 * loader threads, and shown in this thread as soon as they
+		 * are available. Returns false if cancelled.
+		 */
+		private boolean showCubes(List<Cube> cubes) {
+			Collections.sort(cubes, new Comparator<Cube>() {
+				public int compare(Cube c1, Cube c2) {
+					return Double.compare(c2.getProjectedSize(),
+						c1.getProjectedSize());
+				}
+			});
+			List<Future<?>> loads = new ArrayList<Future<?>>();
+			for(Cube c : cubes)
+				loads.add(c.isVisible() ? null :
+					loader.submit(new CubeLoader(c.cdata.getDataPath())));
+
+			boolean complete = true;
+			for(int i = 0; i < cubes.size(); i++) {
+				if(stopUpdating) {
+					for(int j = i; j < loads.size(); j++)
+						if(loads.get(j) != null)
+							loads.get(j).cancel(false);
+					return false;
+				}
+				Cube c = cubes.get(i);
+				if(loads.get(i) != null) {
+					try {
+						loads.get(i).get();
+					} catch(ExecutionException e) {
+						e.getCause().printStackTrace();
+						complete = false;
+						continue;
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException("Interrupted", e);
+					}
+				}
+				c.hideSubtree();
+				c.showSelf();
+			}
+			return complete;
+		}
+
 		// TODO cancel thread
 	}
+
+	/* Reads the data of a cube into the cache */
+	private static final class CubeLoader implements Runnable {
+		private final String path;
+
+		CubeLoader(String path) {
+			this.path = path;
+		}
+
+		public void run() {
+			try {
+				CubeCache.getInstance().get(path);
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot read " + path, e);
+			}
+		}
+	}
+
+	/* The threads reading the cubes, shared by all octrees */
+	private static final ExecutorService loader = Executors.newFixedThreadPool(
+		Math.max(2, Runtime.getRuntime().availableProcessors()),
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Octree cube loader");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
 }
 
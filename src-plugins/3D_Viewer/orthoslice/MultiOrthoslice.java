@@ -85,6 +85,22 @@ protected void loadAxis(int axis, int index, Group front, Group back) {
 			super.loadAxis(axis, index, front, back);
 	}
 
+	/**
+	 * All three axes are displayed at the same time.
+	 */
+	@Override
+	protected boolean isAxisVisible(int axis) {
+		return true;
+	}
+
+	/**
+	 * Only the visible slices are displayed, so do not create the
+	 * textures of all the slices up front.
+	 */
+	@Override
+	protected void preloadTextures(int axis) {
+	}
+
 	/**
 	 * Override eyePtChanged() in VolumeRenderer to always show all
 	 * slices.
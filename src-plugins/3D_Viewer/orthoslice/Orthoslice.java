@@ -73,6 +73,14 @@ protected void loadAxis(int axis) {
 		loadAxis(axis, i, front, back);
 	} 
 
+	/**
+	 * All three planes are displayed at the same time.
+	 */
+	@Override
+	protected boolean isAxisVisible(int axis) {
+		return true;
+	}
+
 	/**
 	 * Override eyePtChanged() in VolumeRenderer to always show all
 	 * slices.
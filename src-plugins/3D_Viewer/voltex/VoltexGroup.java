@@ -18,6 +18,7 @@
 import ij3d.ContentInstant;
 import ij3d.Content;
 import ij3d.ContentNode;
+import ij3d.TimepointCache;
 
 import javax.vecmath.Tuple3d;
 import vib.NaiveResampler;
@@ -345,7 +346,7 @@ protected void calculateMinMaxCenterPoint() {
 
 	@Override
 	public void swapDisplayedData(String path, String name) {
-		renderer.volume.swap(path + ".tif");
+		renderer.volume.swap(path);
 		renderer.disableTextures();
 	}
 
@@ -357,7 +358,12 @@ public void clearDisplayedData() {
 
 	@Override
 	public void restoreDisplayedData(String path, String name) {
-		renderer.volume.restore(path + ".tif");
+		renderer.volume.restore(path);
 		renderer.enableTextures();
 	}
+
+	@Override
+	public void prefetchDisplayedData(String path, String name) {
+		TimepointCache.getInstance().prefetch(path);
+	}
 }
@@ -12,8 +12,11 @@
 import java.awt.image.WritableRaster;
 
 import ij.ImagePlus;
+import ij3d.AxisConstants;
 import ij3d.Volume;
-import ij.IJ;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.j3d.ImageComponent;
 import javax.media.j3d.ImageComponent2D;
@@ -28,9 +31,15 @@
  * Depending on these settings, and on the type of image given at construction
  * time, the returned data type is one of INT_DATA or BYTE_DATA.
  *
+ * The texture slices are created lazily, the first time they are requested,
+ * since usually only the slices of one axis are displayed at a time. When
+ * the data changes, only the slices of the active axes are updated right
+ * away; the slices of the other axes are updated when their axis becomes
+ * active again.
+ *
  * @author Benjamin Schmid
  */
-public class VoltexVolume extends Volume {
+public class VoltexVolume extends Volume implements AxisConstants {
 
 	/** The textures' size. These are powers of two. */
 	int xTexSize, yTexSize, zTexSize;
@@ -59,6 +68,12 @@ public class VoltexVolume extends Volume {
 	private ImageComponent2D[] xzComp;
 	private ImageComponent2D[] yzComp;
 
+	/** Whether the existing slices are up to date, indexed by axis */
+	private boolean[][] valid = new boolean[3][];
+
+	/** The axes whose slices are updated as soon as the data changes */
+	private final boolean[] activeAxes = new boolean[] {true, true, true};
+
 	/**
 	 * Initializes this Volume with the specified image.
 	 * All channels are used.
@@ -105,7 +120,6 @@ public void setImage(ImagePlus imp, boolean[] ch) {
 		initDataType();
 		initVoltexLoader();
 		createImageComponents();
-		updateData();
 	}
 
 	public void clear() {
@@ -129,51 +143,186 @@ public void swap(String path) {
 	}
 
 	public void restore(String path) {
-		ImagePlus imp = IJ.openImage(path + ".tif");
 		try {
-			setImage(IJ.openImage(path + ".tif"), channels);
-		} catch(NullPointerException e) {
-			throw new IllegalArgumentException("Cannot load image from " + path);
+			super.restore(path);
 		} catch(RuntimeException e) {
 			System.out.println("Cannot load " + path);
 			throw e;
 		}
 	}
 
-	private void createImageComponents() {
-		for(int z = 0; z < zDim; z++)
-			xyComp[z] = compCreator.createImageComponent(xy[z], xTexSize, yTexSize);
-		for(int y = 0; y < yDim; y++)
-			xzComp[y] = compCreator.createImageComponent(xz[y], xTexSize, zTexSize);
-		for(int x = 0; x < xDim; x++)
-			yzComp[x] = compCreator.createImageComponent(yz[x], yTexSize, zTexSize);
+	/**
+	 * Drops all slices; they are created again when requested.
+	 */
+	private synchronized void createImageComponents() {
+		xy = new byte[zDim][];
+		xz = new byte[yDim][];
+		yz = new byte[xDim][];
+		xyComp = new ImageComponent2D[zDim];
+		xzComp = new ImageComponent2D[yDim];
+		yzComp = new ImageComponent2D[xDim];
+		valid[Z_AXIS] = new boolean[zDim];
+		valid[Y_AXIS] = new boolean[yDim];
+		valid[X_AXIS] = new boolean[xDim];
 	}
 
-	public void updateData() {
-		for(int z = 0; z < zDim; z++) {
-			loadZ(z, xy[z]);
-			xyComp[z].updateData(updater, 0, 0, xTexSize, yTexSize);
-		}
-		for(int y = 0; y < yDim; y++) {
-			loadY(y, xz[y]);
-			xzComp[y].updateData(updater, 0, 0, xTexSize, zTexSize);
-		}
-		for(int x = 0; x < xDim; x++) {
-			loadX(x, yz[x]);
-			yzComp[x].updateData(updater, 0, 0, yTexSize, zTexSize);
+	/**
+	 * Updates the existing slices of the active axes from the image data.
+	 * The slices of the other axes are updated when their axis becomes
+	 * active.
+	 */
+	public synchronized void updateData() {
+		for(int axis = 0; axis < 3; axis++) {
+			Arrays.fill(valid[axis], false);
+			if(activeAxes[axis])
+				updateSlices(axis, false);
 		}
 	}
 
+	/**
+	 * Specify whether the slices of the given axis are displayed. When
+	 * an axis becomes active, its slices which are out of date are
+	 * updated.
+	 */
+	public synchronized void setActiveAxis(int axis, boolean active) {
+		activeAxes[axis] = active;
+		if(active)
+			updateSlices(axis, false);
+	}
+
+	public boolean isActiveAxis(int axis) {
+		return activeAxes[axis];
+	}
+
+	/**
+	 * Creates (or updates) all the slices of the given axis at once,
+	 * using several threads.
+	 */
+	public synchronized void loadAxis(int axis) {
+		updateSlices(axis, true);
+	}
+
 	public ImageComponent2D getImageComponentZ(int index) {
-		return xyComp[index];
+		return getImageComponent(Z_AXIS, index);
 	}
 
 	public ImageComponent2D getImageComponentY(int index) {
-		return xzComp[index];
+		return getImageComponent(Y_AXIS, index);
 	}
 
 	public ImageComponent2D getImageComponentX(int index) {
-		return yzComp[index];
+		return getImageComponent(X_AXIS, index);
+	}
+
+	private synchronized ImageComponent2D getImageComponent(int axis, int index) {
+		ImageComponent2D[] comps = getComponents(axis);
+		if(comps[index] == null || !valid[axis][index])
+			updateSlices(axis, new int[] {index});
+		return comps[index];
+	}
+
+	/**
+	 * Updates the out-of-date slices of the given axis; if create
+	 * is set, the missing slices are created, too.
+	 */
+	private void updateSlices(int axis, boolean create) {
+		ImageComponent2D[] comps = getComponents(axis);
+		int n = 0;
+		int[] indices = new int[comps.length];
+		for(int i = 0; i < comps.length; i++)
+			if(comps[i] == null ? create : !valid[axis][i])
+				indices[n++] = i;
+		if(n == 0)
+			return;
+		int[] tmp = new int[n];
+		System.arraycopy(indices, 0, tmp, 0, n);
+		updateSlices(axis, tmp);
+	}
+
+	/**
+	 * Loads the given slices of the given axis from the image data,
+	 * in parallel if there are several, and creates or updates their
+	 * ImageComponent2Ds.
+	 */
+	private void updateSlices(final int axis, final int[] indices) {
+		final byte[][] data = getSlices(axis);
+		final ImageComponent2D[] comps = getComponents(axis);
+		final int w = getTexWidth(axis), h = getTexHeight(axis);
+		final int length = (dataType == INT_DATA ? 4 : 1) * w * h;
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		Runnable loader = new Runnable() {
+			public void run() {
+				for(int k = ai.getAndIncrement();
+						k < indices.length;
+						k = ai.getAndIncrement()) {
+					int i = indices[k];
+					if(data[i] == null)
+						data[i] = new byte[length];
+					loadSlice(axis, i, data[i]);
+				}
+			}
+		};
+		int nThreads = Math.min(indices.length,
+			Runtime.getRuntime().availableProcessors());
+		// single slices are requested lazily, one by one
+		if(nThreads < 2)
+			loader.run();
+		else {
+			final Thread[] threads = new Thread[nThreads];
+			for(int t = 0; t < nThreads; t++) {
+				threads[t] = new Thread(loader);
+				threads[t].start();
+			}
+			try {
+				for(int t = 0; t < nThreads; t++)
+					threads[t].join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			}
+		}
+
+		for(int i : indices) {
+			if(comps[i] == null)
+				comps[i] = compCreator.createImageComponent(
+						data[i], w, h);
+			else
+				comps[i].updateData(updater, 0, 0, w, h);
+			valid[axis][i] = true;
+		}
+	}
+
+	private void loadSlice(int axis, int index, byte[] dst) {
+		switch(axis) {
+			case X_AXIS: loadX(index, dst); break;
+			case Y_AXIS: loadY(index, dst); break;
+			case Z_AXIS: loadZ(index, dst); break;
+		}
+	}
+
+	private byte[][] getSlices(int axis) {
+		switch(axis) {
+			case X_AXIS: return yz;
+			case Y_AXIS: return xz;
+			default: return xy;
+		}
+	}
+
+	private ImageComponent2D[] getComponents(int axis) {
+		switch(axis) {
+			case X_AXIS: return yzComp;
+			case Y_AXIS: return xzComp;
+			default: return xyComp;
+		}
+	}
+
+	private int getTexWidth(int axis) {
+		return axis == X_AXIS ? yTexSize : xTexSize;
+	}
+
+	private int getTexHeight(int axis) {
+		return axis == Z_AXIS ? yTexSize : zTexSize;
 	}
 
 	public void setNoCheckNoUpdate(int x, int y, int z, int v) {
@@ -330,12 +479,6 @@ public void updateData(ImageComponent2D comp, int x, int y, int w, int h) {
 	 */
 	private abstract class ComponentCreator {
 
-		ComponentCreator() {
-			xyComp = new ImageComponent2D[zDim];
-			xzComp = new ImageComponent2D[yDim];
-			yzComp = new ImageComponent2D[xDim];
-		}
-
 		/**
 		 * Create the ImageComponent2D out of the specified pixel array,
 		 * width and height
@@ -425,9 +568,6 @@ private final class VoltexByteLoader implements VoltexLoader {
 
 		public VoltexByteLoader(ByteLoader l) {
 			this.l = l;
-			xy = new byte[zDim][xTexSize * yTexSize];
-			xz = new byte[yDim][xTexSize * zTexSize];
-			yz = new byte[xDim][yTexSize * zTexSize];
 		}
 
 		public int load(int x, int y, int z) {
@@ -441,12 +581,19 @@ public int loadWithLUT(int x, int y, int z) {
 		public void setNoCheck(int x, int y, int z, int v) {
 			l.setNoCheck(x, y, z, v);
 			v = l.loadWithLUT(x, y, z);
-			xy[z][y * xTexSize + x] = (byte)v;
-			xz[y][z * xTexSize + x] = (byte)v;
-			yz[x][z * yTexSize + y] = (byte)v;
-			xyComp[z].updateData(updater, x, y, 1, 1);
-			xzComp[y].updateData(updater, x, z, 1, 1);
-			yzComp[x].updateData(updater, y, z, 1, 1);
+			// slices which were not created yet are loaded later
+			if(xyComp[z] != null) {
+				xy[z][y * xTexSize + x] = (byte)v;
+				xyComp[z].updateData(updater, x, y, 1, 1);
+			}
+			if(xzComp[y] != null) {
+				xz[y][z * xTexSize + x] = (byte)v;
+				xzComp[y].updateData(updater, x, z, 1, 1);
+			}
+			if(yzComp[x] != null) {
+				yz[x][z * yTexSize + y] = (byte)v;
+				yzComp[x].updateData(updater, y, z, 1, 1);
+			}
 		}
 
 		public void setNoCheckNoUpdate(int x, int y, int z, int v) {
@@ -494,9 +641,6 @@ private final class VoltexIntLoader implements VoltexLoader {
 
 		VoltexIntLoader(IntLoader l) {
 			this.l = l;
-			xy = new byte[zDim][4 * xTexSize * yTexSize];
-			xz = new byte[yDim][4 * xTexSize * zTexSize];
-			yz = new byte[xDim][4 * yTexSize * zTexSize];
 		}
 
 		public void setLoader(IntLoader l) {
@@ -524,26 +668,33 @@ public void setNoCheck(int x, int y, int z, int v) {
 			int g = (v & 0xff00) >> 8;
 			int b = (v & 0xff);
 
-			int i = 4 * (y * xTexSize + x);
-			xy[z][i++] = (byte)r;
-			xy[z][i++] = (byte)g;
-			xy[z][i++] = (byte)b;
-			xy[z][i++] = (byte)a;
-			xyComp[z].updateData(updater, x, y, 1, 1);
-
-			i = 4 * (z * xTexSize + x);
-			xz[y][i++] = (byte)r;
-			xz[y][i++] = (byte)g;
-			xz[y][i++] = (byte)b;
-			xz[y][i++] = (byte)a;
-			xzComp[y].updateData(updater, x, z, 1, 1);
-
-			i = 4 * (z * yTexSize + y);
-			yz[x][i++] = (byte)r;
-			yz[x][i++] = (byte)g;
-			yz[x][i++] = (byte)b;
-			yz[x][i++] = (byte)a;
-			yzComp[x].updateData(updater, y, z, 1, 1);
+			// slices which were not created yet are loaded later
+			if(xyComp[z] != null) {
+				int i = 4 * (y * xTexSize + x);
+				xy[z][i++] = (byte)r;
+				xy[z][i++] = (byte)g;
+				xy[z][i++] = (byte)b;
+				xy[z][i++] = (byte)a;
+				xyComp[z].updateData(updater, x, y, 1, 1);
+			}
+
+			if(xzComp[y] != null) {
+				int i = 4 * (z * xTexSize + x);
+				xz[y][i++] = (byte)r;
+				xz[y][i++] = (byte)g;
+				xz[y][i++] = (byte)b;
+				xz[y][i++] = (byte)a;
+				xzComp[y].updateData(updater, x, z, 1, 1);
+			}
+
+			if(yzComp[x] != null) {
+				int i = 4 * (z * yTexSize + y);
+				yz[x][i++] = (byte)r;
+				yz[x][i++] = (byte)g;
+				yz[x][i++] = (byte)b;
+				yz[x][i++] = (byte)a;
+				yzComp[x].updateData(updater, y, z, 1, 1);
+			}
 		}
 
 		public void set(int x, int y, int z, int v) {
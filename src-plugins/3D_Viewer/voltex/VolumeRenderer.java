@@ -27,6 +27,10 @@
  * Each OrderedGroup holds the shapes for one direction. One shape
  * consists of a rectangular geometry on which a texture from the given
  * image data is mapped.
+ *
+ * The OrderedGroups of an axis are only filled when the axis is displayed
+ * for the first time, so that the textures of the other axes do not need
+ * to be created as long as the volume is not rotated.
  * 
  * @author Benjamin Schmid
  */
@@ -48,6 +52,12 @@ public class VolumeRenderer implements AxisConstants {
 	/** The index in the switch, given the direction */
 	protected final int[][] axisIndex = new int[3][2];
 
+	/** Whether the OrderedGroups of an axis were filled already */
+	protected final boolean[] axisLoaded = new boolean[3];
+
+	/** The mask created by createMask(), if any */
+	protected Mask mask;
+
 	/** The current axis of view */
 	private int curAxis = Z_AXIS;
 	/** The current direction of view */
@@ -101,6 +111,8 @@ public void disableTextures() {
 
 		Appearance empty = new Appearance();
 		for(int axis = 0; axis < 3; axis++) {
+			if(!axisLoaded[axis])
+				continue;
 			for(int i = 0; i < size[axis]; i++) {
 				Group frontGroup = (Group)axisSwitch.
 					getChild(axisIndex[axis][FRONT]);
@@ -117,9 +129,21 @@ public void disableTextures() {
 		}
 	}
 
+	/**
+	 * Re-creates the textures after disableTextures(), for the axes
+	 * which are displayed; the other axes are emptied and loaded again
+	 * when they are displayed.
+	 */
 	public void enableTextures() {
 		int[] size = new int[] {volume.xDim, volume.yDim, volume.zDim};
 		for(int axis = 0; axis < 3; axis++) {
+			if(!axisLoaded[axis])
+				continue;
+			if(!isAxisVisible(axis)) {
+				unloadAxis(axis);
+				continue;
+			}
+			preloadTextures(axis);
 			for(int i = 0; i < size[axis]; i++) {
 				Appearance app = appCreator.getAppearance(axis, i);
 				Group frontGroup = (Group)axisSwitch.
@@ -167,25 +191,26 @@ public Appearance getAppearance(int axis, int index) {
 	 * Create a mask to this volume.
 	 */
 	public Mask createMask() {
-		Mask mask = new Mask(volume, root);
-
-		Group frontGroup = null;
-		Group backGroup = null;
+		mask = new Mask(volume, root);
 
 		int[] size = new int[] {volume.xDim, volume.yDim, volume.zDim};
 
 		for(int axis = 0; axis < 3; axis++) {
-			for(int i = 0; i < size[axis]; i++) {
-				Appearance app = getAppearance(axis, i);
-				app.setTextureUnitState(1, new TextureUnitState(
-					appCreator.getTexture(axis, i, mask),
-					mask.getMaskAttributes(),
-					appCreator.getTg(axis)));
-			}
+			if(!axisLoaded[axis])
+				continue;
+			for(int i = 0; i < size[axis]; i++)
+				applyMask(axis, i, getAppearance(axis, i));
 		}
 		return mask;
 	}
 
+	private void applyMask(int axis, int index, Appearance app) {
+		app.setTextureUnitState(1, new TextureUnitState(
+			appCreator.getTexture(axis, index, mask),
+			mask.getMaskAttributes(),
+			appCreator.getTg(axis)));
+	}
+
 	/**
 	 * Call this method when the direction of view changed.
 	 */
@@ -215,8 +240,14 @@ public void eyePtChanged(View view) {
 			int dir = value > 0.0 ? FRONT : BACK;
 
 			if ((axis != curAxis) || (dir != curDir)) {
+				if(axis != curAxis) {
+					volume.setActiveAxis(curAxis, false);
+					if(mask != null)
+						mask.setActiveAxis(curAxis, false);
+				}
 				curAxis = axis;
 				curDir = dir;
+				showAxis(curAxis);
 				axisSwitch.setWhichChild(
 						axisIndex[curAxis][curDir]);
 			}
@@ -224,18 +255,67 @@ public void eyePtChanged(View view) {
 	}
 
 	/**
-	 * Fully removes all the data and reloads all the textures.
+	 * Fully removes all the data and reloads the textures of the
+	 * displayed axes; the other axes are loaded when they are displayed.
 	 */
 	public void fullReload() {
-		for(int i = 0; i < axisSwitch.numChildren(); i++) {
-			((Group)axisSwitch.getChild(i)).removeAllChildren();
-		}
-		loadAxis(Z_AXIS);
-		loadAxis(Y_AXIS);
-		loadAxis(X_AXIS);
+		for(int axis = 0; axis < 3; axis++)
+			unloadAxis(axis);
+		for(int axis = 2; axis >= 0; axis--)
+			if(isAxisVisible(axis))
+				showAxis(axis);
 		axisSwitch.setWhichChild(axisIndex[curAxis][curDir]);
 	}
 
+	/**
+	 * Returns whether the specified axis is currently displayed.
+	 * Subclasses which display more than one axis at a time, like
+	 * Orthoslice, need to override this.
+	 */
+	protected boolean isAxisVisible(int axis) {
+		return axis == curAxis;
+	}
+
+	/**
+	 * Makes sure the textures of the specified axis are loaded and
+	 * up to date.
+	 */
+	protected void showAxis(int axis) {
+		volume.setActiveAxis(axis, true);
+		if(mask != null)
+			mask.setActiveAxis(axis, true);
+		if(!axisLoaded[axis]) {
+			axisLoaded[axis] = true;
+			loadAxis(axis);
+		}
+	}
+
+	/**
+	 * Creates all the textures of the specified axis at once, using
+	 * several threads. Subclasses which display only some of the slices
+	 * override this to do nothing; their textures are then created one
+	 * by one, when they are needed.
+	 */
+	protected void preloadTextures(int axis) {
+		volume.loadAxis(axis);
+		if(mask != null)
+			mask.loadAxis(axis);
+	}
+
+	/**
+	 * Removes the shapes of the specified axis.
+	 */
+	protected void unloadAxis(int axis) {
+		((Group)axisSwitch.getChild(axisIndex[axis][FRONT])).
+			removeAllChildren();
+		((Group)axisSwitch.getChild(axisIndex[axis][BACK])).
+			removeAllChildren();
+		axisLoaded[axis] = false;
+		volume.setActiveAxis(axis, false);
+		if(mask != null)
+			mask.setActiveAxis(axis, false);
+	}
+
 	/**
 	 * Set the threshold. Pixel value below the threshold are not rendered.
 	 * @param threshold
@@ -314,6 +394,8 @@ protected void loadAxis(int axis) {
 		}
 		IJ.showStatus(m);
 
+		preloadTextures(axis);
+
 		for (int i=0; i < rSize; i++) {
 			IJ.showProgress(i+1, rSize);
 			loadAxis(axis, i, frontGroup, backGroup);
@@ -335,6 +417,8 @@ protected void loadAxis(int axis, int index, Group front, Group back) {
 
 		GeometryArray quadArray = geomCreator.getQuad(axis, index);
 		Appearance a = appCreator.getAppearance(axis, index);
+		if(mask != null)
+			applyMask(axis, index, a);
 
 		Shape3D frontShape = new Shape3D(quadArray, a);
 		frontShape.setCapability(Shape3D.ALLOW_APPEARANCE_WRITE);
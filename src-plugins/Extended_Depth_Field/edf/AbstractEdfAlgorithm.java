@@ -25,6 +25,147 @@
 
 import imageware.ImageWare;
 
+/**
+ * Base class of the EDF algorithms.
+ *
+ * The focal planes are consumed one at a time: each slice is read from a
+ * SliceSource, analysed (sharpness measure or wavelet transform) and merged
+ * into the running result, which holds the best-focus map, the composite and
+ * the coefficients of the current maximum. Several slices are analysed in
+ * parallel; they are read and merged in increasing order, so that the result
+ * does not depend on the number of threads.
+ *
+ * An algorithm object holds the running result, it must not be used to
+ * process two stacks at the same time.
+ */
 public abstract class AbstractEdfAlgorithm {
-	abstract public ImageWare[] process(ImageWare imageStack);
+
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Set the number of slices analysed in parallel.
+	 */
+	public void setNumThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Process a whole focal stack.
+	 */
+	public ImageWare[] process(ImageWare imageStack) {
+		return process(new ImageWareSliceSource(imageStack));
+	}
+
+	/**
+	 * Process the focal planes of a source. Only the slices being analysed
+	 * are kept in memory.
+	 *
+	 * @return the composite image and the height-map
+	 */
+	public ImageWare[] process(final SliceSource source) {
+		final LogSingleton log = LogSingleton.getInstance();
+		final int nz = source.getSizeZ();
+
+		start(source.getSizeX(), source.getSizeY(), nz);
+
+		final int[] next = new int[1];
+		final int[] merged = new int[1];
+		final RuntimeException[] error = new RuntimeException[1];
+		final Object lock = new Object();
+
+		Thread[] threads = new Thread[Math.max(1, Math.min(nThreads, nz))];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("EDF-" + t) {
+				public void run() {
+					try {
+						while (true) {
+							int k;
+							ImageWare slice;
+							synchronized(source) {
+								if (next[0] >= nz)
+									return;
+								k = next[0]++;
+								slice = source.getSlice(k);
+							}
+							Object analysis = analyse(slice);
+							synchronized(lock) {
+								while (merged[0] != k && error[0] == null)
+									lock.wait();
+								if (error[0] != null)
+									return;
+								log.setProgessLength(15+ k*(65/nz));
+								merge(k, slice, analysis);
+								merged[0]++;
+								lock.notifyAll();
+							}
+						}
+					}
+					catch(InterruptedException e) {
+						fail(new RuntimeException("EDF interrupted."));
+					}
+					catch(RuntimeException e) {
+						fail(e);
+					}
+				}
+
+				private void fail(RuntimeException e) {
+					synchronized(source) {
+						next[0] = nz;
+					}
+					synchronized(lock) {
+						if (error[0] == null)
+							error[0] = e;
+						lock.notifyAll();
+					}
+				}
+			};
+		}
+
+		if (threads.length == 1) {
+			threads[0].run();
+		}
+		else {
+			for (int t=0; t<threads.length; t++)
+				threads[t].start();
+			try {
+				for (int t=0; t<threads.length; t++)
+					threads[t].join();
+			}
+			catch(InterruptedException e) {
+				for (int t=0; t<threads.length; t++)
+					threads[t].interrupt();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("EDF interrupted.");
+			}
+		}
+		if (error[0] != null)
+			throw error[0];
+
+		return finish();
+	}
+
+	/**
+	 * Allocate the running result for nz slices of size [nx, ny].
+	 */
+	abstract protected void start(int nx, int ny, int nz);
+
+	/**
+	 * Compute the sharpness measure or the transform of one slice.
+	 * Called concurrently on different slices, must not touch the running
+	 * result.
+	 */
+	abstract protected Object analyse(ImageWare slice);
+
+	/**
+	 * Merge the analysis of the slice k into the running result.
+	 * Called once per slice, in increasing order of k.
+	 */
+	abstract protected void merge(int k, ImageWare slice, Object analysis);
+
+	/**
+	 * Final processing once all the slices have been merged.
+	 *
+	 * @return the composite image and the height-map
+	 */
+	abstract protected ImageWare[] finish();
 }
@@ -36,6 +36,14 @@ public class EdfComplexWavelets extends EdfWaveletMaximumModulus {
 	private boolean majConsistencyCheck = false;
 	private int majWindowSize = 5;
 
+	private int nz;
+	private ImageWare resRe;
+	private ImageWare resIm;
+	private ImageWare heightMap;
+	private ImageWare coeffStackRe;
+	private ImageWare coeffStackIm;
+	private float[] temp;
+
 	/**
 	 *
 	 */
@@ -49,67 +57,69 @@ public EdfComplexWavelets(int length, int nScales, boolean sbConsistencyCheck, b
 	/**
 	 *
 	 */
-	public ImageWare[] process(ImageWare imageStack){
-
-		LogSingleton log = LogSingleton.getInstance();
-
-		int nx = imageStack.getSizeX();
-		int ny = imageStack.getSizeY();
-		int nz = imageStack.getSizeZ();
-
-		double newval, oldval;
-		int i,j,k;
-		double[][] buf = new double[nx][ny];
-
-		ImageAccess slice;
-		ImageAccess coefftempRe = null;
-		ImageAccess coefftempIm = null;
-		ImageAccess[] coefftemp = {null,null};
-
-		ImageWare res = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare resRe = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare resIm = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare temp = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare heightMap = Builder.create(nx,ny,1,ImageWare.SHORT);
-		ImageWare coeffStackRe = null;
-		ImageWare coeffStackIm = null;
-
-		double tempvalRe, tempvalIm;
-
+	protected void start(int nx, int ny, int nz) {
+		this.nz = nz;
+		resRe = Builder.create(nx,ny,1,ImageWare.FLOAT);
+		resIm = Builder.create(nx,ny,1,ImageWare.FLOAT);
+		temp = new float[nx*ny];
+		heightMap = Builder.create(nx,ny,1,ImageWare.SHORT);
+		coeffStackRe = null;
+		coeffStackIm = null;
+		// The consistency checks revise the map with the coefficients of all
+		// the slices, only then the whole transformed stack is kept.
 		if(this.sbConsistencyCheck || this.majConsistencyCheck){
 			coeffStackRe = Builder.create(nx,ny,nz,ImageWare.FLOAT);
 			coeffStackIm = Builder.create(nx,ny,nz,ImageWare.FLOAT);
 		}
+	}
 
-		for (k=0; k<nz; k++){
-
-			log.setProgessLength(15+ k*(65/nz));
-
-			imageStack.getXY(0,0,k,buf);
-			slice = new ImageAccess(buf);
-
-			coefftemp = ComplexWavelet.analysis(slice, nScales, length);
-			coefftempRe = coefftemp[0];
-			coefftempIm = coefftemp[1];
-			for(i = 0; i<nx; i++){
-				for(j = 0; j<ny; j++){
-					tempvalRe = coefftempRe.getPixel(i,j);
-					tempvalIm = coefftempIm.getPixel(i,j);
-					newval = tempvalRe*tempvalRe + tempvalIm*tempvalIm;
-					oldval = temp.getPixel(i,j,0);
-					if(oldval < newval){
-						temp.putPixel(i,j,0,newval);
-						heightMap.putPixel(i,j,0,k);
-						resRe.putPixel(i,j,0,tempvalRe);
-						resIm.putPixel(i,j,0,tempvalIm);
-					}
-				}
+	/**
+	 *
+	 */
+	protected Object analyse(ImageWare input) {
+		double[][] buf = new double[input.getSizeX()][input.getSizeY()];
+		input.getXY(0,0,0,buf);
+		return ComplexWavelet.analysis(new ImageAccess(buf), nScales, length);
+	}
+
+	/**
+	 *
+	 */
+	protected void merge(int k, ImageWare input, Object analysis) {
+		double[] coeffRe = ((ImageAccess[])analysis)[0].getPixels();
+		double[] coeffIm = ((ImageAccess[])analysis)[1].getPixels();
+		float[] outRe = resRe.getSliceFloat(0);
+		float[] outIm = resIm.getSliceFloat(0);
+		short[] map = heightMap.getSliceShort(0);
+		double newval, tempvalRe, tempvalIm;
+		for(int i = 0; i<coeffRe.length; i++){
+			tempvalRe = coeffRe[i];
+			tempvalIm = coeffIm[i];
+			newval = tempvalRe*tempvalRe + tempvalIm*tempvalIm;
+			if(temp[i] < newval){
+				temp[i] = (float)newval;
+				map[i] = (short)k;
+				outRe[i] = (float)tempvalRe;
+				outIm[i] = (float)tempvalIm;
 			}
-			if(this.sbConsistencyCheck || this.majConsistencyCheck){
-				coeffStackRe.putXY(0,0,k,coefftempRe.getArrayPixels());
-				coeffStackIm.putXY(0,0,k,coefftempIm.getArrayPixels());
+		}
+		if(this.sbConsistencyCheck || this.majConsistencyCheck){
+			float[] csRe = coeffStackRe.getSliceFloat(k);
+			float[] csIm = coeffStackIm.getSliceFloat(k);
+			for(int i = 0; i<coeffRe.length; i++){
+				csRe[i] = (float)coeffRe[i];
+				csIm[i] = (float)coeffIm[i];
 			}
 		}
+	}
+
+	/**
+	 *
+	 */
+	protected ImageWare[] finish() {
+
+		int nx = resRe.getSizeX();
+		int ny = resRe.getSizeY();
 
 		if(this.sbConsistencyCheck){
 			this.subBandConsistencyCheck(heightMap,resRe, resIm);
@@ -127,15 +137,19 @@ public ImageWare[] process(ImageWare imageStack){
 		double[][] iabufIm = new double[nx][ny];
 		resRe.getXY(0,0,0,iabufRe);
 		resIm.getXY(0,0,0,iabufIm);
-		coefftempRe.putArrayPixels(iabufRe);
-		coefftempIm.putArrayPixels(iabufIm);
-
 
-		coefftemp = ComplexWavelet.synthesis(coefftempRe, coefftempIm, nScales, length);
-		coefftempRe = coefftemp[0];
-		coefftempIm = coefftemp[1];
-		res.putXY(0,0,0,coefftempRe.getArrayPixels());
-		return new ImageWare[]{res, heightMap};
+		ImageAccess[] coeff = ComplexWavelet.synthesis(new ImageAccess(iabufRe), new ImageAccess(iabufIm), nScales, length);
+		ImageWare res = Builder.create(nx,ny,1,ImageWare.FLOAT);
+		res.putXY(0,0,0,coeff[0].getArrayPixels());
+
+		ImageWare[] result = new ImageWare[]{res, heightMap};
+		resRe = null;
+		resIm = null;
+		heightMap = null;
+		coeffStackRe = null;
+		coeffStackIm = null;
+		temp = null;
+		return result;
 	}
 
 	/**
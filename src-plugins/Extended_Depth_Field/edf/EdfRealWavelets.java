@@ -38,6 +38,12 @@ public class EdfRealWavelets extends EdfWaveletMaximumModulus {
 	private boolean doDenoising = false;
 	private double denoisingRate = 10;
 
+	private int nz;
+	private ImageWare res;
+	private ImageWare heightMap;
+	private ImageWare coeffStack;
+	private float[] temp;
+
 	/**
 	 *
 	 */
@@ -64,55 +70,59 @@ public EdfRealWavelets (int order, int nScales, boolean sbConsistencyCheck, bool
 	/**
 	 *
 	 */
-	public ImageWare[] process(ImageWare imageStack) {
-
-		LogSingleton log = LogSingleton.getInstance();
-
-		int nx = imageStack.getSizeX();
-		int ny = imageStack.getSizeY();
-		int nz = imageStack.getSizeZ();
-
-		double newval, oldval;
-		int i,j,k;
-		double[][] buf = new double[nx][ny];
-
-		ImageAccess slice;
-		ImageAccess coefftemp = null;
-		ImageWare res = Builder.create(nx,ny,1,ImageWare.FLOAT);
-
-		ImageWare temp = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare heightMap = Builder.create(nx,ny,1,ImageWare.SHORT);
-		ImageWare coeffStack = null;
-
-		double tempval;
-
+	protected void start(int nx, int ny, int nz) {
+		this.nz = nz;
+		res = Builder.create(nx,ny,1,ImageWare.FLOAT);
+		temp = new float[nx*ny];
+		heightMap = Builder.create(nx,ny,1,ImageWare.SHORT);
+		coeffStack = null;
+		// The consistency checks revise the map with the coefficients of all
+		// the slices, only then the whole transformed stack is kept.
 		if(this.sbConsistencyCheck || this.majConsistencyCheck){
 			coeffStack = Builder.create(nx,ny,nz,ImageWare.FLOAT);
 		}
+	}
 
-		for (k=0; k<nz; k++) {
-
-			log.setProgessLength(15+ k*(65/nz));
-
-			imageStack.getXY(0,0,k,buf);
-			slice = new ImageAccess(buf);
-			coefftemp = WaveSpline.analysis(slice,order,nScales);
-			for(i = 0; i<nx; i++) {
-				for(j = 0; j<ny; j++) {
-					tempval = coefftemp.getPixel(i,j);
-					newval = abs(tempval);
-					oldval = temp.getPixel(i,j,0);
-					if(oldval < newval){
-						temp.putPixel(i,j,0,newval);
-						heightMap.putPixel(i,j,0,k);
-						res.putPixel(i,j,0,tempval);
-					}
-				}
-			}
-			if(coeffStack != null) {
-				coeffStack.putXY(0,0,k,coefftemp.getArrayPixels());
+	/**
+	 *
+	 */
+	protected Object analyse(ImageWare input) {
+		double[][] buf = new double[input.getSizeX()][input.getSizeY()];
+		input.getXY(0,0,0,buf);
+		return WaveSpline.analysis(new ImageAccess(buf),order,nScales);
+	}
+
+	/**
+	 *
+	 */
+	protected void merge(int k, ImageWare input, Object analysis) {
+		double[] coeff = ((ImageAccess)analysis).getPixels();
+		float[] out = res.getSliceFloat(0);
+		short[] map = heightMap.getSliceShort(0);
+		double newval, tempval;
+		for(int i = 0; i<coeff.length; i++) {
+			tempval = coeff[i];
+			newval = abs(tempval);
+			if(temp[i] < newval){
+				temp[i] = (float)newval;
+				map[i] = (short)k;
+				out[i] = (float)tempval;
 			}
 		}
+		if(coeffStack != null) {
+			float[] cs = coeffStack.getSliceFloat(k);
+			for(int i = 0; i<coeff.length; i++)
+				cs[i] = (float)coeff[i];
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected ImageWare[] finish() {
+
+		int nx = res.getSizeX();
+		int ny = res.getSizeY();
 
 		if(this.sbConsistencyCheck) {
 			this.subBandConsistencyCheck(heightMap,res);
@@ -132,13 +142,15 @@ public ImageWare[] process(ImageWare imageStack) {
 
 		double[][] iabuf = new double[nx][ny];
 		res.getXY(0,0,0,iabuf);
-		coefftemp.putArrayPixels(iabuf);
-
-		coefftemp = WaveSpline.synthesis(coefftemp,order,nScales);
-		res.putXY(0,0,0,coefftemp.getArrayPixels());
-
-		return new ImageWare[]{res, heightMap};
-
+		ImageAccess coeff = WaveSpline.synthesis(new ImageAccess(iabuf),order,nScales);
+		res.putXY(0,0,0,coeff.getArrayPixels());
+
+		ImageWare[] result = new ImageWare[]{res, heightMap};
+		res = null;
+		heightMap = null;
+		coeffStack = null;
+		temp = null;
+		return result;
 	}
 
 	/**
@@ -30,45 +30,50 @@ public class EdfVariance extends AbstractEdfAlgorithm {
 
 	private int windowSize;
 
+	private ImageWare res;
+	private ImageWare topology;
+	private float[] temp;
+
 	public EdfVariance(int windowSize){
 		this.windowSize = windowSize;
 	}
 
-	public ImageWare[] process(ImageWare imageStack) {
-
-		LogSingleton log = LogSingleton.getInstance();
-
-		int nx = imageStack.getSizeX();
-		int ny = imageStack.getSizeY();
-		int nz = imageStack.getSizeZ();
-
-		ImageWare slice = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare temp = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare sharpness = Builder.create(nx,ny,1,ImageWare.FLOAT);
-		ImageWare topology = Builder.create(nx,ny,1,ImageWare.FLOAT);
+	protected void start(int nx, int ny, int nz) {
+		temp = new float[nx*ny];
+		topology = Builder.create(nx,ny,1,ImageWare.FLOAT);
 		topology.add(1);
+		res = null;
+	}
 
-		imageStack.getXY(0, 0, 0, slice);
-		ImageWare res = slice.duplicate();
+	protected Object analyse(ImageWare input) {
+		ImageWare slice = Builder.create(input.getSizeX(),input.getSizeY(),1,ImageWare.FLOAT);
+		input.getXY(0, 0, 0, slice);
+		return new ImageWare[] {slice, Variance.compute(slice, windowSize)};
+	}
 
-		float newval, oldval;
-		for (int k=0; k<nz; k++){
-			log.setProgessLength(15+ k*(65/nz));
-			imageStack.getXY(0, 0, k, slice);
-			sharpness = Variance.compute(slice, windowSize);
-			for(int i=0; i<nx; i++)
-			for(int j=0; j<ny; j++) {
-				newval = (float)sharpness.getPixel(i,j,0);
-				oldval = (float)temp.getPixel(i,j,0);
-				if(oldval < newval){
-					temp.putPixel(i,j,0,newval);
-					topology.putPixel(i,j,0,k+1);
-					res.putPixel(i,j,0,slice.getPixel(i,j,0));
-				}
+	protected void merge(int k, ImageWare input, Object analysis) {
+		ImageWare slice = ((ImageWare[])analysis)[0];
+		if (k == 0)
+			res = slice.duplicate();
+		float[] pix = slice.getSliceFloat(0);
+		float[] sharpness = ((ImageWare[])analysis)[1].getSliceFloat(0);
+		float[] topo = topology.getSliceFloat(0);
+		float[] out = res.getSliceFloat(0);
+		for(int i=0; i<temp.length; i++) {
+			if(temp[i] < sharpness[i]){
+				temp[i] = sharpness[i];
+				topo[i] = k+1;
+				out[i] = pix[i];
 			}
-			System.gc();
 		}
-		return new ImageWare[] {res, topology};
+	}
+
+	protected ImageWare[] finish() {
+		ImageWare[] result = new ImageWare[] {res, topology};
+		res = null;
+		topology = null;
+		temp = null;
+		return result;
 	}
 
 }
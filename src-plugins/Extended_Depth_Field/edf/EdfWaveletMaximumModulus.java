@@ -28,11 +28,6 @@
 
 public abstract class EdfWaveletMaximumModulus extends AbstractEdfAlgorithm {
 
-	/**
-	 *
-	 */
-	abstract public ImageWare[] process(ImageWare imageStack);
-
 	/**
 	 *
 	 */
@@ -0,0 +1,55 @@
+//==============================================================================
+//
+// Project: EDF - Extended Depth of Focus
+//
+// Organization: Biomedical Imaging Group (BIG)
+// Ecole Polytechnique Federale de Lausanne (EPFL), Lausanne, Switzerland
+//
+// Information: http://bigwww.epfl.ch/demo/edf/
+//
+// Reference: B. Forster, D. Van De Ville, J. Berent, D. Sage, M. Unser
+// Complex Wavelets for Extended Depth-of-Field: A New Method for the Fusion
+// of Multichannel Microscopy Images, Microscopy Research and Techniques,
+// 65(1-2), pp. 33-42, September 2004.
+//
+// Conditions of use: You'll be free to use this software for research purposes,
+// but you should not redistribute it without our consent. In addition, we
+// expect you to include a citation or acknowledgment whenever you present or
+// publish results that are based on it.
+//
+//==============================================================================
+
+package edf;
+
+import imageware.Builder;
+import imageware.ImageWare;
+
+/**
+ * The slices of a focal stack already in memory.
+ */
+public class ImageWareSliceSource implements SliceSource {
+
+	private ImageWare stack;
+
+	public ImageWareSliceSource(ImageWare stack) {
+		this.stack = stack;
+	}
+
+	public int getSizeX() {
+		return stack.getSizeX();
+	}
+
+	public int getSizeY() {
+		return stack.getSizeY();
+	}
+
+	public int getSizeZ() {
+		return stack.getSizeZ();
+	}
+
+	public ImageWare getSlice(int z) {
+		ImageWare slice = Builder.create(stack.getSizeX(), stack.getSizeY(), 1, stack.getType());
+		stack.getXY(0, 0, z, slice);
+		return slice;
+	}
+}
@@ -28,62 +28,88 @@
 import imageware.Builder;
 import imageware.ImageWare;
 
+import java.util.Arrays;
+
 public class PostProcessing {
 
 	/**
 	 *
 	 */
 	public static ImageWare reassignment(ImageWare res, ImageWare stack){
+		return reassignment(res, new ImageWareSliceSource(stack));
+	}
 
-		int nx = stack.getSizeX();
-		int ny = stack.getSizeY();
-		int nz = stack.getSizeZ();
-		double stackval, pixelval, temp, diff, finalpixelval;
-		float finalPos;
+	/**
+	 * Replace each pixel of the composite by the closest value along the
+	 * focal planes, read one at a time from a source.
+	 *
+	 * @return the topology, index (starting at 1) of the selected plane
+	 */
+	public static ImageWare reassignment(ImageWare res, SliceSource source){
+
+		int nx = source.getSizeX();
+		int ny = source.getSizeY();
+		int nz = source.getSizeZ();
+		int size = nx*ny;
+		double diff;
 
 		ImageWare topology = Builder.create(nx,ny,1,ImageWare.FLOAT);
+		float[] finalPos = topology.getSliceFloat(0);
+
+		ImageWare slice = Builder.create(nx,ny,1,ImageWare.DOUBLE);
+		ImageWare merged = Builder.create(nx,ny,1,ImageWare.DOUBLE);
+		res.getXY(0,0,0,merged);
+		double[] stackval = slice.getSliceDouble(0);
+		double[] pixelval = merged.getSliceDouble(0);
+		double[] finalpixelval = new double[size];
+		double[] temp = new double[size];
+		Arrays.fill(temp, Double.MAX_VALUE);
 
-		for(int i = 0; i < nx; i++){
-			for(int j = 0 ; j < ny; j++){
-				temp = Double.MAX_VALUE;
-				diff = 0.0;
-				finalpixelval = 0.0;
-				finalPos = 0;
-				for(int k = 0; k < nz; k++){
-					stackval = (double)stack.getPixel(i,j,k);
-					pixelval = (double)res.getPixel(i,j,0);
-					diff = Math.abs(stackval - pixelval);
-					if (diff < temp){
-						temp = diff;
-						finalpixelval = stackval;
-						finalPos = (float)(k + 1);
-					}
+		for(int k = 0; k < nz; k++){
+			source.getSlice(k).getXY(0,0,0,slice);
+			for(int i = 0; i < size; i++){
+				diff = Math.abs(stackval[i] - pixelval[i]);
+				if (diff < temp[i]){
+					temp[i] = diff;
+					finalpixelval[i] = stackval[i];
+					finalPos[i] = (float)(k + 1);
 				}
-				res.putPixel(i,j,0,finalpixelval);
-				topology.putPixel(i,j,0,finalPos);
 			}
 		}
+		System.arraycopy(finalpixelval, 0, pixelval, 0, size);
+		res.putXY(0,0,0,merged);
 		return topology;
 	}
 
 	/**
-	 *
+	 * Build the color composite from the topology, reading each slice of
+	 * the stack once.
 	 */
 	public static ColorProcessor reassignmentColor(ImageWare topology, ImageStack stack){
 
 		int nx = topology.getSizeX();
 		int ny = topology.getSizeY();
+		int nz = stack.getSize();
+		int size = nx*ny;
 
 		ColorProcessor cp = new ColorProcessor(nx, ny);
+		int[] out = (int[])cp.getPixels();
 
-		int color = 0;
-		int index;
+		int[] index = new int[size];
+		boolean[] used = new boolean[nz+1];
+		for (int i=0; i<size; i++){
+			index[i] = (int)topology.getPixel(i % nx, i / nx, 0);
+			if (index[i] >= 1 && index[i] <= nz)
+				used[index[i]] = true;
+		}
 
-		for (int x=0; x<nx; x++){
-			for (int y=0; y<ny; y++){
-				index = (int)topology.getPixel(x, y, 0);
-				color = ((ColorProcessor)stack.getProcessor(index)).getPixel(x, y);
-				cp.putPixel(x, y, color);
+		for (int k=1; k<=nz; k++){
+			if (!used[k])
+				continue;
+			int[] pixels = (int[])stack.getProcessor(k).getPixels();
+			for (int i=0; i<size; i++){
+				if (index[i] == k)
+					out[i] = pixels[i];
 			}
 		}
 		return cp;
@@ -0,0 +1,47 @@
+//==============================================================================
+//
+// Project: EDF - Extended Depth of Focus
+//
+// Organization: Biomedical Imaging Group (BIG)
+// Ecole Polytechnique Federale de Lausanne (EPFL), Lausanne, Switzerland
+//
+// Information: http://bigwww.epfl.ch/demo/edf/
+//
+// Reference: B. Forster, D. Van De Ville, J. Berent, D. Sage, M. Unser
+// Complex Wavelets for Extended Depth-of-Field: A New Method for the Fusion
+// of Multichannel Microscopy Images, Microscopy Research and Techniques,
+// 65(1-2), pp. 33-42, September 2004.
+//
+// Conditions of use: You'll be free to use this software for research purposes,
+// but you should not redistribute it without our consent. In addition, we
+// expect you to include a citation or acknowledgment whenever you present or
+// publish results that are based on it.
+//
+//==============================================================================
+
+package edf;
+
+import imageware.ImageWare;
+
+/**
+ * The focal planes of a stack, delivered one at a time, for instance as
+ * they are read from disk.
+ */
+public interface SliceSource {
+
+	public int getSizeX();
+
+	public int getSizeY();
+
+	/**
+	 * Number of focal planes.
+	 */
+	public int getSizeZ();
+
+	/**
+	 * Return the slice z (starting at 0) as an imageware of size
+	 * [getSizeX(), getSizeY(), 1]. It may share its data with the stack,
+	 * the caller must not modify it.
+	 */
+	public ImageWare getSlice(int z);
+}
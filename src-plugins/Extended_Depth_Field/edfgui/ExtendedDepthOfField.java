@@ -26,11 +26,9 @@
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
-import imageware.Builder;
 import imageware.ImageWare;
 import surfacemap.SurfaceMap3D;
 import edf.AbstractEdfAlgorithm;
-import edf.Color2BW;
 import edf.EdfComplexWavelets;
 import edf.EdfRealWavelets;
 import edf.EdfSobel;
@@ -38,6 +36,7 @@
 import edf.LogSingleton;
 import edf.MorphologicalOperators;
 import edf.PostProcessing;
+import edf.SliceSource;
 import edf.Tools;
 
 public class ExtendedDepthOfField {
@@ -73,55 +72,32 @@ public void process() {
 		boolean isExtended = false;
 		boolean waveletMethod = (parameters.edfMethod == REAL_WAVELETS || parameters.edfMethod == COMPLEX_WAVELETS);
 
-		ImageStack stackConverted;
-		ImagePlus impConverted;
-		ImagePlus impBW = imp;
-		if (parameters.color) {
-
-			log.start("Color conversion...");
-
-			impConverted = new ImagePlus();
-			switch (parameters.colorConversionMethod) {
-			case 0:
-				stackConverted = Color2BW.C2BFixedWeights(imp.getStack(), true);
-				break;
-			case 1:
-				stackConverted = Color2BW.C2BPrincipalComponents(imp.getStack());
-				break;
-			case 2:
-				stackConverted = Color2BW.C2BMean(imp.getStack());
-				break;
-			default:
-				throw new RuntimeException("Unknown error");
-			}
-			impConverted.setStack(null,stackConverted);
-			impBW = impConverted;
+		// The slices are read, converted to gray levels and extended one at a
+		// time, so that a virtual stack is never loaded as a whole.
 
-			log.acknowledge();
+		int colorConversion = ImageStackSliceSource.NO_CONVERSION;
+		if (parameters.color) {
+			log.append("Color conversion on each slice.");
+			colorConversion = parameters.colorConversionMethod;
 		}
 
-		System.gc();
-
-		// Start the main EDF process.
-
-		ImageWare imageStack = Builder.wrap(impBW);
+		ImageStack stack = imp.getStack();
 
 		// Check sizes.
 
 		int[] scaleAndSizes = new int[3];
-		int nx = imageStack.getWidth();
-		int ny = imageStack.getHeight();
+		int nx = stack.getWidth();
+		int ny = stack.getHeight();
 
+		SliceSource source = new ImageStackSliceSource(stack, colorConversion);
 
 		if (waveletMethod) {
 			if(!Tools.isPowerOf2(nx) || !Tools.isPowerOf2(ny)) {
 				scaleAndSizes = Tools.computeScaleAndPowerTwoSize(nx,ny);
-				log.start("Extend images to "+ scaleAndSizes[1]+ "x" + scaleAndSizes[2] + " pixels...");
-				imageStack = Tools.extend(imageStack,scaleAndSizes[1],scaleAndSizes[2]);
+				log.append("Extend images to "+ scaleAndSizes[1]+ "x" + scaleAndSizes[2] + " pixels.");
+				source = new ImageStackSliceSource(stack, colorConversion, scaleAndSizes[1], scaleAndSizes[2]);
 				isExtended = true;
-				log.acknowledge();
 			}
-			System.gc();
 		}
 
 		log.start("Sharpen estimation...");
@@ -137,24 +113,21 @@ public void process() {
 			else
 				edf = new EdfRealWavelets((int)parameters.splineOrder, parameters.nScales,
 						parameters.subBandCC,parameters.majCC);
-			ima = edf.process(imageStack);
 			break;
 		case COMPLEX_WAVELETS :
 			edf = new EdfComplexWavelets(parameters.daubechielength, parameters.nScales,
 					parameters.subBandCC,parameters.majCC);
-			ima = edf.process(imageStack);
 			break;
 		case VARIANCE :
 			edf = new EdfVariance(parameters.varWindowSize);
-			ima = edf.process(imageStack);
 			break;
 		case SOBEL :
 			edf = new EdfSobel();
-			ima = edf.process(imageStack);
 			break;
 		default:
 			throw new RuntimeException("Invalid Option.");
 		}
+		ima = edf.process(source);
 		System.gc();
 
 		log.acknowledge();
@@ -163,7 +136,6 @@ public void process() {
 		// Crop to original images.
 		if (waveletMethod && isExtended) {
 			log.start("Crop to original size...");
-			imageStack = Tools.crop(imageStack,nx,ny);
 			ima[0] = Tools.crop(ima[0],nx,ny);
 			ima[1] = Tools.crop(ima[1],nx,ny);
 			System.gc();
@@ -172,7 +144,7 @@ public void process() {
 
 		if(parameters.reassignment) {
 			log.start("Reassignment to original pixel values...");
-			ima[1] = PostProcessing.reassignment(ima[0],imageStack);
+			ima[1] = PostProcessing.reassignment(ima[0], new ImageStackSliceSource(stack, colorConversion));
 			System.gc();
 			log.acknowledge();
 			log.setProgessLength(95);
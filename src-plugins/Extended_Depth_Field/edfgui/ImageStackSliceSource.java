@@ -0,0 +1,103 @@
+//==============================================================================
+//
+// Project: EDF - Extended Depth of Focus
+//
+// Organization: Biomedical Imaging Group (BIG)
+// Ecole Polytechnique Federale de Lausanne (EPFL), Lausanne, Switzerland
+//
+// Information: http://bigwww.epfl.ch/demo/edf/
+//
+// Reference: B. Forster, D. Van De Ville, J. Berent, D. Sage, M. Unser
+// Complex Wavelets for Extended Depth-of-Field: A New Method for the Fusion
+// of Multichannel Microscopy Images, Microscopy Research and Techniques,
+// 65(1-2), pp. 33-42, September 2004.
+//
+// Conditions of use: You'll be free to use this software for research purposes,
+// but you should not redistribute it without our consent. In addition, we
+// expect you to include a citation or acknowledgment whenever you present or
+// publish results that are based on it.
+//
+//==============================================================================
+
+package edfgui;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import imageware.Builder;
+import imageware.ImageWare;
+import edf.Color2BW;
+import edf.SliceSource;
+import edf.Tools;
+
+/**
+ * The slices of an ImageStack, read one at a time. With a virtual stack,
+ * only the requested slice is loaded from disk. Color slices are converted
+ * to gray levels, and the slices can be extended to the power-of-two size
+ * needed by the wavelet methods.
+ */
+public class ImageStackSliceSource implements SliceSource {
+
+	public static final int NO_CONVERSION = -1;
+
+	private ImageStack stack;
+	private int colorConversionMethod;
+	private int mx;
+	private int my;
+
+	/**
+	 * @param stack					input stack
+	 * @param colorConversionMethod	NO_CONVERSION, or the color conversion
+	 * 								method of the parameters
+	 */
+	public ImageStackSliceSource(ImageStack stack, int colorConversionMethod) {
+		this(stack, colorConversionMethod, stack.getWidth(), stack.getHeight());
+	}
+
+	/**
+	 * @param mx	width of the extended slices
+	 * @param my	height of the extended slices
+	 */
+	public ImageStackSliceSource(ImageStack stack, int colorConversionMethod, int mx, int my) {
+		this.stack = stack;
+		this.colorConversionMethod = colorConversionMethod;
+		this.mx = mx;
+		this.my = my;
+	}
+
+	public int getSizeX() {
+		return mx;
+	}
+
+	public int getSizeY() {
+		return my;
+	}
+
+	public int getSizeZ() {
+		return stack.getSize();
+	}
+
+	public ImageWare getSlice(int z) {
+		ImageProcessor ip = stack.getProcessor(z+1);
+		switch (colorConversionMethod) {
+		case NO_CONVERSION:
+			break;
+		case 0:
+			ip = Color2BW.C2BFixedWeights(ip, true);
+			break;
+		case 1:
+			ip = Color2BW.C2BPrincipalComponents(ip);
+			break;
+		case 2:
+			ip = Color2BW.C2BMean(ip);
+			break;
+		default:
+			throw new RuntimeException("Unknown error");
+		}
+		ImageStack single = new ImageStack(ip.getWidth(), ip.getHeight());
+		single.addSlice(null, ip);
+		ImageWare slice = Builder.wrap(single);
+		if (mx != ip.getWidth() || my != ip.getHeight())
+			slice = Tools.extend(slice, mx, my);
+		return slice;
+	}
+}
@@ -24,32 +24,27 @@
 import ij.plugin.PlugIn;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
+import ij.process.FloatProcessor;
 
 import java.text.DecimalFormat;
 
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Comparator;
 import java.util.Collections;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.ImagePlusAdapter;
 import mpicbg.imglib.type.numeric.RealType;
 import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.imglib.type.numeric.integer.ByteType;
 import mpicbg.imglib.algorithm.gauss.GaussianConvolution;
-import mpicbg.imglib.algorithm.gauss.GaussianConvolutionReal;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategy;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
-import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.cursor.LocalizableCursor;
@@ -318,8 +313,8 @@ public ImagePlus process( ImagePlus input,
 				  int scales,
 				  double minimumScale,
 				  double maximumScale,
-				  boolean showGaussianImages,
-				  boolean showFilteredImages,
+				  final boolean showGaussianImages,
+				  final boolean showFilteredImages,
 				  boolean showWhichScales,
 				  MultiTaskProgress progress ) {
 
@@ -328,192 +323,84 @@ public ImagePlus process( ImagePlus input,
 		image = ImagePlusAdapter.wrap(input);
 
 		float [] spacing = image.getCalibration();
+		final int [] dimensions = image.getDimensions();
+
+		if( dimensions.length != 2 && dimensions.length != 3 ) {
+			IJ.error("Currently only 2 or 3 dimensional images are supported.");
+			return null;
+		}
 
 		double range = maximumScale - minimumScale;
 		double increment = 0;
 		if( scales > 1 )
 			increment = range / (scales - 1);
 
-		ArrayList< Image<FloatType> > vesselImages =
-			new ArrayList< Image<FloatType> >();
-
-		ExecutorService es = Executors.newFixedThreadPool(processors);
-
-		List<VesselnessCalculator<T>> calculators =
-			new ArrayList<VesselnessCalculator<T>>();
-
-		/* Smooth the input image with a Gaussian convolution
-		   at each scale.  Also create a VesselnessCalculator
-		   object for each scale and add it to the
-		   ExecutorService */
-
-		for( int scaleIndex = 0; scaleIndex < scales; ++scaleIndex ) {
-
-			double currentScale = minimumScale + scaleIndex * increment;
-			float [] newSpacing = new float[spacing.length];
-			for( int i = 0; i < newSpacing.length; ++i )
-				newSpacing[i] = (float)( spacing[i] * (currentScale / spacing[0]) );
-
-			double [] sigmas = new double[newSpacing.length];
-			for( int i = 0; i < newSpacing.length; ++i )
-				sigmas[i] = newSpacing[i] / spacing[i];
-
-			GaussianConvolutionReal<T> gauss =
-				new GaussianConvolutionReal<T>(
-					image,
-					new OutOfBoundsStrategyMirrorFactory<T>(),
-					sigmas );
-
-			gauss.setNumThreads( processors );
-
-			IJ.showStatus("Running Gaussian convolution at scale "+formatReal(currentScale)+"...");
-
-			/* FIXME: add some facility to report progress
-			   of the Gaussian convolution. */
-
-			if ( !gauss.checkInput() || !gauss.process() ) {
-				IJ.error( "Gaussian Convolution failed: " + gauss.getErrorMessage() );
-				return null;
+		double [] scaleValues = new double[scales];
+		for( int scaleIndex = 0; scaleIndex < scales; ++scaleIndex )
+			scaleValues[scaleIndex] = minimumScale + scaleIndex * increment;
+
+		/* The scale-space is built incrementally in this
+		   float copy of the image, and the vesselness at each
+		   scale is folded into the running maximum, so that
+		   only a few volumes are ever allocated: */
+
+		float [] smoothed = toFloatArray( image );
+		float [] result = new float[smoothed.length];
+		float [] which = showWhichScales ? new float[smoothed.length] : null;
+
+		VesselnessEngine engine = new VesselnessEngine( dimensions, spacing );
+		engine.setNumThreads( processors );
+		engine.setProgress( progress );
+		engine.setKeepFilteredImages( showFilteredImages );
+		engine.setScaleListener( new VesselnessEngine.ScaleListener() {
+			public void smoothed( int scaleIndex, double scale, float [] pixels ) {
+				if( showGaussianImages ) {
+					ImagePlus gaussianSmoothedImage = toImagePlus( pixels, dimensions );
+					gaussianSmoothedImage.setTitle("Gaussian smoothed images at scale "+scaleIndex);
+					gaussianSmoothedImage.show();
+				}
+				IJ.showStatus("Calculating vesselness at scale "+formatReal(scale)+"...");
 			}
 
-			final Image<T> result = gauss.getResult();
-
-			if( showGaussianImages ) {
-				ImagePlus gaussianSmoothedImage =
-					ImageJFunctions.copyToImagePlus( result );
-				gaussianSmoothedImage.setTitle("Gaussian smoothed images at scale "+scaleIndex);
-				gaussianSmoothedImage.show();
+			public void filtered( int scaleIndex, double scale, float [] pixels, double minimum, double maximum ) {
+				ImagePlus imagePlusVersion = toImagePlus( pixels, dimensions );
+				imagePlusVersion.setTitle("Filtered image at scale "+scaleIndex);
+				imagePlusVersion.setDisplayRange( minimum, 0.5 * maximum );
+				imagePlusVersion.show();
 			}
-
-			VesselnessCalculator<T> calculator =
-				new VesselnessCalculator<T>( result, newSpacing, scaleIndex, progress );
-			calculators.add( calculator );
-		}
-
-		List<Future<Image<FloatType>>> futures = null;
-
-		/* Actually run all the VesselnessCalculators with
-		   invokeAll, which returns when all have finished */
-
-		try {
-			futures = es.invokeAll(calculators);
-		} catch( InterruptedException ie ) {
-			/* We never call interrupt on these threads,
-			   so this should never happen... */
-		}
-
-		/* We need to get() on each Future to check if there
-		   was an exception thrown: */
+		} );
 
 		try {
-			for( Future<Image<FloatType>> future : futures ) {
-				future.get();
-			}
-		} catch( InterruptedException id ) {
-			/* Similarly this should never happen */
-		} catch( Exception e ) {
+			engine.process( smoothed, scaleValues, result, which );
+		} catch( RuntimeException e ) {
 			IJ.error("The following exception was thrown: "+e);
 			e.printStackTrace();
 			return null;
 		}
-
-		/* Get the images from each VesselnessCalculator,
-		   displaying them if showFilteredImages was
-		   specified: */
-
-		int scale = 0;
-		for( VesselnessCalculator vc : calculators ) {
-			Image<FloatType> image = vc.getResult();
-			vesselImages.add( image );
-			if( showFilteredImages ) {
-				ImagePlus imagePlusVersion = ImageJFunctions.copyToImagePlus( image );
-				imagePlusVersion.setTitle("Filtered image at scale "+scale);
-				imagePlusVersion.setDisplayRange( vc.getMinimumVesselness(),
-								  0.5 * vc.getMaximumVesselness() );
-
-				imagePlusVersion.show();
-			}
-			++ scale;
-		}
-
-
-		/* Now we combine all the vesselness images from each
-		   scale, by taking the maximum value at each point in
-		   the image across all the vesselness images */
-
-		ImageFactory<FloatType> floatFactory = new ImageFactory<FloatType>(
-			new FloatType(),
-			new ArrayContainerFactory() );
-
-		Image<FloatType> resultImage = floatFactory.createImage( image.getDimensions() );
-		LocalizableCursor<FloatType> resultCursor = resultImage.createLocalizableCursor();
-
-		ImageFactory<ByteType> byteFactory = new ImageFactory<ByteType>(
-			new ByteType(),
-			new ArrayContainerFactory() );
-
-		Image<FloatType> whichImage = null;
-		LocalizableCursor<FloatType> whichCursor = null;
-
-		if( showWhichScales ) {
-			whichImage = floatFactory.createImage( image.getDimensions() );
-			whichCursor = whichImage.createLocalizableCursor();
-		}
-
-		ArrayList<LocalizableCursor<FloatType>> cursors =
-			new ArrayList<LocalizableCursor<FloatType>>();
-		for( Image<FloatType> vesselImage : vesselImages ) {
-			cursors.add(vesselImage.createLocalizableCursor());
-		}
+		smoothed = null;
 
 		float maximumValueInResult = Float.MIN_VALUE;
 		float minimumValueInResult = Float.MAX_VALUE;
 
-		while( resultCursor.hasNext() ) {
-			resultCursor.fwd();
-			if( showWhichScales )
-				whichCursor.fwd();
-			/* If bestScale remains 0, that indicates that
-			   all images had NaN as their values at that
-			   point */
-			int bestScale = 0;
-			float largestValue = Float.MIN_VALUE;
-			int scaleIndex = 0;
-			for( LocalizableCursor<FloatType> cursor : cursors ) {
-				cursor.fwd();
-				float v = cursor.getType().getRealFloat();
-				if( v > largestValue ) {
-					bestScale = scaleIndex + 1;
-					largestValue = v;
-				}
-				++ scaleIndex;
-			}
-			if( showWhichScales )
-				whichCursor.getType().set( bestScale == 0 ? 0 : (float)minimumScale + (bestScale - 1) * (float)increment );
-			resultCursor.getType().set(largestValue);
+		for( float largestValue : result ) {
 			maximumValueInResult = Math.max(maximumValueInResult,largestValue);
 			minimumValueInResult = Math.min(minimumValueInResult,largestValue);
 		}
 
-		/* Remember to close all of the cursors */
-
-		for( LocalizableCursor<FloatType> cursor : cursors )
-			cursor.close();
-		if( showWhichScales )
-			whichCursor.close();
-		resultCursor.close();
-
 		if( showWhichScales ) {
-			ImagePlus whichImagePlus = ImageJFunctions.copyToImagePlus( whichImage, ImageJFunctions.GRAY32 );
+			/* If bestScale is 0, that indicates that all
+			   scales had NaN as their values at that point */
+			for( int i = 0; i < which.length; ++i ) {
+				int bestScale = (int)which[i];
+				which[i] = bestScale == 0 ? 0 : (float)minimumScale + (bestScale - 1) * (float)increment;
+			}
+			ImagePlus whichImagePlus = toImagePlus( which, dimensions );
 			whichImagePlus.setTitle("Scales used");
 			whichImagePlus.getProcessor().setMinAndMax(0,maximumScale);
 			whichImagePlus.show();
 		}
 
-		if( progress != null )
-			progress.done();
-
-		ImagePlus resultImagePlus = ImageJFunctions.copyToImagePlus( resultImage );
+		ImagePlus resultImagePlus = toImagePlus( result, dimensions );
 		resultImagePlus.setDisplayRange( minimumValueInResult,
 						 0.5 * maximumValueInResult );
 		resultImagePlus.setTitle("vesselness of "+input.getTitle());
@@ -521,6 +408,42 @@ public ImagePlus process( ImagePlus input,
 		return resultImagePlus;
 	}
 
+	/** Copies a 2D or 3D image into a float array, with x varying
+	    fastest, then y, then z */
+
+	public static <T extends RealType<T>> float [] toFloatArray( Image<T> image ) {
+		int [] dimensions = image.getDimensions();
+		int width = dimensions[0];
+		int height = dimensions[1];
+		int depth = dimensions.length > 2 ? dimensions[2] : 1;
+		float [] pixels = new float[width * height * depth];
+		int [] position = new int[dimensions.length];
+		LocalizableCursor<T> cursor = image.createLocalizableCursor();
+		while( cursor.hasNext() ) {
+			cursor.fwd();
+			cursor.getPosition( position );
+			int z = position.length > 2 ? position[2] : 0;
+			pixels[ position[0] + width * ( position[1] + height * z ) ] = cursor.getType().getRealFloat();
+		}
+		cursor.close();
+		return pixels;
+	}
+
+	/** Copies a float array into a 32-bit ImagePlus */
+
+	public static ImagePlus toImagePlus( float [] pixels, int [] dimensions ) {
+		int width = dimensions[0];
+		int height = dimensions[1];
+		int depth = dimensions.length > 2 ? dimensions[2] : 1;
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			float [] slice = new float[width * height];
+			System.arraycopy( pixels, z * width * height, slice, 0, slice.length );
+			stack.addSlice( "", new FloatProcessor( width, height, slice, null ) );
+		}
+		return new ImagePlus( "", stack );
+	}
+
 	/** An implementation of the MultiTaskProgress interface that
 	    updates the ImageJ progress bar */
 
@@ -0,0 +1,505 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Frangi_".
+
+  The ImageJ plugin "Frangi_" is free software; you can
+  redistribute it and/or modify it under the terms of the GNU General
+  Public License as published by the Free Software Foundation; either
+  version 3 of the License, or (at your option) any later version.
+
+  The ImageJ plugin "Frangi_" is distributed in the hope that it
+  will be useful, but WITHOUT ANY WARRANTY; without even the implied
+  warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+  See the GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fiji.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Computes the multi-scale "vesselness" of a 2D or 3D image held
+    in a float array (x varying fastest, then y, then z).
+
+    The Gaussian scale-space is built incrementally: the image is
+    smoothed in place from one scale to the next by a Gaussian of
+    standard deviation sqrt(s_i^2 - s_{i-1}^2), so only one smoothed
+    volume exists at any time.  At each scale the Hessian is
+    estimated with the same finite differences as
+    Frangi_.VesselnessCalculator, its eigenvalues are found with
+    closed-form solvers, and the vesselness is folded into the
+    running maximum over scales.  Rows of the image are distributed
+    over a thread pool.
+
+    Memory use is thus a small constant number of volumes, whatever
+    the number of scales. */
+
+public class VesselnessEngine {
+
+	/** Receives the intermediate images, e.g. for display */
+
+	public static interface ScaleListener {
+
+		/** The image smoothed at scale scaleIndex; must not be
+		    modified and is overwritten at the next scale. */
+		public void smoothed( int scaleIndex, double scale, float [] smoothed );
+
+		/** The vesselness at scale scaleIndex, only reported
+		    if setKeepFilteredImages(true) was called; the
+		    array is reused at the next scale. */
+		public void filtered( int scaleIndex, double scale, float [] vesselness, double minimum, double maximum );
+	}
+
+	protected double alpha = 0.5;
+	protected double beta = 0.5;
+
+	protected final int [] dimensions;
+	protected final int numberOfDimensions;
+	protected final int width, height, depth;
+	protected final float [] spacing;
+
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	protected MultiTaskProgress progress;
+	protected ScaleListener listener;
+	protected boolean keepFilteredImages;
+
+	/* For each dimension and each offset -2..2, the linear index
+	   contribution of the mirrored coordinate: */
+	protected final int [][][] mirrored;
+
+	public VesselnessEngine( int [] dimensions, float [] spacing ) {
+		numberOfDimensions = dimensions.length;
+		if( numberOfDimensions != 2 && numberOfDimensions != 3 )
+			throw new IllegalArgumentException("Currently only 2 or 3 dimensional images are supported.");
+		this.dimensions = dimensions.clone();
+		this.spacing = spacing.clone();
+		width = dimensions[0];
+		height = dimensions[1];
+		depth = numberOfDimensions == 3 ? dimensions[2] : 1;
+
+		int [] strides = { 1, width, width * height };
+		mirrored = new int[numberOfDimensions][5][];
+		for( int d = 0; d < numberOfDimensions; ++d )
+			for( int o = -2; o <= 2; ++o ) {
+				int [] lut = new int[dimensions[d]];
+				for( int i = 0; i < lut.length; ++i )
+					lut[i] = mirror( i + o, lut.length ) * strides[d];
+				mirrored[d][o + 2] = lut;
+			}
+	}
+
+	public void setNumThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public void setProgress( MultiTaskProgress progress ) {
+		this.progress = progress;
+	}
+
+	public void setScaleListener( ScaleListener listener ) {
+		this.listener = listener;
+	}
+
+	public void setKeepFilteredImages( boolean keepFilteredImages ) {
+		this.keepFilteredImages = keepFilteredImages;
+	}
+
+	/** The coordinate of x mirrored into [0, n), without repeating
+	    the border pixel, as OutOfBoundsStrategyMirror does. */
+
+	public static int mirror( int x, int n ) {
+		if( n == 1 )
+			return 0;
+		int period = 2 * n - 2;
+		x %= period;
+		if( x < 0 )
+			x += period;
+		return x < n ? x : period - x;
+	}
+
+	/** Process the image at each of the scales (in calibrated
+	    units, in increasing order).
+
+	    @param input the image, which is smoothed in place
+	    @param result receives the maximum vesselness over all
+	    scales, or Float.MIN_VALUE where it is never positive
+	    @param whichScale if not null, receives the index (starting
+	    at 1) of the scale giving the maximum, or 0 */
+
+	public void process( final float [] input,
+			     final double [] scales,
+			     final float [] result,
+			     final float [] whichScale ) {
+
+		final int n = width * height * depth;
+		if( input.length != n || result.length != n || ( whichScale != null && whichScale.length != n ) )
+			throw new IllegalArgumentException("The arrays do not match the image dimensions");
+
+		java.util.Arrays.fill( result, Float.MIN_VALUE );
+		if( whichScale != null )
+			java.util.Arrays.fill( whichScale, 0 );
+
+		final float [] filtered = keepFilteredImages ? new float[n] : null;
+
+		ExecutorService es = Executors.newFixedThreadPool( numThreads );
+		try {
+			double previousSigma = 0;
+			for( int scaleIndex = 0; scaleIndex < scales.length; ++scaleIndex ) {
+
+				double currentScale = scales[scaleIndex];
+
+				/* The Gaussian is isotropic in pixels, as in
+				   the original implementation: */
+				double sigma = currentScale / spacing[0];
+				double increment = sigma * sigma - previousSigma * previousSigma;
+				if( increment > 0 ) {
+					for( int d = 0; d < numberOfDimensions; ++d )
+						smooth( es, input, d, createGaussianKernel( Math.sqrt( increment ) ) );
+					previousSigma = sigma;
+				}
+
+				if( listener != null )
+					listener.smoothed( scaleIndex, currentScale, input );
+
+				float [] newSpacing = new float[numberOfDimensions];
+				for( int i = 0; i < numberOfDimensions; ++i )
+					newSpacing[i] = (float)( spacing[i] * (currentScale / spacing[0]) );
+
+				double [] range = vesselness( es, input, newSpacing, scaleIndex, result, whichScale, filtered );
+
+				if( listener != null && filtered != null )
+					listener.filtered( scaleIndex, currentScale, filtered, range[0], range[1] );
+			}
+		} finally {
+			es.shutdown();
+		}
+
+		if( progress != null )
+			progress.done();
+	}
+
+	/** A normalized Gaussian kernel of the same size as imglib's
+	    Util.createGaussianKernel1DDouble(sigma, true) */
+
+	public static double [] createGaussianKernel( double sigma ) {
+		int size = Math.max( 3, 2 * (int)( 3 * sigma + 0.5 ) + 1 );
+		double [] kernel = new double[size];
+		double two_sq_sigma = 2 * sigma * sigma;
+		double sum = 0;
+		for( int i = 0; i < size; ++i ) {
+			int x = i - size / 2;
+			kernel[i] = Math.exp( - x * x / two_sq_sigma );
+			sum += kernel[i];
+		}
+		for( int i = 0; i < size; ++i )
+			kernel[i] /= sum;
+		return kernel;
+	}
+
+	/** Run the tasks and wait for them, rethrowing any failure */
+
+	protected void invokeAll( ExecutorService es, List<Callable<Void>> tasks ) {
+		try {
+			for( Future<Void> future : es.invokeAll( tasks ) )
+				future.get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted", e );
+		} catch( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if( cause instanceof RuntimeException )
+				throw (RuntimeException)cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	/** Convolve all the lines along dimension d with a symmetric
+	    kernel, in place, with mirrored borders. */
+
+	protected void smooth( ExecutorService es, final float [] data, final int d, final double [] kernel ) {
+		final int length = dimensions[d];
+		if( length == 1 )
+			return;
+		final int stride = d == 0 ? 1 : ( d == 1 ? width : width * height );
+		/* The lines are grouped by the index of their first
+		   element in the plane orthogonal to d: */
+		final int lines = width * height * depth / length;
+		final AtomicInteger nextLine = new AtomicInteger( 0 );
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( int t = 0; t < numThreads; ++t )
+			tasks.add( new Callable<Void>() {
+				public Void call() {
+					int half = kernel.length / 2;
+					float [] line = new float[length + 2 * half];
+					for( int l = nextLine.getAndIncrement(); l < lines; l = nextLine.getAndIncrement() ) {
+						int start = lineStart( l, d );
+						for( int i = -half; i < length + half; ++i )
+							line[i + half] = data[start + mirror( i, length ) * stride];
+						for( int i = 0; i < length; ++i ) {
+							double sum = 0;
+							for( int k = 0; k < kernel.length; ++k )
+								sum += kernel[k] * line[i + k];
+							data[start + i * stride] = (float)sum;
+						}
+					}
+					return null;
+				}
+			} );
+		invokeAll( es, tasks );
+	}
+
+	/** The index of the first element of the l-th line along d */
+
+	protected int lineStart( int l, int d ) {
+		switch( d ) {
+		case 0:
+			return l * width;
+		case 1:
+			return (l / width) * width * height + l % width;
+		default:
+			return l;
+		}
+	}
+
+	/** Compute the vesselness of every point of the smoothed
+	    image, folding it into the running maximum.
+
+	    @return the minimum and maximum vesselness at this scale */
+
+	protected double [] vesselness( ExecutorService es,
+					final float [] smoothed,
+					final float [] spacing,
+					final int scaleIndex,
+					final float [] result,
+					final float [] whichScale,
+					final float [] filtered ) {
+
+		final int rows = height * depth;
+		final AtomicInteger nextRow = new AtomicInteger( 0 );
+		final AtomicInteger rowsDone = new AtomicInteger( 0 );
+		final int reportingInterval = Math.max( 1, rows / 100 );
+		final double [] range = { Double.MAX_VALUE, Double.MIN_VALUE };
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( int t = 0; t < numThreads; ++t )
+			tasks.add( new Callable<Void>() {
+				public Void call() {
+					double [] hessian = new double[6];
+					double [] eigenvalues = new double[3];
+					double minimum = Double.MAX_VALUE;
+					double maximum = Double.MIN_VALUE;
+					for( int row = nextRow.getAndIncrement(); row < rows; row = nextRow.getAndIncrement() ) {
+						int y = row % height;
+						int z = row / height;
+						int i = row * width;
+						for( int x = 0; x < width; ++x, ++i ) {
+							double v;
+							if( numberOfDimensions == 2 ) {
+								hessian2D( smoothed, spacing, x, y, hessian );
+								eigenvalues2D( hessian, eigenvalues );
+								v = vesselness2D( eigenvalues );
+							} else {
+								hessian3D( smoothed, spacing, x, y, z, hessian );
+								eigenvalues3D( hessian, eigenvalues );
+								v = vesselness3D( eigenvalues );
+							}
+							if( ! Double.isNaN(v) ) {
+								maximum = Math.max(v,maximum);
+								minimum = Math.min(v,minimum);
+							}
+							float fv = (float)v;
+							if( filtered != null )
+								filtered[i] = fv;
+							if( fv > result[i] ) {
+								result[i] = fv;
+								if( whichScale != null )
+									whichScale[i] = scaleIndex + 1;
+							}
+						}
+						int done = rowsDone.incrementAndGet();
+						if( progress != null && done % reportingInterval == 0 )
+							progress.updateProgress( done / (double)rows, scaleIndex );
+					}
+					synchronized( range ) {
+						range[0] = Math.min( range[0], minimum );
+						range[1] = Math.max( range[1], maximum );
+					}
+					return null;
+				}
+			} );
+		invokeAll( es, tasks );
+		return range;
+	}
+
+	/* The second derivatives are estimated exactly as in
+	   VesselnessCalculator, i.e. as differences of central first
+	   derivatives, with a stencil of +/- 2 pixels on the diagonal.
+	   The hessian array holds xx, xy, yy (2D) or xx, xy, xz, yy,
+	   yz, zz (3D). */
+
+	protected final float secondDerivative( float [] data, float sm, float sn,
+						int app, int amp, int apm, int amm ) {
+		float firstDerivativeA = (data[app] - data[amp]) / (2 * sm);
+		float firstDerivativeB = (data[apm] - data[amm]) / (2 * sm);
+		return (firstDerivativeA - firstDerivativeB) / (2 * sn);
+	}
+
+	protected void hessian2D( float [] data, float [] spacing, int x, int y, double [] hessian ) {
+		int [][] mx = mirrored[0], my = mirrored[1];
+		int x0 = mx[2][x], y0 = my[2][y];
+		hessian[0] = secondDerivative( data, spacing[0], spacing[0],
+			mx[4][x] + y0, x0 + y0, x0 + y0, mx[0][x] + y0 );
+		hessian[1] = secondDerivative( data, spacing[0], spacing[1],
+			mx[3][x] + my[3][y], mx[1][x] + my[3][y],
+			mx[3][x] + my[1][y], mx[1][x] + my[1][y] );
+		hessian[2] = secondDerivative( data, spacing[1], spacing[1],
+			x0 + my[4][y], x0 + y0, x0 + y0, x0 + my[0][y] );
+	}
+
+	protected void hessian3D( float [] data, float [] spacing, int x, int y, int z, double [] hessian ) {
+		int [][] mx = mirrored[0], my = mirrored[1], mz = mirrored[2];
+		int x0 = mx[2][x], y0 = my[2][y], z0 = mz[2][z];
+		int yz = y0 + z0, xz = x0 + z0, xy = x0 + y0;
+		hessian[0] = secondDerivative( data, spacing[0], spacing[0],
+			mx[4][x] + yz, x0 + yz, x0 + yz, mx[0][x] + yz );
+		hessian[1] = secondDerivative( data, spacing[0], spacing[1],
+			mx[3][x] + my[3][y] + z0, mx[1][x] + my[3][y] + z0,
+			mx[3][x] + my[1][y] + z0, mx[1][x] + my[1][y] + z0 );
+		hessian[2] = secondDerivative( data, spacing[0], spacing[2],
+			mx[3][x] + y0 + mz[3][z], mx[1][x] + y0 + mz[3][z],
+			mx[3][x] + y0 + mz[1][z], mx[1][x] + y0 + mz[1][z] );
+		hessian[3] = secondDerivative( data, spacing[1], spacing[1],
+			my[4][y] + xz, y0 + xz, y0 + xz, my[0][y] + xz );
+		hessian[4] = secondDerivative( data, spacing[1], spacing[2],
+			x0 + my[3][y] + mz[3][z], x0 + my[1][y] + mz[3][z],
+			x0 + my[3][y] + mz[1][z], x0 + my[1][y] + mz[1][z] );
+		hessian[5] = secondDerivative( data, spacing[2], spacing[2],
+			mz[4][z] + xy, z0 + xy, z0 + xy, mz[0][z] + xy );
+	}
+
+	/** Eigenvalues of the symmetric 2x2 matrix [xx xy; xy yy],
+	    sorted by increasing absolute value */
+
+	public static void eigenvalues2D( double [] h, double [] eigenvalues ) {
+		double mean = (h[0] + h[2]) / 2;
+		double d = (h[0] - h[2]) / 2;
+		double r = Math.sqrt( d * d + h[1] * h[1] );
+		eigenvalues[0] = mean - r;
+		eigenvalues[1] = mean + r;
+		sortByAbsoluteValue( eigenvalues, 2 );
+	}
+
+	/** Eigenvalues of the symmetric 3x3 matrix given as xx, xy,
+	    xz, yy, yz, zz, with the trigonometric closed-form
+	    solution, sorted by increasing absolute value */
+
+	public static void eigenvalues3D( double [] h, double [] eigenvalues ) {
+		double a11 = h[0], a12 = h[1], a13 = h[2];
+		double a22 = h[3], a23 = h[4], a33 = h[5];
+		double p1 = a12 * a12 + a13 * a13 + a23 * a23;
+		if( p1 == 0 ) {
+			eigenvalues[0] = a11;
+			eigenvalues[1] = a22;
+			eigenvalues[2] = a33;
+		} else {
+			double q = (a11 + a22 + a33) / 3;
+			double b11 = a11 - q, b22 = a22 - q, b33 = a33 - q;
+			double p2 = b11 * b11 + b22 * b22 + b33 * b33 + 2 * p1;
+			double p = Math.sqrt( p2 / 6 );
+			/* r = det((A - qI) / p) / 2 */
+			double det = b11 * (b22 * b33 - a23 * a23)
+				- a12 * (a12 * b33 - a23 * a13)
+				+ a13 * (a12 * a23 - b22 * a13);
+			double r = det / (2 * p * p * p);
+			double phi;
+			if( r <= -1 )
+				phi = Math.PI / 3;
+			else if( r >= 1 )
+				phi = 0;
+			else
+				phi = Math.acos( r ) / 3;
+			double e1 = q + 2 * p * Math.cos( phi );
+			double e3 = q + 2 * p * Math.cos( phi + 2 * Math.PI / 3 );
+			eigenvalues[0] = e3;
+			eigenvalues[1] = 3 * q - e1 - e3;
+			eigenvalues[2] = e1;
+		}
+		sortByAbsoluteValue( eigenvalues, 3 );
+	}
+
+	/** Round to float, as the original sorted Float objects, and
+	    sort by absolute value; ties keep the ascending order of
+	    the eigenvalues. */
+
+	protected static void sortByAbsoluteValue( double [] values, int n ) {
+		for( int i = 0; i < n; ++i )
+			values[i] = (float)values[i];
+		for( int i = 1; i < n; ++i )
+			for( int j = i; j > 0 && ( values[j - 1] > values[j] ); --j ) {
+				double tmp = values[j];
+				values[j] = values[j - 1];
+				values[j - 1] = tmp;
+			}
+		for( int i = 1; i < n; ++i )
+			for( int j = i; j > 0 && Math.abs( values[j - 1] ) > Math.abs( values[j] ); --j ) {
+				double tmp = values[j];
+				values[j] = values[j - 1];
+				values[j - 1] = tmp;
+			}
+	}
+
+	protected double vesselness2D( double [] eigenvalues ) {
+		double bd = 2 * beta * beta;
+
+		double c = 15;
+		double cd = 2 * c * c;
+
+		double l1 = eigenvalues[0];
+		double l2 = eigenvalues[1];
+
+		double rb = l1 / l2;
+		double s = Math.sqrt( l1*l1 + l2*l2 );
+
+		double bn = - rb*rb;
+		double cn = - s*s;
+
+		if( l2 <= 0 )
+			return Math.exp(bn/bd) * (1 - Math.exp(cn/cd));
+		return 0;
+	}
+
+	protected double vesselness3D( double [] eigenvalues ) {
+		double ad = 2 * alpha * alpha;
+		double bd = 2 * beta * beta;
+
+		double c = 500;
+		double cd = 2 * c * c;
+
+		double l1 = eigenvalues[0];
+		double l2 = eigenvalues[1];
+		double l3 = eigenvalues[2];
+
+		double rb = Math.abs(l1) / Math.sqrt( Math.abs(l2*l3) );
+		double ra = Math.abs(l2) / Math.abs(l3);
+		double s = Math.sqrt( l1*l1 + l2*l2 + l3*l3 );
+
+		double an = - ra*ra;
+		double bn = - rb*rb;
+		double cn = - s*s;
+
+		if( l2 <= 0 && l3 <= 0 )
+			return (1 - Math.exp(an/ad)) * Math.exp(bn/bd) * (1 - Math.exp(cn/cd));
+		return 0;
+	}
+}
@@ -43,7 +43,10 @@ public void run(String arg) {
 		}
 		if (IJ.versionLessThan("1.39u"))
 			return;
-		new Reader().open(arg, true);
+		if (arg.equals("virtual"))
+			new Reader().open("", true, true);
+		else
+			new Reader().open(arg, true);
 	}
 
 	public void showAbout() {
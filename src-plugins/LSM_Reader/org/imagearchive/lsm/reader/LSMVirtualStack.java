@@ -0,0 +1,400 @@
+package org.imagearchive.lsm.reader;
+
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A virtual stack reading the planes of an LSM file on demand.
+ *
+ * The planes are read from a memory-mapped view of the file; uncompressed
+ * planes are copied directly from the mapping into the pixel arrays, while
+ * LZW-compressed planes are decoded by ImageJ's ImageReader. The most
+ * recently used planes are kept in a cache of bounded size, and a background
+ * thread prefetches the planes next to the one shown last, in the direction
+ * the user is browsing.
+ */
+public class LSMVirtualStack extends VirtualStack {
+
+	protected static class Plane {
+		long offset, length;
+		int fileType, compression;
+		String label;
+	}
+
+	protected File file;
+	protected long fileLength;
+	protected FileChannel channel;
+	protected int width, height;
+	protected ColorModel cm;
+	protected List<Plane> planes = new ArrayList<Plane>();
+
+	protected Map<Plane, Object> cache = new LinkedHashMap<Plane, Object>(16, 0.75f, true);
+	protected long cacheBytes, maxCacheBytes;
+
+	protected LinkedList<Plane> prefetchQueue = new LinkedList<Plane>();
+	protected Thread prefetcher;
+	protected int lastIndex = -1;
+	// the number of planes to prefetch in the browsing direction
+	protected int prefetchCount = 2;
+
+	public LSMVirtualStack(File file, int width, int height, ColorModel cm) {
+		super(width, height, cm, file.getParent());
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.cm = cm;
+		fileLength = file.length();
+		maxCacheBytes = Math.min(Runtime.getRuntime().maxMemory() / 4, 512l << 20);
+	}
+
+	public void setCacheSize(long bytes) {
+		synchronized (cache) {
+			maxCacheBytes = bytes;
+			trimCache();
+		}
+	}
+
+	public void setPrefetchCount(int count) {
+		prefetchCount = count;
+	}
+
+	/*
+	 * Add a plane stored at the given offset of the file (the compression
+	 * is one of FileInfo's compression constants).
+	 */
+	public void addPlane(long offset, long length, int fileType, int compression, String label) {
+		Plane plane = new Plane();
+		plane.offset = offset;
+		plane.length = Math.max(0, Math.min(length, fileLength - offset));
+		plane.fileType = fileType;
+		plane.compression = compression;
+		plane.label = label;
+		planes.add(plane);
+		if (planes.size() == 1)
+			setBitDepth(fileType == FileInfo.GRAY8 ? 8 :
+				fileType == FileInfo.GRAY32_FLOAT ? 32 : 16);
+	}
+
+	public int getSize() {
+		return planes.size();
+	}
+
+	public String getSliceLabel(int n) {
+		return getPlane(n).label;
+	}
+
+	public void setSliceLabel(String label, int n) {
+		getPlane(n).label = label;
+	}
+
+	public String getFileName(int n) {
+		return file.getName();
+	}
+
+	public void deleteSlice(int n) {
+		Plane plane = getPlane(n);
+		planes.remove(n - 1);
+		synchronized (cache) {
+			Object pixels = cache.remove(plane);
+			if (pixels != null)
+				cacheBytes -= getBytes(plane);
+		}
+	}
+
+	public void deleteLastSlice() {
+		if (planes.size() > 0)
+			deleteSlice(planes.size());
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public void setPixels(Object pixels, int n) {
+		Plane plane = getPlane(n);
+		synchronized (cache) {
+			if (cache.remove(plane) != null)
+				cacheBytes -= getBytes(plane);
+			putCached(plane, pixels);
+		}
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		Plane plane = getPlane(n);
+		Object pixels;
+		try {
+			pixels = getPlanePixels(plane);
+		} catch (IOException e) {
+			e.printStackTrace();
+			pixels = null;
+		}
+		prefetch(n - 1);
+
+		ImageProcessor ip;
+		switch (plane.fileType) {
+		case FileInfo.GRAY16_UNSIGNED:
+			ip = pixels == null ? new ShortProcessor(width, height) :
+				new ShortProcessor(width, height, (short[])pixels, cm);
+			break;
+		case FileInfo.GRAY32_FLOAT:
+			ip = pixels == null ? new FloatProcessor(width, height) :
+				new FloatProcessor(width, height, (float[])pixels, cm);
+			break;
+		default:
+			ip = pixels == null ? new ByteProcessor(width, height) :
+				new ByteProcessor(width, height, (byte[])pixels, cm);
+			break;
+		}
+		return ip;
+	}
+
+	/*
+	 * Release the cached planes and the file.
+	 */
+	public void trim() {
+		synchronized (cache) {
+			cache.clear();
+			cacheBytes = 0;
+		}
+		synchronized (prefetchQueue) {
+			prefetchQueue.clear();
+		}
+		close();
+	}
+
+	public synchronized void close() {
+		if (channel != null) try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+	}
+
+	protected Plane getPlane(int n) {
+		if (n < 1 || n > planes.size())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		return planes.get(n - 1);
+	}
+
+	protected Object getPlanePixels(Plane plane) throws IOException {
+		synchronized (cache) {
+			Object pixels = cache.get(plane);
+			if (pixels != null)
+				return pixels;
+		}
+		Object pixels = readPlane(plane);
+		synchronized (cache) {
+			// the prefetcher might have been faster
+			Object cached = cache.get(plane);
+			if (cached != null)
+				return cached;
+			putCached(plane, pixels);
+		}
+		return pixels;
+	}
+
+	protected void putCached(Plane plane, Object pixels) {
+		cache.put(plane, pixels);
+		cacheBytes += getBytes(plane);
+		trimCache();
+	}
+
+	protected void trimCache() {
+		Iterator<Plane> iter = cache.keySet().iterator();
+		// always keep the most recently used plane
+		while (cacheBytes > maxCacheBytes && cache.size() > 1) {
+			Plane eldest = iter.next();
+			iter.remove();
+			cacheBytes -= getBytes(eldest);
+		}
+	}
+
+	protected boolean isCached(Plane plane) {
+		synchronized (cache) {
+			return cache.containsKey(plane);
+		}
+	}
+
+	protected long getBytes(Plane plane) {
+		long pixels = (long)width * height;
+		switch (plane.fileType) {
+		case FileInfo.GRAY16_UNSIGNED:
+			return 2 * pixels;
+		case FileInfo.GRAY32_FLOAT:
+			return 4 * pixels;
+		default:
+			return pixels;
+		}
+	}
+
+	protected synchronized FileChannel getChannel() throws IOException {
+		if (channel == null)
+			channel = new RandomAccessFile(file, "r").getChannel();
+		return channel;
+	}
+
+	protected Object readPlane(Plane plane) throws IOException {
+		int size = width * height;
+		ByteBuffer buffer;
+		if (plane.length == 0)
+			buffer = ByteBuffer.allocate(0);
+		else
+			buffer = getChannel().map(FileChannel.MapMode.READ_ONLY,
+					plane.offset, plane.length);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (plane.compression == FileInfo.COMPRESSION_NONE
+				|| plane.compression == 0) {
+			// copy straight from the mapping (truncated files stay black)
+			switch (plane.fileType) {
+			case FileInfo.GRAY16_UNSIGNED: {
+				short[] pixels = new short[size];
+				buffer.asShortBuffer().get(pixels, 0,
+					Math.min(size, buffer.remaining() / 2));
+				return pixels;
+			}
+			case FileInfo.GRAY32_FLOAT: {
+				float[] pixels = new float[size];
+				buffer.asFloatBuffer().get(pixels, 0,
+					Math.min(size, buffer.remaining() / 4));
+				return pixels;
+			}
+			default: {
+				byte[] pixels = new byte[size];
+				buffer.get(pixels, 0, Math.min(size, buffer.remaining()));
+				return pixels;
+			}
+			}
+		}
+
+		FileInfo fi = new FileInfo();
+		fi.width = width;
+		fi.height = height;
+		fi.fileType = plane.fileType;
+		fi.compression = plane.compression;
+		fi.intelByteOrder = true;
+		fi.nImages = 1;
+		fi.stripOffsets = new int[] { 0 };
+		fi.stripLengths = new int[] { (int)plane.length };
+		Object pixels = new ImageReader(fi).readPixels(new BufferInputStream(buffer));
+		if (pixels == null)
+			throw new IOException("Could not decode plane at offset " + plane.offset);
+		return pixels;
+	}
+
+	/*
+	 * Queue the planes next to the given (0-based) index, in the direction
+	 * of the last step, for reading in the background.
+	 */
+	protected void prefetch(int index) {
+		if (prefetchCount <= 0)
+			return;
+		int step = lastIndex < 0 || index == lastIndex ? 1 : index - lastIndex;
+		lastIndex = index;
+		synchronized (prefetchQueue) {
+			prefetchQueue.clear();
+			for (int i = 1; i <= prefetchCount; i++)
+				queue(index + i * step);
+			queue(index - step);
+			if (prefetchQueue.isEmpty())
+				return;
+			if (prefetcher == null) {
+				prefetcher = new Thread("LSM prefetcher") {
+					public void run() {
+						prefetchLoop();
+					}
+				};
+				prefetcher.setDaemon(true);
+				prefetcher.setPriority(Thread.MIN_PRIORITY);
+				prefetcher.start();
+			}
+			prefetchQueue.notifyAll();
+		}
+	}
+
+	protected void queue(int index) {
+		if (index < 0 || index >= planes.size())
+			return;
+		Plane plane = planes.get(index);
+		if (!isCached(plane))
+			prefetchQueue.add(plane);
+	}
+
+	protected void prefetchLoop() {
+		for (;;) {
+			Plane plane;
+			synchronized (prefetchQueue) {
+				if (prefetchQueue.isEmpty()) try {
+					// do not keep the thread (and the stack) alive
+					prefetchQueue.wait(5000);
+				} catch (InterruptedException e) {
+					prefetcher = null;
+					return;
+				}
+				if (prefetchQueue.isEmpty()) {
+					prefetcher = null;
+					return;
+				}
+				plane = prefetchQueue.removeFirst();
+			}
+			try {
+				getPlanePixels(plane);
+			} catch (IOException e) {
+				// will be reported when the plane is shown
+			}
+		}
+	}
+
+	protected static class BufferInputStream extends InputStream {
+		protected ByteBuffer buffer;
+
+		public BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			n = Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + (int)n);
+			return n;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -2,6 +2,7 @@
 
 import ij.CompositeImage;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.LookUpTable;
@@ -36,6 +37,14 @@ public class Reader {
 	public static String micrometer = micro + "m";
 
 	public ImagePlus open(String arg, boolean verbose) {
+		return open(arg, verbose, false);
+	}
+
+	/*
+	 * Open the file as a virtual stack if requested, or if it would not
+	 * fit into memory anyway.
+	 */
+	public ImagePlus open(String arg, boolean verbose, boolean virtual) {
 		File file = null;
 		ImagePlus imp = null;
 		OpenDialog od = new OpenDialog("Open LSM image... ", arg);
@@ -44,7 +53,8 @@ public ImagePlus open(String arg, boolean verbose) {
 			return null;
 		file = new File(od.getDirectory(), name);
 		if (file != null)
-			imp = open(file.getParent(), file.getName(), true, false);
+			imp = open(file.getParent(), file.getName(), true, false,
+				virtual || file.length() > Runtime.getRuntime().maxMemory());
 		if (!arg.equals("noshow") & imp != null) {
 			imp.setPosition(1, 1, 1);
 			imp.show();
@@ -77,6 +87,11 @@ public ImagePlus open(String arg, boolean verbose) {
 
 	public ImagePlus open(String directory, String filename, boolean verbose,
 			boolean thumb) {
+		return open(directory, filename, verbose, thumb, false);
+	}
+
+	public ImagePlus open(String directory, String filename, boolean verbose,
+			boolean thumb, boolean virtual) {
 		ImagePlus imp = null;
 		RandomAccessFile file;
 		LSMFileInfo lsm;
@@ -94,7 +109,7 @@ public ImagePlus open(String directory, String filename, boolean verbose,
 							imDir.OFFSET_NEXT_DIRECTORY, thumb);
 					lsm.imageDirectories.add(imDir);
 				}
-				imp = open(stream, lsm, verbose, thumb);
+				imp = open(stream, lsm, verbose, thumb, virtual);
 				stream.close();
 			} else
 				IJ.error("Not a valid lsm file");
@@ -496,6 +511,11 @@ private void showLut(ImagePlus imp, int channel, FileInfo fi,
 
 	public ImagePlus open(RandomAccessStream stream, LSMFileInfo lsmFi,
 			boolean verbose, boolean thumb) {
+		return open(stream, lsmFi, verbose, thumb, false);
+	}
+
+	public ImagePlus open(RandomAccessStream stream, LSMFileInfo lsmFi,
+			boolean verbose, boolean thumb, boolean virtual) {
 		ImageDirectory firstImDir = (ImageDirectory) lsmFi.imageDirectories
 				.get(0);
 		if (firstImDir == null) {
@@ -514,28 +534,28 @@ public ImagePlus open(RandomAccessStream stream, LSMFileInfo lsmFi,
 		ImagePlus imps = null;
 		switch (cz.ScanType) {
 		case 0:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 1:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 2:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 3:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 4:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 5:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 6:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		case 10:
-			imps = readStack(stream, lsmFi, cz, thumb);
+			imps = readStack(stream, lsmFi, cz, thumb, virtual);
 			return imps;
 		default:
 			if (verbose)
@@ -546,7 +566,7 @@ public ImagePlus open(RandomAccessStream stream, LSMFileInfo lsmFi,
 	}
 
 	private ImagePlus readStack(RandomAccessStream stream, LSMFileInfo lsmFi,
-			CZLSMInfo cz, boolean thumb) {
+			CZLSMInfo cz, boolean thumb, boolean virtual) {
 		ImageDirectory firstImDir = (ImageDirectory) lsmFi.imageDirectories
 				.get(0);
 		lsmFi.url = "";
@@ -588,7 +608,12 @@ private ImagePlus readStack(RandomAccessStream stream, LSMFileInfo lsmFi,
 		else
 			cm = LookUpTable.createGrayscaleColorModel(lsmFi.whiteIsZero);
 
-		if (!thumb)
+		LSMVirtualStack virtualStack = null;
+		if (!thumb && virtual)
+			st = virtualStack = new LSMVirtualStack(new File(lsmFi.directory,
+					lsmFi.fileName), (int) firstImDir.TIF_IMAGEWIDTH,
+					(int) firstImDir.TIF_IMAGELENGTH, cm);
+		else if (!thumb)
 			st = new ImageStack((int) firstImDir.TIF_IMAGEWIDTH,
 					(int) firstImDir.TIF_IMAGELENGTH, cm);
 		else
@@ -639,6 +664,15 @@ private ImagePlus readStack(RandomAccessStream stream, LSMFileInfo lsmFi,
 						lsmFi.fileType = FileInfo.GRAY8;
 						break;
 					}
+					if (virtualStack != null) {
+						// only remember where the plane is
+						if (channelCount < imDir.TIF_STRIPOFFSETS_LENGTH)
+							virtualStack.addPlane(
+								imDir.TIF_STRIPOFFSETS[channelCount] & 0xffffffffl,
+								imDir.TIF_STRIPBYTECOUNTS[channelCount] & 0xffffffffl,
+								lsmFi.fileType, lsmFi.compression, "");
+						continue;
+					}
 					lsmFi.stripLengths[0] = (int) imDir.TIF_STRIPBYTECOUNTS[channelCount];
 					lsmFi.stripOffsets[0] = (int) imDir.TIF_STRIPOFFSETS[channelCount];
 					reader = new ImageReader(lsmFi);
@@ -733,9 +767,29 @@ private ImagePlus readStack(RandomAccessStream stream, LSMFileInfo lsmFi,
 				}
 
 		setInfo(imp, lsmFi);
+		if (virtualStack != null)
+			releaseOnClose(imp, virtualStack);
 		return imp;
 	}
 
+	/*
+	 * The virtual stack keeps the file mapped; release it (and the cached
+	 * planes) when the image is closed.
+	 */
+	private static void releaseOnClose(final ImagePlus imp,
+			final LSMVirtualStack stack) {
+		ImagePlus.addImageListener(new ImageListener() {
+			public void imageOpened(ImagePlus image) {}
+			public void imageUpdated(ImagePlus image) {}
+			public void imageClosed(ImagePlus image) {
+				if (image == imp) {
+					stack.trim();
+					ImagePlus.removeImageListener(this);
+				}
+			}
+		});
+	}
+
 	public ImagePlus setInfo(ImagePlus imp, LSMFileInfo lsm) {
 		ImageDirectory imDir = (ImageDirectory) lsm.imageDirectories.get(0);
 		if (imDir == null)
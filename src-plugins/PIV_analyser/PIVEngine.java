@@ -0,0 +1,445 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+
+/**
+ * <h3>PIV engine</h3>
+ *
+ * Computes the flow vectors between image pairs on a regular grid of
+ * interrogation windows, with optional multi-pass refinement.
+ * <p>
+ * Windows are placed every <i>step</i> pixels, so that the window overlap is
+ * <code>1 - step/winsize</code>; a step of 1 reproduces the dense analysis of
+ * the original plugin, where a vector is computed for every pixel.
+ * <p>
+ * With more than one pass, the analysis goes from coarse to fine: the first
+ * pass uses windows <code>2^(passes-1)</code> times larger than the requested
+ * size, and each following pass halves the window size. The vector field of
+ * a pass is cleaned with a normalized median test and used as a predictor for
+ * the next one: the back and front windows are deformed by sampling them at
+ * <code>x -/+ d(x)/2</code>, where <i>d</i> is the bilinearly interpolated
+ * predictor, so that the correlation only has to measure the residual
+ * displacement. This allows measuring displacements larger than a quarter of
+ * the final window size, and reduces the bias in sheared flows.
+ * <p>
+ * The calculation is distributed over as many threads as there are
+ * processors. Several image pairs are processed at once, and within each
+ * pair, rows of windows are processed in parallel. Each thread owns its
+ * Hartley transform tables and window buffers, which are reused from one
+ * window to the next instead of creating new {@link FHT} objects.
+ */
+public class PIVEngine {
+
+	/*
+	 * FIELDS
+	 */
+	private final int winsize;
+	private final int step;
+	private final int npasses;
+	private final boolean do_interpolation;
+	private Roi roi;
+	private final Workspace[] workspaces;
+
+	/*
+	 * CONSTANTS
+	 */
+	/** The threshold for the normalized median test applied between passes. */
+	private static final float OUTLIER_THRESHOLD = 2.0f;
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Interface for classes that want to be notified each time the vector
+	 * field of an image pair is ready. Notifications arrive in the order of
+	 * the image pairs, from the thread that called
+	 * {@link PIVEngine#analyse(ImageStack, int[][], Listener)}.
+	 */
+	public interface Listener {
+		public void pairDone(int index, PIVVectorField field);
+	}
+
+	/**
+	 * Per-thread buffers. Hartley transforms are stored by window size, since
+	 * they cache the sine and bit reversal tables for their size.
+	 */
+	private static final class Workspace {
+		final FHT[] transforms = new FHT[32];
+		final float[] uv = new float[2];
+		final float[] peak = new float[3];
+		int size;
+		float[] back_block, front_block, correlation, swapped;
+
+		final void ensureSize(int size) {
+			if (this.size == size)
+				return;
+			this.size = size;
+			back_block = new float[size * size];
+			front_block = new float[size * size];
+			correlation = new float[size * size];
+			swapped = new float[size * size];
+		}
+
+		final FHT getTransform(int size) {
+			final int index = Integer.numberOfTrailingZeros(size);
+			if (transforms[index] == null) {
+				transforms[index] = new FHT();
+				transforms[index].setShowProgress(false);
+			}
+			return transforms[index];
+		}
+	}
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * @param winsize  The size of the interrogation windows of the last pass,
+	 * must be a power of 2
+	 * @param step  The distance in pixels between two neighboring windows
+	 * @param npasses  The number of passes
+	 * @param do_interpolation  If true, the location of the correlation peak
+	 * is determined with sub-pixel accuracy
+	 */
+	public PIVEngine(int winsize, int step, int npasses, boolean do_interpolation) {
+		if (winsize < 4 || Integer.bitCount(winsize) != 1)
+			throw new IllegalArgumentException("Window size must be a power of 2, got " + winsize);
+		if (step < 1 || step > winsize)
+			throw new IllegalArgumentException("Grid step must be between 1 and " + winsize + ", got " + step);
+		if (npasses < 1)
+			throw new IllegalArgumentException("Number of passes must be at least 1, got " + npasses);
+		this.winsize = winsize;
+		this.step = step;
+		this.npasses = npasses;
+		this.do_interpolation = do_interpolation;
+		this.workspaces = new Workspace[Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < workspaces.length; i++)
+			workspaces[i] = new Workspace();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Restrains the analysis to the windows whose center lies in the given
+	 * ROI. Earlier passes of a multi-pass analysis still cover the whole image,
+	 * since they are only used as predictors.
+	 */
+	public void setRoi(Roi roi) {
+		this.roi = roi;
+	}
+
+	/**
+	 * Analyzes the given image pairs of the stack. Pairs are processed in
+	 * batches of as many pairs as there are threads, so that only the images
+	 * of the current batch are converted to float.
+	 *
+	 * @param stack  The stack containing the images
+	 * @param pairs  A nx2 array containing the 1-based indices of the back and
+	 * front image of each pair
+	 * @param listener  Notified each time a pair is done, may be null
+	 * @return  the vector fields, one per pair; if the analysis was cancelled by
+	 * pressing escape, the fields of the pairs not processed are null
+	 */
+	public PIVVectorField[] analyse(final ImageStack stack, final int[][] pairs,
+			final Listener listener) {
+		final int npairs = pairs.length;
+		final PIVVectorField[] fields = new PIVVectorField[npairs];
+		final int batch_size = workspaces.length;
+		for (int first = 0; first < npairs; first += batch_size) {
+			if (IJ.escapePressed()) {
+				IJ.showStatus("PIV analysis cancelled.");
+				break;
+			}
+			final int n = Math.min(batch_size, npairs - first);
+			final FloatProcessor[] backs = new FloatProcessor[n];
+			final FloatProcessor[] fronts = new FloatProcessor[n];
+			for (int i = 0; i < n; i++) {
+				backs[i] = (FloatProcessor) stack.getProcessor(pairs[first + i][0]).convertToFloat();
+				fronts[i] = (FloatProcessor) stack.getProcessor(pairs[first + i][1]).convertToFloat();
+			}
+			final PIVVectorField[] batch = analyse(backs, fronts);
+			for (int i = 0; i < n; i++) {
+				batch[i].back_image = pairs[first + i][0];
+				batch[i].front_image = pairs[first + i][1];
+				fields[first + i] = batch[i];
+				if (listener != null)
+					listener.pairDone(first + i, batch[i]);
+			}
+			IJ.showProgress(first + n, npairs);
+		}
+		return fields;
+	}
+
+	/**
+	 * Analyzes a single image pair.
+	 */
+	public PIVVectorField analyse(FloatProcessor back, FloatProcessor front) {
+		return analyse(new FloatProcessor[] { back }, new FloatProcessor[] { front })[0];
+	}
+
+	/**
+	 * Finds the maximum location in a correlation matrix whose quadrants have
+	 * been swapped, so that the zero displacement is in the middle of the
+	 * window.
+	 * <p>
+	 * If the flag <i>interpolate</i> is set to true, the maximum location will
+	 * be interpolated (to get sub-pixel accuracy) using a Taylor expansion over
+	 * a 3x3 neighborhood around the maxima.
+	 *
+	 * @param pixels  The correlation matrix
+	 * @param size  The width and height of the correlation matrix
+	 * @param interpolate  Boolean flag
+	 * @param result  A 3-element array that will receive the X and Y location
+	 * of the maximum relative to the window center, and the peak height
+	 * @return  the index of the maximum in the pixel array
+	 */
+	public static int locatePeak(final float[] pixels, final int size,
+			final boolean interpolate, final float[] result) {
+		float pkh = -Float.MAX_VALUE;
+		int loc = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			if (pixels[i] > pkh) {
+				pkh = pixels[i];
+				loc = i;
+			}
+		}
+		final int max_x = loc % size - size / 2;
+		final int max_y = loc / size - size / 2;
+		result[0] = max_x;
+		result[1] = max_y;
+		result[2] = pkh;
+
+		// As in the original findMax(), neighbours are addressed in the
+		// flat array, so peaks on the left or right edge take them from
+		// the adjacent rows; only the first and last rows (where the
+		// neighbourhood leaves the array) are not interpolated.
+		if (!interpolate || loc - size - 1 < 0 || loc + size + 1 >= pixels.length)
+			return loc;
+
+		// Get neighborhood
+		final float e00 = pixels[loc - size - 1];
+		final float e10 = pixels[loc - size];
+		final float e20 = pixels[loc - size + 1];
+		final float e01 = pixels[loc - 1];
+		final float e11 = pixels[loc];
+		final float e21 = pixels[loc + 1];
+		final float e02 = pixels[loc + size - 1];
+		final float e12 = pixels[loc + size];
+		final float e22 = pixels[loc + size + 1];
+
+		// derive at (x, y, i) by center of difference -> D
+		final float dx = (e21 - e01) / 2.0f;
+		final float dy = (e12 - e10) / 2.0f;
+
+		// create hessian at (x, y, i) by laplace -> H
+		final float e11_2 = 2.0f * e11;
+		final float dxx = e01 - e11_2 + e21;
+		final float dyy = e10 - e11_2 + e12;
+		final float dxy = (e22 - e02 - e20 + e00) / 4.0f;
+
+		// invert hessian -> H-1
+		final float det = dxx * dyy - dxy * dxy;
+		if (det == 0)
+			return loc; // data is linearly dependent, can't interpolate
+
+		// localize O = H-1 x D
+		final float ox = +dyy / det * dx - dxy / det * dy;
+		final float oy = -dxy / det * dx + dxx / det * dy;
+
+		result[0] = max_x - 3 * ox;
+		result[1] = max_y - 3 * oy;
+		return loc;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Runs all passes on a batch of image pairs of the same size. Each pass
+	 * is distributed over the threads row of windows by row of windows,
+	 * across all the pairs of the batch.
+	 */
+	private PIVVectorField[] analyse(final FloatProcessor[] backs, final FloatProcessor[] fronts) {
+		final int npairs = backs.length;
+		final int width = backs[0].getWidth();
+		final int height = backs[0].getHeight();
+
+		PIVVectorField[] predictors = null;
+		PIVVectorField[] fields = null;
+		for (int pass = 0; pass < npasses; pass++) {
+			final boolean last_pass = (pass == npasses - 1);
+			final int size = getPassWinsize(pass, width, height);
+			final int pass_step = step * size / winsize;
+			fields = new PIVVectorField[npairs];
+			for (int p = 0; p < npairs; p++)
+				fields[p] = PIVVectorField.create(width, height, size, pass_step);
+			final int nrows = fields[0].ny;
+
+			final PIVVectorField[] current = fields;
+			final PIVVectorField[] previous = predictors;
+			final Roi pass_roi = last_pass ? roi : null;
+			final AtomicInteger ai = new AtomicInteger(0);
+			final Thread[] threads = new Thread[Math.min(workspaces.length, Math.max(1, npairs * nrows))];
+			for (int ithread = 0; ithread < threads.length; ithread++) {
+				final Workspace ws = workspaces[ithread];
+				threads[ithread] = new Thread() {
+					public void run() {
+						ws.ensureSize(size);
+						for (int item = ai.getAndIncrement(); item < npairs * nrows; item = ai.getAndIncrement()) {
+							final int p = item / nrows;
+							final int j = item % nrows;
+							processRow(ws, backs[p], fronts[p], current[p], j,
+									previous == null ? null : previous[p], pass_roi);
+						}
+					}
+				};
+			}
+			PIV_analyser.startAndJoin(threads);
+
+			if (!last_pass)
+				for (int p = 0; p < npairs; p++)
+					fields[p].replaceOutliers(OUTLIER_THRESHOLD);
+			predictors = fields;
+		}
+		return fields;
+	}
+
+	/**
+	 * Returns the window size used for the given pass. Window sizes double
+	 * from one pass to the previous one, but never exceed the image size.
+	 */
+	private int getPassWinsize(int pass, int width, int height) {
+		int size = winsize << (npasses - 1 - pass);
+		while (size > winsize && (size > width || size > height))
+			size >>= 1;
+		return size;
+	}
+
+	private void processRow(final Workspace ws, final FloatProcessor back,
+			final FloatProcessor front, final PIVVectorField field, final int j,
+			final PIVVectorField predictor, final Roi roi) {
+		final int size = field.winsize;
+		final int width = back.getWidth();
+		final int height = back.getHeight();
+		final float[] back_pixels = (float[]) back.getPixels();
+		final float[] front_pixels = (float[]) front.getPixels();
+		final FHT fht = ws.getTransform(size);
+		final float[] uv = ws.uv;
+		final int y = j * field.step;
+
+		for (int i = 0; i < field.nx; i++) {
+			final int x = i * field.step;
+			// skip if current point is not in roi
+			if ((roi != null) && (!roi.contains(x + size / 2, y + size / 2)))
+				continue;
+
+			float pred_u = 0, pred_v = 0;
+			if (predictor == null) {
+				for (int l = 0; l < size; l++) {
+					System.arraycopy(back_pixels, (y + l) * width + x, ws.back_block, l * size, size);
+					System.arraycopy(front_pixels, (y + l) * width + x, ws.front_block, l * size, size);
+				}
+			} else {
+				// Deform windows symmetrically along the predicted displacement
+				for (int l = 0; l < size; l++) {
+					for (int c = 0; c < size; c++) {
+						final float px = x + c, py = y + l;
+						predictor.interpolate(px, py, uv);
+						ws.back_block[l * size + c] = sample(back_pixels, width, height,
+								px - uv[0] / 2, py - uv[1] / 2);
+						ws.front_block[l * size + c] = sample(front_pixels, width, height,
+								px + uv[0] / 2, py + uv[1] / 2);
+					}
+				}
+				predictor.interpolate(x + size / 2, y + size / 2, uv);
+				pred_u = uv[0];
+				pred_v = uv[1];
+			}
+
+			// Substract mean
+			substractMean(ws.back_block);
+			substractMean(ws.front_block);
+
+			// Compute correlation matrix
+			fht.rc2DFHT(ws.back_block, false, size);
+			fht.rc2DFHT(ws.front_block, false, size);
+			conjugateMultiply(ws.front_block, ws.back_block, ws.correlation, size);
+			fht.rc2DFHT(ws.correlation, true, size);
+			swapQuadrants(ws.correlation, ws.swapped, size); // centered in middle of window
+
+			locatePeak(ws.swapped, size, do_interpolation, ws.peak);
+			final int k = i + j * field.nx;
+			field.u[k] = pred_u + ws.peak[0];
+			field.v[k] = pred_v + ws.peak[1];
+			field.pkh[k] = ws.peak[2];
+		}
+	}
+
+	/**
+	 * Point by point Hartley conjugate multiplication of h1 by h2, which is
+	 * equivalent to the correlation in the space domain. Same as
+	 * {@link FHT#conjugateMultiply(FHT)}, but writes into an existing array.
+	 */
+	private static void conjugateMultiply(final float[] h1, final float[] h2,
+			final float[] result, final int size) {
+		for (int r = 0; r < size; r++) {
+			final int row_mod = (size - r) % size;
+			for (int c = 0; c < size; c++) {
+				final int col_mod = (size - c) % size;
+				final float a = h2[r * size + c];
+				final float b = h2[row_mod * size + col_mod];
+				final float h2e = (a + b) / 2;
+				final float h2o = (a - b) / 2;
+				result[r * size + c] = h1[r * size + c] * h2e - h1[row_mod * size + col_mod] * h2o;
+			}
+		}
+	}
+
+	/**
+	 * Swaps quadrants 1 and 3 and 2 and 4 of a square power of 2 image, so
+	 * that the zero frequency (or zero displacement) ends up in the center.
+	 */
+	private static void swapQuadrants(final float[] source, final float[] target, final int size) {
+		final int half = size / 2;
+		for (int y = 0; y < size; y++) {
+			final int ty = (y + half) % size;
+			System.arraycopy(source, y * size, target, ty * size + half, half);
+			System.arraycopy(source, y * size + half, target, ty * size, half);
+		}
+	}
+
+	private static float sample(final float[] pixels, final int width, final int height,
+			float x, float y) {
+		if (x < 0) x = 0;
+		else if (x > width - 1) x = width - 1;
+		if (y < 0) y = 0;
+		else if (y > height - 1) y = height - 1;
+		final int x0 = (int) x;
+		final int y0 = (int) y;
+		final int x1 = x0 < width - 1 ? x0 + 1 : x0;
+		final int y1 = y0 < height - 1 ? y0 + 1 : y0;
+		final float ax = x - x0;
+		final float ay = y - y0;
+		return (1 - ay) * ((1 - ax) * pixels[x0 + y0 * width] + ax * pixels[x1 + y0 * width])
+				+ ay * ((1 - ax) * pixels[x0 + y1 * width] + ax * pixels[x1 + y1 * width]);
+	}
+
+	private static void substractMean(final float[] pixels) {
+		float sum = pixels[0];
+		for (int i = 1; i < pixels.length; i++)
+			sum += pixels[i];
+		final float mean = sum / pixels.length;
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] -= mean;
+	}
+
+}
@@ -0,0 +1,259 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * <h3>PIV vector field</h3>
+ *
+ * Stores the flow vectors computed by {@link PIVEngine} for one image pair,
+ * on the regular grid of interrogation windows. Node <i>(i, j)</i> holds the
+ * vector measured in the window whose top-left corner is at
+ * <i>(i*step, j*step)</i>, that is the vector located at the window center
+ * <i>(i*step + winsize/2, j*step + winsize/2)</i>.
+ * <p>
+ * Fields can be written to and read from a compact binary file: a small
+ * header followed by the raw U, V and peak height arrays of each field, so
+ * that only the grid nodes are stored and not a full image per component.
+ */
+public class PIVVectorField {
+
+	/*
+	 * FIELDS
+	 */
+	/** Index of the back and front image in the stack, 1-based. */
+	public int back_image, front_image;
+	public final int winsize;
+	public final int step;
+	public final int nx, ny;
+	public final float[] u, v, pkh;
+
+	/*
+	 * CONSTANTS
+	 */
+	private static final int MAGIC = 0x50495646; // "PIVF"
+	private static final int FORMAT_VERSION = 1;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public PIVVectorField(int winsize, int step, int nx, int ny) {
+		this.winsize = winsize;
+		this.step = step;
+		this.nx = nx;
+		this.ny = ny;
+		this.u = new float[nx * ny];
+		this.v = new float[nx * ny];
+		this.pkh = new float[nx * ny];
+	}
+
+	/**
+	 * Creates an empty field covering an image of the given size with
+	 * windows of size <i>winsize</i>, placed every <i>step</i> pixels.
+	 */
+	public static PIVVectorField create(int image_width, int image_height,
+			int winsize, int step) {
+		final int nx = Math.max(0, (image_width - winsize) / step + 1);
+		final int ny = Math.max(0, (image_height - winsize) / step + 1);
+		return new PIVVectorField(winsize, step, nx, ny);
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Returns the X coordinate, in pixels, of the center of the windows in
+	 * column <i>i</i>.
+	 */
+	public final float getCenterX(int i) {
+		return i * step + winsize / 2;
+	}
+
+	/**
+	 * Returns the Y coordinate, in pixels, of the center of the windows in row
+	 * <i>j</i>.
+	 */
+	public final float getCenterY(int j) {
+		return j * step + winsize / 2;
+	}
+
+	/**
+	 * Bilinearly interpolates the flow vector at the pixel location
+	 * <i>(x, y)</i>. Locations outside the grid get the value of the nearest
+	 * border node.
+	 *
+	 * @param x  The X coordinate in pixels
+	 * @param y  The Y coordinate in pixels
+	 * @param uv  A 2-element array that will receive the U and V component
+	 */
+	public final void interpolate(float x, float y, float[] uv) {
+		float fx = (x - winsize / 2) / step;
+		float fy = (y - winsize / 2) / step;
+		if (fx < 0) fx = 0;
+		else if (fx > nx - 1) fx = nx - 1;
+		if (fy < 0) fy = 0;
+		else if (fy > ny - 1) fy = ny - 1;
+		int i0 = (int) fx;
+		int j0 = (int) fy;
+		final int i1 = i0 < nx - 1 ? i0 + 1 : i0;
+		final int j1 = j0 < ny - 1 ? j0 + 1 : j0;
+		final float ax = fx - i0;
+		final float ay = fy - j0;
+		final int k00 = i0 + j0 * nx, k10 = i1 + j0 * nx;
+		final int k01 = i0 + j1 * nx, k11 = i1 + j1 * nx;
+		uv[0] = (1 - ay) * ((1 - ax) * u[k00] + ax * u[k10])
+				+ ay * ((1 - ax) * u[k01] + ax * u[k11]);
+		uv[1] = (1 - ay) * ((1 - ax) * v[k00] + ax * v[k10])
+				+ ay * ((1 - ax) * v[k01] + ax * v[k11]);
+	}
+
+	/**
+	 * Replaces spurious vectors using the normalized median test of Westerweel
+	 * & Scarano (2005) over the 3x3 neighborhood of each node. Outliers are
+	 * replaced by the median of their neighbors. This is used to clean the
+	 * predictor before it is handed to the next pass.
+	 *
+	 * @param threshold  The normalized residual above which a vector is
+	 * considered an outlier; 2 is the usual value.
+	 * @return  the number of vectors replaced
+	 */
+	public int replaceOutliers(float threshold) {
+		final float eps = 0.1f;
+		final float[] nu = new float[8];
+		final float[] nv = new float[8];
+		final float[] res = new float[8];
+		final float[] new_u = u.clone();
+		final float[] new_v = v.clone();
+		int nreplaced = 0;
+		for (int j = 0; j < ny; j++) {
+			for (int i = 0; i < nx; i++) {
+				int n = 0;
+				for (int dj = -1; dj <= 1; dj++) {
+					for (int di = -1; di <= 1; di++) {
+						final int ii = i + di, jj = j + dj;
+						if ((di == 0 && dj == 0) || ii < 0 || jj < 0 || ii >= nx || jj >= ny)
+							continue;
+						nu[n] = u[ii + jj * nx];
+						nv[n] = v[ii + jj * nx];
+						n++;
+					}
+				}
+				if (n < 3)
+					continue;
+				final int k = i + j * nx;
+				final float mu = median(nu, n);
+				final float mv = median(nv, n);
+				for (int l = 0; l < n; l++)
+					res[l] = Math.abs(nu[l] - mu);
+				final float ru = Math.abs(u[k] - mu) / (median(res, n) + eps);
+				for (int l = 0; l < n; l++)
+					res[l] = Math.abs(nv[l] - mv);
+				final float rv = Math.abs(v[k] - mv) / (median(res, n) + eps);
+				if (ru > threshold || rv > threshold) {
+					new_u[k] = mu;
+					new_v[k] = mv;
+					nreplaced++;
+				}
+			}
+		}
+		System.arraycopy(new_u, 0, u, 0, u.length);
+		System.arraycopy(new_v, 0, v, 0, v.length);
+		return nreplaced;
+	}
+
+	/**
+	 * Writes the given fields to a file in the compact binary format read by
+	 * {@link #load(File)}. Null fields, left by a cancelled analysis, are
+	 * skipped.
+	 */
+	public static void save(File file, PIVVectorField[] fields) throws IOException {
+		int count = 0;
+		for (PIVVectorField field : fields)
+			if (field != null)
+				count++;
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(count);
+			for (PIVVectorField field : fields) {
+				if (field == null)
+					continue;
+				out.writeInt(field.back_image);
+				out.writeInt(field.front_image);
+				out.writeInt(field.winsize);
+				out.writeInt(field.step);
+				out.writeInt(field.nx);
+				out.writeInt(field.ny);
+				writeFloats(out, field.u);
+				writeFloats(out, field.v);
+				writeFloats(out, field.pkh);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads fields written by {@link #save(File, PIVVectorField[])}.
+	 */
+	public static PIVVectorField[] load(File file) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a PIV vector field file: " + file);
+			final int version = in.readInt();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported PIV vector field version " + version);
+			final PIVVectorField[] fields = new PIVVectorField[in.readInt()];
+			for (int n = 0; n < fields.length; n++) {
+				final int back = in.readInt();
+				final int front = in.readInt();
+				final int winsize = in.readInt();
+				final int step = in.readInt();
+				final int nx = in.readInt();
+				final int ny = in.readInt();
+				final PIVVectorField field = new PIVVectorField(winsize, step, nx, ny);
+				field.back_image = back;
+				field.front_image = front;
+				readFloats(in, field.u);
+				readFloats(in, field.v);
+				readFloats(in, field.pkh);
+				fields[n] = field;
+			}
+			return fields;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static float median(final float[] values, final int n) {
+		final float[] sorted = new float[n];
+		System.arraycopy(values, 0, sorted, 0, n);
+		java.util.Arrays.sort(sorted);
+		return (n % 2 == 1) ? sorted[n / 2] : 0.5f * (sorted[n / 2 - 1] + sorted[n / 2]);
+	}
+
+	private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+		for (int i = 0; i < values.length; i++)
+			out.writeFloat(values[i]);
+	}
+
+	private static void readFloats(DataInputStream in, float[] values) throws IOException {
+		for (int i = 0; i < values.length; i++)
+			values[i] = in.readFloat();
+	}
+
+}
@@ -2,12 +2,14 @@
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
-import java.lang.ArrayIndexOutOfBoundsException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.io.IOException;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ColorProcessor;
 import ij.process.FHT;
@@ -92,6 +94,11 @@
  * left), but the whole correlation matrix is recalculated from scratch (a lot
  * of wasted CPU cycles).
  * <p>
+ * To alleviate this, the windows can be placed on a coarser grid, every
+ * <i>step</i> pixels, and the analysis can be done in several passes, from
+ * coarse to fine, each pass deforming the windows according to the flow found
+ * by the previous one. See {@link PIVEngine} for details.
+ * <p>
  * Typically, on a MacBook (grey model, 2009), for an 8-bit stack with a window
  * size of 8x8, the plugin, the plugin can process a stack of 200x200 in
  * approximatively 2 seconds. I recommend downsampling the images, this would
@@ -161,6 +168,7 @@
  * <li> 1.0 - 18 April 2009 - First public release.
  * <li> 1.1 - 19 April 2009 - is now interruptible
  * <li> 1.2 - 20 April 2009 - is now multithreaded
+ * <li> 1.3 - grid step, multi-pass window deformation and vector field export
  * </ul>
  * 
  * <h3>License: GPL</h3>
@@ -179,7 +187,7 @@
  * Place - Suite 330, Boston, MA 02111-1307, USA.
  * 
  * @author Jean-Yves Tinevez <tinevez@mpi-cbg.de>
- * @version 1.1
+ * @version 1.3
  */
 public class PIV_analyser implements PlugInFilter {
 	
@@ -194,11 +202,14 @@ public class PIV_analyser implements PlugInFilter {
 	private boolean do_interpolation = true;
 	private boolean do_masking = false;
 	private double mask_value = 0.5;
+	private int grid_step = 1;
+	private int npasses = 1;
+	private PIVVectorField[] vector_fields;
 	
 	/*
 	 * CONSTANTS
 	 */
-	private static final String VERSION_STR = "1.2";
+	private static final String VERSION_STR = "1.3";
 	private static final String PLUGIN_NAME = "PIV analyser";
 	private final static int COLOR_CIRCLE_SIZE = 128;
 
@@ -297,12 +308,15 @@ public void run(ImageProcessor ip) {
 		GenericDialog gd = new GenericDialog(PLUGIN_NAME + " v" + VERSION_STR);
 		gd.addMessage(current);
 		gd.addChoice("Window size (px)", WINDOW_SIZE.STR, WINDOW_SIZE.STR[3]);
+		gd.addNumericField("Grid step (px)", 1, 0);
+		gd.addNumericField("Passes", 1, 0);
 		gd.addCheckbox("Diplay color wheel", true);
 		gd.addMessage("Sub-pixel accuracy:");
 		gd.addCheckbox("Interpolate", false);
 		gd.addMessage("Masking with correlation peak:");
 		gd.addCheckbox("Do masking", false);
 		gd.addNumericField("Masking level", 0.5, 2);
+		gd.addCheckbox("Export vector field", false);
 		gd.showDialog();
 
 		// Collect dialog
@@ -310,6 +324,8 @@ public void run(ImageProcessor ip) {
 			return;
 		winsize_x = WINDOW_SIZE.WS[gd.getNextChoiceIndex()];
 		winsize_y = winsize_x;
+		grid_step = Math.max(1, Math.min(winsize_x, (int) gd.getNextNumber()));
+		npasses = Math.max(1, (int) gd.getNextNumber());
 
 		// Show color wheel if demanded
 		if (gd.getNextBoolean()) displayColorCircle(winsize_x);
@@ -320,6 +336,7 @@ public void run(ImageProcessor ip) {
 		// Masking
 		do_masking = gd.getNextBoolean();
 		mask_value = gd.getNextNumber();
+		boolean do_export = gd.getNextBoolean();
 
 		// Build image pairs
 		pairs_param.first = 1;
@@ -330,6 +347,17 @@ public void run(ImageProcessor ip) {
 
 		// Execute calculation
 		exec(true); // true flag enable live display
+
+		// Export vector field
+		if (do_export) {
+			SaveDialog sd = new SaveDialog("Export vector field", current, ".piv");
+			if (sd.getFileName() != null)
+				try {
+					PIVVectorField.save(new File(sd.getDirectory(), sd.getFileName()), getVectorFields());
+				} catch (IOException e) {
+					IJ.error("Could not export vector field: " + e.getMessage());
+				}
+		}
 	}
 
 	/**
@@ -351,13 +379,17 @@ final public ImagePlus[] exec(final boolean show_calculation) {
 		final int npairs = this.getImagePairs().length;
 		final int image_width = stack.getWidth();
 		final int image_height = stack.getHeight();
+		// Results are stored on the grid, one pixel per window position
+		final int result_width = (image_width + grid_step - 1) / grid_step;
+		final int result_height = (image_height + grid_step - 1) / grid_step;
+		final int offset = (winsize_x / 2) / grid_step;
 
 		// Prepare results holder
 		// Stacks
-		final ImageStack u_st = new ImageStack(image_width, image_height, npairs);
-		final ImageStack v_st = new ImageStack(image_width, image_height, npairs);
-		final ImageStack pkh_st = new ImageStack(image_width, image_height, npairs);
-		final ImageStack color_st = new ImageStack(image_width, image_height, npairs);
+		final ImageStack u_st = new ImageStack(result_width, result_height, npairs);
+		final ImageStack v_st = new ImageStack(result_width, result_height, npairs);
+		final ImageStack pkh_st = new ImageStack(result_width, result_height, npairs);
+		final ImageStack color_st = new ImageStack(result_width, result_height, npairs);
 		// ImagePlus
 		final ImagePlus u_imp = imp.createImagePlus();
 		final ImagePlus v_imp = imp.createImagePlus();
@@ -366,11 +398,6 @@ final public ImagePlus[] exec(final boolean show_calculation) {
 		// Canvas
 		final ImageCanvas color_canvas;
 
-		// Threads and atomic integer for multithreading
-		final AtomicInteger ai = new AtomicInteger(0); 
-		final Thread[] threads = newThreadArray();  
-
-		
 		// Copy and store the current roi used for masking
 		final Roi roi;
 		if (imp.getRoi() == null) {
@@ -378,134 +405,80 @@ final public ImagePlus[] exec(final boolean show_calculation) {
 		} else {
 			roi = (Roi) imp.getRoi().clone();
 		}
-				
-		// Concurrently run as manu threads as cpu		
-		for (int ithread=0; ithread<threads.length; ithread++) {
 
-			// Generate a thread
-			threads[ithread] = new Thread() {  
+		final PIVEngine engine = new PIVEngine(winsize_x, grid_step, npasses, do_interpolation);
+		engine.setRoi(roi);
+		vector_fields = engine.analyse(stack, getImagePairs(), new PIVEngine.Listener() {
 
-				int front_image, back_image;
-				FHT fft_front, fft_back, pcm;
-				PIVresult piv;
-				// ImageProcessors
-				FloatProcessor front_block_imp, back_block_imp;		
-				FloatProcessor back_imp, front_imp;
-				// Color processor
-				ColorProcessor color_ip;
+			public void pairDone(int i, PIVVectorField field) {
 
 				// Arrays
-				float[][] u = new float[image_width][image_height];
-				float[][] v = new float[image_width][image_height];
-				float[][] pkh = new float[image_width][image_height];
-				int[][] color_angle = new int[image_width][image_height];
-				
-				public void run() {
-
-					// Loop over image pairs
-					for (int i = ai.getAndIncrement(); i < npairs; i=ai.getAndIncrement()) {
-
-
-						back_image = getImagePairs()[i][0];
-						front_image = getImagePairs()[i][1];
-						back_imp = (FloatProcessor) stack.getProcessor(back_image).convertToFloat();
-						front_imp = (FloatProcessor) stack.getProcessor(front_image).convertToFloat();
-
-						if (IJ.escapePressed()) {
-							IJ.showStatus("PIV analysis cancelled.");
-							break;
-						}
-						for (int x = 0; x <= image_width - winsize_x; x++) {
-
-							for (int y = 0; y <= image_height - winsize_y; y++) {
-
-								// skip if current point is not in roi
-								if ( (roi != null) && (!roi.contains(x+winsize_x/2, y+winsize_y/2)) ) continue;
-
-								front_imp.setRoi(x, y, winsize_x, winsize_y);
-								front_block_imp = (FloatProcessor) front_imp.crop();
-								back_imp.setRoi(x, y, winsize_x, winsize_y);
-								back_block_imp = (FloatProcessor) back_imp.crop();
-
-								// Substract mean
-								substractMean(back_block_imp);
-								substractMean(front_block_imp);
-
-								// Compute correlation matrix
-								fft_front = new FHT(front_block_imp);
-								fft_front.setShowProgress(false);
-								fft_back = new FHT(back_block_imp);
-								fft_back.setShowProgress(false);
-								fft_front.transform();
-								fft_back.transform();
-								pcm = fft_front.conjugateMultiply(fft_back);
-								pcm.setShowProgress(false);
-								pcm.inverseTransform();
-								pcm.swapQuadrants(); // centered in middle of window
-
-								piv = findMax(pcm, do_interpolation);
-
-								u[x + winsize_x / 2][y + winsize_y / 2] = piv.max_x_interpolated;
-								v[x + winsize_x / 2][y + winsize_y / 2] = piv.max_y_interpolated;
-								pkh[x + winsize_x / 2][y + winsize_y / 2] = piv.peak_height;
-							}
-						}
-
-						// Do masking 
-						if (do_masking) {
-							float max_pkh = getMax(pkh);
-							mask(u, pkh, max_pkh);
-							mask(v, pkh, max_pkh);
-						}
+				float[][] u = new float[result_width][result_height];
+				float[][] v = new float[result_width][result_height];
+				float[][] pkh = new float[result_width][result_height];
+				int[][] color_angle = new int[result_width][result_height];
+
+				for (int y = 0; y < field.ny; y++) {
+					for (int x = 0; x < field.nx; x++) {
+						final int k = x + y * field.nx;
+						u[x + offset][y + offset] = field.u[k];
+						v[x + offset][y + offset] = field.v[k];
+						pkh[x + offset][y + offset] = field.pkh[k];
+					}
+				}
 
-						// Compute color vector
-						for (int x = 0; x <= image_width - winsize_x; x++) {
-							for (int y = 0; y <= image_height - winsize_y; y++){
-								color_angle[x + winsize_x / 2][y + winsize_y / 2] = colorVector(
-										u[x + winsize_x / 2][y + winsize_y / 2], 
-										v[x + winsize_x / 2][y + winsize_y / 2],
-										winsize_x / 2);
-							}
-						}
+				// Do masking 
+				if (do_masking) {
+					float max_pkh = getMax(pkh);
+					mask(u, pkh, max_pkh);
+					mask(v, pkh, max_pkh);
+				}
 
-						// Add to stack
-						u_st.setPixels(new FloatProcessor(u).getPixels(), i + 1);
-						v_st.setPixels(new FloatProcessor(v).getPixels(), i + 1);
-						pkh_st.setPixels(new FloatProcessor(pkh).getPixels(), i + 1);
-						// snr_st.setPixels(new FloatProcessor(snr).getPixels(), i + 1);
-						color_ip = new ColorProcessor(image_width, image_height);
-						color_ip.setIntArray(color_angle);
-						color_st.setPixels(color_ip.getPixels(), i + 1);
-
-						if (i==0) {
-							u_imp.setStack("U", u_st);
-							v_imp.setStack("V", v_st);
-							pkh_imp.setStack("Peak height", pkh_st);
-							color_imp.setStack("Flow direction", color_st);
-							// Display result container if asked
-							if (show_calculation) {
-								u_imp.show();
-								v_imp.show();
-								pkh_imp.show();
-								color_imp.show();
-							}
+				// Compute color vector
+				for (int x = 0; x < field.nx; x++) {
+					for (int y = 0; y < field.ny; y++){
+						color_angle[x + offset][y + offset] = colorVector(
+								u[x + offset][y + offset], 
+								v[x + offset][y + offset],
+								winsize_x / 2);
+					}
+				}
 
+				// Add to stack
+				u_st.setPixels(new FloatProcessor(u).getPixels(), i + 1);
+				v_st.setPixels(new FloatProcessor(v).getPixels(), i + 1);
+				pkh_st.setPixels(new FloatProcessor(pkh).getPixels(), i + 1);
+				ColorProcessor color_ip = new ColorProcessor(result_width, result_height);
+				color_ip.setIntArray(color_angle);
+				color_st.setPixels(color_ip.getPixels(), i + 1);
+
+				if (i==0) {
+					u_imp.setStack("U", u_st);
+					v_imp.setStack("V", v_st);
+					pkh_imp.setStack("Peak height", pkh_st);
+					color_imp.setStack("Flow direction", color_st);
+					if (grid_step > 1) {
+						for (ImagePlus result : new ImagePlus[] { u_imp, v_imp, pkh_imp, color_imp }) {
+							Calibration cal = result.getCalibration();
+							cal.pixelWidth *= grid_step;
+							cal.pixelHeight *= grid_step;
 						}
-
-						IJ.showProgress(i, npairs);
+					}
+					// Display result container if asked
+					if (show_calculation) {
+						u_imp.show();
+						v_imp.show();
+						pkh_imp.show();
+						color_imp.show();
 					}
 				}
-			}; // end void run() method from Thread() class
-		
-		} // end for loop in threads
-		
-		
-		// Initiate computation
-		startAndJoin(threads);  
+			}
+		});
 
 		// Add the MouseMotionListener that "deconvolves" color
 		color_canvas = color_imp.getCanvas();
-		color_canvas.addMouseMotionListener(getColorMouseListener(winsize_x/2.0f));
+		if (color_canvas != null)
+			color_canvas.addMouseMotionListener(getColorMouseListener(winsize_x/2.0f));
 		
 		// Return result as array of ImagePlus
 		return new ImagePlus[] { u_imp, v_imp, pkh_imp, color_imp };
@@ -534,87 +507,13 @@ public void run() {
 	final public PIVresult findMax(final FHT pcm, boolean interpolate) {
 		PIVresult piv = new PIVresult();
 		final float[] pixels = (float[]) pcm.getPixels();
-		final float e00, e10, e20, e01, e11, e21, e02, e12, e22;
-		float pkh = -Float.MAX_VALUE;
-		int loc = 0;
-		// float sum = 0.0f;
-		// float sum_sqr = 0.0f;
-		float val;
-		// We loop to find max, but also compute mean
-		for (int i = 0; i < pixels.length; i++) {
-			val = pixels[i];
-			// sum += val;
-			// sum_sqr += val * val;
-			if (val > pkh) {
-				pkh = val;
-				loc = i;
-			}
-		}
-		// final float mean = sum / pixels.length;
-		// final float var = (sum_sqr - pixels.length * mean * mean)
-		// / pixels.length;
-
-		piv.peak_height = pkh;
-		// if (var <= 1e-6)
-		// return piv;
-		// piv.snr = (float) Math.sqrt(var) / pkh;
-		// piv.snr = pkh - mean;
-
+		final float[] result = new float[3];
+		final int loc = PIVEngine.locatePeak(pixels, winsize_x, interpolate, result);
 		piv.max_x = loc % winsize_x - winsize_x / 2;
 		piv.max_y = loc / winsize_x - winsize_y / 2;
-
-		// Create 3x3 neighborhood
-		if (interpolate) {
-			try {
-				// Get neighborhood
-				e00 = pixels[loc - winsize_x - 1];
-				e10 = pixels[loc - winsize_x];
-				e20 = pixels[loc - winsize_x + 1];
-				e01 = pixels[loc - 1];
-				e11 = pixels[loc];
-				e21 = pixels[loc + 1];
-				e02 = pixels[loc + winsize_x - 1];
-				e12 = pixels[loc + winsize_x];
-				e22 = pixels[loc + winsize_x + 1];
-
-				final float dx, dy;
-				final float dxy, dxx, dyy;
-				final float ox, oy;
-
-				// derive at (x, y, i) by center of difference -> D
-				dx = (e21 - e01) / 2.0f;
-				dy = (e12 - e10) / 2.0f;
-
-				// create hessian at (x, y, i) by laplace -> H
-				final float e11_2 = 2.0f * e11;
-				dxx = e01 - e11_2 + e21;
-				dyy = e10 - e11_2 + e12;
-				dxy = (e22 - e02 - e20 + e00) / 4.0f;
-
-				// invert hessian -> H-1
-				final float det = dxx * dyy - dxy * dxy;
-				if (det == 0) {
-					// data is linearly dependent, can't interpolate
-					piv.max_x_interpolated = (float) piv.max_x;
-					piv.max_y_interpolated = (float) piv.max_y;
-				}
-
-				// localize O = H-1 x D
-				ox = +dyy / det * dx - dxy / det * dy;
-				oy = -dxy / det * dx + dxx / det * dy;
-
-				piv.max_x_interpolated = (float) piv.max_x - 3 * ox;
-				piv.max_y_interpolated = (float) piv.max_y - 3 * oy;
-
-			} catch (ArrayIndexOutOfBoundsException e) {
-				piv.max_x_interpolated = (float) piv.max_x;
-				piv.max_y_interpolated = (float) piv.max_y;
-			}
-		} else {
-			piv.max_x_interpolated = (float) piv.max_x;
-			piv.max_y_interpolated = (float) piv.max_y;
-		}
-
+		piv.max_x_interpolated = result[0];
+		piv.max_y_interpolated = result[1];
+		piv.peak_height = result[2];
 		return piv;
 	}
 
@@ -765,17 +664,6 @@ public void mouseMoved(MouseEvent e) {
 	 * PRIVATE METHODS
 	 */
 	
-	 /**
-	 * Create a Thread[] array as large as the number of processors available.
-	 * From Stephan Preibisch's Multithreading.java class. See:
-	 * http://repo.or.cz
-	 * /w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
-	 */
-	private Thread[] newThreadArray() {
- 		int n_cpus = Runtime.getRuntime().availableProcessors();
-		return new Thread[n_cpus];
-	}  
-	
 	/** Start all given threads and wait on each of them until all are done. 
 	 * From Stephan Preibisch's Multithreading.java class. See: 
 	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD 
@@ -881,19 +769,6 @@ final static public float getMax(final float[][] arr) {
 		return max;
 	}
 
-	private static void substractMean(FloatProcessor fp) {
-		float[] pixels = (float[]) fp.getPixels();
-		float sum = pixels[0];
-		for (int i = 1; i < pixels.length; i++) {
-			sum += pixels[i];
-		}
-		final float mean = sum / pixels.length;
-		for (int i = 0; i < pixels.length; i++) {
-			pixels[i] -= mean;
-		}
-
-	}
-
 	/**
 	 * Build a 2D array of int specifying how to pair images. The pairing is
 	 * built according to this class field ParingParam param.
@@ -1003,4 +878,42 @@ public boolean getInterpolation() {
 		return do_interpolation;
 	}
 
+	/**
+	 * Sets the distance, in pixels, between two neighboring interrogation
+	 * windows. A step of 1 yields a vector for every pixel; a step equal to
+	 * the window size yields non-overlapping windows.
+	 * 
+	 * @param step  The grid step, between 1 and the window size
+	 */
+	public void setGridStep(int step) {
+		this.grid_step = step;
+	}
+
+	public int getGridStep() {
+		return grid_step;
+	}
+
+	/**
+	 * Sets the number of passes of the analysis. With more than one pass, the
+	 * first pass uses larger windows, and each following pass refines the
+	 * flow found by the previous one with smaller, deformed windows.
+	 * 
+	 * @param npasses  The number of passes, at least 1
+	 */
+	public void setPasses(int npasses) {
+		this.npasses = npasses;
+	}
+
+	public int getPasses() {
+		return npasses;
+	}
+
+	/**
+	 * Returns the vector fields computed by the last call to
+	 * {@link #exec(boolean)}, one per image pair, on the grid of windows.
+	 */
+	public PIVVectorField[] getVectorFields() {
+		return vector_fields;
+	}
+
 }
\ No newline at end of file
@@ -46,12 +46,9 @@ public class ClassCompletionProvider extends CompletionProviderBase
 
 	protected String language;
 	protected ClassNames names;
-	protected Thread classNamesThread;
 
 	public ClassNames getClassNames() {
-		synchronized (classNamesThread) {
-			return names;
-		}
+		return names;
 	}
 
 	/**
@@ -64,12 +61,8 @@ public ClassCompletionProvider(CompletionProvider provider, RSyntaxTextArea text
 		setDefaultProvider(provider);
 		this.textArea = textArea;
 		this.language = language;
-		classNamesThread = new Thread() {
-			public synchronized void run() {
-				names = new ClassNames(defaultProvider);
-			}
-		};
-		classNamesThread.start();
+		// collects the class names in the background
+		names = new ClassNames(defaultProvider);
 	}
 
 
@@ -0,0 +1,219 @@
+package fiji.scripting.completion;
+
+import ij.Prefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An on-disk cache of the class names contained in .jar files
+ *
+ * The entries are keyed by the absolute path of the .jar file, and are only
+ * valid as long as its size and modification time are unchanged, so that
+ * only new or modified .jar files need to be opened.
+ *
+ * The file starts with a magic number and a version, followed by one record
+ * per .jar file: path, size, modification time and the sorted class names,
+ * each stored as the length of the prefix it shares with the previous name,
+ * followed by the rest of the name.
+ */
+
+public class ClassNameIndex {
+	protected final static int MAGIC = 0x434e4958; // "CNIX"
+	protected final static int VERSION = 1;
+
+	protected static class Entry {
+		long length, lastModified;
+		String[] classNames;
+
+		Entry(long length, long lastModified, String[] classNames) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.classNames = classNames;
+		}
+	}
+
+	protected File file;
+	protected Map<String, Entry> entries = new HashMap<String, Entry>();
+	protected boolean dirty;
+
+	public ClassNameIndex(File file) {
+		this.file = file;
+	}
+
+	public static File getDefaultFile() {
+		return new File(Prefs.getPrefsDir(), "class-names.idx");
+	}
+
+	/**
+	 * Read the cache; a missing, outdated or corrupt file yields an empty
+	 * index.
+	 */
+	public synchronized void load() {
+		entries.clear();
+		dirty = false;
+		if (file == null || !file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				dirty = true;
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				String[] classNames = new String[in.readInt()];
+				String previous = "";
+				for (int j = 0; j < classNames.length; j++) {
+					int shared = in.readUnsignedShort();
+					previous = previous.substring(0, shared) + in.readUTF();
+					classNames[j] = previous;
+				}
+				entries.put(path, new Entry(length, lastModified, classNames));
+			}
+		} catch (IOException e) {
+			entries.clear();
+			dirty = true;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) { /* ignore */ }
+		}
+	}
+
+	/**
+	 * Write the cache, if it changed since it was loaded.
+	 */
+	public synchronized void save() {
+		if (!dirty || file == null)
+			return;
+		File tmp = null;
+		DataOutputStream out = null;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs())
+				return;
+			// a unique name, in case several instances save at the same time
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (String path : entries.keySet()) {
+				Entry entry = entries.get(path);
+				out.writeUTF(path);
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeInt(entry.classNames.length);
+				String previous = "";
+				for (String name : entry.classNames) {
+					int shared = sharedPrefixLength(previous, name);
+					out.writeShort(shared);
+					out.writeUTF(name.substring(shared));
+					previous = name;
+				}
+			}
+			out.close();
+			out = null;
+			if (file.exists() && !file.delete())
+				throw new IOException("Could not replace " + file);
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			dirty = false;
+		} catch (IOException e) {
+			System.err.println("Could not write the class name index: " + e);
+		} finally {
+			if (out != null) try {
+				out.close();
+			} catch (IOException e) { /* ignore */ }
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	protected static int sharedPrefixLength(String a, String b) {
+		int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+		int i = 0;
+		while (i < max && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	/**
+	 * Return the cached class names of a .jar file, or null if the .jar
+	 * file is not in the index or was modified since.
+	 */
+	public synchronized String[] get(File jar) {
+		Entry entry = entries.get(jar.getAbsolutePath());
+		if (entry == null || entry.length != jar.length() || entry.lastModified != jar.lastModified())
+			return null;
+		return entry.classNames;
+	}
+
+	public synchronized void put(File jar, String[] classNames) {
+		entries.put(jar.getAbsolutePath(), new Entry(jar.length(), jar.lastModified(), classNames));
+		dirty = true;
+	}
+
+	/**
+	 * Forget about all the .jar files but the given ones.
+	 */
+	public synchronized void retainAll(Collection<File> jars) {
+		Set<String> paths = new HashSet<String>();
+		for (File jar : jars)
+			paths.add(jar.getAbsolutePath());
+		Iterator<String> iter = entries.keySet().iterator();
+		while (iter.hasNext())
+			if (!paths.contains(iter.next())) {
+				iter.remove();
+				dirty = true;
+			}
+	}
+
+	/**
+	 * Open a .jar file and list the (sorted, dot-separated) names of the
+	 * classes it contains.
+	 */
+	public static String[] scan(File jar) throws IOException {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			List<String> result = new ArrayList<String>();
+			Enumeration<JarEntry> e = jarFile.entries();
+			while (e.hasMoreElements()) {
+				JarEntry entry = e.nextElement();
+				String name = entry.getName();
+				if (name.endsWith(".class")) //ignore non-class files
+					result.add(name.substring(0, name.length() - 6).replace('/', '.'));
+			}
+			String[] names = result.toArray(new String[result.size()]);
+			Arrays.sort(names);
+			return names;
+		} finally {
+			jarFile.close();
+		}
+	}
+}
@@ -3,24 +3,22 @@
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.fife.ui.autocomplete.CompletionProvider;
 import org.fife.ui.autocomplete.BasicCompletion;
@@ -35,79 +33,178 @@
  * contains a Tree object with key "java" and one of its childList
  * element as awt which in turn has its childDList having its one childList
  * as Listwhich is infact also a leaf
+ *
+ * The class names are collected once, in a background thread, and shared by
+ * all instances. The class names of .jar files are cached on disk (see
+ * {@link ClassNameIndex}) so that only new or modified .jar files have to be
+ * opened; those are scanned in parallel. The class name completions (see
+ * {@link #setClassCompletions}) are served from what was collected so far,
+ * all other lookups wait until the class path has been processed completely.
  */
 
 public class ClassNames {
-	protected static Map<String, Package> packages;
+	protected static Map<String, Package> packages = new TreeMap<String, Package>();
+	/* maps simple class names to the names of the packages containing them */
+	protected static SortedMap<String, Set<String>> classes = new TreeMap<String, Set<String>>();
+	protected static Thread loader;
+
 	protected DefaultProvider defaultProvider;
 	protected ImportStatementsParser importStatementsParser = new ImportStatementsParser();
 	protected ObjStartCompletions obj;
 
 	public ClassNames(DefaultProvider provider) {
 		defaultProvider = provider;
-		if (packages == null) {
-			packages = new TreeMap<String, Package>();
-			addPaths(System.getProperty("java.class.path").split(File.pathSeparator));
-			addPaths(System.getProperty("sun.boot.class.path").split(File.pathSeparator));
-		}
-	}
-
-	protected void addPaths(String[] args) {
-		for (String arg : args)
-			addPath(arg);
-	}
-
-	protected void addPath(String path) {
-		File file = new File(path);
-		if (file.isDirectory())
-			addDirectory(file, "");
-		else if (path.endsWith(".jar") && file.length() > 0) try {
-				ZipFile jarFile = new ZipFile(file);
-				Enumeration e = jarFile.entries();
-				Package pkg = null;
-				while (e.hasMoreElements()) {
-					ZipEntry entry = (ZipEntry)e.nextElement();
-					String name = entry.getName();
-					if (name.endsWith(".class")) //ignore non-class files
-						pkg = addClassName(pkg, stripClassSuffix(name).replace('/', '.'));
+		startLoading();
+	}
+
+	protected static synchronized void startLoading() {
+		if (loader != null)
+			return;
+		loader = new Thread("Class name index") {
+			public void run() {
+				List<String> paths = new ArrayList<String>();
+				addPaths(paths, System.getProperty("java.class.path"));
+				addPaths(paths, System.getProperty("sun.boot.class.path"));
+				loadPaths(paths, ClassNameIndex.getDefaultFile());
+			}
+		};
+		loader.setDaemon(true);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+
+	/**
+	 * Wait until all the class names have been collected.
+	 */
+	public static void waitForClassNames() {
+		Thread thread;
+		synchronized (ClassNames.class) {
+			thread = loader;
+		}
+		if (thread != null) try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected static void addPaths(List<String> result, String pathList) {
+		if (pathList == null)
+			return;
+		for (String path : pathList.split(File.pathSeparator))
+			if (!path.equals(""))
+				result.add(path);
+	}
+
+	protected static void loadPaths(List<String> paths, File cacheFile) {
+		final ClassNameIndex index = new ClassNameIndex(cacheFile);
+		index.load();
+
+		List<File> jars = new ArrayList<File>();
+		List<File> stale = new ArrayList<File>();
+		for (String path : paths) {
+			File file = new File(path);
+			if (file.isDirectory())
+				addDirectory(file, "");
+			else if (path.endsWith(".jar") && file.length() > 0) {
+				jars.add(file);
+				String[] names = index.get(file);
+				if (names != null)
+					addClassNames(names);
+				else
+					stale.add(file);
+			}
+		}
+
+		if (stale.size() > 0) {
+			int nThreads = Math.min(stale.size(), Runtime.getRuntime().availableProcessors());
+			ExecutorService executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Class name index scanner");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
 				}
-			} catch (Exception e) {
-				if (path.endsWith("/sunrsasign.jar") || path.endsWith("/jsfd.jar"))
-					return;
-				System.err.println("Exception while processing " + path);
-				e.printStackTrace();
+			});
+			for (final File jar : stale)
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							String[] names = ClassNameIndex.scan(jar);
+							index.put(jar, names);
+							addClassNames(names);
+						} catch (IOException e) {
+							String path = jar.getPath();
+							if (path.endsWith("/sunrsasign.jar") || path.endsWith("/jsfd.jar"))
+								return;
+							System.err.println("Exception while processing " + path);
+							e.printStackTrace();
+						}
+					}
+				});
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+					; // wait
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				return;
 			}
+		}
+
+		index.retainAll(jars);
+		index.save();
 	}
 
-	protected void addDirectory(File file, String packageName) {
-		Package pkg = getPackage(packageName);
-		for (String name : file.list())
+	protected static void addDirectory(File file, String packageName) {
+		String[] list = file.list();
+		if (list == null)
+			return;
+		List<String> names = new ArrayList<String>();
+		for (String name : list)
 			if (name.endsWith(".class"))
-				pkg.add(new ClassName(stripClassSuffix(name)));
+				names.add(getFullName(packageName, stripClassSuffix(name)));
 			else if (name.indexOf('.') < 0) {
 				File dir = new File(file, name);
 				if (dir.isDirectory())
-					addDirectory(dir, packageName.equals("") ? name : packageName + "." + name);
+					addDirectory(dir, getFullName(packageName, name));
 			}
+		synchronized (ClassNames.class) {
+			getPackage(packageName);
+			addClassNames(names.toArray(new String[names.size()]));
+		}
 	}
 
-	protected final String stripClassSuffix(String name) {
+	protected static final String stripClassSuffix(String name) {
 		return name.substring(0, name.length() - 6);
 	}
 
-	protected Package addClassName(final Package previousPackage, String className) {
+	protected static synchronized void addClassNames(String[] classNames) {
+		Package pkg = null;
+		for (String className : classNames)
+			pkg = addClassName(pkg, className);
+	}
+
+	protected static synchronized Package addClassName(final Package previousPackage, String className) {
 		int dot = className.lastIndexOf('.');
 		String pkgName = dot < 0 ? "" : className.substring(0, dot);
+		String name = className.substring(dot + 1);
 		Package pkg = getPackage(previousPackage, pkgName);
-		pkg.add(new ClassName(className.substring(dot + 1)));
+		pkg.add(new ClassName(name));
+		Set<String> pkgNames = classes.get(name);
+		if (pkgNames == null) {
+			pkgNames = new TreeSet<String>();
+			classes.put(name, pkgNames);
+		}
+		pkgNames.add(pkgName);
 		return pkg;
 	}
 
-	protected Package getPackage(Package previous, String name) {
+	protected static synchronized Package getPackage(Package previous, String name) {
 		return previous != null && previous.getName().equals(name) ? previous : getPackage(name);
 	}
 
-	protected Package getPackage(String name) {
+	protected static synchronized Package getPackage(String name) {
 		Package pkg = packages.get(name);
 		if (pkg == null) {
 			pkg = new Package(name);
@@ -133,8 +230,30 @@ private Package getImportedClassCompletions(RSyntaxTextArea texArea) {
 	}
 	*/
 
+	/* the number of class names offered at most, while few letters are typed */
+	protected final static int MAX_CLASS_COMPLETIONS = 100;
+
+	/**
+	 * Offer the classes whose simple name starts with the entered text.
+	 *
+	 * The names are taken from what has been collected so far, so this does
+	 * not block while the class path is still being processed.
+	 */
 	protected void setClassCompletions(RSyntaxTextArea textArea, String language) {
-		// TODO
+		String text = defaultProvider.getEnteredText(textArea);
+		if (text == null || text.length() < 2 || !Character.isUpperCase(text.charAt(0)))
+			return;
+		for (int i = 1; i < text.length(); i++)
+			if (!Character.isJavaIdentifierPart(text.charAt(i)))
+				return;
+		List<String> fullNames = getFullClassNamesStartingWith(text);
+		if (fullNames.size() > MAX_CLASS_COMPLETIONS)
+			fullNames = fullNames.subList(0, MAX_CLASS_COMPLETIONS);
+		List<BasicCompletion> completions = new ArrayList<BasicCompletion>();
+		for (String fullName : fullNames)
+			completions.add(new BasicCompletion(defaultProvider,
+				fullName.substring(fullName.lastIndexOf('.') + 1), fullName));
+		defaultProvider.addCompletions(completions);
 	}
 
 	protected void findAndAddCompletions(String text, int index, int tempIndex, Package tempPackage, boolean isClassBeforeDot) {
@@ -161,7 +280,7 @@ protected void findAndAddCompletions(String text, int index, int tempIndex, Pack
 		*/
 	}
 
-	public String getFullName(String pkgName, String className) {
+	public static String getFullName(String pkgName, String className) {
 		return (pkgName.equals("") ? "" : pkgName + ".") + className;
 	}
 
@@ -226,29 +345,59 @@ protected ArrayList createFunctionCompletion(TreeSet<ClassMethod> setOfCompletio
 	}
 
 	public String isClassPresent(String name) {
-		for (String pkgName : packages.keySet())
-			if (packages.get(pkgName).contains(name))
-				return getFullName(pkgName, name);
-		return "";
+		waitForClassNames();
+		synchronized (ClassNames.class) {
+			Set<String> pkgNames = classes.get(name);
+			if (pkgNames == null)
+				return "";
+			return getFullName(pkgNames.iterator().next(), name);
+		}
 	}
 
 	public Collection<String> getPackageNames() {
-		return packages.keySet();
+		waitForClassNames();
+		// the background indexer might still add packages
+		synchronized (ClassNames.class) {
+			return new ArrayList<String>(packages.keySet());
+		}
 	}
 
 	public List<String> getFullPackageNames(String className) {
+		waitForClassNames();
+		synchronized (ClassNames.class) {
+			Set<String> pkgNames = classes.get(className);
+			if (pkgNames == null)
+				return new ArrayList<String>();
+			return new ArrayList<String>(pkgNames);
+		}
+	}
+
+	public List<String> getFullClassNames(String className) {
+		waitForClassNames();
 		List<String> result = new ArrayList<String>();
-		for (String pkgName : packages.keySet())
-			if (packages.get(pkgName).contains(className))
-				result.add(pkgName);
+		synchronized (ClassNames.class) {
+			Set<String> pkgNames = classes.get(className);
+			if (pkgNames != null)
+				for (String pkgName : pkgNames)
+					result.add(getFullName(pkgName, className));
+		}
 		return result;
 	}
 
-	public List<String> getFullClassNames(String className) {
+	/**
+	 * Return the fully qualified names of the classes whose simple name
+	 * starts with the given prefix.
+	 *
+	 * This does not wait for the class path to be processed completely, but
+	 * returns what has been collected so far.
+	 */
+	public List<String> getFullClassNamesStartingWith(String prefix) {
 		List<String> result = new ArrayList<String>();
-		for (String pkgName : packages.keySet())
-			if (packages.get(pkgName).contains(className))
-				result.add(getFullName(pkgName, className));
+		synchronized (ClassNames.class) {
+			for (Map.Entry<String, Set<String>> entry : classes.subMap(prefix, prefix + Character.MAX_VALUE).entrySet())
+				for (String pkgName : entry.getValue())
+					result.add(getFullName(pkgName, entry.getKey()));
+		}
 		return result;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,388 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tracing.ShollAnalysisDialog.ShollResults;
+
+/* Sholl analysis of many reconstructions (traces or SWC files)
+   without any user interaction: the files are loaded and analysed
+   concurrently, and the results are written as a summary CSV file
+   with one row per reconstruction (including how long loading and
+   analysing each file took), a detailed CSV file per reconstruction
+   and, optionally, an image of the crossings for each reconstruction.
+
+   As in the Sholl analysis dialog, the fitted version of a path is
+   used if it is in use.  The centre of the spheres is the start of
+   the first primary path, or of the first path if none is marked as
+   primary (for SWC files, this is the root).
+
+   This can be run from the command line, too:
+
+     java -cp ij.jar:Simple_Neurite_Tracer.jar:... tracing.Batch_Sholl_Analysis \
+	<input directory> <output directory> [<sphere separation> [<threads>]]
+*/
+
+public class Batch_Sholl_Analysis implements PlugIn {
+
+	public double sphereSeparation = 0;
+	public int axes = ShollAnalysisDialog.AXES_NORMAL;
+	public int normalization = ShollAnalysisDialog.NOT_NORMALIZED;
+	public boolean writeDetail = true;
+	public boolean makeImages = false;
+	public int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	public static class FileResult {
+		public File file;
+		public ShollResults results;
+		public int numberOfPaths;
+		public double x_start, y_start, z_start;
+		public long loadMilliseconds, analysisMilliseconds;
+		public String error;
+	}
+
+	public static boolean isReconstruction( File file ) {
+		String name = file.getName().toLowerCase();
+		return file.isFile() && (name.endsWith(".traces") ||
+					 name.endsWith(".btraces") ||
+					 name.endsWith(".swc"));
+	}
+
+	public static List<File> findReconstructions( File directory ) {
+		List<File> result = new ArrayList<File>();
+		File [] files = directory.listFiles();
+		if( files == null )
+			return result;
+		Arrays.sort(files);
+		for( File f : files )
+			if( isReconstruction(f) )
+				result.add(f);
+		return result;
+	}
+
+	/* Analyse all the files, using numberOfThreads threads; the
+	   results are in the same order as the files. */
+
+	public List<FileResult> analyse( final List<File> files, final File outputDirectory ) {
+		final FileResult [] results = new FileResult[files.size()];
+		final int [] next = { 0, 0 };
+		Thread [] threads = new Thread[Math.max(1, Math.min(numberOfThreads, files.size()))];
+		for( int t = 0; t < threads.length; ++t ) {
+			threads[t] = new Thread() {
+				public void run() {
+					for(;;) {
+						int i;
+						synchronized( next ) {
+							if( next[0] >= files.size() )
+								return;
+							i = next[0]++;
+						}
+						results[i] = analyse( files.get(i), outputDirectory );
+						synchronized( next ) {
+							IJ.showProgress( ++next[1], files.size() );
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for( int t = 0; t < threads.length; ++t )
+			try {
+				threads[t].join();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			}
+		IJ.showProgress(1, 1);
+		return Arrays.asList(results);
+	}
+
+	public FileResult analyse( File file, File outputDirectory ) {
+		FileResult result = new FileResult();
+		result.file = file;
+		try {
+			long start = System.currentTimeMillis();
+			PathAndFillManager pafm = load( file );
+			result.loadMilliseconds = System.currentTimeMillis() - start;
+			if( pafm == null ) {
+				result.error = "could not be loaded";
+				return result;
+			}
+
+			start = System.currentTimeMillis();
+			List<Path> paths = new ArrayList<Path>();
+			Path centrePath = null;
+			boolean centreOnPrimary = false;
+			boolean allSameZ = true;
+			double firstZ = Double.NaN;
+			for( Path p : pafm.allPaths ) {
+				boolean primary = p.getPrimary();
+				if( p.getUseFitted() ) {
+					p = p.fitted;
+				} else if( p.fittedVersionOf != null )
+					continue;
+				if( p.size() == 0 )
+					continue;
+				paths.add(p);
+				if( centrePath == null || (primary && ! centreOnPrimary) ) {
+					centrePath = p;
+					centreOnPrimary = primary;
+				}
+				for( int i = 0; i < p.size(); ++i ) {
+					if( Double.isNaN(firstZ) )
+						firstZ = p.precise_z_positions[i];
+					else if( p.precise_z_positions[i] != firstZ )
+						allSameZ = false;
+				}
+			}
+			result.numberOfPaths = paths.size();
+			if( centrePath == null ) {
+				result.error = "no paths";
+				return result;
+			}
+			result.x_start = centrePath.precise_x_positions[0];
+			result.y_start = centrePath.precise_y_positions[0];
+			result.z_start = centrePath.precise_z_positions[0];
+			boolean twoDimensional = pafm.depth == 1 || allSameZ;
+
+			ShollResults results = new ShollResults( paths,
+								 file.getAbsolutePath(),
+								 result.x_start,
+								 result.y_start,
+								 result.z_start,
+								 "Sholl analysis of " + file.getName(),
+								 axes,
+								 normalization,
+								 sphereSeparation,
+								 twoDimensional );
+			result.results = results;
+			result.analysisMilliseconds = System.currentTimeMillis() - start;
+
+			String baseName = file.getName().replaceAll("\\.[^.]*$", "");
+			if( writeDetail && outputDirectory != null )
+				results.exportDetailToCSV( new File( outputDirectory,
+					baseName + "-sholl-detail" + results.getSuggestedSuffix() + ".csv" ) );
+			if( makeImages && outputDirectory != null ) {
+				ImagePlus image = makeImage( pafm, results );
+				new FileSaver(image).saveAsTiffStack( new File( outputDirectory,
+					baseName + "-sholl" + results.getSuggestedSuffix() + ".tif" ).getAbsolutePath() );
+			}
+		} catch( Exception e ) {
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	protected PathAndFillManager load( File file ) {
+		String path = file.getAbsolutePath();
+		PathAndFillManager pafm = new PathAndFillManager();
+		if( PathAndFillManager.guessTracesFileType(path) == PathAndFillManager.TRACES_FILE_TYPE_SWC ) {
+			/* There is no image to take the calibration from,
+			   so take the coordinates as they are: */
+			pafm.x_spacing = pafm.y_spacing = pafm.z_spacing = 1;
+			pafm.spacing_units = "unknown";
+			pafm.width = pafm.height = pafm.depth = Integer.MAX_VALUE;
+			pafm.needImageDataFromTracesFile = false;
+			if( ! pafm.importSWC( path, false, 0, 0, 0, 1, 1, 1, true ) )
+				return null;
+			pafm.width = pafm.height = pafm.depth = -1;
+			return pafm;
+		}
+		return pafm.loadGuessingType(path) ? pafm : null;
+	}
+
+	/* The image has the dimensions of the image the paths were
+	   traced on, if they are known, or else covers all the points. */
+
+	protected ImagePlus makeImage( PathAndFillManager pafm, ShollResults results ) {
+		double x_spacing = 1, y_spacing = 1, z_spacing = 1;
+		int width = pafm.width, height = pafm.height, depth = pafm.depth;
+		if( width > 0 && height > 0 && depth > 0 ) {
+			x_spacing = pafm.x_spacing;
+			y_spacing = pafm.y_spacing;
+			z_spacing = pafm.z_spacing;
+		} else {
+			width = height = depth = 1;
+			for( Path p : pafm.allPaths )
+				for( int i = 0; i < p.size(); ++i ) {
+					width = Math.max(width, (int)Math.ceil(p.precise_x_positions[i]) + 1);
+					height = Math.max(height, (int)Math.ceil(p.precise_y_positions[i]) + 1);
+					depth = Math.max(depth, (int)Math.ceil(p.precise_z_positions[i]) + 1);
+				}
+		}
+		Calibration c = new Calibration();
+		c.pixelWidth = x_spacing;
+		c.pixelHeight = y_spacing;
+		c.pixelDepth = z_spacing;
+		if( pafm.spacing_units != null )
+			c.setUnit(pafm.spacing_units);
+		return results.makeShollCrossingsImage( width, height, depth, c );
+	}
+
+	public void writeSummary( List<FileResult> results, File outputFile ) throws IOException {
+		String [] headers = new String[]{ "Filename",
+						  "NumberOfPathsUsed",
+						  "CentreX",
+						  "CentreY",
+						  "CentreZ",
+						  "SphereSeparation",
+						  "Normalization",
+						  "Axes",
+						  "CriticalValue",
+						  "DendriteMaximum",
+						  "ShollRegressionCoefficient",
+						  "RegressionGradient",
+						  "RegressionIntercept",
+						  "LoadMilliseconds",
+						  "AnalysisMilliseconds",
+						  "Error" };
+
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile.getAbsolutePath()),"UTF-8"));
+		try {
+			for( int c = 0; c < headers.length; ++c ) {
+				if( c > 0 )
+					pw.print(",");
+				ShollResults.csvQuoteAndPrint(pw,headers[c]);
+			}
+			pw.print("\r\n");
+			for( FileResult r : results ) {
+				ShollResults s = r.results;
+				Object [] values = {
+					r.file.getAbsolutePath(),
+					r.numberOfPaths,
+					r.x_start,
+					r.y_start,
+					r.z_start,
+					sphereSeparation,
+					ShollAnalysisDialog.normalizationParameters[normalization],
+					ShollAnalysisDialog.axesParameters[axes],
+					s == null ? "" : s.getCriticalValue(),
+					s == null ? "" : s.getDendriteMaximum(),
+					s == null ? "" : s.getShollRegressionCoefficient(),
+					s == null ? "" : s.getRegressionGradient(),
+					s == null ? "" : s.getRegressionIntercept(),
+					r.loadMilliseconds,
+					r.analysisMilliseconds,
+					r.error == null ? "" : r.error };
+				for( int c = 0; c < values.length; ++c ) {
+					if( c > 0 )
+						pw.print(",");
+					ShollResults.csvQuoteAndPrint(pw,values[c]);
+				}
+				pw.print("\r\n");
+			}
+		} finally {
+			pw.close();
+		}
+	}
+
+	public List<FileResult> run( File inputDirectory, File outputDirectory ) throws IOException {
+		List<File> files = findReconstructions( inputDirectory );
+		long start = System.currentTimeMillis();
+		List<FileResult> results = analyse( files, outputDirectory );
+		writeSummary( results, new File( outputDirectory, "sholl-summary.csv" ) );
+		IJ.showStatus("Analysed " + files.size() + " reconstructions in "
+			      + (System.currentTimeMillis() - start) + "ms");
+		return results;
+	}
+
+	public void run( String ignored ) {
+		DirectoryChooser chooser = new DirectoryChooser("Directory with traces / SWC files");
+		String inputDirectory = chooser.getDirectory();
+		if( inputDirectory == null )
+			return;
+		chooser = new DirectoryChooser("Directory for the results");
+		String outputDirectory = chooser.getDirectory();
+		if( outputDirectory == null )
+			return;
+
+		GenericDialog gd = new GenericDialog("Batch Sholl Analysis");
+		gd.addNumericField("Sphere separation (0 for unsampled analysis)", sphereSeparation, 3);
+		gd.addChoice("Axes", new String[] { "normal", "semi-log", "log-log" }, "normal");
+		gd.addCheckbox("Normalize for area / volume enclosed", false);
+		gd.addCheckbox("Write detailed CSV files", writeDetail);
+		gd.addCheckbox("Make crossings images", makeImages);
+		gd.addNumericField("Threads", numberOfThreads, 0);
+		gd.showDialog();
+		if( gd.wasCanceled() )
+			return;
+		sphereSeparation = gd.getNextNumber();
+		axes = ShollAnalysisDialog.AXES_NORMAL + gd.getNextChoiceIndex();
+		normalization = gd.getNextBoolean() ?
+			ShollAnalysisDialog.NORMALIZED_FOR_SPHERE_VOLUME :
+			ShollAnalysisDialog.NOT_NORMALIZED;
+		writeDetail = gd.getNextBoolean();
+		makeImages = gd.getNextBoolean();
+		numberOfThreads = Math.max(1, (int)gd.getNextNumber());
+
+		try {
+			List<FileResult> results = run( new File(inputDirectory), new File(outputDirectory) );
+			int failed = 0;
+			for( FileResult r : results )
+				if( r.error != null ) {
+					IJ.log(r.file + ": " + r.error);
+					++ failed;
+				}
+			if( failed > 0 )
+				IJ.showMessage("Batch Sholl Analysis", failed + " of " + results.size()
+					       + " reconstructions could not be analysed (see the Log window)");
+		} catch( IOException e ) {
+			IJ.error("Writing the summary failed: " + e);
+		}
+	}
+
+	public static void main( String [] args ) throws IOException {
+		if( args.length < 2 ) {
+			System.err.println("Usage: Batch_Sholl_Analysis <input directory> <output directory> [<sphere separation> [<threads>]]");
+			System.exit(1);
+		}
+		Batch_Sholl_Analysis batch = new Batch_Sholl_Analysis();
+		if( args.length > 2 )
+			batch.sphereSeparation = Double.parseDouble(args[2]);
+		if( args.length > 3 )
+			batch.numberOfThreads = Integer.parseInt(args[3]);
+		List<FileResult> results = batch.run( new File(args[0]), new File(args[1]) );
+		for( FileResult r : results )
+			if( r.error != null )
+				System.err.println(r.file + ": " + r.error);
+	}
+}
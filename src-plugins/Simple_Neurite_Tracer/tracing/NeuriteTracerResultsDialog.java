@@ -1085,7 +1085,7 @@ public void actionPerformed( ActionEvent e ) {
 			int preSavingState = currentState;
 			changeState( SAVING );
 			try {
-				pathAndFillManager.writeXML( savePath, true );
+				pathAndFillManager.writeTraces( savePath );
 			} catch( IOException ioe ) {
 				IJ.showStatus("Saving failed.");
 				IJ.error("Writing traces to '"+savePath+"' failed: "+ioe);
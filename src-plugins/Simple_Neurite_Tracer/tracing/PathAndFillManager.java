@@ -38,6 +38,7 @@
 import java.util.LinkedList;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import ij.*;
 
@@ -92,6 +93,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	boolean needImageDataFromTracesFile;
 
+	/* The points of all paths, for nearestPointOnAnyPath: */
+	protected PathPointIndex pointIndex = new PathPointIndex( 0 );
+
 	public PathAndFillManager( ) {
 		allPaths = new ArrayList< Path >();
 		allFills = new ArrayList< Fill >();
@@ -654,6 +658,7 @@ public synchronized void addPath( Path p, boolean forceNewName ) {
 			p.addTo3DViewer( plugin.univ, plugin.deselectedColor3f, plugin.colorImage );
 		}
 		allPaths.add(p);
+		pointIndex.add(p);
 		resetListeners( p );
 	}
 
@@ -702,8 +707,11 @@ private synchronized void deletePath( int index, boolean updateInterface ) {
 		}
 
 		allPaths.remove(unfittedPathToDelete);
-		if( fittedPathToDelete != null )
+		pointIndex.remove(unfittedPathToDelete);
+		if( fittedPathToDelete != null ) {
 			allPaths.remove(fittedPathToDelete);
+			pointIndex.remove(fittedPathToDelete);
+		}
 
 		// We don't just delete; have to fix up the references
 		// in other paths (for start and end joins):
@@ -883,9 +891,9 @@ synchronized public void writeXML( String fileName,
 							p.startJoinsPoint.z );
 					}
 					startsString = " startson=\"" + startPathID + "\"" +
-						" startx=\"" + p.startJoinsPoint.x + "\"" +
-						" starty=\"" + p.startJoinsPoint.y + "\"" +
-						" startz=\"" + p.startJoinsPoint.z + "\"";
+						" startsx=\"" + p.startJoinsPoint.x + "\"" +
+						" startsy=\"" + p.startJoinsPoint.y + "\"" +
+						" startsz=\"" + p.startJoinsPoint.z + "\"";
 					if( nearestIndexOnStartPath >= 0 )
 						startsString += " startsindex=\"" + nearestIndexOnStartPath + "\"";
 				}
@@ -955,6 +963,247 @@ synchronized public void writeXML( String fileName,
 		}
 	}
 
+	/* A compact binary alternative to the XML traces files, for
+	   reconstructions with millions of points or large fills.
+	   It holds the same information as the XML format, so the
+	   two can be converted into each other without loss, but
+	   the points of each path and the nodes of each fill are
+	   stored as columns of raw numbers that can be read in bulk,
+	   rather than as one element per point.  The open / closed
+	   status of the fill nodes is run-length encoded.
+
+	   All numbers are big-endian, the strings are in the format
+	   of DataOutput.writeUTF():
+
+	     "SNTB", version (int)
+	     width, height, depth (int)
+	     x, y and z spacing (double), units (string)
+	     the number of paths (int), then for each path:
+	       id, SWC type (int), flags (byte)
+	       name (string, if BINARY_HAS_NAME)
+	       fitted id, id of the path this is the fitted version of (int, or -1)
+	       start path id (int) and join point (3 doubles), if BINARY_STARTS_ON
+	       end path id (int) and join point (3 doubles), if BINARY_ENDS_ON
+	       the number of points n (int)
+	       xd[n], yd[n], zd[n] (double)
+	       tx[n], ty[n], tz[n], r[n] (double), if BINARY_HAS_CIRCLES
+	     the number of fills (int), then for each fill:
+	       metric (string, if BINARY_HAS_METRIC), threshold (double)
+	       the number of source paths, then their ids (int)
+	       the number of nodes n (int)
+	       x[n], y[n], z[n], previous[n] (int), distance[n] (double)
+	       the number of runs (int), then the run lengths (int) of
+	         alternately closed and open nodes, starting with closed
+	*/
+
+	public static final int BINARY_VERSION = 1;
+
+	static final int BINARY_PRIMARY = 1;
+	static final int BINARY_USE_FITTED = 2;
+	static final int BINARY_HAS_NAME = 4;
+	static final int BINARY_STARTS_ON = 8;
+	static final int BINARY_ENDS_ON = 16;
+	static final int BINARY_HAS_CIRCLES = 32;
+	static final int BINARY_HAS_METRIC = 1;
+
+	synchronized public void writeBinary( String fileName ) throws IOException {
+
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+
+			out.writeBytes("SNTB");
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(depth);
+			out.writeDouble(x_spacing);
+			out.writeDouble(y_spacing);
+			out.writeDouble(z_spacing);
+			out.writeUTF(spacing_units == null ? "" : spacing_units);
+
+			out.writeInt(allPaths.size());
+			for( Path p : allPaths ) {
+				int flags = 0;
+				if( p.getPrimary() )
+					flags |= BINARY_PRIMARY;
+				if( p.getUseFitted() )
+					flags |= BINARY_USE_FITTED;
+				if( p.name != null )
+					flags |= BINARY_HAS_NAME;
+				if( p.startJoins != null )
+					flags |= BINARY_STARTS_ON;
+				if( p.endJoins != null )
+					flags |= BINARY_ENDS_ON;
+				if( p.hasCircles() )
+					flags |= BINARY_HAS_CIRCLES;
+
+				out.writeInt(p.getID());
+				out.writeInt(p.getSWCType());
+				out.writeByte(flags);
+				if( p.name != null )
+					out.writeUTF(p.name);
+				out.writeInt(p.fitted == null ? -1 : p.fitted.getID());
+				out.writeInt(p.fittedVersionOf == null ? -1 : p.fittedVersionOf.getID());
+				if( p.startJoins != null ) {
+					out.writeInt(p.startJoins.getID());
+					out.writeDouble(p.startJoinsPoint.x);
+					out.writeDouble(p.startJoinsPoint.y);
+					out.writeDouble(p.startJoinsPoint.z);
+				}
+				if( p.endJoins != null ) {
+					out.writeInt(p.endJoins.getID());
+					out.writeDouble(p.endJoinsPoint.x);
+					out.writeDouble(p.endJoinsPoint.y);
+					out.writeDouble(p.endJoinsPoint.z);
+				}
+
+				int n = p.size();
+				out.writeInt(n);
+				writeColumn(out, p.precise_x_positions, n);
+				writeColumn(out, p.precise_y_positions, n);
+				writeColumn(out, p.precise_z_positions, n);
+				if( p.hasCircles() ) {
+					writeColumn(out, p.tangents_x, n);
+					writeColumn(out, p.tangents_y, n);
+					writeColumn(out, p.tangents_z, n);
+					writeColumn(out, p.radiuses, n);
+				}
+			}
+
+			out.writeInt(allFills.size());
+			for( Fill f : allFills ) {
+				String metric = f.getMetric();
+				out.writeByte(metric == null ? 0 : BINARY_HAS_METRIC);
+				if( metric != null )
+					out.writeUTF(metric);
+				out.writeDouble(f.getThreshold());
+
+				if( f.sourcePaths == null )
+					out.writeInt(0);
+				else {
+					out.writeInt(f.sourcePaths.size());
+					for( Path p : f.sourcePaths )
+						out.writeInt(p.getID());
+				}
+
+				int n = f.nodeList.size();
+				int [] xs = new int[n];
+				int [] ys = new int[n];
+				int [] zs = new int[n];
+				int [] previous = new int[n];
+				double [] distances = new double[n];
+				int [] runs = new int[n + 1];
+				int runCount = 0, runLength = 0;
+				boolean open = false;
+				for( int i = 0; i < n; ++i ) {
+					Fill.Node node = f.nodeList.get(i);
+					xs[i] = node.x;
+					ys[i] = node.y;
+					zs[i] = node.z;
+					previous[i] = node.previous;
+					distances[i] = node.distance;
+					if( node.open != open ) {
+						runs[runCount++] = runLength;
+						runLength = 0;
+						open = node.open;
+					}
+					++ runLength;
+				}
+				runs[runCount++] = runLength;
+
+				out.writeInt(n);
+				writeColumn(out, xs, n);
+				writeColumn(out, ys, n);
+				writeColumn(out, zs, n);
+				writeColumn(out, previous, n);
+				writeColumn(out, distances, n);
+				out.writeInt(runCount);
+				writeColumn(out, runs, runCount);
+			}
+		} finally {
+			if( out != null )
+				out.close();
+		}
+	}
+
+	/* The columns are converted in chunks through a ByteBuffer,
+	   which is much faster than writing or reading the values
+	   one at a time: */
+
+	static final int COLUMN_CHUNK = 1 << 13;
+
+	static void writeColumn( DataOutputStream out, double [] values, int n ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8 * Math.min(n, COLUMN_CHUNK));
+		for( int i = 0; i < n; i += COLUMN_CHUNK ) {
+			int count = Math.min(COLUMN_CHUNK, n - i);
+			buffer.clear();
+			buffer.asDoubleBuffer().put(values, i, count);
+			out.write(buffer.array(), 0, 8 * count);
+		}
+	}
+
+	static void writeColumn( DataOutputStream out, int [] values, int n ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(n, COLUMN_CHUNK));
+		for( int i = 0; i < n; i += COLUMN_CHUNK ) {
+			int count = Math.min(COLUMN_CHUNK, n - i);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, i, count);
+			out.write(buffer.array(), 0, 4 * count);
+		}
+	}
+
+	static void readColumn( DataInputStream in, double [] values, int n ) throws IOException {
+		byte [] bytes = new byte[8 * Math.min(n, COLUMN_CHUNK)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		for( int i = 0; i < n; i += COLUMN_CHUNK ) {
+			int count = Math.min(COLUMN_CHUNK, n - i);
+			in.readFully(bytes, 0, 8 * count);
+			buffer.clear();
+			buffer.asDoubleBuffer().get(values, i, count);
+		}
+	}
+
+	static void readColumn( DataInputStream in, int [] values, int n ) throws IOException {
+		byte [] bytes = new byte[4 * Math.min(n, COLUMN_CHUNK)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		for( int i = 0; i < n; i += COLUMN_CHUNK ) {
+			int count = Math.min(COLUMN_CHUNK, n - i);
+			in.readFully(bytes, 0, 4 * count);
+			buffer.clear();
+			buffer.asIntBuffer().get(values, i, count);
+		}
+	}
+
+	/* Write the traces in the format implied by the file name:
+	   binary if it ends with ".btraces", otherwise compressed
+	   XML. */
+
+	public void writeTraces( String fileName ) throws IOException {
+		if( fileName.toLowerCase().endsWith(".btraces") )
+			writeBinary( fileName );
+		else
+			writeXML( fileName, true );
+	}
+
+	/* Convert a traces file between the XML and binary formats;
+	   the format of the input is guessed, the format of the
+	   output depends on its name (see writeTraces()). */
+
+	public static boolean convertTracesFile( String inputFileName, String outputFileName ) {
+		PathAndFillManager pafm = createFromTracesFile( inputFileName );
+		if( pafm == null )
+			return false;
+		try {
+			pafm.writeTraces( outputFileName );
+		} catch( IOException e ) {
+			IJ.error("Writing traces to '"+outputFileName+"' failed: "+e);
+			return false;
+		}
+		return true;
+	}
+
 	double parsed_x_spacing;
 	double parsed_y_spacing;
 	double parsed_z_spacing;
@@ -986,34 +1235,74 @@ synchronized public void writeXML( String fileName,
 
 	HashSet< Integer > foundIDs;
 
-	@Override
-	public void startElement(String uri, String localName, String qName, Attributes attributes) throws TracesFileFormatException {
+	/* Called when we start reading a traces file, whatever
+	   its format: */
 
-		if( qName.equals("tracings") ) {
+	void startLoading( ) {
 
-			startJoins            = new HashMap< Integer, Integer >();
-			startJoinsIndices     = new HashMap< Integer, Integer >();
-			startJoinsPoints      = new HashMap< Integer, PointInImage >();
-			endJoins              = new HashMap< Integer, Integer >();
-			endJoinsIndices       = new HashMap< Integer, Integer >();
-			endJoinsPoints        = new HashMap< Integer, PointInImage >();
-			useFittedFields       = new HashMap< Integer, Boolean >();
-			fittedFields          = new HashMap< Integer, Integer >();
-			fittedVersionOfFields = new HashMap< Integer, Integer >();
+		startJoins            = new HashMap< Integer, Integer >();
+		startJoinsIndices     = new HashMap< Integer, Integer >();
+		startJoinsPoints      = new HashMap< Integer, PointInImage >();
+		endJoins              = new HashMap< Integer, Integer >();
+		endJoinsIndices       = new HashMap< Integer, Integer >();
+		endJoinsPoints        = new HashMap< Integer, PointInImage >();
+		useFittedFields       = new HashMap< Integer, Boolean >();
+		fittedFields          = new HashMap< Integer, Integer >();
+		fittedVersionOfFields = new HashMap< Integer, Integer >();
 
-			sourcePathIDForFills = new ArrayList< int [] >();
-			foundIDs = new HashSet< Integer >();
+		sourcePathIDForFills = new ArrayList< int [] >();
+		foundIDs = new HashSet< Integer >();
 
-			last_fill_id = -1;
+		last_fill_id = -1;
 
-			/* We need to remove the old paths and fills
-			 * before loading the ones: */
+		/* We need to remove the old paths and fills
+		 * before loading the ones: */
 
-			if (verbose) System.out.println("Clearing old paths and fills...");
+		if (verbose) System.out.println("Clearing old paths and fills...");
 
-			clearPathsAndFills();
+		clearPathsAndFills();
+
+		if (verbose) System.out.println("Now "+allPaths.size()+" paths and "+allFills.size()+" fills");
+	}
+
+	void setParsedImageSize( int width, int height, int depth ) throws TracesFileFormatException {
+
+		parsed_width = width;
+		parsed_height = height;
+		parsed_depth = depth;
+
+		if( needImageDataFromTracesFile ) {
+			this.width = parsed_width;
+			this.height = parsed_height;
+			this.depth = parsed_depth;
+		} else if( ! ((parsed_width == this.width) &&
+			      (parsed_height == this.height) &&
+			      (parsed_depth == this.depth)) ) {
+			throw new TracesFileFormatException("The image size in the traces file didn't match - it's probably for another image");
+		}
+	}
+
+	void setParsedSpacing( double x, double y, double z, String units ) {
+
+		parsed_x_spacing = x;
+		parsed_y_spacing = y;
+		parsed_z_spacing = z;
+		parsed_units = units;
+
+		if( needImageDataFromTracesFile ) {
+			this.x_spacing = parsed_x_spacing;
+			this.y_spacing = parsed_y_spacing;
+			this.z_spacing = parsed_z_spacing;
+			this.spacing_units = parsed_units;
+		}
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws TracesFileFormatException {
 
-			if (verbose) System.out.println("Now "+allPaths.size()+" paths and "+allFills.size()+" fills");
+		if( qName.equals("tracings") ) {
+
+			startLoading();
 
 		} else if( qName.equals("imagesize") ) {
 
@@ -1023,19 +1312,9 @@ public void startElement(String uri, String localName, String qName, Attributes
 				String heightString = attributes.getValue("height");
 				String depthString = attributes.getValue("depth");
 
-				parsed_width = Integer.parseInt(widthString);
-				parsed_height = Integer.parseInt(heightString);
-				parsed_depth = Integer.parseInt(depthString);
-
-				if( needImageDataFromTracesFile ) {
-					this.width = parsed_width;
-					this.height = parsed_height;
-					this.depth = parsed_depth;
-				} else if( ! ((parsed_width == width) &&
-					      (parsed_height == height) &&
-					      (parsed_depth == depth)) ) {
-					throw new TracesFileFormatException("The image size in the traces file didn't match - it's probably for another image");
-				}
+				setParsedImageSize( Integer.parseInt(widthString),
+						    Integer.parseInt(heightString),
+						    Integer.parseInt(depthString) );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <imagesize/>: "+e);
@@ -1048,18 +1327,11 @@ public void startElement(String uri, String localName, String qName, Attributes
 				String xString = attributes.getValue("x");
 				String yString = attributes.getValue("y");
 				String zString = attributes.getValue("z");
-				parsed_units = attributes.getValue("units");
 
-				parsed_x_spacing = Double.parseDouble(xString);
-				parsed_y_spacing = Double.parseDouble(yString);
-				parsed_z_spacing = Double.parseDouble(zString);
-
-				if( needImageDataFromTracesFile ) {
-					this.x_spacing = parsed_x_spacing;
-					this.y_spacing = parsed_y_spacing;
-					this.z_spacing = parsed_z_spacing;
-					this.spacing_units = parsed_units;
-				}
+				setParsedSpacing( Double.parseDouble(xString),
+						  Double.parseDouble(yString),
+						  Double.parseDouble(zString),
+						  attributes.getValue("units") );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <samplespacing/>: "+e);
@@ -1422,90 +1694,99 @@ public void endElement(String uri, String localName, String qName) throws Traces
 
 			// Then we've finished...
 
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-
-				Integer startID = startJoins.get(p.getID());
-				Integer startIndexInteger = startJoinsIndices.get(p.getID());
-				PointInImage startJoinPoint = startJoinsPoints.get(p.getID());
-				Integer endID = endJoins.get(p.getID());
-				Integer endIndexInteger = endJoinsIndices.get(p.getID());
-				PointInImage endJoinPoint = endJoinsPoints.get(p.getID());
-				Integer fittedID = fittedFields.get(p.getID());
-				Integer fittedVersionOfID = fittedVersionOfFields.get(p.getID());
-				Boolean useFitted = useFittedFields.get(p.getID());
-
-				if( startID != null ) {
-					Path startPath = getPathFromID(startID);
-					if( startJoinPoint == null ) {
-						// Then we have to get it from startIndexInteger:
-						startJoinPoint = startPath.getPointInImage(startIndexInteger.intValue());
-					}
-					p.setStartJoin( startPath, startJoinPoint );
-				}
-				if( endID != null ) {
-					Path endPath = getPathFromID(endID);
-					if( endJoinPoint == null ) {
-						// Then we have to get it from endIndexInteger:
-						endJoinPoint = endPath.getPointInImage(endIndexInteger.intValue());
-					}
-					p.setEndJoin( endPath, endJoinPoint );
-				}
-				if( fittedID != null ) {
-					Path fitted = getPathFromID(fittedID);
-					p.fitted = fitted;
-					p.setUseFitted(useFitted.booleanValue());
-				}
-				if( fittedVersionOfID != null ) {
-					Path fittedVersionOf = getPathFromID(fittedVersionOfID);
-					p.fittedVersionOf = fittedVersionOf;
-				}
-			}
+			finishLoading();
+		}
 
-			// Do some checks that the fitted and fittedVersionOf fields match up:
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-				if( p.fitted != null ) {
-					if( p.fitted.fittedVersionOf == null )
-						throw new TracesFileFormatException("Malformed traces file: p.fitted.fittedVersionOf was null");
-					else if( p != p.fitted.fittedVersionOf )
-						throw new TracesFileFormatException("Malformed traces file: p didn't match p.fitted.fittedVersionOf");
-				} else if( p.fittedVersionOf != null ) {
-					if( p.fittedVersionOf.fitted == null )
-						throw new TracesFileFormatException("Malformed traces file: p.fittedVersionOf.fitted was null");
-					else if( p != p.fittedVersionOf.fitted )
-						throw new TracesFileFormatException("Malformed traces file: p didn't match p.fittedVersionOf.fitted");
+	}
+
+	/* Called when all the paths and fills have been read from a
+	   traces file, to resolve the references between them: */
+
+	void finishLoading( ) throws TracesFileFormatException {
+
+		for( int i = 0; i < allPaths.size(); ++i ) {
+			Path p = allPaths.get(i);
+
+			Integer startID = startJoins.get(p.getID());
+			Integer startIndexInteger = startJoinsIndices.get(p.getID());
+			PointInImage startJoinPoint = startJoinsPoints.get(p.getID());
+			Integer endID = endJoins.get(p.getID());
+			Integer endIndexInteger = endJoinsIndices.get(p.getID());
+			PointInImage endJoinPoint = endJoinsPoints.get(p.getID());
+			Integer fittedID = fittedFields.get(p.getID());
+			Integer fittedVersionOfID = fittedVersionOfFields.get(p.getID());
+			Boolean useFitted = useFittedFields.get(p.getID());
+
+			if( startID != null ) {
+				Path startPath = getPathFromID(startID);
+				if( startJoinPoint == null ) {
+					// Then we have to get it from startIndexInteger:
+					startJoinPoint = startPath.getPointInImage(startIndexInteger.intValue());
 				}
-				if( p.useFitted && p.fitted == null ) {
-					throw new TracesFileFormatException("Malformed traces file: p.useFitted was true but p.fitted was null");
+				p.setStartJoin( startPath, startJoinPoint );
+			}
+			if( endID != null ) {
+				Path endPath = getPathFromID(endID);
+				if( endJoinPoint == null ) {
+					// Then we have to get it from endIndexInteger:
+					endJoinPoint = endPath.getPointInImage(endIndexInteger.intValue());
 				}
+				p.setEndJoin( endPath, endJoinPoint );
 			}
-
-			// Now we're safe to add them all to the 3D Viewer
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-				addTo3DViewer( p );
+			if( fittedID != null ) {
+				Path fitted = getPathFromID(fittedID);
+				p.fitted = fitted;
+				p.setUseFitted(useFitted.booleanValue());
+			}
+			if( fittedVersionOfID != null ) {
+				Path fittedVersionOf = getPathFromID(fittedVersionOfID);
+				p.fittedVersionOf = fittedVersionOf;
 			}
+		}
 
-			// Now turn the source paths into real paths...
-			for( int i = 0; i < allFills.size(); ++i ) {
-				Fill f = allFills.get(i);
-				Set<Path> realSourcePaths = new HashSet<Path>();
-				int [] sourcePathIDs = sourcePathIDForFills.get(i);
-				for( int j = 0; j < sourcePathIDs.length; ++j ) {
-					Path sourcePath = getPathFromID(sourcePathIDs[j]);
-					if( sourcePath != null )
-						realSourcePaths.add( sourcePath );
-				}
-				f.setSourcePaths( realSourcePaths );
+		// Do some checks that the fitted and fittedVersionOf fields match up:
+		for( int i = 0; i < allPaths.size(); ++i ) {
+			Path p = allPaths.get(i);
+			if( p.fitted != null ) {
+				if( p.fitted.fittedVersionOf == null )
+					throw new TracesFileFormatException("Malformed traces file: p.fitted.fittedVersionOf was null");
+				else if( p != p.fitted.fittedVersionOf )
+					throw new TracesFileFormatException("Malformed traces file: p didn't match p.fitted.fittedVersionOf");
+			} else if( p.fittedVersionOf != null ) {
+				if( p.fittedVersionOf.fitted == null )
+					throw new TracesFileFormatException("Malformed traces file: p.fittedVersionOf.fitted was null");
+				else if( p != p.fittedVersionOf.fitted )
+					throw new TracesFileFormatException("Malformed traces file: p didn't match p.fittedVersionOf.fitted");
+			}
+			if( p.useFitted && p.fitted == null ) {
+				throw new TracesFileFormatException("Malformed traces file: p.useFitted was true but p.fitted was null");
 			}
+		}
 
-			setSelected( new Path[0], this );
-			resetListeners( null, true );
-			if( plugin != null )
-				plugin.repaintAllPanes();
+		// Now we're safe to add them all to the 3D Viewer
+		for( int i = 0; i < allPaths.size(); ++i ) {
+			Path p = allPaths.get(i);
+			addTo3DViewer( p );
+		}
+
+		// Now turn the source paths into real paths...
+		for( int i = 0; i < allFills.size(); ++i ) {
+			Fill f = allFills.get(i);
+			Set<Path> realSourcePaths = new HashSet<Path>();
+			int [] sourcePathIDs = sourcePathIDForFills.get(i);
+			for( int j = 0; j < sourcePathIDs.length; ++j ) {
+				Path sourcePath = getPathFromID(sourcePathIDs[j]);
+				if( sourcePath != null )
+					realSourcePaths.add( sourcePath );
+			}
+			f.setSourcePaths( realSourcePaths );
+			f.setSpacing( x_spacing, y_spacing, z_spacing, spacing_units );
 		}
 
+		setSelected( new Path[0], this );
+		resetListeners( null, true );
+		if( plugin != null )
+			plugin.repaintAllPanes();
 	}
 
 	public static PathAndFillManager createFromTracesFile( String filename ) {
@@ -1580,6 +1861,7 @@ void clearPathsAndFills( ) {
 				p.removeFrom3DViewer( plugin.univ );
 		}
 		allPaths.clear();
+		pointIndex.clear();
 		allFills.clear();
 		resetListeners( null );
 	}
@@ -1849,6 +2131,7 @@ public boolean importSWC( String filename, boolean ignoreCalibration,
 	public static final int TRACES_FILE_TYPE_COMPRESSED_XML = 1;
 	public static final int TRACES_FILE_TYPE_UNCOMPRESSED_XML = 2;
 	public static final int TRACES_FILE_TYPE_SWC = 3;
+	public static final int TRACES_FILE_TYPE_BINARY = 4;
 
 	public static int guessTracesFileType( String filename ) {
 
@@ -1861,6 +2144,8 @@ public static int guessTracesFileType( String filename ) {
 		   If it begins "<?xml", assume it's an uncompressed
 		   traces file.
 
+		   If it begins "SNTB", it's a binary traces file.
+
 		   Otherwise, assum it's an SWC file.
 		*/
 
@@ -1883,6 +2168,9 @@ else if( ((buf[0] == '<') && (buf[1] == '?') &&
 				  (buf[2] == 'x') && (buf[3] == 'm') &&
 				  (buf[4] == 'l') && (buf[5] == ' ')) )
 				return TRACES_FILE_TYPE_UNCOMPRESSED_XML;
+			else if( buf[0] == 'S' && buf[1] == 'N' &&
+				 buf[2] == 'T' && buf[3] == 'B' )
+				return TRACES_FILE_TYPE_BINARY;
 
 		} catch (IOException e) {
 			IJ.error("Couldn't read from file: "+filename);
@@ -1912,6 +2200,145 @@ public boolean loadUncompressedXML( String filename ) {
 		}
 	}
 
+	public boolean loadBinary( String filename ) {
+		DataInputStream in = null;
+		try {
+			if (verbose) System.out.println("Loading binary file...");
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+			loadBinary( in );
+			// We must have got the image data if we've got to this stage...
+			needImageDataFromTracesFile = false;
+			return true;
+		} catch( TracesFileFormatException e ) {
+			clearPathsAndFills();
+			IJ.error(e.toString());
+			return false;
+		} catch( IOException e ) {
+			clearPathsAndFills();
+			IJ.error("There was an IO exception while reading the file: "+e);
+			return false;
+		} finally {
+			if( in != null ) try {
+				in.close();
+			} catch( IOException e ) { }
+		}
+	}
+
+	/* Read a binary traces file (see writeBinary()), creating
+	   each path as soon as its points are read: */
+
+	void loadBinary( DataInputStream in ) throws IOException, TracesFileFormatException {
+
+		byte [] magic = new byte[4];
+		in.readFully(magic);
+		if( ! new String(magic, "US-ASCII").equals("SNTB") )
+			throw new TracesFileFormatException("Not a binary traces file");
+		int version = in.readInt();
+		if( version > BINARY_VERSION )
+			throw new TracesFileFormatException("Unsupported binary traces file version: "+version);
+
+		startLoading();
+
+		setParsedImageSize( in.readInt(), in.readInt(), in.readInt() );
+		setParsedSpacing( in.readDouble(), in.readDouble(), in.readDouble(), in.readUTF() );
+
+		int numberOfPaths = in.readInt();
+		for( int i = 0; i < numberOfPaths; ++i ) {
+			int id = in.readInt();
+			if( foundIDs.contains(id) )
+				throw new TracesFileFormatException("There is more than one path with ID "+id);
+			foundIDs.add(id);
+			if( id > maxUsedID )
+				maxUsedID = id;
+			int swcType = in.readInt();
+			int flags = in.readByte();
+			String name = (flags & BINARY_HAS_NAME) != 0 ? in.readUTF() : null;
+			int fittedID = in.readInt();
+			int fittedVersionOfID = in.readInt();
+			if( (flags & BINARY_STARTS_ON) != 0 ) {
+				startJoins.put( id, in.readInt() );
+				startJoinsPoints.put( id, new PointInImage( in.readDouble(), in.readDouble(), in.readDouble() ) );
+			}
+			if( (flags & BINARY_ENDS_ON) != 0 ) {
+				endJoins.put( id, in.readInt() );
+				endJoinsPoints.put( id, new PointInImage( in.readDouble(), in.readDouble(), in.readDouble() ) );
+			}
+			useFittedFields.put( id, (flags & BINARY_USE_FITTED) != 0 );
+			if( fittedID >= 0 )
+				fittedFields.put( id, fittedID );
+			if( fittedVersionOfID >= 0 )
+				fittedVersionOfFields.put( id, fittedVersionOfID );
+
+			int n = in.readInt();
+			if( n < 0 )
+				throw new TracesFileFormatException("Negative number of points in path "+id);
+			Path p = new Path( x_spacing, y_spacing, z_spacing, spacing_units, Math.max(n, 1) );
+			p.setID(id);
+			p.setSWCType(swcType,false);
+			p.setPrimary((flags & BINARY_PRIMARY) != 0);
+			if( name == null )
+				p.setDefaultName();
+			else
+				p.setName(name);
+			readColumn(in, p.precise_x_positions, n);
+			readColumn(in, p.precise_y_positions, n);
+			readColumn(in, p.precise_z_positions, n);
+			p.points = n;
+			if( (flags & BINARY_HAS_CIRCLES) != 0 ) {
+				p.createCircles();
+				readColumn(in, p.tangents_x, n);
+				readColumn(in, p.tangents_y, n);
+				readColumn(in, p.tangents_z, n);
+				readColumn(in, p.radiuses, n);
+			}
+			allPaths.add(p);
+		}
+
+		int numberOfFills = in.readInt();
+		for( int i = 0; i < numberOfFills; ++i ) {
+			Fill f = new Fill();
+			if( (in.readByte() & BINARY_HAS_METRIC) != 0 )
+				f.setMetric(in.readUTF());
+			f.setThreshold(in.readDouble());
+
+			int [] sourcePathIDs = new int[in.readInt()];
+			readColumn(in, sourcePathIDs, sourcePathIDs.length);
+			sourcePathIDForFills.add(sourcePathIDs);
+
+			int n = in.readInt();
+			if( n < 0 )
+				throw new TracesFileFormatException("Negative number of nodes in fill "+i);
+			int [] xs = new int[n];
+			int [] ys = new int[n];
+			int [] zs = new int[n];
+			int [] previous = new int[n];
+			double [] distances = new double[n];
+			readColumn(in, xs, n);
+			readColumn(in, ys, n);
+			readColumn(in, zs, n);
+			readColumn(in, previous, n);
+			readColumn(in, distances, n);
+			int [] runs = new int[in.readInt()];
+			readColumn(in, runs, runs.length);
+
+			f.nodeList.ensureCapacity(n);
+			int node = 0;
+			for( int run = 0; run < runs.length; ++run ) {
+				boolean open = (run & 1) != 0;
+				int end = node + runs[run];
+				if( runs[run] < 0 || end > n )
+					throw new TracesFileFormatException("Malformed run lengths in fill "+i);
+				for( ; node < end; ++node )
+					f.add( xs[node], ys[node], zs[node], distances[node], previous[node], open );
+			}
+			if( node != n )
+				throw new TracesFileFormatException("Malformed run lengths in fill "+i);
+			allFills.add(f);
+		}
+
+		finishLoading();
+	}
+
 	public boolean loadGuessingType( String filename ) {
 
 		int guessedType = guessTracesFileType( filename );
@@ -1921,6 +2348,8 @@ public boolean loadGuessingType( String filename ) {
 			return loadCompressedXML(filename);
 		case TRACES_FILE_TYPE_UNCOMPRESSED_XML:
 			return loadUncompressedXML(filename);
+		case TRACES_FILE_TYPE_BINARY:
+			return loadBinary(filename);
 		case TRACES_FILE_TYPE_SWC:
 			return importSWC( filename, false, 0, 0, 0, 1, 1, 1, true );
 		default:
@@ -2068,37 +2497,17 @@ public void universeClosed() {
 
 	public NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
 
-		/* Order all points in all paths by their euclidean
-		   distance to (x,y,z): */
-
-		PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
+		/* Paths may have been added directly to allPaths
+		   (e.g. when loading) or have changed since they were
+		   indexed; this only reindexes those paths: */
 
-		for( Path path : allPaths ) {
-			if( ! path.versionInUse() )
-				continue;
-			for( int j = 0; j < path.size(); ++j ) {
-				pq.add( new NearPoint( x, y, z, path, j ) );
-			}
-		}
+		pointIndex.update( allPaths );
 
-		while( true ) {
+		/* Look at the points in order of their euclidean
+		   distance to (x,y,z), but only those in the cells
+		   of the index near (x,y,z): */
 
-			NearPoint np = pq.poll();
-			if( np == null )
-				return null;
-
-			/* Don't bother looking at points that are
-			   more than distanceLimit away.  Since we get
-			   them in the order closest to furthest away,
-			   if we exceed this limit returned: */
-
-			if( np.distanceToPathPointSquared() > (distanceLimit * distanceLimit) )
-				return null;
-
-			double distanceToPath = np.distanceToPathNearPoint();
-			if( distanceToPath >= 0 )
-				return np;
-		}
+		return pointIndex.nearestPointOnAnyPath( x, y, z, distanceLimit );
 	}
 
 	public AllPointsIterator allPointsIterator() {
@@ -0,0 +1,317 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/* A spatial index over the points of a set of paths, so that the
+   path points nearest to a given point can be found without looking
+   at every point of every path.
+
+   The points are put into the cells of a uniform grid (a hash map
+   from the cell coordinates to the points in that cell).  Queries
+   visit the cells in shells of increasing distance from the query
+   point, so the path points are found in order of increasing
+   distance, and only the shells up to that distance are visited.
+
+   All versions of the paths are indexed; as in the rest of
+   PathAndFillManager, only the points of paths for which
+   versionInUse() is true are returned.
+
+   Paths may grow or have their points replaced (e.g. by fitting or
+   downsampling) after they were added; call update() with the
+   current list of paths before querying, to reindex just the paths
+   that changed. */
+
+public class PathPointIndex {
+
+	static class Entry {
+		Path path;
+		int index;
+		double x, y, z;
+	}
+
+	/* What we know about an indexed path, to detect changes: */
+	static class IndexedPath {
+		int size;
+		double [] xs, ys, zs;
+		HashSet<Long> cells = new HashSet<Long>();
+	}
+
+	private double cellSize;
+	private HashMap<Long,ArrayList<Entry>> cells = new HashMap<Long,ArrayList<Entry>>();
+	private HashMap<Path,IndexedPath> paths = new HashMap<Path,IndexedPath>();
+	private int pointCount;
+
+	/* The bounding box of the cells that were ever occupied: */
+	private int minCellX = Integer.MAX_VALUE, minCellY = Integer.MAX_VALUE, minCellZ = Integer.MAX_VALUE;
+	private int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE, maxCellZ = Integer.MIN_VALUE;
+
+	private static final int CELL_OFFSET = 1 << 20;
+	private static final long CELL_MASK = (1L << 21) - 1;
+
+	/* If cellSize is not positive, it is chosen from the
+	   spacing of the points of the first path that is
+	   added. */
+
+	public PathPointIndex( double cellSize ) {
+		this.cellSize = cellSize;
+	}
+
+	public synchronized int size() {
+		return pointCount;
+	}
+
+	public synchronized void clear() {
+		cells.clear();
+		paths.clear();
+		pointCount = 0;
+		minCellX = minCellY = minCellZ = Integer.MAX_VALUE;
+		maxCellX = maxCellY = maxCellZ = Integer.MIN_VALUE;
+	}
+
+	public synchronized void add( Path p ) {
+		if( paths.containsKey( p ) )
+			remove( p );
+		int n = p.size();
+		if( cellSize <= 0 && n > 1 )
+			cellSize = 4 * p.getRealLength() / (n - 1);
+		if( cellSize <= 0 || Double.isNaN( cellSize ) || Double.isInfinite( cellSize ) ) {
+			if( n == 0 ) {
+				// Wait for a path with points to choose the cell size:
+				cellSize = 0;
+			} else
+				cellSize = 1;
+		}
+		IndexedPath ip = new IndexedPath();
+		ip.size = n;
+		ip.xs = p.precise_x_positions;
+		ip.ys = p.precise_y_positions;
+		ip.zs = p.precise_z_positions;
+		paths.put( p, ip );
+		for( int i = 0; i < n; ++i ) {
+			Entry e = new Entry();
+			e.path = p;
+			e.index = i;
+			e.x = ip.xs[i];
+			e.y = ip.ys[i];
+			e.z = ip.zs[i];
+			int cx = cell( e.x ), cy = cell( e.y ), cz = cell( e.z );
+			long key = key( cx, cy, cz );
+			ArrayList<Entry> list = cells.get( key );
+			if( list == null ) {
+				list = new ArrayList<Entry>();
+				cells.put( key, list );
+				if( cx < minCellX ) minCellX = cx;
+				if( cy < minCellY ) minCellY = cy;
+				if( cz < minCellZ ) minCellZ = cz;
+				if( cx > maxCellX ) maxCellX = cx;
+				if( cy > maxCellY ) maxCellY = cy;
+				if( cz > maxCellZ ) maxCellZ = cz;
+			}
+			list.add( e );
+			ip.cells.add( key );
+		}
+		pointCount += n;
+	}
+
+	public synchronized void remove( Path p ) {
+		IndexedPath ip = paths.remove( p );
+		if( ip == null )
+			return;
+		for( Long key : ip.cells ) {
+			ArrayList<Entry> list = cells.get( key );
+			if( list == null )
+				continue;
+			for( Iterator<Entry> i = list.iterator(); i.hasNext(); )
+				if( i.next().path == p )
+					i.remove();
+			if( list.isEmpty() )
+				cells.remove( key );
+		}
+		pointCount -= ip.size;
+	}
+
+	/* Make the index reflect exactly the given paths: paths
+	   that are not in the collection anymore are removed, and
+	   new paths or those whose points changed are
+	   (re)indexed.  This is cheap if nothing changed. */
+
+	public synchronized void update( Collection<Path> current ) {
+		HashSet<Path> seen = new HashSet<Path>();
+		for( Path p : current ) {
+			seen.add( p );
+			IndexedPath ip = paths.get( p );
+			if( ip == null || ip.size != p.size() ||
+			    ip.xs != p.precise_x_positions ||
+			    ip.ys != p.precise_y_positions ||
+			    ip.zs != p.precise_z_positions )
+				add( p );
+		}
+		if( seen.size() != paths.size() ) {
+			ArrayList<Path> stale = new ArrayList<Path>();
+			for( Path p : paths.keySet() )
+				if( ! seen.contains( p ) )
+					stale.add( p );
+			for( Path p : stale )
+				remove( p );
+		}
+	}
+
+	/* Returns the path point nearest to (x,y,z) for which the
+	   distance to the line segments on either side is defined
+	   (see NearPoint.distanceToPathNearPoint()), or null if there
+	   is no such point within distanceLimit. */
+
+	public synchronized NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
+		Search search = new Search( x, y, z, distanceLimit );
+		NearPoint np;
+		while( (np = search.next()) != null )
+			if( np.distanceToPathNearPoint() >= 0 )
+				return np;
+		return null;
+	}
+
+	/* Returns up to k path points nearest to (x,y,z) that are
+	   at most distanceLimit away, ordered by distance. */
+
+	public synchronized List<NearPoint> nearest( double x, double y, double z, int k, double distanceLimit ) {
+		ArrayList<NearPoint> result = new ArrayList<NearPoint>();
+		Search search = new Search( x, y, z, distanceLimit );
+		NearPoint np;
+		while( result.size() < k && (np = search.next()) != null )
+			result.add( np );
+		return result;
+	}
+
+	/* Returns all path points within radius of (x,y,z), ordered
+	   by distance. */
+
+	public synchronized List<NearPoint> withinRadius( double x, double y, double z, double radius ) {
+		return nearest( x, y, z, Integer.MAX_VALUE, radius );
+	}
+
+	/* Finds the path points in order of increasing distance:
+	   after all cells up to shell r (in the maximum norm) have
+	   been visited, the points closer than r * cellSize are
+	   known to be final. */
+
+	private class Search {
+		double x, y, z, limitSquared;
+		int cx, cy, cz, shell = -1, maxShell;
+		PriorityQueue<NearPoint> queue = new PriorityQueue<NearPoint>();
+
+		Search( double x, double y, double z, double distanceLimit ) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			limitSquared = distanceLimit * distanceLimit;
+			if( cells.isEmpty() ) {
+				maxShell = -1;
+				return;
+			}
+			cx = cell( x );
+			cy = cell( y );
+			cz = cell( z );
+			// No occupied cell is further away than this:
+			maxShell = Math.max( Math.max( Math.max( cx - minCellX, maxCellX - cx ),
+						       Math.max( cy - minCellY, maxCellY - cy ) ),
+					     Math.max( cz - minCellZ, maxCellZ - cz ) );
+			double limitInCells = distanceLimit / cellSize + 1;
+			if( limitInCells < maxShell )
+				maxShell = (int)Math.ceil( limitInCells );
+		}
+
+		NearPoint next() {
+			while( true ) {
+				NearPoint np = queue.peek();
+				if( np != null ) {
+					double d = np.distanceToPathPointSquared();
+					if( d > limitSquared )
+						return null;
+					double safe = shell * cellSize;
+					if( shell >= maxShell || d <= safe * safe )
+						return queue.poll();
+				} else if( shell >= maxShell )
+					return null;
+				addShell( ++shell );
+			}
+		}
+
+		void addShell( int r ) {
+			int x0 = Math.max( cx - r, minCellX ), x1 = Math.min( cx + r, maxCellX );
+			int y0 = Math.max( cy - r, minCellY ), y1 = Math.min( cy + r, maxCellY );
+			int z0 = Math.max( cz - r, minCellZ ), z1 = Math.min( cz + r, maxCellZ );
+			for( int i = x0; i <= x1; ++i )
+				for( int j = y0; j <= y1; ++j ) {
+					if( Math.abs( i - cx ) == r || Math.abs( j - cy ) == r ) {
+						for( int k = z0; k <= z1; ++k )
+							addCell( i, j, k );
+					} else {
+						if( cz - r >= z0 )
+							addCell( i, j, cz - r );
+						if( r > 0 && cz + r <= z1 )
+							addCell( i, j, cz + r );
+					}
+				}
+		}
+
+		void addCell( int i, int j, int k ) {
+			ArrayList<Entry> list = cells.get( key( i, j, k ) );
+			if( list == null )
+				return;
+			for( Entry e : list ) {
+				if( ! e.path.versionInUse() )
+					continue;
+				double xd = e.x - x, yd = e.y - y, zd = e.z - z;
+				if( xd * xd + yd * yd + zd * zd > limitSquared )
+					continue;
+				queue.add( new NearPoint( x, y, z, e.path, e.index ) );
+			}
+		}
+	}
+
+	private int cell( double v ) {
+		double c = Math.floor( v / (cellSize > 0 ? cellSize : 1) );
+		if( c < -CELL_OFFSET )
+			return -CELL_OFFSET;
+		if( c >= CELL_OFFSET )
+			return CELL_OFFSET - 1;
+		return (int)c;
+	}
+
+	private static long key( int cx, int cy, int cz ) {
+		return ((cx + CELL_OFFSET) & CELL_MASK) << 42 |
+			((cy + CELL_OFFSET) & CELL_MASK) << 21 |
+			((cz + CELL_OFFSET) & CELL_MASK);
+	}
+}
@@ -55,6 +55,7 @@
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -462,6 +463,7 @@ public void addToResultsTable() {
 		}
 		boolean twoDimensional;
 		ImagePlus originalImage;
+		String originalFilename;
 		boolean useAllPaths;
 		int numberOfPathsUsed;
 		public ShollResults( List<ShollPoint> shollPoints,
@@ -507,6 +509,98 @@ public ShollResults( List<ShollPoint> shollPoints,
 				}
 				// System.out.println("Range starting at: "+Math.sqrt(p.distanceSquared)+" has crossings: "+currentCrossings);
 			}
+			calculateGraphPoints();
+		}
+
+		/* This constructor is for use without a user interface
+		   (e.g. from Batch_Sholl_Analysis), where there may be a
+		   very large number of points: rather than creating and
+		   sorting a ShollPoint for each end of each segment, the
+		   squared distances of the ends nearer to and further from
+		   the centre are sorted as two primitive arrays and
+		   merged.  At the same distance, the ends further from the
+		   centre are counted first. */
+
+		public ShollResults( List<Path> paths,
+				     String originalFilename,
+				     double x_start,
+				     double y_start,
+				     double z_start,
+				     String description,
+				     int axes,
+				     int normalization,
+				     double sphereSeparation,
+				     boolean twoDimensional ) {
+			parametersSuffix = "_"+axesParameters[axes]+"_"+normalizationParameters[normalization]+"_"+sphereSeparation;
+			this.originalFilename = originalFilename;
+			this.useAllPaths = true;
+			this.numberOfPathsUsed = paths.size();
+			this.x_start = x_start;
+			this.y_start = y_start;
+			this.z_start = z_start;
+			this.description = description;
+			this.axes = axes;
+			this.normalization = normalization;
+			this.sphereSeparation = sphereSeparation;
+			this.twoDimensional = twoDimensional;
+
+			int segments = 0;
+			for( Path p : paths )
+				segments += Math.max( 0, p.points - 1 );
+			double [] nearerEnds = new double[segments];
+			double [] furtherEnds = new double[segments];
+			int s = 0;
+			for( Path p : paths ) {
+				if( p.points < 2 )
+					continue;
+				double xdiff = p.precise_x_positions[0] - x_start;
+				double ydiff = p.precise_y_positions[0] - y_start;
+				double zdiff = p.precise_z_positions[0] - z_start;
+				double previous = xdiff*xdiff + ydiff*ydiff + zdiff*zdiff;
+				for( int i = 1; i < p.points; ++i ) {
+					xdiff = p.precise_x_positions[i] - x_start;
+					ydiff = p.precise_y_positions[i] - y_start;
+					zdiff = p.precise_z_positions[i] - z_start;
+					double current = xdiff*xdiff + ydiff*ydiff + zdiff*zdiff;
+					if( previous < current ) {
+						nearerEnds[s] = previous;
+						furtherEnds[s] = current;
+					} else {
+						nearerEnds[s] = current;
+						furtherEnds[s] = previous;
+					}
+					++ s;
+					previous = current;
+				}
+			}
+			Arrays.sort(nearerEnds);
+			Arrays.sort(furtherEnds);
+
+			n = 2 * segments;
+			squaredRangeStarts = new double[n];
+			crossingsPastEach = new int[n];
+			int currentCrossings = 0;
+			int nearer = 0, further = 0;
+			for( int i = 0; i < n; ++i ) {
+				double distanceSquared;
+				if( further < segments && (nearer == segments || furtherEnds[further] <= nearerEnds[nearer]) ) {
+					distanceSquared = furtherEnds[further++];
+					-- currentCrossings;
+				} else {
+					distanceSquared = nearerEnds[nearer++];
+					++ currentCrossings;
+				}
+				squaredRangeStarts[i] = distanceSquared;
+				crossingsPastEach[i] = currentCrossings;
+				if( currentCrossings > maxCrossings ) {
+					maxCrossings = currentCrossings;
+					criticalValue = Math.sqrt(distanceSquared);
+				}
+			}
+			calculateGraphPoints();
+		}
+
+		protected void calculateGraphPoints() {
 			xAxisLabel = "Distance in space from ( "+x_start+", "+y_start+", "+z_start+" )";
 			yAxisLabel = "Number of intersections";
 			if( sphereSeparation > 0 ) {
@@ -683,10 +777,18 @@ else if( distanceSquared > squaredRangeStarts[maxIndex] )
 		}
 
 		public ImagePlus makeShollCrossingsImagePlus(ImagePlus original) {
-			int width = original.getWidth();
-			int height = original.getHeight();
-			int depth = original.getStackSize();
-			Calibration c = original.getCalibration();
+			ImagePlus result = makeShollCrossingsImage( original.getWidth(),
+								    original.getHeight(),
+								    original.getStackSize(),
+								    original.getCalibration() );
+			result.show();
+			return result;
+		}
+
+		/* Creates the image of the crossings without showing
+		   it, so that this can be used headlessly: */
+
+		public ImagePlus makeShollCrossingsImage(int width, int height, int depth, Calibration c) {
 			double x_spacing = 1;
 			double y_spacing = 1;
 			double z_spacing = 1;
@@ -715,7 +817,6 @@ public ImagePlus makeShollCrossingsImagePlus(ImagePlus original) {
 				stack.addSlice( "", sp );
 			}
 			ImagePlus result = new ImagePlus( description, stack );
-			result.show();
 			IndexColorModel icm = FindConnectedRegions.backgroundAndSpectrum(255);
 			stack.setColorModel(icm);
 			ImageProcessor ip = result.getProcessor();
@@ -735,6 +836,8 @@ public static void csvQuoteAndPrint(PrintWriter pw, Object o) {
 		}
 
 		public String getOriginalFilename() {
+			if( originalFilename != null )
+				return originalFilename;
 			FileInfo originalFileInfo = originalImage.getOriginalFileInfo();
 			if( originalFileInfo.directory == null )
 				return "[unknown]";
@@ -530,6 +530,10 @@ synchronized public void loadTracings( ) {
 				if( pathAndFillManager.loadUncompressedXML( chosenFile.getAbsolutePath() ) )
 					unsavedPaths = false;
 				break;
+			case PathAndFillManager.TRACES_FILE_TYPE_BINARY:
+				if( pathAndFillManager.loadBinary( chosenFile.getAbsolutePath() ) )
+					unsavedPaths = false;
+				break;
 			default:
 				IJ.error("The file '"+chosenFile.getAbsolutePath()+"' was of unknown type ("+guessedType+")");
 				break;
@@ -2,7 +2,7 @@
 
 package distance;
 
-public class Correlation implements PixelPairs {
+public class Correlation implements MergeablePixelPairs {
 
 	private double sumX, sumY, sumXY,
 		sumXSquared, sumYSquared;
@@ -26,6 +26,23 @@ public void add(float v1, float v2) {
 		count++;
 	}
 
+	public MergeablePixelPairs newInstance() {
+		return new Correlation();
+	}
+
+	public void copyParameters(MergeablePixelPairs other) {
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		Correlation c = (Correlation)other;
+		sumX += c.sumX;
+		sumY += c.sumY;
+		sumXY += c.sumXY;
+		sumXSquared += c.sumXSquared;
+		sumYSquared += c.sumYSquared;
+		count += c.count;
+	}
+
 	public float correlation() {
 
 		float result = 0;
@@ -0,0 +1,16 @@
+package distance;
+
+/*
+ * A measure whose pairs can be collected by several instances (e.g. one per
+ * thread) and then combined into one.
+ */
+public interface MergeablePixelPairs extends PixelPairs {
+	/* returns a new instance with the same parameters, to be reset() */
+	public MergeablePixelPairs newInstance();
+
+	/* take over the parameters of another instance of the same class */
+	public void copyParameters(MergeablePixelPairs other);
+
+	/* add the pairs collected by another instance of the same class */
+	public void merge(MergeablePixelPairs other);
+}
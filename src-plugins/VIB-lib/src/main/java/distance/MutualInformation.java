@@ -2,6 +2,8 @@
 
 package distance;
 
+import java.util.Arrays;
+
 /*
 
   For dealing with images of depth greater than 8 bits, we need to bin
@@ -31,12 +33,12 @@ Just to remind me, the diagram from MacKay (Figure 8.1) showing the
 
 */
 
-public class MutualInformation implements PixelPairs {
+public class MutualInformation implements MergeablePixelPairs {
         private float minimum;
         private float maximum;
 	private float width;
 	long joint[];
-	private int count;
+	private long count;
         private int bins;
 	
 	// So that this is as efficient as possible, 
@@ -54,10 +56,33 @@ public MutualInformation() {
 	}
 
 	public void reset() {
-		joint = new long[bins * bins];
+		if (joint == null || joint.length != bins * bins)
+			joint = new long[bins * bins];
+		else
+			Arrays.fill(joint, 0);
 		count = 0;
 	}
 
+	public MergeablePixelPairs newInstance() {
+		return new MutualInformation(minimum, maximum, bins);
+	}
+
+	// reset() reallocates the histogram only if the bins changed
+	public void copyParameters(MergeablePixelPairs other) {
+		MutualInformation m = (MutualInformation)other;
+		minimum = m.minimum;
+		maximum = m.maximum;
+		width = m.width;
+		bins = m.bins;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		MutualInformation m = (MutualInformation)other;
+		for (int i = 0; i < joint.length; i++)
+			joint[i] += m.joint[i];
+		count += m.count;
+	}
+
 	public void add(float v1, float v2) {
 		/*
 		if( v1 < minimum )
@@ -0,0 +1,63 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that splitting the pairs across instances and merging them gives
+   the same distance as adding all pairs to one instance */
+
+package distance;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class TestMerge extends BaseOfTests {
+
+	void addMacKayExample(PixelPairs first, PixelPairs second) {
+		Split split = new Split(first, second);
+		addMacKayExample(split);
+	}
+
+	/* Alternately adds the pairs to two measures */
+	static class Split implements PixelPairs {
+		PixelPairs first, second;
+		int count;
+
+		Split(PixelPairs first, PixelPairs second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		public void reset() {}
+
+		public void add(float v1, float v2) {
+			(count++ % 2 == 0 ? first : second).add(v1, v2);
+		}
+
+		public float distance() {
+			return Float.NaN;
+		}
+	}
+
+	void check(MergeablePixelPairs measure) {
+		measure.reset();
+		addMacKayExample(measure);
+		float expected = measure.distance();
+
+		MergeablePixelPairs first = measure.newInstance();
+		MergeablePixelPairs second = measure.newInstance();
+		first.reset();
+		second.reset();
+		addMacKayExample(first, second);
+		measure.reset();
+		measure.merge(first);
+		measure.merge(second);
+		assertEquals(expected, measure.distance(), 0.000001);
+	}
+
+	@Test
+	public void testMerge() {
+		check(new Euclidean());
+		check(new Correlation());
+		check(new MutualInformation(1, 4, 4));
+		check(new Thresholded(2));
+		check(new TwoValues(1, 2));
+	}
+}
@@ -3,7 +3,7 @@
 /*
  * Treat pixels as different when one is below threshold, and the other above.
  */
-public class Thresholded implements PixelPairs {
+public class Thresholded implements MergeablePixelPairs {
 	private float threshold;
 	private long count, total;
 
@@ -24,6 +24,22 @@ public void add(float v1, float v2) {
 			count++;
 	}
 
+	public MergeablePixelPairs newInstance() {
+		Thresholded result = new Thresholded(0);
+		result.threshold = threshold;
+		return result;
+	}
+
+	public void copyParameters(MergeablePixelPairs other) {
+		threshold = ((Thresholded)other).threshold;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		Thresholded t = (Thresholded)other;
+		count += t.count;
+		total += t.total;
+	}
+
 	public float distance() {
 		return count * 255 / (float)total;
 	}
@@ -5,7 +5,7 @@
  * image. Distance is maximal when one and only one of the pair is the desired
  * material.
  */
-public class TwoValues implements PixelPairs {
+public class TwoValues implements MergeablePixelPairs {
 	/* the values of the materials may be different in the two images */
 	public float material1, material2;
 	private long count, total;
@@ -27,6 +27,25 @@ public void add(float v1, float v2) {
 			count++;
 	}
 
+	public MergeablePixelPairs newInstance() {
+		TwoValues result = new TwoValues(0, 0);
+		result.material1 = material1;
+		result.material2 = material2;
+		return result;
+	}
+
+	public void copyParameters(MergeablePixelPairs other) {
+		TwoValues t = (TwoValues)other;
+		material1 = t.material1;
+		material2 = t.material2;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		TwoValues t = (TwoValues)other;
+		count += t.count;
+		total += t.total;
+	}
+
 	public float distance() {
 		return count * 255 / (float)total;
 	}
@@ -1,6 +1,8 @@
 package vib;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import vib.InterpolatedImage;
 
 /*
@@ -15,13 +17,71 @@
  in addition to the spatial domain (i.e. pixels are smoothed when they are
  close together _both_ spatially and by intensity.
 
+ Besides the exact method, a fast approximation using the bilateral grid is
+ available (see BilateralGrid), whose cost hardly depends on the radii. Only
+ the latter can filter a stack in 3D.
+
 */
 public class BilateralFilter {
+	public final static int EXACT = 0;
+	public final static int GRID = 1;
+	public final static String[] methods = { "Exact", "Bilateral grid" };
 
 	public static ImagePlus filter(
 				ImagePlus image,
 				double spatialRadius,
 				double rangeRadius) {
+		return filter(image, spatialRadius, rangeRadius, EXACT, false);
+	}
+
+	public static ImagePlus filter(
+				ImagePlus image,
+				double spatialRadius,
+				double rangeRadius,
+				int method,
+				boolean volumetric) {
+		if (method == GRID)
+			return filterGrid(image, spatialRadius, rangeRadius,
+					volumetric, Prefs.getThreads());
+		if (volumetric)
+			throw new IllegalArgumentException("The exact method "
+				+ "filters only slice by slice");
+		return filterExact(image, spatialRadius, rangeRadius);
+	}
+
+	public static ImagePlus filterGrid(
+				ImagePlus image,
+				double spatialRadius,
+				double rangeRadius,
+				boolean volumetric,
+				int numThreads) {
+		BilateralGrid grid = new BilateralGrid(image,
+				getSigma(spatialRadius), getSigma(rangeRadius),
+				volumetric);
+		byte[][] pixels = grid.filter(numThreads);
+
+		ImageStack stack = new ImageStack(image.getWidth(),
+				image.getHeight());
+		for (int i = 0; i < pixels.length; i++)
+			stack.addSlice("", pixels[i]);
+		ImagePlus res = new ImagePlus(image.getTitle()
+				+ "-" + spatialRadius + "-" + rangeRadius, stack);
+		res.setCalibration(image.getCalibration());
+		return res;
+	}
+
+	/*
+	 * The standard deviation (in pixels, or intensity levels) of the
+	 * kernel created by makeKernel(radius).
+	 */
+	public static double getSigma(double radius) {
+		return 0.4 * (radius + 1);
+	}
+
+	public static ImagePlus filterExact(
+				ImagePlus image,
+				double spatialRadius,
+				double rangeRadius) {
 
 		final InterpolatedImage orig = new InterpolatedImage(image);
 		InterpolatedImage res = orig.cloneDimensionsOnly();
@@ -0,0 +1,278 @@
+package vib;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/*
+
+ A fast approximation of the Bilateral Filter, using the bilateral grid
+ described in
+
+  S. Paris and F. Durand, "A Fast Approximation of the Bilateral Filter
+  using a Signal Processing Approach", Proceedings of the European
+  Conference on Computer Vision (ECCV) 2006,
+
+ and
+
+  J. Chen, S. Paris and F. Durand, "Real-time Edge-Aware Image Processing
+  with the Bilateral Grid", ACM Transactions on Graphics (SIGGRAPH) 2007.
+
+ The pixels are accumulated into a coarse grid spanning space and intensity,
+ with one cell per sigma in each dimension. The grid is blurred with a small
+ Gaussian, and the result is read back by interpolating the grid at each
+ pixel's position and intensity. The cost is therefore almost independent of
+ the spatial radius.
+
+ In 2D mode, the slices are filtered independently (like the exact filter);
+ in 3D mode, the stack is split into blocks of slices (overlapping by the
+ extent of the kernel) so that the grids fit into memory. The slices or
+ blocks are processed in parallel.
+
+*/
+public class BilateralGrid {
+	// the extra cells on each side, for the blur and the interpolation
+	protected final static int PAD = 2;
+
+	protected int w, h, d;
+	protected byte[][] pixels, result;
+	protected double sigmaX, sigmaZ, sigmaRange;
+	protected boolean volumetric;
+
+	public BilateralGrid(ImagePlus image, double spatialSigma,
+			double rangeSigma, boolean volumetric) {
+		if (image.getType() != ImagePlus.GRAY8 &&
+				image.getType() != ImagePlus.COLOR_256)
+			throw new RuntimeException("BilateralGrid needs an 8-bit image");
+		ImageStack stack = image.getStack();
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		pixels = new byte[d][];
+		for (int z = 0; z < d; z++)
+			pixels[z] = (byte[])stack.getPixels(z + 1);
+
+		sigmaX = Math.max(1, spatialSigma);
+		sigmaRange = Math.max(1, rangeSigma);
+		this.volumetric = volumetric && d > 1;
+		// respect the voxel aspect ratio
+		Calibration calib = image.getCalibration();
+		sigmaZ = sigmaX;
+		if (calib.pixelDepth > 0 && calib.pixelWidth > 0)
+			sigmaZ = Math.max(1, sigmaX
+				* calib.pixelWidth / calib.pixelDepth);
+	}
+
+	/*
+	 * Filter all slices, using the given number of threads.
+	 */
+	public byte[][] filter(int numThreads) {
+		result = new byte[d][w * h];
+		final int[] blocks = getBlocks(numThreads);
+		final int blockCount = blocks.length - 1;
+		final int[] next = { 0 };
+		Thread[] threads = new Thread[Math.max(1,
+				Math.min(numThreads, blockCount))];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					Block block = null;
+					for (;;) {
+						int i;
+						synchronized (next) {
+							if (next[0] >= blockCount)
+								return;
+							i = next[0]++;
+						}
+						block = new Block(blocks[i],
+							blocks[i + 1], block);
+						block.run();
+						synchronized (next) {
+							IJ.showProgress(next[0],
+								blockCount);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			}
+		IJ.showProgress(1, 1);
+		return result;
+	}
+
+	/*
+	 * Returns the boundaries of the blocks of output slices: one slice
+	 * per block in 2D mode, and in 3D mode enough blocks to keep every
+	 * thread busy and to fit the grids into a quarter of the memory.
+	 */
+	protected int[] getBlocks(int numThreads) {
+		int count = d;
+		if (volumetric) {
+			int margin = getMargin();
+			Runtime runtime = Runtime.getRuntime();
+			long budget = runtime.maxMemory() / 4
+				/ Math.max(1, numThreads);
+			count = Math.max(1, numThreads);
+			while (count < d && getGridBytes((d + count - 1)
+					/ count + 2 * margin) > budget)
+				count++;
+			count = Math.min(count, d);
+		}
+		int[] result = new int[count + 1];
+		for (int i = 0; i <= count; i++)
+			result[i] = (int)((long)d * i / count);
+		return result;
+	}
+
+	/* how many slices beyond a block contribute to it */
+	protected int getMargin() {
+		return volumetric ? (int)Math.ceil((PAD + 1) * sigmaZ) : 0;
+	}
+
+	protected int getCells(int size, double sigma) {
+		return (int)Math.round((size - 1) / sigma) + 1 + 2 * PAD;
+	}
+
+	protected long getGridBytes(int slices) {
+		return 2l * 4 * getCells(w, sigmaX) * getCells(h, sigmaX)
+			* (volumetric ? getCells(slices, sigmaZ) : 1)
+			* getCells(256, sigmaRange);
+	}
+
+	/*
+	 * The grid for a block of slices.  Each cell holds the sum of the
+	 * values and the number of pixels (the homogeneous coordinates).
+	 */
+	protected class Block {
+		int zStart, zEnd, first, last;
+		int gw, gh, gd, gr;
+		float[] grid;
+
+		Block(int zStart, int zEnd, Block previous) {
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+			int margin = getMargin();
+			first = Math.max(0, zStart - margin);
+			last = Math.min(d, zEnd + margin);
+			gw = getCells(w, sigmaX);
+			gh = getCells(h, sigmaX);
+			gd = volumetric ? getCells(last - first, sigmaZ) : 1;
+			gr = getCells(256, sigmaRange);
+			int size = 2 * gw * gh * gd * gr;
+			// reuse the memory, if possible
+			if (previous != null && previous.grid.length >= size) {
+				grid = previous.grid;
+				java.util.Arrays.fill(grid, 0, size, 0);
+			}
+			else
+				grid = new float[size];
+		}
+
+		final int index(int x, int y, int z, int r) {
+			return 2 * (((r * gd + z) * gh + y) * gw + x);
+		}
+
+		void run() {
+			splat();
+			blur(2, gw);
+			blur(2 * gw, gh);
+			if (gd > 1)
+				blur(2 * gw * gh, gd);
+			blur(2 * gw * gh * gd, gr);
+			slice();
+		}
+
+		void splat() {
+			for (int z = first; z < last; z++) {
+				byte[] p = pixels[z];
+				int gz = volumetric ? (int)Math.round((z - first)
+						/ sigmaZ) + PAD : 0;
+				for (int y = 0; y < h; y++) {
+					int gy = (int)Math.round(y / sigmaX) + PAD;
+					for (int x = 0; x < w; x++) {
+						int v = p[x + w * y] & 0xff;
+						int i = index((int)Math.round(x / sigmaX) + PAD,
+							gy, gz, (int)Math.round(v / sigmaRange) + PAD);
+						grid[i] += v;
+						grid[i + 1]++;
+					}
+				}
+			}
+		}
+
+		/*
+		 * Convolve with the binomial kernel (1 4 6 4 1) / 16, which
+		 * approximates a Gaussian with sigma = 1 cell, along the
+		 * dimension with the given stride (in floats) and size.
+		 */
+		void blur(int stride, int size) {
+			int blockSize = stride * size;
+			float[] line = new float[size + 4];
+			int cells = 2 * gw * gh * gd * gr;
+			for (int outer = 0; outer < cells; outer += blockSize)
+				for (int inner = 0; inner < stride; inner++) {
+					int offset = outer + inner;
+					for (int i = 0; i < size; i++)
+						line[i + 2] = grid[offset + i * stride];
+					for (int i = 0; i < size; i++)
+						grid[offset + i * stride] =
+							(line[i] + line[i + 4]
+							 + 4 * (line[i + 1] + line[i + 3])
+							 + 6 * line[i + 2]) / 16;
+				}
+		}
+
+		void slice() {
+			int strideX = 2, strideY = 2 * gw, strideZ = 2 * gw * gh;
+			int strideR = 2 * gw * gh * gd;
+			for (int z = zStart; z < zEnd; z++) {
+				byte[] p = pixels[z];
+				byte[] out = result[z];
+				double fz = volumetric ?
+					(z - first) / sigmaZ + PAD : 0;
+				int z0 = (int)fz;
+				float dz = (float)(fz - z0);
+				for (int y = 0; y < h; y++) {
+					double fy = y / sigmaX + PAD;
+					int y0 = (int)fy;
+					float dy = (float)(fy - y0);
+					for (int x = 0; x < w; x++) {
+						int v = p[x + w * y] & 0xff;
+						double fx = x / sigmaX + PAD;
+						double fr = v / sigmaRange + PAD;
+						int x0 = (int)fx, r0 = (int)fr;
+						float dx = (float)(fx - x0);
+						float dr = (float)(fr - r0);
+						int i = index(x0, y0, z0, r0);
+						float value = 0, weight = 0;
+						for (int c = 0; c < 16; c++) {
+							if ((c & 4) != 0 && gd == 1)
+								continue;
+							float f = ((c & 1) == 0 ? 1 - dx : dx)
+								* ((c & 2) == 0 ? 1 - dy : dy)
+								* ((c & 8) == 0 ? 1 - dr : dr);
+							if (gd > 1)
+								f *= (c & 4) == 0 ? 1 - dz : dz;
+							int j = i + ((c & 1) == 0 ? 0 : strideX)
+								+ ((c & 2) == 0 ? 0 : strideY)
+								+ ((c & 4) == 0 ? 0 : strideZ)
+								+ ((c & 8) == 0 ? 0 : strideR);
+							value += f * grid[j];
+							weight += f * grid[j + 1];
+						}
+						out[x + w * y] = (byte)(weight > 0 ?
+							(int)(value / weight) : v);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package vib;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Compares the bilateral grid with the exact Bilateral Filter.
+ */
+public class TestBilateralGrid {
+
+	/* two plateaus of 60 and 180, plus Gaussian noise */
+	static ImagePlus makeImage(int w, int h, int d, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++) {
+					double v = (x + y / 2 + z < w / 2 ? 60 : 180)
+						+ 10 * random.nextGaussian();
+					pixels[x + w * y] = (byte)Math.max(0,
+							Math.min(255, (int)v));
+				}
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus("test", stack);
+	}
+
+	/* the mean absolute difference, ignoring a border of the given width */
+	static double meanDifference(ImagePlus a, ImagePlus b, int border) {
+		int w = a.getWidth(), h = a.getHeight();
+		double sum = 0;
+		long count = 0;
+		for (int z = 1; z <= a.getStackSize(); z++) {
+			byte[] p = (byte[])a.getStack().getPixels(z);
+			byte[] q = (byte[])b.getStack().getPixels(z);
+			for (int y = border; y < h - border; y++)
+				for (int x = border; x < w - border; x++) {
+					sum += Math.abs((p[x + w * y] & 0xff)
+						- (q[x + w * y] & 0xff));
+					count++;
+				}
+		}
+		return sum / count;
+	}
+
+	@Test
+	public void testAccuracy() {
+		ImagePlus image = makeImage(64, 64, 2, 17);
+		for (int radius = 2; radius <= 6; radius += 4) {
+			ImagePlus exact = BilateralFilter.filter(image,
+					radius, 50);
+			ImagePlus grid = BilateralFilter.filterGrid(image,
+					radius, 50, false, 2);
+			double diff = meanDifference(exact, grid, radius);
+			assertTrue("radius " + radius + ": " + diff, diff < 3);
+			// the noise must be reduced
+			assertTrue(meanDifference(image, grid, radius) > 5);
+		}
+	}
+
+	@Test
+	public void testEdgePreserved() {
+		ImagePlus image = makeImage(64, 16, 1, 42);
+		ImagePlus grid = BilateralFilter.filterGrid(image,
+				8, 30, false, 1);
+		byte[] pixels = (byte[])grid.getStack().getPixels(1);
+		for (int x = 0; x < 64; x++) {
+			int v = pixels[x + 64 * 8] & 0xff;
+			// 60 + 10 * 8 / 2 + 0 is the edge
+			if (x < 32 - 4 - 3)
+				assertTrue("x = " + x + ": " + v, v < 90);
+			else if (x > 32 - 4 + 3)
+				assertTrue("x = " + x + ": " + v, v > 150);
+		}
+	}
+
+	@Test
+	public void testVolumetric() {
+		ImagePlus image = makeImage(32, 32, 24, 5);
+		ImagePlus grid2D = BilateralFilter.filterGrid(image,
+				3, 50, false, 3);
+		ImagePlus grid3D = BilateralFilter.filterGrid(image,
+				3, 50, true, 3);
+		ImagePlus single = BilateralFilter.filterGrid(image,
+				3, 50, true, 1);
+		// blocks must not change the result
+		assertTrue(meanDifference(grid3D, single, 0) < 0.5);
+		// 3D uses more samples, so it removes more noise
+		assertTrue(meanDifference(image, grid3D, 0)
+				> meanDifference(image, grid2D, 0));
+	}
+}
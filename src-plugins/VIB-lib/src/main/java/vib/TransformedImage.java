@@ -6,8 +6,16 @@
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import distance.MergeablePixelPairs;
 import distance.PixelPairs;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import math3d.Point3d;
 
 public class TransformedImage {
@@ -145,6 +153,7 @@ public TransformedImage resample(int factor) {
 		TransformedImage res = new TransformedImage(resOrig, resTran);
 		res.transformation = transformation;
 		res.measure = measure;
+		res.numThreads = numThreads;
 		res.x0 = x0 / factor;
 		res.y0 = y0 / factor;
 		res.z0 = z0 / factor;
@@ -237,27 +246,117 @@ public Iterator iterator(boolean showProgress,
 	// the bounding box for the distance calculation
 	int x0, y0, z0, x1, y1, z1;
 
+	// the number of threads used by getDistance()
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	// do not bother splitting small volumes
+	final static int MIN_VOXELS_PER_THREAD = 1 << 15;
+
+	// the per-thread measures, kept between calls to getDistance()
+	private MergeablePixelPairs[] partials;
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(),
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TransformedImage distance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	public void setNumberOfThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/*
+	 * The rows (j, k) of the bounding box are split into contiguous
+	 * chunks, one per thread, each collecting its pairs into its own
+	 * instance of the measure; the partial results are then merged.
+	 * Measures which cannot be merged are evaluated in the calling
+	 * thread.
+	 */
 	public float getDistance() {
+		int rows = Math.max(0, y1 - y0) * Math.max(0, z1 - z0);
+		long voxels = (long)rows * Math.max(0, x1 - x0);
+		int threads = (int)Math.min(numThreads,
+				voxels / MIN_VOXELS_PER_THREAD);
+		threads = Math.min(threads, rows);
+		if (threads < 2 || !(measure instanceof MergeablePixelPairs)) {
+			measure.reset();
+			addPairs(measure, 0, rows);
+			return measure.distance();
+		}
+
+		final MergeablePixelPairs merged = (MergeablePixelPairs)measure;
+		if (partials == null || partials.length != threads ||
+				partials[0].getClass() != merged.getClass()) {
+			partials = new MergeablePixelPairs[threads];
+			for (int t = 0; t < threads; t++)
+				partials[t] = merged.newInstance();
+		}
+		else
+			// the parameters of the measure might have changed
+			for (int t = 0; t < threads; t++)
+				partials[t].copyParameters(merged);
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			final MergeablePixelPairs partial = partials[t];
+			final int row0 = (int)((long)rows * t / threads);
+			final int row1 = (int)((long)rows * (t + 1) / threads);
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					partial.reset();
+					addPairs(partial, row0, row1);
+				}
+			}));
+		}
 		measure.reset();
-		Iterator iter = new Iterator(false, x0, y0, z0, x1, y1, z1);
-		while (iter.next() != null) {
-			float v1 = -1;
-			switch(imageType) {
-			case ImagePlus.GRAY8:
-                        case ImagePlus.COLOR_256:
-				v1 = orig.getNoInterpol(iter.i, iter.j, iter.k);
-                                break;
-			case ImagePlus.GRAY16:
-				v1 = orig.getNoInterpolShort(iter.i, iter.j, iter.k);
-                                break;
-                        }
-			float v2 = (float)transform.interpol.get(iter.x,
-								 iter.y, iter.z);
-			measure.add(v1, v2);
+		for (int t = 0; t < threads; t++) {
+			try {
+				futures.get(t).get();
+			} catch (InterruptedException e) {
+				for (int u = t; u < threads; u++)
+					futures.get(u).cancel(false);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			merged.merge(partials[t]);
 		}
 		return measure.distance();
 	}
 
+	/*
+	 * Add the pairs of the given rows of the bounding box (counted from
+	 * (y0, z0)) to the measure.  As the transformation is linear, the
+	 * transformed coordinates advance by the first column of the matrix
+	 * along each row.
+	 */
+	void addPairs(PixelPairs measure, int row0, int row1) {
+		int rowLength = y1 - y0;
+		double dx = matrix.a00, dy = matrix.a10, dz = matrix.a20;
+		InterpolatedImage.Interpolate interpol = transform.interpol;
+		boolean isShort = imageType == ImagePlus.GRAY16;
+		for (int row = row0; row < row1; row++) {
+			int j = y0 + row % rowLength;
+			int k = z0 + row / rowLength;
+			double x = x0 * dx + j * matrix.a01 + k * matrix.a02 + matrix.a03;
+			double y = x0 * dy + j * matrix.a11 + k * matrix.a12 + matrix.a13;
+			double z = x0 * dz + j * matrix.a21 + k * matrix.a22 + matrix.a23;
+			for (int i = x0; i < x1; i++) {
+				int n = i - x0;
+				float v1 = isShort ?
+					orig.getNoInterpolShort(i, j, k) :
+					orig.getNoInterpol(i, j, k);
+				float v2 = (float)interpol.get(x + n * dx,
+						y + n * dy, z + n * dz);
+				measure.add(v1, v2);
+			}
+		}
+	}
+
 	public ImagePlus getTransformed() {
 		InterpolatedImage result = orig.cloneDimensionsOnly();
 
@@ -39,6 +39,8 @@ public class Options {
 	public int refChannel = 2;
 	public int resamplingFactor = 1;
 	public int transformationMethod = LABEL_DIFFUSION;
+	// how many images to process in parallel; 0 means automatic
+	public int numThreads = 0;
 
 	// Constructors
 	public Options() {
@@ -113,6 +115,7 @@ public void copy(Options options) {
 		fileGroup = options.fileGroup;
 		transformationMethod = options.transformationMethod;
 		resamplingFactor = options.resamplingFactor;
+		numThreads = options.numThreads;
 	}
 
 	public void saveTo(String path) {
@@ -121,6 +124,7 @@ public void saveTo(String path) {
 		p.setProperty("numChannels", "" + numChannels);
 		p.setProperty("refChannel", "" + refChannel);
 		p.setProperty("resamplingFactor", "" + resamplingFactor);
+		p.setProperty("numThreads", "" + numThreads);
 		p.setProperty("transformationMethod",
 				TRANSFORMS[transformationMethod]);
 		p.setProperty("fileGroup", fileGroup.toCSV());
@@ -166,6 +170,7 @@ public void loadFrom(String path) {
 			transformationMethod = LABEL_DIFFUSION;
 		}
 		resamplingFactor = getInt(p, "resamplingFactor", 1);
+		numThreads = getInt(p, "numThreads", 0);
 		if(!fileGroup.fromCSV(p.getProperty("fileGroup", "")))
 			IJ.showMessage("Not all files specified in the "
 					+ "file group exist.");
@@ -186,6 +191,7 @@ public String toString() {
 		"refChannel = " + refChannel + "\n" +
 		"transformationMethod = " + transformationMethod + "\n" +
 		"resamplingFactor = " + resamplingFactor + "\n" +
+		"numThreads = " + numThreads + "\n" +
 		"fileGroup: " + fileGroup;
 	}
 
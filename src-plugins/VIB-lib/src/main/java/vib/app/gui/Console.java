@@ -24,11 +24,11 @@ private void newWindow() {
 					"", welcome, 512, 512);
 	}
 
-	public void clear() {
+	public synchronized void clear() {
 		newWindow();
 	}
 
-	public void append(String text) {
+	public synchronized void append(String text) {
 		if(window == null)
 			newWindow();
 		window.append(text + '\n');
@@ -51,7 +51,7 @@ public static void main(String[] args) {
 		new ProgressIndicator(op);
 	}
 
-	public void moduleFinished(Module m, int index) {
+	public synchronized void moduleFinished(Module m, int index) {
 		if(index < 0)
 			return;
 		int modIndex = getModuleIndex(m.getName());
@@ -61,7 +61,7 @@ public void moduleFinished(Module m, int index) {
 		}
 	}
 
-	public void exceptionOccurred(Module m, int index) {
+	public synchronized void exceptionOccurred(Module m, int index) {
 		if(index < 0)
 			return;
 		int modIndex = getModuleIndex(m.getName());
@@ -12,8 +12,10 @@ protected void run(State state, int index) {
 			return;
 		prereqsDone(state, index);
 
+		resetTimings();
 		new AverageBrain().runOnAllImages(state);
 		new Show().runOnAllImages(state);
 		console.append("VIB protocol finished.");
+		console.append(getTimingReport());
 	}
 }
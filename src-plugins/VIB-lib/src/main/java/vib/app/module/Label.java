@@ -15,6 +15,8 @@
 public class Label extends Module {
 	public String getName() { return "Label"; }
 	protected String getMessage() { return "Labelling"; }
+	// the user labels one image after the other
+	protected boolean runsInParallel() { return false; }
 
 	protected void run(State state, int index) {
 		new SplitChannels().runOnOneImage(state, index);
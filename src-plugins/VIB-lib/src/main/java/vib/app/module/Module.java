@@ -1,7 +1,10 @@
 package vib.app.module;
 
-import java.util.Vector;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
 import vib.app.gui.Console;
 
 public abstract class Module {
@@ -15,30 +18,165 @@ public abstract class Module {
 
 	protected boolean runsOnce() { return false; }
 
-	// at a later stage, these functions will schedule multi-threaded jobs
+	/*
+	 * Whether the images can be processed concurrently; modules which
+	 * need user interaction must return false.
+	 */
+	protected boolean runsInParallel() { return !runsOnce(); }
+
+	/*
+	 * A module runs only once at a time on a given image; if another
+	 * thread needs the same result (e.g. the statistics of the
+	 * template), it waits and then finds the output up-to-date.
+	 */
+	private static Map locks = new HashMap();
+
+	private Object getLock(int index) {
+		String key = getName() + ":" + index;
+		synchronized (locks) {
+			Object lock = locks.get(key);
+			if (lock == null) {
+				lock = new Object();
+				locks.put(key, lock);
+			}
+			return lock;
+		}
+	}
+
 	public void runOnOneImage(State state, int index) {
 		console = Console.instance();
+		long start = System.currentTimeMillis();
+		long[] childTime = (long[])nestedTime.get();
+		long outerChildTime = childTime[0];
+		childTime[0] = 0;
 		try {
-			run(state, index);
-		} catch(Exception e) {
-			if(!exception) {
-				exception = true;
-				exceptionOccurred(index);
+			synchronized (getLock(index)) {
+				long runStart = System.currentTimeMillis();
+				try {
+					run(state, index);
+				} catch(Exception e) {
+					if(!exception) {
+						exception = true;
+						exceptionOccurred(index);
+					}
+					// throw again to stop the execution
+					throw new RuntimeException("Exception in " + getName(), e);
+				}
+				addTiming(getName(), System.currentTimeMillis()
+					- runStart - childTime[0]);
 			}
-			// throw again to stop the execution
-			throw new RuntimeException("Exception in " + getName(), e);
+		} finally {
+			childTime[0] = outerChildTime
+				+ System.currentTimeMillis() - start;
 		}
 		finished(index);
 	}
 
 	public void runOnAllImages(State state) {
-		for (int i = 0; i < state.getImageCount(); i++)
-			runOnOneImage(state, i);
+		runOnImages(state, 0);
 	}
 
 	public void runOnAllImagesAndTemplate(State state) {
-		for (int i = -1; i < state.getImageCount(); i++)
-			runOnOneImage(state, i);
+		// the template first, as the images depend on it
+		runOnOneImage(state, -1);
+		runOnImages(state, 0);
+	}
+
+	/*
+	 * The images are processed by a number of worker threads, each
+	 * picking the next image when it is done with the previous one.
+	 * As the results are written to disk, an interrupted batch resumes
+	 * where it left off. Modules invoked from a worker thread run in
+	 * that thread.
+	 */
+	protected void runOnImages(final State state, int first) {
+		final int count = state.getImageCount();
+		int threadCount = runsInParallel() && !isWorker.get().equals(Boolean.TRUE) ?
+			Math.min(state.getNumberOfThreads(), count - first) : 1;
+		if (threadCount < 2) {
+			for (int i = first; i < count; i++)
+				runOnOneImage(state, i);
+			return;
+		}
+
+		final int[] next = { first };
+		final RuntimeException[] failure = { null };
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			threads[t] = new Thread(getName() + " worker " + t) {
+				public void run() {
+					isWorker.set(Boolean.TRUE);
+					for (;;) {
+						int index;
+						synchronized (next) {
+							if (failure[0] != null || next[0] >= count)
+								return;
+							index = next[0]++;
+						}
+						try {
+							runOnOneImage(state, index);
+						} catch (RuntimeException e) {
+							synchronized (next) {
+								if (failure[0] == null)
+									failure[0] = e;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threadCount; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted", e);
+			}
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	private static ThreadLocal isWorker = new ThreadLocal() {
+		protected Object initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+
+	/* timing, excluding the time spent in prerequisite modules */
+
+	private static ThreadLocal nestedTime = new ThreadLocal() {
+		protected Object initialValue() {
+			return new long[1];
+		}
+	};
+
+	private static Map timings = new TreeMap();
+
+	private static synchronized void addTiming(String name, long millis) {
+		long[] timing = (long[])timings.get(name);
+		if (timing == null) {
+			timing = new long[2];
+			timings.put(name, timing);
+		}
+		timing[0]++;
+		timing[1] += millis;
+	}
+
+	public static synchronized void resetTimings() {
+		timings.clear();
+	}
+
+	public static synchronized String getTimingReport() {
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("Time spent per module (invocations, seconds):");
+		for (Iterator it = timings.keySet().iterator(); it.hasNext();) {
+			String name = (String)it.next();
+			long[] timing = (long[])timings.get(name);
+			buffer.append("\n\t" + name + ": " + timing[0] + ", "
+				+ (timing[1] / 1000.0));
+		}
+		return buffer.toString();
 	}
 
 	public void prereqsDone(State state, int index) {
@@ -2,6 +2,7 @@
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
 
 import java.io.File;
@@ -64,8 +65,6 @@ public State(Options options) {
 	private String warpedPath;
 	private String outputPath;
 	private String statisticsPath;
-        private String currentImagePath;
-        private ImagePlus currentImage;
         private ImagePlus templateLabels;
         private ImagePlus templ;
 
@@ -210,28 +209,56 @@ public static boolean upToDate(String source, String target) {
 		return upToDate(new String[] { source }, target);
 	}
 
+	/*
+	 * The image is written to a temporary file first, so that an
+	 * interrupted batch does not leave a truncated file behind which
+	 * looks up-to-date when the batch is resumed.
+	 */
 	public boolean save(ImagePlus image, String path) {
-		currentImagePath = path;
-		currentImage = image;
-		return new FileSaver(image).saveAsTiffStack(path);
+		setCurrentImage(path, image);
+		File file = new File(path);
+		File tmp = new File(file.getAbsoluteFile().getParentFile(),
+			"." + file.getName() + ".part");
+		boolean result = new FileSaver(image)
+			.saveAsTiffStack(tmp.getAbsolutePath());
+		if (result) {
+			file.delete();
+			result = tmp.renameTo(file);
+		}
+		if (!result)
+			tmp.delete();
+		image.setTitle(file.getName());
+		FileInfo fi = image.getOriginalFileInfo();
+		if (fi != null)
+			fi.fileName = file.getName();
+		return result;
+	}
+
+	/*
+	 * Caching the latest image; as the images may be processed in
+	 * parallel, each thread has its own cache.
+	 */
+	private ThreadLocal currentImage = new ThreadLocal();
+
+	private void setCurrentImage(String path, ImagePlus image) {
+		currentImage.set(new Object[] { path, image });
 	}
 
-	// caching the latest image
         public ImagePlus getImage(String path) {
-                if (!path.equals(currentImagePath)) {
-			File f = new File(path);
-			if (!f.exists())
-				return null;
-			// give the garbage collector a chance
-			currentImage = null;
-
-			currentImagePath = path;
-			currentImage = IJ.openImage(currentImagePath);
-		}
-                return currentImage;
+		Object[] current = (Object[])currentImage.get();
+		if (current != null && path.equals(current[0]))
+			return (ImagePlus)current[1];
+		File f = new File(path);
+		if (!f.exists())
+			return null;
+		// give the garbage collector a chance
+		currentImage.set(null);
+		ImagePlus image = IJ.openImage(path);
+		setCurrentImage(path, image);
+		return image;
         }
 
-        public ImagePlus getTemplateLabels() {
+        public synchronized ImagePlus getTemplateLabels() {
                 if (templateLabels == null)
 			templateLabels =
 				IJ.openImage(getResampledPath(-1, -1));
@@ -239,7 +266,7 @@ public ImagePlus getTemplateLabels() {
                 return templateLabels;
         }
 
-        public ImagePlus getTemplate() {
+        public synchronized ImagePlus getTemplate() {
                 if (templ == null) {
 			String path =
 				getResampledPath(options.refChannel - 1, -1);
@@ -249,6 +276,38 @@ public ImagePlus getTemplate() {
                 return templ;
         }
 
+	/*
+	 * How many images to process at the same time: one per core (unless
+	 * configured otherwise), but only as many as fit into the available
+	 * memory, estimating that a few copies of the largest image (the
+	 * original, labels, resampled and transformed images) are needed
+	 * per image.
+	 */
+	private final static int COPIES_PER_IMAGE = 4;
+	private int numThreads;
+
+	public synchronized int getNumberOfThreads() {
+		if (numThreads > 0)
+			return numThreads;
+		int threads = options.numThreads > 0 ? options.numThreads :
+			Runtime.getRuntime().availableProcessors();
+		long largest = new File(options.templatePath).length();
+		for (int i = 0; i < options.fileGroup.size(); i++)
+			largest = Math.max(largest,
+				((File)options.fileGroup.get(i)).length());
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory()
+			- runtime.totalMemory() + runtime.freeMemory();
+		long perImage = COPIES_PER_IMAGE * largest;
+		if (perImage > 0)
+			threads = (int)Math.min(threads, available / perImage);
+		numThreads = Math.max(1, threads);
+		if (debug)
+			System.err.println("Processing " + numThreads
+				+ " image(s) in parallel");
+		return numThreads;
+	}
+
 	private void mkdir(String path) {
 		new File(path).mkdir();
 	}
@@ -1,3 +1,4 @@
+import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.process.ImageProcessor;
@@ -25,13 +26,24 @@ public void run(ImageProcessor ip) {
 		GenericDialog gd = new GenericDialog("Bilateral Parameters");
 		gd.addNumericField("spatial radius", 3, 0);
 		gd.addNumericField("range radius", 50, 0);
+		gd.addChoice("method", BilateralFilter.methods,
+			BilateralFilter.methods[BilateralFilter.EXACT]);
+		if (image.getStackSize() > 1)
+			gd.addCheckbox("3D (bilateral grid only)", false);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
 		double spatialRadius = gd.getNextNumber();
 		double rangeRadius = gd.getNextNumber();
-		BilateralFilter.filter(
-			image, spatialRadius, rangeRadius).show();
+		int method = gd.getNextChoiceIndex();
+		boolean volumetric = image.getStackSize() > 1 &&
+			gd.getNextBoolean();
+		if (volumetric && method != BilateralFilter.GRID) {
+			IJ.error("3D filtering needs the bilateral grid");
+			return;
+		}
+		BilateralFilter.filter(image, spatialRadius, rangeRadius,
+			method, volumetric).show();
 	}
 
 	public int setup(String arg, ImagePlus imp) {
@@ -82,6 +82,7 @@ public void imageClosed(ImagePlus image) {
 						imp.getCurrentSlice());
 					System.out.println("Saving indices file");
 					stack.saveIndicesFile();
+					stack.close();
 				}
 			}
 		});
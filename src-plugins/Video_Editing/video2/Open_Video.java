@@ -75,6 +75,7 @@ public void imageClosed(ImagePlus image) {
 						imp.getCurrentSlice());
 					System.out.println("Saving indices file");
 					stack.saveIndicesFile();
+					stack.close();
 				}
 			}
 		});
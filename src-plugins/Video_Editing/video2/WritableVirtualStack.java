@@ -1,48 +1,108 @@
 package video2;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 import java.io.File;
 import java.io.BufferedReader;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.reflect.Array;
+
+import java.nio.ByteBuffer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import ij.IJ;
 import ij.ImageStack;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ColorProcessor;
 
 /**
  * This class represents an array of disk-resident images.
- * In the same folder as the images, a file 'indices' is stored, which
- * holds the order in which the indices occur. The names of the image
- * files are restricted to be in the format int + ".tif".
+ *
+ * All frames are stored in a single file 'frames.dat' in the given
+ * directory: a header holding the dimensions and the type of the frames,
+ * followed by one record per frame, optionally deflate-compressed.
+ * Frames are only ever appended to this file; a frame which is changed
+ * is appended anew. A second file 'indices' holds the order in which
+ * the frames occur, so inserting, deleting and reordering frames only
+ * changes this list. The most recently used frames are kept in memory.
+ *
+ * Both files are replaced only by renaming completely written temporary
+ * files, and both record a generation number, which is incremented when
+ * the frames are renumbered; a mismatch (after a crash while compacting)
+ * is repaired from the temporary indices file, or reported.
+ *
+ * Directories written by earlier versions, which contain one
+ * int + ".tif" file per frame, are converted when they are opened.
  */
 public class WritableVirtualStack extends ImageStack {
 
+	/** The name of the file holding the frames. */
+	public static final String FRAMES = "frames.dat";
+
+	/** The name of the file holding the order of the frames. */
+	public static final String INDICES = "indices";
+
+	private static final String TMP = ".tmp";
+
+	private static final int MAGIC = 0x57565331; // "WVS1"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int COMPRESSED = 1;
+
 	/** The directory containing the images. */
 	private final String dir;
 
 	/** An ImageProcessor serving as template for creating new slides. */
-	private final ImageProcessor template;
+	private ImageProcessor template;
 
-	/** The number of slices of this stack. */
-	private int nSlices;
+	/** A list of integers, storing the order of the frames. */
+	private List<Integer> indices;
 
-	/** The highest integer (regarding file names). */
-	private int highestIndex;
+	/** The file holding the frames, opened on demand. */
+	private RandomAccessFile file;
+	private long fileLength;
 
-	/** A list of integers, storing the order of the files. */
-	private List<Integer> indices;
+	/* The position, stored length and flags of each record */
+	private long[] offsets = new long[64];
+	private int[] lengths = new int[64];
+	private int[] flags = new int[64];
+	private int nRecords;
+
+	private boolean compress = true;
+
+	/*
+	 * Incremented when the frames are renumbered by compact();
+	 * stored in both the frames and the indices file.
+	 */
+	private int generation = 0;
+
+	/* The decoded pixels of the most recently used frames */
+	private final Map<Integer, Object> cache =
+		new LinkedHashMap<Integer, Object>(16, 0.75f, true);
+	private long maxCacheBytes =
+		Math.min(Runtime.getRuntime().maxMemory() / 4, 512l << 20);
 
 	/**
 	 * Creates a new Writable Stack, using the given directory
-	 * as a folder for the individual images.
+	 * as a folder for the images.
 	 *
 	 * If the folder is empty, a new stack is created, using
 	 * a ColorProcessor of the given width and height as template.
@@ -54,22 +114,16 @@ public class WritableVirtualStack extends ImageStack {
 	 */
 	public WritableVirtualStack(String dir, int w, int h) {
 		this.dir = dir;
-		open();
-		if(nSlices != 0) {
-			this.template = IJ.openImage(dir + "/" + getFileName(1))
-						.getProcessor();
-			if(template.getWidth() != w && template.getHeight() != h)
-				throw new IllegalArgumentException(
-					"Specified image dimensions do not fit to " +
-					"existing images");
-		} else {
-			this.template = new ColorProcessor(w, h);
-		}
+		open(w, h);
+		if(template.getWidth() != w || template.getHeight() != h)
+			throw new IllegalArgumentException(
+				"Specified image dimensions do not fit to " +
+				"existing images");
 	}
 
 	/**
 	 * Creates a new Writable Stack, using the given directory
-	 * as a folder for the individual images.
+	 * as a folder for the images.
 	 *
 	 * If the folder is empty, or does not exist, an exception
 	 * is thrown, because the required image dimensions are not
@@ -78,52 +132,248 @@ public WritableVirtualStack(String dir, int w, int h) {
 	 */
 	public WritableVirtualStack(String dir) {
 		this.dir = dir;
-		open();
-		if(nSlices == 0)
-			throw new RuntimeException("Specified directory is empty, "
-				+ "and no dimensions are specified");
-		this.template = IJ.openImage(
-			dir + "/" + getFileName(1)).getProcessor();
+		open(-1, -1);
 	}
 
 	/**
 	 * Initializes this WritableVirtualStack by reading the 'indices'
-	 * file of the images' directory.
+	 * file and the header of the frames file of the images' directory.
 	 */
-	private void open() {
-		highestIndex = 0;
-		nSlices = 0;
+	private void open(int w, int h) {
 		indices = new ArrayList<Integer>();
 
 		File f = new File(dir);
 		if(!f.exists())
 			f.mkdir();
 
-		// if index file does not exist, create it by sorting the
-		// files alphabetically
-		File indexfile = new File(f, "indices");
-		if(!indexfile.exists())
-			return;
-
-		BufferedReader reader = null;
 		try {
-			reader = new BufferedReader(new FileReader(indexfile));
-		} catch(FileNotFoundException e) {}
+			File framesFile = new File(f, FRAMES);
+			File framesTmp = new File(f, FRAMES + TMP);
+			// a compacted frames file is complete once it is renamed
+			if(framesFile.exists())
+				framesTmp.delete();
+			else if(framesTmp.exists())
+				replace(framesTmp, framesFile);
+
+			File indexFile = new File(f, INDICES);
+			File indexTmp = new File(f, INDICES + TMP);
+			int indicesGeneration = 0;
+			boolean useTmp = false;
+			if(indexFile.exists())
+				indicesGeneration = readIndicesFile(indexFile, indices);
+			else if(indexTmp.exists()) {
+				indicesGeneration = readIndicesFile(indexTmp, indices);
+				useTmp = true;
+			}
+
+			if(framesFile.exists()) {
+				openFrames();
+				if(indicesGeneration != generation && !useTmp
+						&& indexTmp.exists()) {
+					/*
+					 * compact() was interrupted after
+					 * replacing the frames file
+					 */
+					List<Integer> list = new ArrayList<Integer>();
+					if(readIndicesFile(indexTmp, list)
+							== generation) {
+						indices = list;
+						indicesGeneration = generation;
+						useTmp = true;
+					}
+				}
+				if(indicesGeneration != generation)
+					throw new IOException("The indices do not "
+						+ "match the frames in " + dir);
+				checkIndices();
+				if(useTmp)
+					replace(indexTmp, indexFile);
+				else
+					indexTmp.delete();
+				return;
+			}
+			if(indices.size() > 0) {
+				convertTiffs();
+				return;
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		if(w < 0 || h < 0)
+			throw new RuntimeException("Specified directory is empty, "
+				+ "and no dimensions are specified");
+		template = new ColorProcessor(w, h);
+		createFrames();
+	}
 
+	/*
+	 * Reads the frame numbers into the given list, and returns
+	 * the generation (0 for files written by earlier versions).
+	 */
+	private int readIndicesFile(File indexfile, List<Integer> list)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(
+			new FileReader(indexfile));
+		int result = 0;
 		String line = null;
 		try {
 			while((line = reader.readLine()) != null) {
-				if(line.trim().length() == 0)
+				line = line.trim();
+				if(line.length() == 0)
 					continue;
-				int index = Integer.parseInt(line);
-				if(index > highestIndex)
-					highestIndex = index;
-				indices.add(index);
-				nSlices++;
+				if(line.startsWith("generation "))
+					result = Integer.parseInt(
+						line.substring(11).trim());
+				else
+					list.add(Integer.parseInt(line));
 			}
-		} catch(Exception e) {
+		} catch(NumberFormatException e) {
+			throw new IOException("Invalid line '" + line
+				+ "' in " + indexfile);
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/*
+	 * Reads the header of the frames file, and the positions of the
+	 * records. An incomplete last record (e.g. after a crash while
+	 * appending) is cut off.
+	 */
+	private void openFrames() throws IOException {
+		RandomAccessFile in = frames();
+		long length = in.length();
+		byte[] buffer = new byte[HEADER_SIZE];
+		in.seek(0);
+		if(length < HEADER_SIZE)
+			throw new IOException("Invalid frames file: " + dir);
+		in.readFully(buffer);
+		ByteBuffer header = ByteBuffer.wrap(buffer);
+		if(header.getInt() != MAGIC || header.getInt() != VERSION)
+			throw new IOException("Invalid frames file: " + dir);
+		int w = header.getInt();
+		int h = header.getInt();
+		template = createProcessor(header.getInt(), w, h);
+		generation = header.getInt();
+
+		long pos = HEADER_SIZE;
+		nRecords = 0;
+		ByteBuffer rec = ByteBuffer.wrap(new byte[RECORD_HEADER_SIZE]);
+		while(pos + RECORD_HEADER_SIZE <= length) {
+			in.seek(pos);
+			in.readFully(rec.array());
+			int l = rec.getInt(0);
+			if(l < 0 || pos + RECORD_HEADER_SIZE + l > length)
+				break;
+			addRecord(pos + RECORD_HEADER_SIZE, l, rec.getInt(4));
+			pos += RECORD_HEADER_SIZE + l;
+		}
+		if(pos < length)
+			in.setLength(pos);
+		fileLength = pos;
+	}
+
+	private void checkIndices() throws IOException {
+		for(int index : indices)
+			if(index < 1 || index > nRecords)
+				throw new IOException("Frame " + index
+					+ " is missing in " + dir);
+	}
+
+	/* Starts a new, empty frames file */
+	private void createFrames() {
+		try {
+			RandomAccessFile out = frames();
+			out.setLength(0);
+			out.write(getHeader(generation));
+		} catch(IOException e) {
 			throw new RuntimeException(e);
 		}
+		fileLength = HEADER_SIZE;
+		nRecords = 0;
+	}
+
+	private byte[] getHeader(int generation) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(template.getWidth());
+		header.putInt(template.getHeight());
+		header.putInt(getType(template));
+		header.putInt(generation);
+		return header.array();
+	}
+
+	/*
+	 * Converts a directory with one tif file per frame. The tif
+	 * files are left in place.
+	 */
+	private void convertTiffs() throws IOException {
+		ImagePlus first = IJ.openImage(dir + "/" + indices.get(0) + ".tif");
+		if(first == null)
+			throw new IOException("Could not open frame "
+				+ indices.get(0) + " in " + dir);
+		template = createProcessor(getType(first.getProcessor()),
+			first.getWidth(), first.getHeight());
+		createFrames();
+		for(int i = 0; i < indices.size(); i++) {
+			ImagePlus imp = IJ.openImage(
+				dir + "/" + indices.get(i) + ".tif");
+			if(imp == null)
+				throw new IOException("Could not open frame "
+					+ indices.get(i) + " in " + dir);
+			indices.set(i, append(convert(imp.getProcessor())
+				.getPixels()));
+		}
+		saveIndicesFile();
+	}
+
+	private RandomAccessFile frames() throws IOException {
+		if(file == null)
+			file = new RandomAccessFile(new File(dir, FRAMES), "rw");
+		return file;
+	}
+
+	/**
+	 * Closes the frames file. It is reopened when needed.
+	 */
+	public synchronized void close() {
+		if(file == null)
+			return;
+		try {
+			file.close();
+		} catch(IOException e) {
+			IJ.handleException(e);
+		}
+		file = null;
+	}
+
+	/**
+	 * Specifies whether new frames are stored compressed (the default).
+	 * Frames which do not get smaller are always stored uncompressed.
+	 */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	public boolean getCompression() {
+		return compress;
+	}
+
+	/**
+	 * Sets the number of bytes which may be used to keep
+	 * decoded frames in memory.
+	 */
+	public void setCacheSize(long bytes) {
+		synchronized(cache) {
+			maxCacheBytes = bytes;
+			trimCache();
+		}
+	}
+
+	public long getCacheSize() {
+		return maxCacheBytes;
 	}
 
 	/**
@@ -141,20 +391,119 @@ public int getHeight() {
 	}
 
 	/**
-	 * Saves the 'indices' file to the image directory.
+	 * Saves the 'indices' file to the image directory. If most of
+	 * the frames file is taken by frames which are not used any more,
+	 * it is compacted first, which renumbers the frames.
 	 */
-	public void saveIndicesFile() {
-		File f = new File(dir, "indices");
-		PrintWriter out = null;
+	public synchronized void saveIndicesFile() {
+		long used = HEADER_SIZE;
+		for(int index : indices)
+			used += RECORD_HEADER_SIZE + lengths[index - 1];
 		try {
-			out = new PrintWriter(new FileWriter(f));
+			if(2 * used < fileLength)
+				compact();
+			else {
+				// the indices must not refer to lost frames
+				frames().getFD().sync();
+				File f = new File(dir, INDICES);
+				File tmp = new File(dir, INDICES + TMP);
+				writeIndicesFile(tmp, indices, generation);
+				replace(tmp, f);
+			}
 		} catch(IOException e) {
 			throw new RuntimeException(e);
 		}
-		for(Integer i : indices)
-			out.println(i);
-		out.flush();
-		out.close();
+	}
+
+	private void writeIndicesFile(File f, List<Integer> list,
+			int generation) throws IOException {
+		FileOutputStream stream = new FileOutputStream(f);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(stream));
+		try {
+			out.println("generation " + generation);
+			for(Integer i : list)
+				out.println(i);
+			out.flush();
+			if(out.checkError())
+				throw new IOException("Could not write " + f);
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Renames the (completely written) file, replacing the target.
+	 */
+	private static void replace(File from, File to) throws IOException {
+		if(from.renameTo(to))
+			return;
+		// renameTo() does not replace existing files on all platforms
+		if(!to.delete() || !from.renameTo(to))
+			throw new IOException("Could not replace " + to);
+	}
+
+	/*
+	 * Copies the frames which are still in use to a new frames file,
+	 * in the order of the slices, and renumbers them.
+	 *
+	 * Both new files are written completely before replacing the
+	 * old ones; open() repairs an interruption between the two
+	 * replacements, as the indices are written first.
+	 */
+	private void compact() throws IOException {
+		File f = new File(dir, FRAMES);
+		File tmp = new File(dir, FRAMES + TMP);
+		RandomAccessFile in = frames();
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		long[] newOffsets = new long[Math.max(16, indices.size())];
+		int[] newLengths = new int[newOffsets.length];
+		int[] newFlags = new int[newOffsets.length];
+		long newLength;
+		try {
+			out.setLength(0);
+			out.write(getHeader(generation + 1));
+			byte[] buffer = new byte[0];
+			long pos = HEADER_SIZE;
+			for(int i = 0; i < indices.size(); i++) {
+				int r = indices.get(i) - 1;
+				int l = RECORD_HEADER_SIZE + lengths[r];
+				if(buffer.length < l)
+					buffer = new byte[l];
+				in.seek(offsets[r] - RECORD_HEADER_SIZE);
+				in.readFully(buffer, 0, l);
+				out.write(buffer, 0, l);
+				newOffsets[i] = pos + RECORD_HEADER_SIZE;
+				newLengths[i] = lengths[r];
+				newFlags[i] = flags[r];
+				pos += l;
+			}
+			newLength = pos;
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		List<Integer> renumbered = new ArrayList<Integer>();
+		for(int i = 0; i < indices.size(); i++)
+			renumbered.add(i + 1);
+		File indexTmp = new File(dir, INDICES + TMP);
+		writeIndicesFile(indexTmp, renumbered, generation + 1);
+
+		close();
+		replace(tmp, f);
+		replace(indexTmp, new File(dir, INDICES));
+
+		offsets = newOffsets;
+		lengths = newLengths;
+		flags = newFlags;
+		nRecords = indices.size();
+		fileLength = newLength;
+		synchronized(cache) {
+			cache.clear();
+		}
+		indices = renumbered;
+		generation++;
 	}
 
 	/**
@@ -174,10 +523,8 @@ public void addSlice(String name) {
 	 *               here.
 	 * @param pixels The pixel array for the new slice.
 	 */
-	public void addSlice(String name, Object pixels) {
-		ImageProcessor ip = template.duplicate();
-		ip.setPixels(pixels);
-		addSlice(name, ip);
+	public synchronized void addSlice(String name, Object pixels) {
+		indices.add(append(pixels));
 	}
 
 	/**
@@ -188,7 +535,7 @@ public void addSlice(String name, Object pixels) {
 	 * @param ip   The ImageProcessor for the new slice.
 	 */
 	public void addSlice(String name, ImageProcessor ip) {
-		addSlice(name, ip, nSlices);
+		addSlice(name, ip, indices.size());
 	}
 
 	/**
@@ -197,39 +544,30 @@ public void addSlice(String name, ImageProcessor ip) {
 	 * @param name The name of the slice. This parameter exists only for
 	 *             compatibility reasons with ImageStack, but is not used
 	 *             here.
-	 * @param ip   The ImageProcessor for the new slice.
+	 * @param ip   The ImageProcessor for the new slice. It is converted
+	 *             to the type of the stack if necessary.
 	 * @param n    The position of the slice, 0 to add it at the beginning.
 	 */
-	public void addSlice(String name, ImageProcessor ip, int n) {
-		nSlices++;
-		highestIndex++;
-		indices.add(n, highestIndex);
-		IJ.save(new ImagePlus("", ip), dir + "/" + highestIndex + ".tif");
+	public synchronized void addSlice(String name, ImageProcessor ip, int n) {
+		indices.add(n, append(convert(ip).getPixels()));
 	}
 
 	/**
 	 * Deletes the specified slice.
 	 * @param n The position of the slice to delete, were 1 <= n <= nslices.
 	 */
-	public void deleteSlice(int n) {
-		if(n < 1 || n > nSlices)
+	public synchronized void deleteSlice(int n) {
+		if(n < 1 || n > indices.size())
 			return;
-
-		int index = indices.get(n - 1);
-		File f = new File(dir, getFileName(n));
 		indices.remove(n - 1);
-		f.delete();
-		nSlices--;
-		if(index == highestIndex)
-			highestIndex--;
 	}
 
 	/**
 	 * Deletes the last slice in the stack.
 	 */
 	public void deleteLastSlice() {
-		if(nSlices > 0)
-			deleteSlice(nSlices);
+		if(indices.size() > 0)
+			deleteSlice(indices.size());
 	}
 
 	/**
@@ -237,11 +575,15 @@ public void deleteLastSlice() {
 	 * were 1 <= n <= nslices.
 	 */
 	public Object getPixels(int n) {
-		ImageProcessor ip = getProcessor(n);
-		if (ip!=null)
-			return ip.getPixels();
-		else
-			return null;
+		Object pixels = read(indices.get(n - 1));
+		// the cached array must not be modified
+		if(pixels instanceof byte[])
+			return ((byte[])pixels).clone();
+		if(pixels instanceof short[])
+			return ((short[])pixels).clone();
+		if(pixels instanceof float[])
+			return ((float[])pixels).clone();
+		return ((int[])pixels).clone();
 	}
 
 	/**
@@ -249,12 +591,10 @@ public Object getPixels(int n) {
 	 * @param pixels The pixel array to be assigned.
 	 * @param n      The slice index, were 1 <= n <= nslices.
 	 */
-	public void setPixels(Object pixels, int n) {
-		ImageProcessor ip = getProcessor(n);
-		if(ip == null)
+	public synchronized void setPixels(Object pixels, int n) {
+		if(n < 1 || n > indices.size())
 			return;
-		ip.setPixels(pixels);
-		IJ.save(new ImagePlus("", ip), dir + "/" + getFileName(n));
+		indices.set(n - 1, append(pixels));
 	}
 
 	/**
@@ -263,17 +603,18 @@ public void setPixels(Object pixels, int n) {
 	 * @return null if the stack is empty.
 	 */
 	public ImageProcessor getProcessor(int n) {
-		ImagePlus imp = IJ.openImage(dir + "/" + getFileName(n));
-		if (imp != null)
-			return imp.getProcessor();
-		return null;
+		if(indices.size() == 0)
+			return null;
+		ImageProcessor ip = template.duplicate();
+		ip.setPixels(getPixels(n));
+		return ip;
 	 }
 
 	/**
 	 * Returns the number of slices in this stack.
 	 */
 	public int getSize() {
-		return nSlices;
+		return indices.size();
 	}
 
 	/**
@@ -317,11 +658,237 @@ public String getDirectory() {
 	}
 
 	/**
-	 * Returns the file name of the specified slice,
-	 * were 1 <= n <= nslices.
+	 * Returns the name of the frame of the specified slice,
+	 * were 1 <= n <= nslices. Frames are not stored in
+	 * individual files any more; the name is the number of
+	 * the frame in the frames file.
 	 */
 	public String getFileName(int n) {
-		return indices.get(n - 1) + ".tif";
+		return "" + indices.get(n - 1);
+	}
+
+	/*
+	 * Appends the pixels as a new frame to the frames file,
+	 * and returns its number (starting at 1).
+	 */
+	private synchronized int append(Object pixels) {
+		Object expected = template.getPixels();
+		if(pixels == null || pixels.getClass() != expected.getClass())
+			throw new IllegalArgumentException("Expected pixels of type "
+				+ expected.getClass().getSimpleName() + ", got "
+				+ (pixels == null ? "null" :
+					pixels.getClass().getSimpleName()));
+		if(Array.getLength(pixels) != Array.getLength(expected))
+			throw new IllegalArgumentException("Expected "
+				+ Array.getLength(expected) + " pixels, got "
+				+ Array.getLength(pixels));
+		byte[] raw = toBytes(pixels);
+		byte[] data = raw;
+		int l = raw.length;
+		int flag = 0;
+		if(compress) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(raw);
+			deflater.finish();
+			byte[] out = new byte[raw.length];
+			int n = 0;
+			while(!deflater.finished() && n < out.length)
+				n += deflater.deflate(out, n, out.length - n);
+			if(deflater.finished() && n < raw.length) {
+				data = out;
+				l = n;
+				flag = COMPRESSED;
+			}
+			deflater.end();
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.putInt(l);
+		header.putInt(flag);
+		try {
+			RandomAccessFile out = frames();
+			out.seek(fileLength);
+			out.write(header.array());
+			out.write(data, 0, l);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		addRecord(fileLength + RECORD_HEADER_SIZE, l, flag);
+		fileLength += RECORD_HEADER_SIZE + l;
+
+		// the new frame is likely to be shown next
+		cache(nRecords, fromBytes(raw == pixels ? raw.clone() : raw));
+		return nRecords;
 	}
-}
 
+	private void addRecord(long offset, int length, int flag) {
+		if(nRecords == offsets.length) {
+			long[] o = new long[2 * nRecords];
+			int[] l = new int[2 * nRecords];
+			int[] f = new int[2 * nRecords];
+			System.arraycopy(offsets, 0, o, 0, nRecords);
+			System.arraycopy(lengths, 0, l, 0, nRecords);
+			System.arraycopy(flags, 0, f, 0, nRecords);
+			offsets = o;
+			lengths = l;
+			flags = f;
+		}
+		offsets[nRecords] = offset;
+		lengths[nRecords] = length;
+		flags[nRecords] = flag;
+		nRecords++;
+	}
+
+	/* Returns the (cached) pixels of the given frame */
+	private Object read(int index) {
+		synchronized(cache) {
+			Object pixels = cache.get(index);
+			if(pixels != null)
+				return pixels;
+		}
+		byte[] data;
+		int flag, gen;
+		synchronized(this) {
+			gen = generation;
+			int r = index - 1;
+			data = new byte[lengths[r]];
+			flag = flags[r];
+			try {
+				RandomAccessFile in = frames();
+				in.seek(offsets[r]);
+				in.readFully(data);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if((flag & COMPRESSED) != 0) {
+			byte[] raw = new byte[getFrameBytes()];
+			Inflater inflater = new Inflater();
+			inflater.setInput(data);
+			try {
+				int n = 0;
+				while(n < raw.length && !inflater.finished()) {
+					int count = inflater.inflate(raw,
+						n, raw.length - n);
+					if(count == 0 && (inflater.needsInput() ||
+							inflater.needsDictionary()))
+						throw new DataFormatException(
+							"truncated data");
+					n += count;
+				}
+			} catch(DataFormatException e) {
+				throw new RuntimeException("Frame " + index
+					+ " is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+			data = raw;
+		}
+		Object pixels = fromBytes(data);
+		synchronized(this) {
+			if(gen == generation)
+				cache(index, pixels);
+		}
+		return pixels;
+	}
+
+	private void cache(int index, Object pixels) {
+		synchronized(cache) {
+			cache.put(index, pixels);
+			trimCache();
+		}
+	}
+
+	private void trimCache() {
+		Iterator<Integer> iter = cache.keySet().iterator();
+		// always keep the most recently used frame
+		while((long)cache.size() * getFrameBytes() > maxCacheBytes
+				&& cache.size() > 1) {
+			iter.next();
+			iter.remove();
+		}
+	}
+
+	private int getFrameBytes() {
+		int n = template.getWidth() * template.getHeight();
+		if(template instanceof ByteProcessor)
+			return n;
+		if(template instanceof ShortProcessor)
+			return 2 * n;
+		return 4 * n;
+	}
+
+	private byte[] toBytes(Object pixels) {
+		if(pixels instanceof byte[])
+			return (byte[])pixels;
+		ByteBuffer buffer;
+		if(pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			buffer = ByteBuffer.allocate(2 * p.length);
+			buffer.asShortBuffer().put(p);
+		} else if(pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			buffer = ByteBuffer.allocate(4 * p.length);
+			buffer.asFloatBuffer().put(p);
+		} else {
+			int[] p = (int[])pixels;
+			buffer = ByteBuffer.allocate(4 * p.length);
+			buffer.asIntBuffer().put(p);
+		}
+		return buffer.array();
+	}
+
+	private Object fromBytes(byte[] data) {
+		if(template instanceof ByteProcessor)
+			return data;
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if(template instanceof ShortProcessor) {
+			short[] p = new short[data.length / 2];
+			buffer.asShortBuffer().get(p);
+			return p;
+		}
+		if(template instanceof FloatProcessor) {
+			float[] p = new float[data.length / 4];
+			buffer.asFloatBuffer().get(p);
+			return p;
+		}
+		int[] p = new int[data.length / 4];
+		buffer.asIntBuffer().get(p);
+		return p;
+	}
+
+	/* Converts the processor to the type of the stack */
+	private ImageProcessor convert(ImageProcessor ip) {
+		if(ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+			throw new IllegalArgumentException("Expected a " + getWidth()
+				+ "x" + getHeight() + " image, got "
+				+ ip.getWidth() + "x" + ip.getHeight());
+		int type = getType(template);
+		if(getType(ip) == type)
+			return ip;
+		switch(type) {
+			case ImagePlus.GRAY8: return ip.convertToByte(true);
+			case ImagePlus.GRAY16: return ip.convertToShort(true);
+			case ImagePlus.GRAY32: return ip.convertToFloat();
+			default: return ip.convertToRGB();
+		}
+	}
+
+	private static int getType(ImageProcessor ip) {
+		if(ip instanceof ByteProcessor)
+			return ImagePlus.GRAY8;
+		if(ip instanceof ShortProcessor)
+			return ImagePlus.GRAY16;
+		if(ip instanceof FloatProcessor)
+			return ImagePlus.GRAY32;
+		return ImagePlus.COLOR_RGB;
+	}
+
+	private static ImageProcessor createProcessor(int type, int w, int h) {
+		switch(type) {
+			case ImagePlus.GRAY8: return new ByteProcessor(w, h);
+			case ImagePlus.GRAY16: return new ShortProcessor(w, h);
+			case ImagePlus.GRAY32: return new FloatProcessor(w, h);
+			default: return new ColorProcessor(w, h);
+		}
+	}
+}
@@ -48,6 +48,9 @@ class ASlice extends Object {
     int [] my1DProjVoxels = null;     // if needed, 1D sums values will be stored in a projection
     double Proj1DScale = 1.0;
     double Proj1DOffset = 0.0;
+    double [] myRawProj = null;     // the projected data values, from which mySlice is computed for the current thresholds
+    double RemappedShift=Double.NaN, RemappedScale=Double.NaN;  // the display scaling used for mySlice
+    final static int MinVoxelsPerThread = 1 << 16;
     	
     ASlice(int mDim, AnElement myData)
     {
@@ -657,29 +660,144 @@ else if (pdir == 1)
           return pos;
   }
   
+  /* The projection is kept as data values (in myRawProj), so that a change of the display thresholds only needs
+     a cheap remapping to the display values (see RemapProj), instead of projecting the whole element again. */
   public void DoProject(int direction, AnElement myData, AnElement gate, ROI roi) {
-  	int x,y,z,xo,yo,zo,gx,gy,gz;
-	int val,voxels=0, maxVal=0, pvoxels=0;
-        double rval;
-        ROISum=0.0;ROIAvg=0.0;ROIMax=-Double.MAX_VALUE;ROIMin=Double.MAX_VALUE;
-        int Proj1DSize = myData.Sizes[ProjSizeDim(direction)];
+        final int Proj1DSize = myData.Sizes[ProjSizeDim(direction)];
         if (my1DProj == null)
             {
                 my1DProj = new double[Proj1DSize];
                 my1DProjVoxels = new int[Proj1DSize];
                 // System.out.println("Allocated dim: "+direction+", size: "+Proj1DSize+"\n");
             }
-        Clear();
+        if (myRawProj == null)
+            myRawProj = new double[AllSize];
+
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        if ((double) AllSize * myData.Sizes[direction] < MinVoxelsPerThread * 2)
+            nThreads = 1;
+        nThreads = java.lang.Math.max(1, java.lang.Math.min(nThreads, SliceSizeY));
+        ProjectionPart[] parts = new ProjectionPart[nThreads];
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++)
+        {
+            parts[t] = new ProjectionPart(direction, myData, gate, roi, Proj1DSize,
+                                          (SliceSizeY * t) / nThreads, (SliceSizeY * (t + 1)) / nThreads);
+            threads[t] = new Thread(parts[t]);
+            if (t > 0)
+                threads[t].start();
+        }
+        parts[0].run();  // the calling thread does its share, too
+        for (int t = 1; t < nThreads; t++)
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+        // merge the 1D projections and the ROI statistics of the parts
+        double voxels=0;
+        ROISum=0.0;ROIAvg=0.0;ROIMax=-Double.MAX_VALUE;ROIMin=Double.MAX_VALUE;
         for (int i = 0; i < Proj1DSize; i++) 
             {
                 my1DProj[i] = 0.0;
                 my1DProjVoxels[i] = 0;
             }
+        for (int t = 0; t < nThreads; t++)
+        {
+            ProjectionPart part = parts[t];
+            voxels += part.voxels;
+            ROISum += part.sum;
+            if (part.min < ROIMin) ROIMin = part.min;
+            if (part.max > ROIMax) ROIMax = part.max;
+            for (int i = 0; i < Proj1DSize; i++)
+            {
+                my1DProjVoxels[i] += part.proj1DVoxels[i];
+                if (! MIPMode)
+                    my1DProj[i] += part.proj1D[i];
+                else if (part.proj1D[i] > my1DProj[i])
+                    my1DProj[i] = part.proj1D[i];
+            }
+        }
+
+        double maxVal1D=-1e30, minVal1D=1e30;
+        for (int i = 0; i < Proj1DSize; i++) 
+            {
+                if (! MIPMode && my1DProjVoxels[i] > 0)
+                    my1DProj[i] /= my1DProjVoxels[i];
+                if (my1DProj[i] > maxVal1D)
+                    maxVal1D = my1DProj[i];
+                if (my1DProj[i] < minVal1D)
+                    minVal1D = my1DProj[i];
+            }
+        Proj1DScale = ((double) 1.0) / (maxVal1D - minVal1D);
+        Proj1DOffset = minVal1D;
+        
+	if (voxels > 0)
+            ROIAvg = ROISum / (double) (voxels);
+        ROIVoxels = (double) voxels;   // Only the voxels 
         
-        for (int px = 0; px < SliceSizeX; px++)
-            for (int py = 0; py < SliceSizeY; py++)
+        RemapProj(myData);
+        isValid = true;
+    }
+
+  /* Has the display scaling of the element changed since the projection was remapped? */
+  boolean NeedsRemap(AnElement myData) {
+      return myData.shift != RemappedShift || myData.scaleI != RemappedScale;
+  }
+
+  /* Computes the display values of the projection from the projected data values, using the current display scaling of the element */
+  void RemapProj(AnElement myData) {
+        double shift = myData.shift, scaleI = myData.scaleI;
+        int val, maxVal=0;
+        for (int i = 0; i < AllSize; i++) 
+            {
+                double rval = myRawProj[i];
+                if (Double.isNaN(rval))  // no voxel was projected here
+                    val = 0;
+                else
+                    {
+                    val = (int) ((rval - shift) * scaleI);
+                    if (val < 0) val = 0;
+                    if (val > maxVal) maxVal = val;
+                    }
+                mySlice[i] = val;
+            }
+        double scale = ((double) Bundle.MaxCTable-1) / maxVal;
+        for (int i = 0; i < AllSize; i++) 
+            {
+                mySlice[i] = (int) (mySlice[i] * scale);
+                if (mySlice[i] < 0) mySlice[i] = 0;
+            }
+        RemappedShift = shift;
+        RemappedScale = scaleI;
+  }
+
+  /* Projects the rows [py0, py1) of the projection, keeping its own partial 1D projection and ROI statistics */
+  class ProjectionPart implements Runnable {
+      int direction, py0, py1;
+      AnElement myData, gate;
+      ROI roi;
+      double [] proj1D;
+      int [] proj1DVoxels;
+      double sum=0.0, min=Double.MAX_VALUE, max=-Double.MAX_VALUE;
+      int voxels=0;
+
+      ProjectionPart(int direction, AnElement myData, AnElement gate, ROI roi, int Proj1DSize, int py0, int py1) {
+          this.direction = direction; this.myData = myData; this.gate = gate; this.roi = roi;
+          this.py0 = py0; this.py1 = py1;
+          proj1D = new double[Proj1DSize];
+          proj1DVoxels = new int[Proj1DSize];
+      }
+
+      public void run() {
+  	int x,y,z,xo,yo,zo,gx,gy,gz,pvoxels;
+        double rval, raw, rawProj;
+        for (int py = py0; py < py1; py++)
+            for (int px = 0; px < SliceSizeX; px++)
             {
                 pvoxels = 0;
+                rawProj = MIPMode ? -Double.MAX_VALUE : 0.0;
                 for (int pos = 0; pos < myData.Sizes[direction]; pos++)
                 {
                     x = XPos3D(direction,px,py,pos)+(int) myData.DisplayOffset[0];
@@ -696,62 +814,33 @@ public void DoProject(int direction, AnElement myData, AnElement gate, ROI roi)
                         {
                         voxels++; pvoxels++;
                         rval = myData.GetValueAt(xo,yo,zo);
-                        ROISum += rval;
-                        if (rval < ROIMin) ROIMin = rval;
-                        if (rval > ROIMax) ROIMax = rval;
-                        val = myData.GetIntValueAt(xo,yo,zo);
-                        if (val < 0) val = 0;
-                        my1DProjVoxels[Proj1DPos(direction,x,y,z)] ++;
+                        sum += rval;
+                        if (rval < min) min = rval;
+                        if (rval > max) max = rval;
+                        raw = myData.GetRawValueAt(xo,yo,zo);
+                        proj1DVoxels[Proj1DPos(direction,x,y,z)] ++;
                         
                         if (MIPMode)  // Maximum Intensity Projection
                             {
-                            if (val > mySlice[px+SliceSizeX*py])
-                                mySlice[px+SliceSizeX*py] = val;
-                            if (rval > my1DProj[Proj1DPos(direction,x,y,z)])
-                                my1DProj[Proj1DPos(direction,x,y,z)] = rval;
+                            if (raw > rawProj)
+                                rawProj = raw;
+                            if (rval > proj1D[Proj1DPos(direction,x,y,z)])
+                                proj1D[Proj1DPos(direction,x,y,z)] = rval;
                             }
                         else  // Compute sum projection
                             {
-                            mySlice[px+SliceSizeX*py] += val;
-                            my1DProj[Proj1DPos(direction,x,y,z)] += rval;
+                            rawProj += raw;
+                            proj1D[Proj1DPos(direction,x,y,z)] += rval;
                             }
                         }  // end of if IN RANGE
                 }  // end of for pos
                if (pvoxels > 0)
-                        {
-                            if (! MIPMode)
-                                mySlice[px+SliceSizeX*py] /= pvoxels;  // compute average instead of sum
-                            if (mySlice[px+SliceSizeX*py] > maxVal)
-                                maxVal = mySlice[px+SliceSizeX*py];
-                        }
+                   myRawProj[px+SliceSizeX*py] = MIPMode ? rawProj : rawProj / pvoxels;  // compute average instead of sum
+               else
+                   myRawProj[px+SliceSizeX*py] = Double.NaN;
                } // end of for px,py
-                
-        double scale = ((double) Bundle.MaxCTable-1) / maxVal;
-        for (int i = 0; i < AllSize; i++) 
-            {
-                mySlice[i] = (int) (mySlice[i] * scale);
-                if (mySlice[i] < 0) mySlice[i] = 0;
-            }
-	
-        double maxVal1D=-1e30, minVal1D=1e30;
-        for (int i = 0; i < Proj1DSize; i++) 
-            {
-                if (! MIPMode && my1DProjVoxels[i] > 0)
-                    my1DProj[i] /= my1DProjVoxels[i];
-                if (my1DProj[i] > maxVal1D)
-                    maxVal1D = my1DProj[i];
-                if (my1DProj[i] < minVal1D)
-                    minVal1D = my1DProj[i];
-            }
-        Proj1DScale = ((double) 1.0) / (maxVal1D - minVal1D);
-        Proj1DOffset = minVal1D;
-        
-	if (voxels > 0)
-            ROIAvg = ROISum / (double) (voxels);
-        ROIVoxels = (double) voxels;   // Only the voxels 
-        
-        isValid = true;
-    }
+      }
+  }
   
   double Get1DProjValue(int pos) {
 	  if (pos <0) pos=0;
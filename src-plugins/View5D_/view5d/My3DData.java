@@ -1115,7 +1115,7 @@ public void CThreshToValThresh(int elem, double facmin, double facmax)   // copi
         BundleAt(elem).SetMaxcs(nmax);
         BundleAt(elem).cmapcLow = (int) cminnew;
         BundleAt(elem).cmapcHigh = (int) cmaxnew;
-        InvalidateSlices();InvalidateProjs(elem);
+        ThreshChanged(elem);
         transferThresh(elem);
         BundleAt(elem).CompCMap();
     }
@@ -1127,7 +1127,7 @@ public void addLThresh(double howmuch) {
         if (howmany < 0 || max > min + howmany)
         {
             BundleAt(ActiveElement).SetMincs(min + howmany);
-            InvalidateSlices();InvalidateProjs(ActiveElement);
+            ThreshChanged(ActiveElement);
         }
         transferThresh(ActiveElement);
     }
@@ -1139,7 +1139,7 @@ public void addUThresh(double howmuch) {
         if (howmany > 0 || max + howmany > min)
         {
             BundleAt(ActiveElement).SetMaxcs(max + howmany);
-            InvalidateSlices();InvalidateProjs(ActiveElement);
+            ThreshChanged(ActiveElement);
         }
         transferThresh(ActiveElement);
     }
@@ -1523,6 +1523,12 @@ public void InvalidateColor() {
             InvalidateColor(t);
     }
 
+   void ThreshChanged(int elem) {  // the projections will just be remapped, unless this element gates the others
+        InvalidateSlices();
+        if (GateActive && elem == GateElem)
+            InvalidateProjs(-1);
+   }
+
    public void InvalidateSlices() {
         MyColorSlice[0].Invalidate();MyColorSlice[1].Invalidate();MyColorSlice[2].Invalidate();
         MySlice[0].Invalidate();MySlice[1].Invalidate();MySlice[2].Invalidate();
@@ -2995,8 +3001,16 @@ public My3DData(Container myapp,int sizex,int sizey, int sizez,
  private void DoProject(int elem, int dim)
  {
     // System.out.println("DoProject, Bundle: "+BundleAt(elem).ProjValid[dim]+", Proj: "+ProjAt(dim,elem).isValid);
+    ElementAt(elem).SetScaleShift(Getmincs(elem),Getmaxcs(elem));
     if (BundleAt(elem).ProjValid[dim] && ProjAt(dim,elem).isValid)  // No need to project, since all projections are still valid
+    {
+        if (ProjAt(dim,elem).NeedsRemap(ElementAt(elem)))  // only the thresholds changed: just remap the cached projection
+        {
+            ProjAt(dim,elem).RemapProj(ElementAt(elem));
+            MyColorProjection[dim].Invalidate();
+        }
         return;
+    }
     // System.out.println("projecting ...");
     ActProj(dim).setMIPMode(BundleAt(elem).MIPMode);
     ProjAt(dim,elem).DoProject(dim,ElementAt(elem),GetGateElem(), ActROI());
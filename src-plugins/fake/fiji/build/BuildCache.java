@@ -0,0 +1,310 @@
+package fiji.build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Content hashes of the inputs of the rules, to avoid rebuilding when only the
+ * timestamps changed (e.g. after a checkout or a fresh clone)
+ *
+ * For every target built with the cache, the hash of all its inputs (the
+ * fingerprint) and the hash of the resulting file are recorded. Jars compiled
+ * into a build directory also record the hashes of the individual .java
+ * files, so that only the changed ones (and the classes depending on them)
+ * need to be recompiled.
+ *
+ * The time it took to build a target is recorded as well, so that the
+ * parallel build can start the most expensive chains of rules first.
+ *
+ * The cache is stored in a .fakecache file next to the Fakefile. The hashes of
+ * the files are cached, too, as long as their size and mtime do not change.
+ */
+public class BuildCache {
+	protected final static int MAGIC = 0x46414b43; // "FAKC"
+	protected final static int VERSION = 2;
+
+	protected static Map<File, BuildCache> caches = new HashMap<File, BuildCache>();
+
+	protected static class FileHash {
+		long length, lastModified;
+		String hash;
+
+		FileHash(long length, long lastModified, String hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	protected static class Target {
+		String fingerprint, targetHash, compileKey;
+		long duration = -1;
+		Map<String, String> sources = new TreeMap<String, String>();
+	}
+
+	protected File file;
+	protected Map<String, FileHash> files;
+	protected Map<String, Target> targets;
+	protected boolean dirty;
+
+	protected BuildCache(File file) {
+		this.file = file;
+	}
+
+	public static synchronized BuildCache get(File directory) {
+		if (directory == null)
+			directory = new File(".");
+		directory = directory.getAbsoluteFile();
+		BuildCache cache = caches.get(directory);
+		if (cache == null) {
+			cache = new BuildCache(new File(directory, ".fakecache"));
+			caches.put(directory, cache);
+		}
+		return cache;
+	}
+
+	public static synchronized void saveAll() {
+		for (BuildCache cache : caches.values())
+			cache.save();
+	}
+
+	/**
+	 * Returns the content hash of a file; "-" if it does not exist, and
+	 * "/" for directories.
+	 */
+	public String hash(File file) throws IOException {
+		if (!file.exists())
+			return "-";
+		if (file.isDirectory())
+			return "/";
+		String path = file.getAbsolutePath();
+		long length = file.length(), lastModified = file.lastModified();
+		synchronized (this) {
+			load();
+			FileHash cached = files.get(path);
+			if (cached != null && cached.length == length && cached.lastModified == lastModified)
+				return cached.hash;
+		}
+		String hash = sha1(file);
+		synchronized (this) {
+			files.put(path, new FileHash(length, lastModified, hash));
+			dirty = true;
+		}
+		return hash;
+	}
+
+	public synchronized String getFingerprint(File target) {
+		Target record = getTarget(target, false);
+		return record == null ? null : record.fingerprint;
+	}
+
+	public synchronized String getTargetHash(File target) {
+		Target record = getTarget(target, false);
+		return record == null ? null : record.targetHash;
+	}
+
+	public synchronized void setFingerprint(File target, String fingerprint, String targetHash) {
+		Target record = getTarget(target, true);
+		record.fingerprint = fingerprint;
+		record.targetHash = targetHash;
+		dirty = true;
+	}
+
+	/**
+	 * Returns how many milliseconds the last build of the target took, or
+	 * -1 if it is unknown.
+	 */
+	public synchronized long getDuration(File target) {
+		Target record = getTarget(target, false);
+		return record == null ? -1 : record.duration;
+	}
+
+	public synchronized void setDuration(File target, long duration) {
+		getTarget(target, true).duration = duration;
+		dirty = true;
+	}
+
+	/**
+	 * Returns the hashes of the .java files at the time of the last
+	 * successful compilation, or null if the compilation key differs.
+	 */
+	public synchronized Map<String, String> getSourceHashes(File target, String compileKey) {
+		Target record = getTarget(target, false);
+		if (record == null || record.compileKey == null || !record.compileKey.equals(compileKey))
+			return null;
+		return new TreeMap<String, String>(record.sources);
+	}
+
+	public synchronized void setSourceHashes(File target, String compileKey, Map<String, String> sources) {
+		Target record = getTarget(target, true);
+		record.compileKey = compileKey;
+		record.sources = new TreeMap<String, String>(sources);
+		dirty = true;
+	}
+
+	protected Target getTarget(File target, boolean create) {
+		load();
+		String path = target.getAbsolutePath();
+		Target record = targets.get(path);
+		if (record == null && create) {
+			record = new Target();
+			targets.put(path, record);
+		}
+		return record;
+	}
+
+	protected synchronized void load() {
+		if (files != null)
+			return;
+		files = new HashMap<String, FileHash>();
+		targets = new HashMap<String, Target>();
+		if (!file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return;
+			for (int count = in.readInt(); count > 0; count--) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				files.put(path, new FileHash(length, lastModified, in.readUTF()));
+			}
+			for (int count = in.readInt(); count > 0; count--) {
+				String path = in.readUTF();
+				Target record = new Target();
+				record.fingerprint = readString(in);
+				record.targetHash = readString(in);
+				record.compileKey = readString(in);
+				record.duration = in.readLong();
+				for (int count2 = in.readInt(); count2 > 0; count2--) {
+					String source = in.readUTF();
+					record.sources.put(source, in.readUTF());
+				}
+				targets.put(path, record);
+			}
+		} catch (IOException e) {
+			files.clear();
+			targets.clear();
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) { /* ignore */ }
+		}
+	}
+
+	public synchronized void save() {
+		if (!dirty)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(files.size());
+			for (String path : files.keySet()) {
+				FileHash hash = files.get(path);
+				out.writeUTF(path);
+				out.writeLong(hash.length);
+				out.writeLong(hash.lastModified);
+				out.writeUTF(hash.hash);
+			}
+			out.writeInt(targets.size());
+			for (String path : targets.keySet()) {
+				Target record = targets.get(path);
+				out.writeUTF(path);
+				writeString(out, record.fingerprint);
+				writeString(out, record.targetHash);
+				writeString(out, record.compileKey);
+				out.writeLong(record.duration);
+				out.writeInt(record.sources.size());
+				for (String source : record.sources.keySet()) {
+					out.writeUTF(source);
+					out.writeUTF(record.sources.get(source));
+				}
+			}
+			out.close();
+			out = null;
+			if (file.exists() && !file.delete())
+				throw new IOException("Could not remove " + file);
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			dirty = false;
+		} catch (IOException e) {
+			System.err.println("Warning: could not write the build cache: " + e);
+		} finally {
+			if (out != null) try {
+				out.close();
+			} catch (IOException e) { /* ignore */ }
+			tmp.delete();
+		}
+	}
+
+	protected static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	protected static void writeString(DataOutputStream out, String string) throws IOException {
+		out.writeBoolean(string != null);
+		if (string != null)
+			out.writeUTF(string);
+	}
+
+	protected static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String sha1(String string) {
+		MessageDigest digest = getDigest();
+		try {
+			digest.update(string.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return toHex(digest.digest());
+	}
+
+	public static String sha1(File file) throws IOException {
+		MessageDigest digest = getDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	protected static String toHex(byte[] bytes) {
+		StringBuffer buffer = new StringBuffer();
+		for (byte b : bytes)
+			buffer.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		return buffer.toString();
+	}
+}
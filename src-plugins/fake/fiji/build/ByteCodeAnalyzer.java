@@ -164,6 +164,19 @@ public String getSuperclass() {
 		return getClassNameConstant(index);
 	}
 
+	/**
+	 * Whether the class has non-private constants (which other classes
+	 * might have inlined).
+	 */
+	public boolean hasConstantFields() {
+		for (Field field : fields)
+			if ((field.accessFlags & 0x0002) == 0)
+				for (Attribute attribute : field.attributes)
+					if (getStringConstant(attribute.nameIndex).equals("ConstantValue"))
+						return true;
+		return false;
+	}
+
 	public String getSourceFile() {
 		for (Attribute attribute : attributes)
 			if (getStringConstant(attribute.nameIndex).equals("SourceFile"))
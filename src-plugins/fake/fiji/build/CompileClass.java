@@ -31,6 +31,11 @@ void action() throws FakeException {
 		}
 	}
 
+	@Override
+	protected boolean usesBuildCache() {
+		return true;
+	}
+
 	@Override
 	public CompileClass copy() {
 		CompileClass copy = new CompileClass(parser, target, prerequisites);
@@ -1,10 +1,15 @@
 package fiji.build;
 
 import java.io.File;
+import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class CompileJar extends Rule {
 	protected String configPath;
@@ -53,8 +58,25 @@ void action() throws FakeException {
 		Set<String> exclude =
 			parser.fake.expandToSet(getVar("EXCLUDE"), parser.cwd);
 		if (getVar("PREBUILTDIR") == null) {
-			compileJavas(prerequisites, buildDir, exclude, noCompile);
-			new ObsoleteClassFiles(parser.fake.err, new File(Util.makePath(parser.cwd, getStripPath())), buildDir).removeFiles();
+			String compileKey = null;
+			Map<String, String> sourceHashes = null;
+			List<String> javas = null;
+			if (buildDir != null) try {
+				compileKey = getCompileKey(buildDir);
+				sourceHashes = getSourceHashes(exclude);
+				javas = getJavasToRecompile(buildDir, compileKey, sourceHashes);
+			} catch (IOException e) {
+				verbose("Could not determine changed sources: " + e);
+				compileKey = null;
+			}
+			if (javas == null) {
+				compileJavas(prerequisites, buildDir, exclude, noCompile);
+				new ObsoleteClassFiles(parser.fake.err, new File(Util.makePath(parser.cwd, getStripPath())), buildDir).removeFiles();
+			}
+			else
+				compileJavas(javas, buildDir, exclude, noCompile, buildDir.getAbsolutePath());
+			if (compileKey != null)
+				getBuildCache().setSourceHashes(getTargetFile(), compileKey, sourceHashes);
 		}
 		List<String> files = parser.fake.java2classFiles(prerequisites,
 			parser.cwd, buildDir, exclude, noCompile);
@@ -75,6 +97,188 @@ buildDir, configPath, getStripPath(),
 			compileLibrary.action();
 	}
 
+	protected File getTargetFile() {
+		return new File(Util.makePath(parser.cwd, target));
+	}
+
+	@Override
+	protected boolean usesBuildCache() {
+		return true;
+	}
+
+	@Override
+	protected List<String> getBuildInputs() {
+		List<String> result = super.getBuildInputs();
+		if (configPath != null)
+			result.add(configPath);
+		return result;
+	}
+
+	/*
+	 * Everything but the .java files the compiled classes depend on
+	 */
+	protected String getCompileKey(File buildDir) throws IOException {
+		BuildCache cache = getBuildCache();
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(buildDir.getAbsolutePath()).append('\n');
+		for (String key : new String[] { "JAVAVERSION", "DEBUG", "CLASSPATH" })
+			buffer.append(key).append('=').append(getVar(key)).append('\n');
+		for (String path : Util.splitPaths(getVar("CLASSPATH")))
+			buffer.append(path).append(' ')
+				.append(cache.hash(new File(Util.makePath(parser.cwd, path))))
+				.append('\n');
+		return BuildCache.sha1(buffer.toString());
+	}
+
+	protected Map<String, String> getSourceHashes(Set<String> exclude) throws IOException {
+		BuildCache cache = getBuildCache();
+		Map<String, String> result = new TreeMap<String, String>();
+		for (String path : prerequisites)
+			if (path.endsWith(".java") && !exclude.contains(path))
+				result.put(path, cache.hash(new File(Util.makePath(parser.cwd, path))));
+		return result;
+	}
+
+	/**
+	 * Determine which .java files need to be recompiled: the changed ones,
+	 * and the ones whose classes refer (directly or indirectly) to classes
+	 * of changed ones.
+	 *
+	 * The class files of those .java files are deleted, so that no
+	 * obsolete class files are left over.
+	 *
+	 * @return the prerequisites to compile, or null if everything needs to
+	 * be recompiled
+	 */
+	protected List<String> getJavasToRecompile(File buildDir, String compileKey, Map<String, String> sourceHashes) throws IOException {
+		Map<String, String> previous = getBuildCache().getSourceHashes(getTargetFile(), compileKey);
+		if (previous == null || !buildDir.isDirectory() ||
+				!sourceHashes.keySet().containsAll(previous.keySet()))
+			return null;
+
+		Set<String> changed = new HashSet<String>();
+		for (String path : sourceHashes.keySet())
+			if (!sourceHashes.get(path).equals(previous.get(path)))
+				changed.add(path);
+
+		if (changed.size() > 0) {
+			// map the .java files to their classes
+			Map<String, String> suffixes = new HashMap<String, String>();
+			for (String path : sourceHashes.keySet()) {
+				int slash = path.length();
+				do {
+					slash = path.lastIndexOf('/', slash - 1);
+					String suffix = path.substring(slash + 1);
+					// mark ambiguous suffixes
+					suffixes.put(suffix, suffixes.containsKey(suffix) ? "" : path);
+				} while (slash > 0);
+			}
+			Map<String, List<File>> classFiles = new HashMap<String, List<File>>();
+			Map<String, String> class2source = new HashMap<String, String>();
+			Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+			Set<String> constantClasses = new HashSet<String>();
+			if (!analyzeClassFiles(buildDir, "", suffixes, classFiles, class2source, references, constantClasses))
+				return null;
+			for (String path : previous.keySet())
+				if (!classFiles.containsKey(path))
+					return null;
+
+			// add the .java files depending on changed classes
+			Set<String> dirtyClasses = new HashSet<String>();
+			for (String className : class2source.keySet())
+				if (changed.contains(class2source.get(className))) {
+					// other classes might have inlined the constants
+					if (constantClasses.contains(className))
+						return null;
+					dirtyClasses.add(className);
+				}
+			for (;;) {
+				Set<String> more = new HashSet<String>();
+				for (String className : references.keySet()) {
+					String source = class2source.get(className);
+					if (changed.contains(source))
+						continue;
+					for (String referenced : references.get(className))
+						if (dirtyClasses.contains(referenced)) {
+							more.add(source);
+							break;
+						}
+				}
+				if (more.size() == 0)
+					break;
+				changed.addAll(more);
+				for (String className : class2source.keySet())
+					if (more.contains(class2source.get(className)))
+						dirtyClasses.add(className);
+			}
+			if (changed.size() == sourceHashes.size())
+				return null;
+
+			for (String path : changed)
+				if (classFiles.containsKey(path))
+					for (File file : classFiles.get(path))
+						if (!file.delete())
+							return null;
+		}
+
+		verbose("Recompiling " + changed.size() + " of "
+			+ sourceHashes.size() + " .java files of " + target);
+		List<String> result = new ArrayList<String>();
+		for (String path : prerequisites)
+			if (!sourceHashes.containsKey(path) || changed.contains(path))
+				result.add(path);
+		return result;
+	}
+
+	/*
+	 * Returns false if a class file cannot be associated with its source.
+	 */
+	protected boolean analyzeClassFiles(File directory, String prefix,
+			Map<String, String> suffixes,
+			Map<String, List<File>> classFiles,
+			Map<String, String> class2source,
+			Map<String, Set<String>> references,
+			Set<String> constantClasses) {
+		File[] list = directory.listFiles();
+		if (list == null)
+			return true;
+		for (File file : list) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				if (!analyzeClassFiles(file, prefix + name + "/", suffixes, classFiles, class2source, references, constantClasses))
+					return false;
+				continue;
+			}
+			if (!name.endsWith(".class"))
+				continue;
+			ByteCodeAnalyzer analyzer;
+			try {
+				analyzer = new ByteCodeAnalyzer(Util.readFile(file.getPath()), true);
+			} catch (RuntimeException e) {
+				return false;
+			}
+			String sourceFile = analyzer.getSourceFile();
+			String source = sourceFile == null ? null : suffixes.get(prefix + sourceFile);
+			if (source == null || source.equals(""))
+				return false;
+			String className = analyzer.getPathForClass().replace('/', '.');
+			if (analyzer.hasConstantFields())
+				constantClasses.add(className);
+			class2source.put(className, source);
+			List<File> files = classFiles.get(source);
+			if (files == null) {
+				files = new ArrayList<File>();
+				classFiles.put(source, files);
+			}
+			files.add(file);
+			Set<String> referenced = new HashSet<String>();
+			for (String name2 : analyzer)
+				referenced.add(name2);
+			references.put(className, referenced);
+		}
+		return true;
+	}
+
 	void addSources(List<String> files) {
 		for (String file : prerequisites)
 			if (file.endsWith(".java"))
@@ -23,6 +23,19 @@ boolean checkUpToDate() {
 			getVarBool("VERBOSE"));
 	}
 
+	@Override
+	protected boolean usesBuildCache() {
+		return true;
+	}
+
+	@Override
+	protected List<String> getBuildInputs() {
+		List<String> result = super.getBuildInputs();
+		if (configPath != null)
+			result.add(configPath);
+		return result;
+	}
+
 	@Override
 	public CopyJar copy() {
 		CopyJar copy = new CopyJar(parser, target, prerequisites);
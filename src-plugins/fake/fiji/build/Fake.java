@@ -261,12 +261,15 @@ public void make(InputStream input, File cwd, String[] args) {
 				all.makeParallel(Integer.parseInt(parallel));
 			else
 				all.make();
+			BuildCache.saveAll();
 		}
 		catch (FakeException e) {
+			BuildCache.saveAll();
 			System.err.println(e);
 			System.exit(1);
 		}
 		catch (Exception e) {
+			BuildCache.saveAll();
 			e.printStackTrace();
 			System.exit(1);
 		}
@@ -528,40 +531,98 @@ protected List<String> java2classFiles(List<String> javas, File cwd,
 		return result;
 	}
 
-	// this function handles the javac singleton
+	/*
+	 * The compiler is discovered only once, and then shared by all
+	 * compilations (which may run concurrently), so that the classes
+	 * of javac are loaded and JIT-compiled only once per build.
+	 *
+	 * The javac.jar shipped with Fiji is preferred; if it cannot be used,
+	 * the compiler of the running JVM (if any) is tried. Only if neither
+	 * works, a javac from the PATH is executed for every compilation.
+	 */
+	protected static boolean javacDiscovered;
+	protected static Object systemJavac;
+	protected static Method systemJavacRun;
+
+	protected synchronized static void discoverCompiler(PrintStream err) {
+		if (javacDiscovered)
+			return;
+		javacDiscovered = true;
+		try {
+			discoverJavac();
+			JarClassLoader loader = (JarClassLoader)
+				getClassLoader(toolsPath);
+			String className = "com.sun.tools.javac.Main";
+			Class<?> main = loader.forceLoadClass(className);
+			Class<?>[] argsType = new Class[] {
+				String[].class,
+				PrintWriter.class
+			};
+			javac = main.getMethod("compile", argsType);
+		} catch (Exception e) {
+			javac = null;
+			discoverSystemJavac(err);
+		}
+	}
+
+	protected synchronized static void discoverSystemJavac(PrintStream err) {
+		if (systemJavac != null)
+			return;
+		try {
+			Class<?> toolProvider = Class.forName("javax.tools.ToolProvider");
+			systemJavac = toolProvider.getMethod("getSystemJavaCompiler").invoke(null);
+			if (systemJavac != null)
+				systemJavacRun = Class.forName("javax.tools.Tool").getMethod("run",
+					new Class[] { InputStream.class, OutputStream.class, OutputStream.class, String[].class });
+		} catch (Exception e) {
+			systemJavac = null;
+		}
+		if (systemJavac == null)
+			err.println("Could not find javac (tools path = "
+				+ toolsPath + "), falling back to system javac");
+	}
+
 	protected void callJavac(String[] arguments,
 			boolean verbose) throws FakeException {
-		synchronized(this) {
-			try {
-				if (javac == null) {
-					discoverJavac();
-					JarClassLoader loader = (JarClassLoader)
-						getClassLoader(toolsPath);
-					String className = "com.sun.tools.javac.Main";
-					Class<?> main = loader.forceLoadClass(className);
-					Class<?>[] argsType = new Class[] {
-						arguments.getClass(),
-						PrintWriter.class
-					};
-					javac = main.getMethod("compile", argsType);
-				}
-
-				Object result = javac.invoke(null,
-						new Object[] { arguments, new PrintWriter(err) });
-				if (!result.equals(new Integer(0))) {
-					FakeException e = new FakeException("Compile error");
-					e.printStackTrace();
-					throw e;
-				}
-				return;
-			} catch (FakeException e) {
-				/* was compile error */
+		discoverCompiler(err);
+		Method compile = javac;
+		if (compile != null) try {
+			Object result = compile.invoke(null,
+					new Object[] { arguments, new PrintWriter(err) });
+			if (!result.equals(new Integer(0))) {
+				FakeException e = new FakeException("Compile error");
+				e.printStackTrace();
 				throw e;
-			} catch (Exception e) {
-				e.printStackTrace(err);
-				err.println("Could not find javac " + e
-					+ " (tools path = " + toolsPath + "), "
-					+ "falling back to system javac");
+			}
+			return;
+		} catch (FakeException e) {
+			/* was compile error */
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			err.println("Could not run javac " + e
+				+ " (tools path = " + toolsPath + "), "
+				+ "trying the system Java compiler");
+			synchronized (Fake.class) {
+				javac = null;
+			}
+			discoverSystemJavac(err);
+		}
+
+		if (systemJavac != null) try {
+			Object result = systemJavacRun.invoke(systemJavac,
+					new Object[] { null, out, err, arguments });
+			if (!result.equals(new Integer(0)))
+				throw new FakeException("Compile error");
+			return;
+		} catch (FakeException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			err.println("Could not run the system Java compiler, "
+				+ "falling back to system javac");
+			synchronized (Fake.class) {
+				systemJavac = null;
 			}
 		}
 
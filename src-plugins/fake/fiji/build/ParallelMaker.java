@@ -1,5 +1,10 @@
 package fiji.build;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -9,16 +14,35 @@
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Make rules in parallel, as soon as their dependencies are done.
+ *
+ * When more rules are ready than there are threads, the rules on the longest
+ * remaining chain of rules are started first. The cost of a rule is estimated
+ * from the duration of its last build, as recorded in the build cache.
+ *
+ * Optionally, a trace is written with one line per rule that was made: the
+ * name of the thread, the start and end times in milliseconds since the
+ * start of the build, the target and the outcome, separated by tabs.
+ */
 public class ParallelMaker {
 	protected Parser parser;
 	protected ExecutorService pool;
 	protected Map<Rule, FutureTask<FakeException>> futures;
 	protected Map<Rule, List<Rule>> dependencyMap;
 	protected Map<Rule, FakeException> results;
+	protected Map<Rule, Long> priorities;
 	protected Rule finalRule;
+	protected int taskCounter;
+
+	protected File traceFile;
+	protected List<String> trace;
+	protected long startTime;
 
 	protected final FakeException success = new FakeException("Dummy for success");
 
@@ -26,7 +50,10 @@ public ParallelMaker(Parser parser, final int maxThreads, final List<Rule> targe
 		this.parser = parser;
 		futures = new HashMap<Rule, FutureTask<FakeException>>();
 		results = new LinkedHashMap<Rule, FakeException>();
-		pool = Executors.newFixedThreadPool(maxThreads);
+		priorities = new HashMap<Rule, Long>();
+		pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+			0L, TimeUnit.MILLISECONDS,
+			new PriorityBlockingQueue<Runnable>());
 
 		// add wrap-up rule to determine when all is built
 		finalRule = getFinalRule(targets);
@@ -57,12 +84,22 @@ public Rule copy() {
 		};
 	}
 
+	public void setTraceFile(File file) {
+		traceFile = file;
+		trace = new ArrayList<String>();
+	}
+
 	public FakeException run() {
+		startTime = System.currentTimeMillis();
+
 		// First, make sure that the status is determined
 		for (Rule rule : dependencyMap.keySet())
 			if (!rule.upToDate())
 				rule.verbose("Not up-to-date: " + rule.target);
 
+		for (Rule rule : dependencyMap.keySet())
+			getPriority(rule);
+
 		// Then, make sure that certain components are built first
 		for (String target : new String[] { "jars/javac.jar", "jars/fake.jar" }) {
 			Rule rule = parser.getRule(target);
@@ -87,9 +124,92 @@ public FakeException run() {
 		}
 		FakeException result = results.get(finalRule);
 		pool.shutdown();
+		writeTrace();
 		return result == success ? null : result;
 	}
 
+	/**
+	 * The estimated time in milliseconds it takes to make this rule.
+	 */
+	protected long getEstimatedCost(Rule rule) {
+		if (rule == finalRule || rule.upToDate())
+			return 0;
+		long duration = rule.getLastDuration();
+		if (duration >= 0)
+			return duration;
+		// no history yet; a rough guess
+		return 1000 + 100 * rule.prerequisites.size();
+	}
+
+	/**
+	 * The estimated cost of the longest chain of rules from this rule up to
+	 * the final rule.
+	 */
+	protected long getPriority(Rule rule) {
+		Long result = priorities.get(rule);
+		if (result != null)
+			return result.longValue();
+		long max = 0;
+		List<Rule> dependencees = dependencyMap.get(rule);
+		if (dependencees != null)
+			for (Rule dependencee : dependencees)
+				max = Math.max(max, getPriority(dependencee));
+		long priority = getEstimatedCost(rule) + max;
+		priorities.put(rule, new Long(priority));
+		return priority;
+	}
+
+	/*
+	 * Tasks on longer chains come first; ties are resolved in the order
+	 * in which the tasks became ready.
+	 */
+	protected class RuleTask extends FutureTask<FakeException> implements Comparable<RuleTask> {
+		protected long priority;
+		protected int counter;
+
+		public RuleTask(final Rule rule) {
+			super(new Callable<FakeException>() {
+				public FakeException call() {
+					return make(rule);
+				}
+			});
+			priority = getPriority(rule);
+			counter = taskCounter++;
+		}
+
+		public int compareTo(RuleTask other) {
+			if (priority != other.priority)
+				return priority > other.priority ? -1 : 1;
+			return counter - other.counter;
+		}
+	}
+
+	protected void addTrace(Rule rule, long start, long end, FakeException result) {
+		if (trace == null)
+			return;
+		synchronized (trace) {
+			trace.add(Thread.currentThread().getName() + "\t"
+				+ (start - startTime) + "\t" + (end - startTime) + "\t"
+				+ rule.target + "\t"
+				+ (result == success ? "ok" : "failed"));
+		}
+	}
+
+	protected void writeTrace() {
+		if (trace == null)
+			return;
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(traceFile));
+			synchronized (trace) {
+				for (String line : trace)
+					out.println(line);
+			}
+			out.close();
+		} catch (IOException e) {
+			parser.fake.err.println("Could not write " + traceFile + ": " + e);
+		}
+	}
+
 	/**
 	 * Schedule a rule for building if all dependencies were done already.
 	 *
@@ -117,12 +237,9 @@ protected void submitTaskIfReady(final Rule rule) {
 			}
 			if (futures.get(rule) != null)
 				return;
-			futures.put(rule, new FutureTask<FakeException>(new Callable<FakeException>() {
-				public FakeException call() {
-					return make(rule);
-				}
-			}));
-			pool.submit(futures.get(rule));
+			RuleTask task = new RuleTask(rule);
+			futures.put(rule, task);
+			pool.execute(task);
 		}
 	}
 
@@ -135,12 +252,14 @@ protected void submitDependencees(Rule rule) {
 
 	protected FakeException make(Rule rule) {
 		FakeException result = success;
+		long start = System.currentTimeMillis();
 		try {
 			rule.make(false);
 		} catch (FakeException e) {
 			parser.fake.err.println("Failed: " + rule.target);
 			result = e;
 		}
+		addTrace(rule, start, System.currentTimeMillis(), result);
 		synchronized (futures) {
 			results.put(rule, result);
 			submitDependencees(rule);
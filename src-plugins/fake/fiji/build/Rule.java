@@ -66,10 +66,118 @@ public final boolean upToDate() {
 		if (upToDateStage > 0)
 			return upToDateStage == 2;
 		upToDateStage = 1;
-		upToDateStage = checkUpToDate() ? 2 : 3;
+		upToDateStage = checkUpToDate() || unchangedSinceLastBuild() ? 2 : 3;
 		return upToDateStage == 2;
 	}
 
+	/**
+	 * Whether the build cache may decide that this rule is up-to-date
+	 * when the timestamps say otherwise.
+	 */
+	protected boolean usesBuildCache() {
+		return false;
+	}
+
+	protected BuildCache getBuildCache() {
+		return BuildCache.get(parser.cwd);
+	}
+
+	/*
+	 * The target is up-to-date if it was built from inputs with the same
+	 * contents as the current ones, and was not modified since.
+	 */
+	protected boolean unchangedSinceLastBuild() {
+		if (!usesBuildCache() || target.equals(""))
+			return false;
+		File file = new File(Util.makePath(parser.cwd, target));
+		if (!file.exists())
+			return false;
+		try {
+			for (Rule rule : getDependencies())
+				if (!rule.upToDate())
+					return false;
+			BuildCache cache = getBuildCache();
+			String fingerprint = cache.getFingerprint(file);
+			if (fingerprint == null ||
+					!fingerprint.equals(getBuildFingerprint()) ||
+					!cache.hash(file).equals(cache.getTargetHash(file)))
+				return false;
+			verbose("" + target + " is up-to-date because its inputs did not change");
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The files the target is built from.
+	 */
+	protected List<String> getBuildInputs() {
+		List<String> result = new ArrayList<String>();
+		for (String prereq : prerequisites) {
+			int bracket = prereq.indexOf('[');
+			if (bracket >= 0 && prereq.endsWith("]")) {
+				prereq = prereq.substring(bracket + 1, prereq.length() - 1);
+				if (prereq.startsWith("jar:file:"))
+					prereq = prereq.substring(9, prereq.indexOf('!'));
+			}
+			result.add(Util.stripSuffix(prereq, "/"));
+		}
+		for (String path : Util.splitPaths(getVar("CLASSPATH")))
+			result.add(path);
+		return result;
+	}
+
+	/**
+	 * The content hash of everything the target depends on: the contents
+	 * of the inputs, and the relevant settings of the Fakefile.
+	 */
+	protected String getBuildFingerprint() throws IOException {
+		BuildCache cache = getBuildCache();
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(getClass().getName()).append('\n');
+		buffer.append(target).append('\n');
+		for (String key : new String[] {
+				"CLASSPATH", "JAVAVERSION", "DEBUG", "MAINCLASS",
+				"EXCLUDE", "NO_COMPILE", "includeSource",
+				"builddir", "prebuiltdir" })
+			buffer.append(key).append('=').append(getVar(key)).append('\n');
+		for (String path : getBuildInputs())
+			buffer.append(path).append(' ')
+				.append(cache.hash(new File(Util.makePath(parser.cwd, path))))
+				.append('\n');
+		return BuildCache.sha1(buffer.toString());
+	}
+
+	protected void recordBuild(String fingerprint) throws IOException {
+		if (fingerprint == null)
+			return;
+		File file = new File(Util.makePath(parser.cwd, target));
+		if (!file.exists())
+			return;
+		BuildCache cache = getBuildCache();
+		cache.setFingerprint(file, fingerprint, cache.hash(file));
+	}
+
+	/*
+	 * Remember how long the action took, for the scheduling of parallel
+	 * builds.
+	 */
+	protected void recordDuration(long millis) {
+		if (target.equals(""))
+			return;
+		getBuildCache().setDuration(new File(Util.makePath(parser.cwd, target)), millis);
+	}
+
+	/**
+	 * Returns how many milliseconds the last build took, or -1 if unknown.
+	 */
+	public long getLastDuration() {
+		if (target.equals(""))
+			return -1;
+		return getBuildCache().getDuration(new File(Util.makePath(parser.cwd, target)));
+	}
+
 	boolean checkUpToDate() {
 		// this implements the mtime check
 		File file = new File(Util.makePath(parser.cwd, target));
@@ -166,7 +274,11 @@ protected boolean upToDateRecursive(File source, File target, boolean excludeTop
 
 	public void makeParallel(int maxThreads) throws FakeException {
 		ParallelMaker make = new ParallelMaker(parser, maxThreads, Collections.singletonList(this));
+		String trace = getVar("buildTrace");
+		if (trace != null && !trace.equals(""))
+			make.setTraceFile(new File(Util.makePath(parser.cwd, trace)));
 		FakeException result = make.run();
+		BuildCache.saveAll();
 		if (result != null)
 			throw result;
 	}
@@ -192,9 +304,16 @@ public void make(boolean makePrerequisitesFirst) throws FakeException {
 			if (upToDate())
 				return;
 			parser.fake.err.println("Building " + this);
+			// record the state of the inputs before they can change
+			String fingerprint = usesBuildCache() ?
+				getBuildFingerprint() : null;
+			long start = System.currentTimeMillis();
 			action();
-			if (new File(target).exists())
+			recordDuration(System.currentTimeMillis() - start);
+			if (new File(target).exists()) {
 				upToDateStage = 2;
+				recordBuild(fingerprint);
+			}
 			else {
 				upToDateStage = 0;
 				wasAlreadyChecked = false;
@@ -408,13 +527,24 @@ public File getBuildDir() {
 	List<String> compileJavas(List<String> javas, File buildDir,
 			Set<String> exclude, Set<String> noCompile)
 			throws FakeException {
+		return compileJavas(javas, buildDir, exclude, noCompile, null);
+	}
+
+	List<String> compileJavas(List<String> javas, File buildDir,
+			Set<String> exclude, Set<String> noCompile,
+			String extraClassPath)
+			throws FakeException {
 		parser.fake.toolsPath = getVar("TOOLSPATH");
+		String classPath = getVar("CLASSPATH");
+		if (extraClassPath != null)
+			classPath = classPath == null || classPath.equals("") ?
+				extraClassPath : extraClassPath + ":" + classPath;
 		return parser.fake.compileJavas(javas, parser.cwd, buildDir,
 			getVar("JAVAVERSION"),
 			getVarBool("DEBUG"),
 			getVarBool("VERBOSE"),
 			getVarBool("SHOWDEPRECATION"),
-			getVar("CLASSPATH"),
+			classPath,
 			exclude, noCompile);
 	}
 
@@ -5,6 +5,7 @@
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -14,17 +15,80 @@
 import java.net.URL;
 import java.net.URLClassLoader;
 
+import java.security.CodeSigner;
+import java.security.CodeSource;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The class loader for Fiji's plugins and .jar files
+ *
+ * Local directories and .jar files are not handed to the URLClassLoader, but
+ * looked up via the {@link JarCache}: a .jar file is only asked for a class or
+ * resource if the hash of the name is in its index, and all .jar files are
+ * opened at most once per JVM, and only when something is read from them.
+ * Other URLs (e.g. from a class map) are handled by the URLClassLoader.
+ */
 public class FijiClassLoader extends URLClassLoader {
 
 	List<ClassLoader> fallBacks;
 	Map<String, String> classMap;
+	List<Element> elements = new CopyOnWriteArrayList<Element>();
+
+	/**
+	 * A local directory or .jar file on the class path
+	 */
+	protected static class Element {
+		File file;
+		URL url;
+		int[] hashes; // null for directories
+
+		Element(File file, URL url, int[] hashes) {
+			this.file = file;
+			this.url = url;
+			this.hashes = hashes;
+		}
+
+		boolean isJar() {
+			return hashes != null;
+		}
+
+		JarEntry getJarEntry(String name) throws IOException {
+			if (Arrays.binarySearch(hashes, JarCache.hash(name)) < 0)
+				return null;
+			return JarCache.getJarFile(file).getJarEntry(name);
+		}
+
+		File getFile(String name) {
+			File result = new File(file, name.replace('/', File.separatorChar));
+			return result.exists() ? result : null;
+		}
+
+		URL getResource(String name) {
+			try {
+				if (isJar())
+					return getJarEntry(name) == null ? null : new URL("jar:" + url + "!/" + name);
+				File result = getFile(name);
+				return result == null ? null : result.toURI().toURL();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
 
 	public FijiClassLoader() {
 		super(new URL[0], getDefaultParent());
@@ -60,6 +124,7 @@ public FijiClassLoader(boolean initDefaults) {
 				getNewerJars(classPath, updatePlugins, jars, false);
 				for (File file : classPath)
 					addFile(file);
+				JarCache.save();
 			}
 			else
 				addClassMap(System.getProperty("jnlp_class_map"));
@@ -160,9 +225,37 @@ else if (file.getName().endsWith(".jar")) {
 
 	protected void addFile(File file) {
 		try {
-			addURL(file.toURI().toURL());
+			URL url = file.toURI().toURL();
+			if (file.isDirectory() || (file.isFile() && file.getName().endsWith(".jar"))) {
+				for (Element element : elements)
+					if (element.url.equals(url))
+						return;
+				if (file.isDirectory()) {
+					elements.add(new Element(file, url, null));
+					return;
+				}
+				elements.add(new Element(file, url, JarCache.getHashes(file)));
+				// like the URLClassLoader, follow the manifest's Class-Path
+				String classPath = JarCache.getClassPath(file);
+				if (classPath != null)
+					for (String entry : classPath.split("\\s+")) try {
+						if (entry.equals(""))
+							continue;
+						URL entryURL = new URL(url, entry);
+						if (entryURL.getProtocol().equals("file"))
+							addFile(new File(entryURL.toURI()));
+						else
+							addURL(entryURL);
+					} catch (Exception e) {
+						IJ.log("FijiClassLoader: invalid Class-Path entry " + entry + " in " + file);
+					}
+			}
+			else
+				addURL(url);
 		} catch (MalformedURLException e) {
 			IJ.log("FijiClassLoader: " + e);
+		} catch (IOException e) {
+			IJ.log("FijiClassLoader: could not read " + file + ": " + e);
 		}
 	}
 
@@ -171,6 +264,11 @@ public void addPath(String path) throws IOException {
 	}
 
 	public void addPath(String path, boolean recurse) throws IOException {
+		addPathRecursively(path, recurse);
+		JarCache.save();
+	}
+
+	protected void addPathRecursively(String path, boolean recurse) throws IOException {
 		if (path == null)
 			return;
 		if (path.endsWith("/.rsrc"))
@@ -187,12 +285,98 @@ else if (file.isDirectory()) {
 				return;
 			for (int i = 0; i < paths.length; i++)
 				if (!paths[i].startsWith("."))
-					addPath(path + File.separator + paths[i]);
+					addPathRecursively(path + File.separator + paths[i], true);
 		}
 		else if (path.endsWith(".jar"))
 			addFile(file);
 	}
 
+	@Override
+	public URL[] getURLs() {
+		List<URL> result = new ArrayList<URL>();
+		for (Element element : elements)
+			result.add(element.url);
+		result.addAll(Arrays.asList(super.getURLs()));
+		return result.toArray(new URL[result.size()]);
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		String path = name.replace('.', '/') + ".class";
+		for (Element element : elements) try {
+			if (element.isJar()) {
+				JarEntry entry = element.getJarEntry(path);
+				if (entry != null)
+					return defineClass(name, element, JarCache.getJarFile(element.file), entry);
+			}
+			else {
+				File file = element.getFile(path);
+				if (file != null)
+					return defineClass(name, element, file);
+			}
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		return super.findClass(name);
+	}
+
+	protected Class<?> defineClass(String name, Element element, JarFile jar, JarEntry entry) throws IOException {
+		InputStream input = jar.getInputStream(entry);
+		byte[] buffer = readStream(input);
+		input.close();
+		definePackageOf(name, jar.getManifest(), element.url);
+		// the code signers are only known after the entry was read
+		CodeSigner[] signers = entry.getCodeSigners();
+		return defineClass(name, buffer, 0, buffer.length, new CodeSource(element.url, signers));
+	}
+
+	protected Class<?> defineClass(String name, Element element, File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		byte[] buffer = readStream(input);
+		input.close();
+		definePackageOf(name, null, element.url);
+		return defineClass(name, buffer, 0, buffer.length, new CodeSource(element.url, (CodeSigner[])null));
+	}
+
+	protected void definePackageOf(String className, Manifest manifest, URL url) {
+		int dot = className.lastIndexOf('.');
+		if (dot < 0)
+			return;
+		String packageName = className.substring(0, dot);
+		if (getPackage(packageName) != null)
+			return;
+		try {
+			if (manifest != null)
+				definePackage(packageName, manifest, url);
+			else
+				definePackage(packageName, null, null, null, null, null, null, null);
+		} catch (IllegalArgumentException e) {
+			// defined concurrently
+		}
+	}
+
+	@Override
+	public URL findResource(String name) {
+		for (Element element : elements) {
+			URL url = element.getResource(name);
+			if (url != null)
+				return url;
+		}
+		return super.findResource(name);
+	}
+
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		List<URL> result = new ArrayList<URL>();
+		for (Element element : elements) {
+			URL url = element.getResource(name);
+			if (url != null)
+				result.add(url);
+		}
+		result.addAll(Collections.list(super.findResources(name)));
+		return Collections.enumeration(result);
+	}
+
 	public void addFallBack(ClassLoader loader) {
 		fallBacks.add(loader);
 	}
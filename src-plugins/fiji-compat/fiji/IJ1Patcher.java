@@ -10,19 +10,35 @@ public class IJ1Patcher implements Runnable {
 	@Override
 	public void run() {
 		try {
-			String headless = System.getProperty("java.awt.headless");
-			if ("true".equalsIgnoreCase(headless))
-				new Headless().run();
-			new IJHacker().run();
-			try {
-				JavassistHelper.defineClasses();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			boolean headless = "true".equalsIgnoreCase(System.getProperty("java.awt.headless"));
+			PatchedClassCache cache = new PatchedClassCache(headless);
+			if (cache.defineCachedClasses())
+				return;
+			if (patch(headless) && cache.isEnabled())
+				cache.write(JavassistHelper.getDefinedBytecode());
 		} catch (NoClassDefFoundError e) {
 			// Deliberately ignored - in some cases
 			// javassist can not be found, and we should
 			// continue anyway.
 		}
 	}
+
+	/**
+	 * Patch the classes using Javassist; this is only needed when the
+	 * cache is stale.
+	 *
+	 * @return whether the patched classes were defined successfully
+	 */
+	protected boolean patch(boolean headless) {
+		if (headless)
+			new Headless().run();
+		new IJHacker().run();
+		try {
+			JavassistHelper.defineClasses();
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
 }
\ No newline at end of file
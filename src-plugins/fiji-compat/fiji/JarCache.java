@@ -0,0 +1,239 @@
+package fiji;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * A cache of the .jar files on Fiji's class path, shared by all class loaders
+ *
+ * For every .jar file, the hashes of its entry names are kept in a sorted
+ * array, so that a class loader can find out which .jar files may contain a
+ * given class or resource without opening them. The hashes are persisted,
+ * keyed by the path, size and modification time of the .jar file, so that
+ * only new or modified .jar files need to be opened to build the index.
+ *
+ * The Class-Path attribute of the manifest is kept, too.
+ *
+ * The .jar files themselves are opened only when something is read from
+ * them, and only once per JVM.
+ */
+public class JarCache {
+	protected final static int MAGIC = 0x464a4958; // "FJIX"
+	protected final static int VERSION = 1;
+
+	protected static class Jar {
+		long length, lastModified;
+		int[] hashes;
+		String classPath;
+		JarFile jarFile;
+
+		Jar(long length, long lastModified, int[] hashes, String classPath) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hashes = hashes;
+			this.classPath = classPath;
+		}
+
+		boolean isUpToDate(File file) {
+			return length == file.length() && lastModified == file.lastModified();
+		}
+	}
+
+	protected static Map<String, Jar> jars;
+	protected static boolean dirty;
+
+	/**
+	 * The index lives in ~/.imagej/ by default; set the system property
+	 * fiji.jar.cache to a different path, or to "none" to keep it in memory.
+	 */
+	protected static File getCacheFile() {
+		String path = System.getProperty("fiji.jar.cache");
+		if (path != null)
+			return path.equals("") || path.equals("none") ? null : new File(path);
+		String home = System.getProperty("user.home");
+		return home == null ? null : new File(home, ".imagej/jar-index.cache");
+	}
+
+	public static int hash(String entryName) {
+		return entryName.hashCode();
+	}
+
+	/**
+	 * Get the sorted hashes of the entry names of a .jar file.
+	 *
+	 * The .jar file is only opened if it is not in the index yet, or if it
+	 * was modified since.
+	 */
+	public static synchronized int[] getHashes(File file) throws IOException {
+		return getJar(file).hashes;
+	}
+
+	/**
+	 * Get the Class-Path attribute of a .jar file's manifest, or null.
+	 */
+	public static synchronized String getClassPath(File file) throws IOException {
+		return getJar(file).classPath;
+	}
+
+	/**
+	 * Get the shared, open JarFile for a .jar file.
+	 */
+	public static synchronized JarFile getJarFile(File file) throws IOException {
+		Jar jar = getJar(file);
+		if (jar.jarFile == null)
+			jar.jarFile = new JarFile(file);
+		return jar.jarFile;
+	}
+
+	protected static Jar getJar(File file) throws IOException {
+		if (jars == null)
+			load();
+		String path = file.getAbsolutePath();
+		Jar jar = jars.get(path);
+		if (jar != null && jar.isUpToDate(file))
+			return jar;
+
+		long length = file.length(), lastModified = file.lastModified();
+		JarFile jarFile = new JarFile(file);
+		int[] hashes = new int[jarFile.size()];
+		int count = 0;
+		String classPath = null;
+		try {
+			for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+				if (count == hashes.length)
+					hashes = realloc(hashes, 2 * count + 1);
+				hashes[count++] = hash(e.nextElement().getName());
+			}
+			Manifest manifest = jarFile.getManifest();
+			if (manifest != null)
+				classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+		} finally {
+			// do not keep it open unless something is read from it
+			jarFile.close();
+		}
+		Arrays.sort(hashes, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++)
+			if (unique == 0 || hashes[i] != hashes[unique - 1])
+				hashes[unique++] = hashes[i];
+
+		// other class loaders might still read from the previous version
+		jar = new Jar(length, lastModified, realloc(hashes, unique), classPath);
+		jars.put(path, jar);
+		dirty = true;
+		return jar;
+	}
+
+	protected static int[] realloc(int[] array, int newLength) {
+		if (array.length == newLength)
+			return array;
+		int[] result = new int[newLength];
+		System.arraycopy(array, 0, result, 0, Math.min(array.length, newLength));
+		return result;
+	}
+
+	protected static void load() {
+		jars = new HashMap<String, Jar>();
+		dirty = false;
+		File file = getCacheFile();
+		if (file == null || !file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				dirty = true;
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				int[] hashes = new int[in.readInt()];
+				for (int j = 0; j < hashes.length; j++)
+					hashes[j] = in.readInt();
+				String classPath = in.readBoolean() ? in.readUTF() : null;
+				jars.put(path, new Jar(length, lastModified, hashes, classPath));
+			}
+		} catch (IOException e) {
+			jars.clear();
+			dirty = true;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) { /* ignore */ }
+		}
+	}
+
+	/**
+	 * Write the index, if it changed. Entries of .jar files which do not
+	 * exist anymore are dropped.
+	 */
+	public static synchronized void save() {
+		if (jars == null)
+			return;
+		for (Iterator<String> iter = jars.keySet().iterator(); iter.hasNext(); )
+			if (!new File(iter.next()).exists()) {
+				iter.remove();
+				dirty = true;
+			}
+		File file = getCacheFile();
+		if (!dirty || file == null)
+			return;
+		// several instances might be starting at the same time
+		File tmp = new File(file.getPath() + "." + System.currentTimeMillis() + "." + System.nanoTime() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			File dir = file.getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+				return;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(jars.size());
+			for (String path : jars.keySet()) {
+				Jar jar = jars.get(path);
+				out.writeUTF(path);
+				out.writeLong(jar.length);
+				out.writeLong(jar.lastModified);
+				out.writeInt(jar.hashes.length);
+				for (int hash : jar.hashes)
+					out.writeInt(hash);
+				out.writeBoolean(jar.classPath != null);
+				if (jar.classPath != null)
+					out.writeUTF(jar.classPath);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+				System.err.println("Could not write " + file);
+			else
+				dirty = false;
+		} catch (IOException e) {
+			System.err.println("Could not write " + file + ": " + e);
+		} finally {
+			if (out != null) try {
+				out.close();
+			} catch (IOException e) { /* ignore */ }
+			tmp.delete();
+		}
+	}
+}
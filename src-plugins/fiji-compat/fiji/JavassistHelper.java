@@ -14,6 +14,7 @@
 
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import java.util.jar.JarOutputStream;
@@ -42,6 +43,7 @@ public abstract class JavassistHelper implements Runnable {
 	protected static LinkedHashMap<String, CtClass> definedClasses = new LinkedHashMap<String, CtClass>();
 	protected static ClassPool pool;
 	protected static boolean frozen;
+	protected static Map<String, byte[]> definedBytecode = new LinkedHashMap<String, byte[]>();
 
 	static {
 		pool = ClassPool.getDefault();
@@ -66,11 +68,27 @@ public static void defineClasses() throws CannotCompileException {
 			new Exception("Attempted to defined patched classes again").printStackTrace();
 			return;
 		}
-		for (String name : definedClasses.keySet())
-			definedClasses.get(name).toClass();
+		for (String name : definedClasses.keySet()) try {
+			definedBytecode.put(name, definedClasses.get(name).toBytecode());
+		} catch (IOException e) {
+			throw new CannotCompileException(e);
+		}
+		try {
+			PatchedClassCache.defineClasses(definedBytecode);
+		} catch (Exception e) {
+			throw new CannotCompileException(e);
+		}
 		frozen = true;
 	}
 
+	/**
+	 * Get the bytecode of the defined classes, in the order in which they
+	 * were defined.
+	 */
+	public static Map<String, byte[]> getDefinedBytecode() {
+		return definedBytecode;
+	}
+
 	final public void run() {
 		if (frozen) {
 			System.err.println("Attempted to patch classes again: " + getClass().getName());
@@ -0,0 +1,247 @@
+package fiji;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.lang.reflect.Method;
+
+import java.net.URL;
+import java.net.URLDecoder;
+
+import java.security.MessageDigest;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An on-disk cache of the classes patched by IJHacker and Headless
+ *
+ * Patching the classes of ij.jar with Javassist is a substantial part of the
+ * startup time. As the result depends only on ij.jar, on the patchers
+ * themselves and on a couple of settings, the bytecode is cached and the
+ * next startups define the cached classes directly, without even loading
+ * Javassist.
+ *
+ * The cache is keyed by the checksums of the .jar files containing ij.jar's
+ * classes, the patchers and Javassist, and by the settings the patchers look
+ * at. It is only used when all of them are loaded from .jar files.
+ *
+ * Note: this class must not refer to any Javassist class, nor to any class of
+ * ij.jar.
+ */
+public class PatchedClassCache {
+	protected final static int MAGIC = 0x494a3150; // "IJ1P"
+	protected final static int VERSION = 1;
+
+	protected boolean headless;
+	protected File file;
+	protected String key;
+
+	public PatchedClassCache(boolean headless) {
+		this.headless = headless;
+		file = getCacheFile();
+		if (file != null)
+			key = computeKey();
+	}
+
+	/**
+	 * The cache lives in ~/.imagej/ by default; set the system property
+	 * ij1.patcher.cache to a different path, or to "none" to disable the
+	 * cache.
+	 */
+	protected static File getCacheFile() {
+		String path = System.getProperty("ij1.patcher.cache");
+		if (path != null)
+			return path.equals("") || path.equals("none") ? null : new File(path);
+		String home = System.getProperty("user.home");
+		return home == null ? null : new File(home, ".imagej/ij1-patches.cache");
+	}
+
+	public boolean isEnabled() {
+		return key != null;
+	}
+
+	/**
+	 * Define the cached classes, if the cache is up-to-date.
+	 *
+	 * @return whether the cached classes were defined
+	 */
+	public boolean defineCachedClasses() {
+		if (key == null || !file.exists())
+			return false;
+		Map<String, byte[]> classes = read();
+		if (classes == null)
+			return false;
+		try {
+			defineClasses(classes);
+			return true;
+		} catch (Exception e) {
+			// fall back to patching with Javassist
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Read the cache, returning null if it is stale or corrupt.
+	 */
+	protected Map<String, byte[]> read() {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF()))
+				return null;
+			int count = in.readInt();
+			Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte[] bytecode = new byte[in.readInt()];
+				in.readFully(bytecode);
+				result.put(name, bytecode);
+			}
+			return result;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException e) { /* ignore */ }
+		}
+	}
+
+	/**
+	 * Write the patched classes, in the order in which they were defined.
+	 */
+	public void write(Map<String, byte[]> classes) {
+		if (key == null)
+			return;
+		// several instances might be starting at the same time
+		File tmp = new File(file.getPath() + "." + System.currentTimeMillis() + "." + System.nanoTime() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			File dir = file.getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+				return;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(classes.size());
+			for (String name : classes.keySet()) {
+				byte[] bytecode = classes.get(name);
+				out.writeUTF(name);
+				out.writeInt(bytecode.length);
+				out.write(bytecode);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+				System.err.println("Could not write " + file);
+		} catch (IOException e) {
+			System.err.println("Could not write " + file + ": " + e);
+		} finally {
+			if (out != null) try {
+				out.close();
+			} catch (IOException e) { /* ignore */ }
+			tmp.delete();
+		}
+	}
+
+	// the classes defined so far, by the cache or by Javassist
+	protected static Set<String> definedClasses = new HashSet<String>();
+
+	/**
+	 * Define the classes in the context class loader, just like Javassist's
+	 * CtClass.toClass() does.
+	 */
+	public static synchronized void defineClasses(Map<String, byte[]> classes) throws Exception {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass",
+			new Class[] { String.class, byte[].class, Integer.TYPE, Integer.TYPE });
+		defineClass.setAccessible(true);
+		for (String name : classes.keySet()) {
+			// skip the classes defined by a failed earlier attempt
+			if (definedClasses.contains(name))
+				continue;
+			byte[] bytecode = classes.get(name);
+			defineClass.invoke(loader, new Object[] { name, bytecode, new Integer(0), new Integer(bytecode.length) });
+			definedClasses.add(name);
+		}
+	}
+
+	protected String computeKey() {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader == null)
+				loader = getClass().getClassLoader();
+			for (String resource : new String[] {
+					"ij/IJ.class",
+					"fiji/IJHacker.class",
+					"javassist/ClassPool.class" }) {
+				File jar = getJarFile(loader.getResource(resource));
+				if (jar == null)
+					return null;
+				digest(digest, jar);
+			}
+
+			// the settings IJHacker and Headless take into account
+			StringBuilder settings = new StringBuilder();
+			settings.append("headless=").append(headless);
+			settings.append("\nIJ_PREFS_DIR=").append(System.getenv("IJ_PREFS_DIR"));
+			settings.append("\nos.name=").append(System.getProperty("os.name"));
+			settings.append("\nuser.home=").append(System.getenv("user.home"));
+			File macros = new File(FijiTools.getImageJDir(), "macros");
+			settings.append("\nmacros=").append(macros.getAbsolutePath());
+			for (String name : new String[] { "StartupMacros.fiji.ijm", "StartupMacros.txt", "StartupMacros.ijm" })
+				settings.append(new File(macros, name).exists() ? '1' : '0');
+			digest.update(settings.toString().getBytes("UTF-8"));
+
+			return toHex(digest.digest());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	protected static File getJarFile(URL url) throws UnsupportedEncodingException {
+		if (url == null || !url.getProtocol().equals("jar"))
+			return null;
+		String path = url.getPath();
+		int bang = path.indexOf("!/");
+		if (!path.startsWith("file:") || bang < 0)
+			return null;
+		return new File(URLDecoder.decode(path.substring(5, bang), "UTF-8"));
+	}
+
+	protected static void digest(MessageDigest digest, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	protected static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte b : bytes)
+			builder.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		return builder.toString();
+	}
+}
@@ -22,11 +22,25 @@ public class Convolver extends Object {
 	* @param kernel   kernel of the filter
 	*/
 	public static double[] convolveFIR(double[] input, double[] kernel) 
+	{
+		double[] output = new double[input.length];
+		convolveFIR(input, kernel, output);
+		return output;
+	}
+
+	/**
+	* Convolution with a Finite Impulse Response (FIR) filter, into an
+	* existing output array, which must not be the input array.
+	*
+	* @param input   1D input signal
+	* @param kernel   kernel of the filter
+	* @param output   1D output signal, same length as the input
+	*/
+	public static void convolveFIR(double[] input, double[] kernel, double[] output) 
 	{
 		int l = input.length;
 		if (l <= 1) 
 			throw new IllegalArgumentException("convolveFIR: input signal too short");
-		double[] output = new double[l];
 	
 		int indexq = kernel.length - 1;
 		int indexp = 0;
@@ -69,7 +83,6 @@ public static double[] convolveFIR(double[] input, double[] kernel)
 			}
 			output[i] = Sum;
 		}
-		return output;
 	}
 
 	/**
@@ -79,9 +92,22 @@ public static double[] convolveFIR(double[] input, double[] kernel)
 	* @param poles    	1D array containing the poles of the filter
 	*/
 	public static double[] convolveIIR(double[] input, double poles[]) {
+		double[] output = new double[input.length];
+		convolveIIR(input, poles, output);
+		return output;
+	}
+
+	/**
+	* Convolve with with a Infinite Impluse Response filter (IIR), into an
+	* existing output array, which can be the input array.
+	*
+	* @param input  	1D input signal
+	* @param poles    	1D array containing the poles of the filter
+	* @param output  	1D output signal, same length as the input
+	*/
+	public static void convolveIIR(double[] input, double poles[], double[] output) {
 		double lambda = 1.0;
 		int l = input.length;
-		double[] output = new double[l];
 		for (int k = 0; k < poles.length; k++) {
 			lambda = lambda * (1.0 - poles[k]) * (1.0 - 1.0 / poles[k]);
 		}
@@ -98,7 +124,6 @@ public static double[] convolveIIR(double[] input, double poles[]) {
 				output[n] = poles[k] * (output[n+1] - output[n]);
 			}
 		}
-		return output;
 	}
 
 	/**
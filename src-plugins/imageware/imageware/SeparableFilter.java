@@ -0,0 +1,319 @@
+package imageware;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class SeparableFilter.
+ * Line-parallel engine to apply a 1D filter along the X, Y or Z lines of
+ * an imageware, for the four types of buffer (byte, short, float, double).
+ *
+ * The lines are distributed over several threads. Each thread owns its
+ * input and output line buffers for the whole pass, and reads and writes
+ * the underlying arrays of the imageware directly instead of going through
+ * getX/putX. Lines along Y and Z are processed by blocks of adjacent lines,
+ * so that the slices are traversed row by row.
+ *
+ * The conversion from and to double is the same as the one of getX/putX,
+ * so that the results are identical to a line by line processing.
+ */
+
+public class SeparableFilter extends Object {
+
+	public static final int X = 0;
+	public static final int Y = 1;
+	public static final int Z = 2;
+
+	/** Number of adjacent Y or Z lines read and written together. */
+	private static final int BLOCK = 16;
+
+	/**
+	* A 1D filter applied on a line. Implementations should not keep any
+	* state, since they are shared by all the threads.
+	*/
+	public static abstract class LineFilter {
+		/**
+		* @param input	1D input signal, must not be modified
+		* @param output	1D output signal, same length as input
+		*/
+		public abstract void filter(double[] input, double[] output);
+	}
+
+	/**
+	* Infinite Impulse Response filter with mirror boundary conditions,
+	* see Convolver.convolveIIR.
+	*
+	* @param poles	poles of the filter
+	*/
+	public static LineFilter createIIR(final double[] poles) {
+		final double[] p = poles.clone();
+		return new LineFilter() {
+			public void filter(double[] input, double[] output) {
+				Convolver.convolveIIR(input, p, output);
+			}
+		};
+	}
+
+	/**
+	* Finite Impulse Response filter with mirror boundary conditions,
+	* see Convolver.convolveFIR.
+	*
+	* @param kernel	kernel of the filter
+	*/
+	public static LineFilter createFIR(final double[] kernel) {
+		final double[] k = kernel.clone();
+		return new LineFilter() {
+			public void filter(double[] input, double[] output) {
+				Convolver.convolveFIR(input, k, output);
+			}
+		};
+	}
+
+	/**
+	* Apply a 1D filter along all the lines of an axis, using as many
+	* threads as available processors.
+	*
+	* @param image	imageware to filter in place
+	* @param axis	X, Y or Z
+	* @param filter	1D filter
+	*/
+	public static void filter(Buffer image, int axis, LineFilter filter) {
+		filter(image, axis, filter, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	* Apply a 1D filter along all the lines of an axis.
+	*
+	* @param image		imageware to filter in place
+	* @param axis		X, Y or Z
+	* @param filter		1D filter
+	* @param nthreads	number of threads
+	*/
+	public static void filter(final Buffer image, final int axis, final LineFilter filter, int nthreads) {
+		final int nx = image.getSizeX();
+		final int ny = image.getSizeY();
+		final int nz = image.getSizeZ();
+		final int type = image.getType();
+		final Object[] data = image.getVolume();
+
+		final int ntasks;
+		switch(axis) {
+			case X: ntasks = ny * nz; break;
+			case Y: ntasks = nz * ((nx + BLOCK - 1) / BLOCK); break;
+			case Z: ntasks = ny * ((nx + BLOCK - 1) / BLOCK); break;
+			default:
+				throw new IllegalArgumentException(
+					"\n-------------------------------------------------------\n" +
+					"Error in imageware package\n" +
+					"Unknown axis " + axis + ".\n" +
+					"-------------------------------------------------------\n"
+				);
+		}
+		nthreads = Math.max(1, Math.min(nthreads, ntasks));
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final RuntimeException[] error = new RuntimeException[1];
+		final Thread[] threads = new Thread[nthreads];
+		for (int t=0; t<nthreads; t++) {
+			threads[t] = new Thread("SeparableFilter-" + t) {
+				public void run() {
+					try {
+						switch(axis) {
+							case X: filterX(data, type, nx, ny, filter, next, ntasks); break;
+							case Y: filterY(data, type, nx, ny, filter, next, ntasks); break;
+							case Z: filterZ(data, type, nx, ny, nz, filter, next, ntasks); break;
+						}
+					}
+					catch(RuntimeException e) {
+						synchronized(error) {
+							error[0] = e;
+						}
+					}
+				}
+			};
+		}
+		if (nthreads == 1) {
+			threads[0].run();
+		}
+		else {
+			for (int t=0; t<nthreads; t++)
+				threads[t].start();
+			try {
+				for (int t=0; t<nthreads; t++)
+					threads[t].join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (error[0] != null)
+			throw error[0];
+	}
+
+	/**
+	* Filter all the X lines; a task is one line.
+	*/
+	private static void filterX(Object[] data, int type, int nx, int ny,
+			LineFilter filter, AtomicInteger next, int ntasks) {
+		double[] in = new double[nx];
+		double[] out = new double[nx];
+		for (int task = next.getAndIncrement(); task < ntasks; task = next.getAndIncrement()) {
+			int z = task / ny;
+			int offset = (task % ny) * nx;
+			read(data[z], type, offset, in);
+			filter.filter(in, out);
+			write(data[z], type, offset, out);
+		}
+	}
+
+	/**
+	* Filter all the Y lines; a task is a block of adjacent columns of a
+	* slice, read and written row by row.
+	*/
+	private static void filterY(Object[] data, int type, int nx, int ny,
+			LineFilter filter, AtomicInteger next, int ntasks) {
+		int nblocks = (nx + BLOCK - 1) / BLOCK;
+		double[][] in = new double[BLOCK][ny];
+		double[] out = new double[ny];
+		double[] row = new double[BLOCK];
+		for (int task = next.getAndIncrement(); task < ntasks; task = next.getAndIncrement()) {
+			int z = task / nblocks;
+			int x0 = (task % nblocks) * BLOCK;
+			int nb = Math.min(BLOCK, nx - x0);
+			for (int y=0; y<ny; y++) {
+				read(data[z], type, x0 + y*nx, row, nb);
+				for (int b=0; b<nb; b++)
+					in[b][y] = row[b];
+			}
+			for (int b=0; b<nb; b++) {
+				filter.filter(in[b], out);
+				System.arraycopy(out, 0, in[b], 0, ny);
+			}
+			for (int y=0; y<ny; y++) {
+				for (int b=0; b<nb; b++)
+					row[b] = in[b][y];
+				write(data[z], type, x0 + y*nx, row, nb);
+			}
+		}
+	}
+
+	/**
+	* Filter all the Z lines; a task is a block of adjacent voxels of a row,
+	* read and written slice by slice.
+	*/
+	private static void filterZ(Object[] data, int type, int nx, int ny, int nz,
+			LineFilter filter, AtomicInteger next, int ntasks) {
+		int nblocks = (nx + BLOCK - 1) / BLOCK;
+		double[][] in = new double[BLOCK][nz];
+		double[] out = new double[nz];
+		double[] row = new double[BLOCK];
+		for (int task = next.getAndIncrement(); task < ntasks; task = next.getAndIncrement()) {
+			int y = task / nblocks;
+			int x0 = (task % nblocks) * BLOCK;
+			int nb = Math.min(BLOCK, nx - x0);
+			int offset = x0 + y*nx;
+			for (int z=0; z<nz; z++) {
+				read(data[z], type, offset, row, nb);
+				for (int b=0; b<nb; b++)
+					in[b][z] = row[b];
+			}
+			for (int b=0; b<nb; b++) {
+				filter.filter(in[b], out);
+				System.arraycopy(out, 0, in[b], 0, nz);
+			}
+			for (int z=0; z<nz; z++) {
+				for (int b=0; b<nb; b++)
+					row[b] = in[b][z];
+				write(data[z], type, offset, row, nb);
+			}
+		}
+	}
+
+	private static void read(Object slice, int type, int offset, double[] line) {
+		read(slice, type, offset, line, line.length);
+	}
+
+	private static void write(Object slice, int type, int offset, double[] line) {
+		write(slice, type, offset, line, line.length);
+	}
+
+	/**
+	* Read len values of a slice, starting at offset, into a line.
+	* Same conversion as getX(int, int, int, double[]).
+	*/
+	private static void read(Object slice, int type, int offset, double[] line, int len) {
+		switch(type) {
+			case ImageWare.BYTE: {
+				byte[] tmp = (byte[])slice;
+				for (int i=0; i<len; i++, offset++)
+					line[i] = (double)(tmp[offset] & 0xFF);
+				break;
+			}
+			case ImageWare.SHORT: {
+				short[] tmp = (short[])slice;
+				for (int i=0; i<len; i++, offset++)
+					line[i] = (double)(tmp[offset] & 0xFFFF);
+				break;
+			}
+			case ImageWare.FLOAT: {
+				float[] tmp = (float[])slice;
+				for (int i=0; i<len; i++, offset++)
+					line[i] = (double)tmp[offset];
+				break;
+			}
+			case ImageWare.DOUBLE: {
+				double[] tmp = (double[])slice;
+				for (int i=0; i<len; i++, offset++)
+					line[i] = tmp[offset];
+				break;
+			}
+			default:
+				throw new ArrayStoreException(
+					"\n-------------------------------------------------------\n" +
+					"Error in imageware package\n" +
+					"Unknown type " + type + "].\n" +
+					"-------------------------------------------------------\n"
+				);
+		}
+	}
+
+	/**
+	* Write len values of a line into a slice, starting at offset.
+	* Same conversion as putX(int, int, int, double[]).
+	*/
+	private static void write(Object slice, int type, int offset, double[] line, int len) {
+		switch(type) {
+			case ImageWare.BYTE: {
+				byte[] tmp = (byte[])slice;
+				for (int i=0; i<len; i++, offset++)
+					tmp[offset] = (byte)(line[i]);
+				break;
+			}
+			case ImageWare.SHORT: {
+				short[] tmp = (short[])slice;
+				for (int i=0; i<len; i++, offset++)
+					tmp[offset] = (short)(line[i]);
+				break;
+			}
+			case ImageWare.FLOAT: {
+				float[] tmp = (float[])slice;
+				for (int i=0; i<len; i++, offset++)
+					tmp[offset] = (float)(line[i]);
+				break;
+			}
+			case ImageWare.DOUBLE: {
+				double[] tmp = (double[])slice;
+				for (int i=0; i<len; i++, offset++)
+					tmp[offset] = line[i];
+				break;
+			}
+			default:
+				throw new ArrayStoreException(
+					"\n-------------------------------------------------------\n" +
+					"Error in imageware package\n" +
+					"Unknown type " + type + "].\n" +
+					"-------------------------------------------------------\n"
+				);
+		}
+	}
+
+} // end of class
@@ -64,48 +64,24 @@ public void smoothGaussian(double sigma) {
 	* @param sigmaZ		Strengthness of the smoothing in X axis
 	*/
 	public void smoothGaussian(double sigmaX, double sigmaY, double sigmaZ) {
+		if (nx > 1 && sigmaX > 0.0)
+			SeparableFilter.filter(this, SeparableFilter.X, SeparableFilter.createIIR(getGaussianPoles(sigmaX)));
+		if (ny > 1 && sigmaY > 0.0)
+			SeparableFilter.filter(this, SeparableFilter.Y, SeparableFilter.createIIR(getGaussianPoles(sigmaY)));
+		if (nz > 1 && sigmaZ > 0.0)
+			SeparableFilter.filter(this, SeparableFilter.Z, SeparableFilter.createIIR(getGaussianPoles(sigmaZ)));
+	}
+
+	/**
+	* Poles of the recursive filter approximating a gaussian of standard 
+	* deviation sigma, as a cascade of 3 identical first order filters.
+	*/
+	private static double[] getGaussianPoles(double sigma) {
 		int n = 3;
 		double N = (double)n;
-		double poles[] = new double[n];
-
-		if (nx > 1 && sigmaX > 0.0) {
-			double s2 = sigmaX * sigmaX;
-			double alpha = 1.0 + (N/s2) - (Math.sqrt(N*N+2*N*s2)/s2);
-			poles[0] = poles[1] = poles[2] = alpha;
-			double line[]  = new double[nx];
-			for (int z=0; z<nz; z++) {
-				for (int y=0; y<ny; y++) {
-					getX(0, y, z, line);
-					putX(0, y, z, Convolver.convolveIIR(line, poles));
-				}
-			}
-		}
-
-		if (ny > 1 && sigmaY > 0.0) {
-			double s2 = sigmaY * sigmaY;
-			double alpha = 1.0 + (N/s2) - (Math.sqrt(N*N+2*N*s2)/s2);
-			poles[0] = poles[1] = poles[2] = alpha;
-			double line[]  = new double[ny];
-			for (int x=0; x<nx; x++) {
-				for (int z=0; z<nz; z++) {
-					getY(x, 0, z, line);
-					putY(x, 0, z, Convolver.convolveIIR(line, poles));
-				}
-			}
-		}
-
-		if (nz > 1 && sigmaZ > 0.0) {
-			double s2 = sigmaZ * sigmaZ;
-			double alpha = 1.0 + (N/s2) - (Math.sqrt(N*N+2*N*s2)/s2);
-			poles[0] = poles[1] = poles[2] = alpha;
-			double line[]  = new double[nz];
-			for (int y=0; y<ny; y++) {
-				for (int x=0; x<nx; x++) {
-					getZ(x, y, 0, line);
-					putZ(x, y, 0, Convolver.convolveIIR(line, poles));
-				}
-			}
-		}
+		double s2 = sigma * sigma;
+		double alpha = 1.0 + (N/s2) - (Math.sqrt(N*N+2*N*s2)/s2);
+		return new double[] {alpha, alpha, alpha};
 	}
 
 	/**
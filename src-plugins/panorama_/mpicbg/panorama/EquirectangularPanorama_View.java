@@ -7,8 +7,6 @@
 import ij.plugin.PlugIn;
 import ij.process.*;
 
-import mpicbg.ij.InverseTransformMapping;
-import mpicbg.ij.Mapping;
 import mpicbg.models.NoninvertibleModelException;
 import mpicbg.util.Util;
 
@@ -142,10 +140,8 @@ final private class MappingThread extends Thread
 	{
 		final protected ImagePlus impSource;
 		final protected ImagePlus impTarget;
-		final protected ImageProcessor source;
 		final protected ImageProcessor target;
 		final protected ImageProcessor temp;
-		final protected Mapping< EquirectangularProjection > mapping;
 		final protected EquirectangularProjection p;
 		private boolean interpolate = true;
 		private boolean visualize = true;
@@ -156,18 +152,14 @@ final private class MappingThread extends Thread
 		public MappingThread(
 				final ImagePlus impSource,
 				final ImagePlus impTarget,
-				final ImageProcessor source,
 				final ImageProcessor target,
-				final Mapping< EquirectangularProjection > mapping,
 				final EquirectangularProjection p )
 		{
 			this.impSource = impSource;
 			this.impTarget = impTarget;
-			this.source = source;
 			this.target = target;
 			this.temp = target.createProcessor( target.getWidth(), target.getHeight() );
 			temp.snapshot();
-			this.mapping = mapping;
 			this.p = p;
 			this.setName( "MappingThread" );
 		}
@@ -178,9 +170,11 @@ final public void run()
 			while ( !isInterrupted() )
 			{
 				final boolean b;
+				final boolean preview;
 				synchronized ( this )
 				{
 					b = pleaseRepaint;
+					preview = keepPainting;
 					pleaseRepaint = keepPainting;
 				}
 				if ( b )
@@ -193,12 +187,16 @@ final public void run()
 					p.pan( lambda );
 					p.tilt( phi );
 					
-					mapping.getTransform().set( p );
+					/* map from the pyramid level that matches the current zoom */
+					final float sourcePixelsPerTargetPixel =
+						p.getLambdaPiScale() / ( ( float )Math.PI * p.getF() * Math.max( temp.getWidth(), temp.getHeight() ) );
+					final int level = pyramid.level( sourcePixelsPerTargetPixel );
+					final EquirectangularProjection q = p.clone();
+					q.setLambdaPiScale( p.getLambdaPiScale() * pyramid.getScaleX( level ) );
+					q.setPhiPiScale( p.getPhiPiScale() * ( pyramid.get( level ).getHeight() - 1 ) / ( pyramid.get( 0 ).getHeight() - 1 ) );
+					
 					temp.reset();
-					if ( interpolate )
-						mapping.mapInterpolated( source, temp );
-					else
-						mapping.map( source, temp );
+					rayMapping.map( ipSources[ level ], q, temp, interpolate, preview ? PREVIEW_STEP : 1 );
 					
 					final Object targetPixels = target.getPixels();
 					target.setPixels( temp.getPixels() );
@@ -216,9 +214,10 @@ final public void run()
 					{
 						if ( !pleaseRepaint ) wait();
 					}
-					catch ( InterruptedException e ){}
+					catch ( InterruptedException e ){ interrupt(); }
 				}
 			}
+			exec.shutdown();
 		}
 		
 		final public void repaint( final boolean keepPainting )
@@ -244,7 +243,10 @@ final public void toggleVisualization()
 	
 	private ImagePlus imp;
 	private ImageProcessor ip;
-	private ImageProcessor ipSource;
+	private ImageProcessor[] ipSources;
+	private ImagePyramid pyramid;
+	/* full 360/180 degree panoramas are extended by one pixel for interpolation */
+	private boolean extendWidth, extendHeight;
 	private GUI gui;
 	
 	static private int width = 400;
@@ -254,10 +256,13 @@ final public void toggleVisualization()
 	static private float hfov = 2 * ( float )Math.PI;
 	static private float vfov = ( float )Math.PI;
 	
+	/* pixel block size of the low resolution rendering while dragging */
+	final static private int PREVIEW_STEP = 4;
 	
 	final private EquirectangularProjection p = new EquirectangularProjection();
 	final static private float step = ( float )Math.PI / 180;
-	final private Mapping< EquirectangularProjection > mapping = new InverseTransformMapping< EquirectangularProjection >( p.clone() );
+	final private RowBandExecutor exec = new RowBandExecutor();
+	final private EquirectangularRayMapping rayMapping = new EquirectangularRayMapping( exec );
 	
 	private float lambda = 0;
 	private float phi = 0;
@@ -342,14 +347,13 @@ final public void run(
 		p.setTargetHeight( ip.getHeight() );
 		p.setF( 0.5f );
 		
-		/* prepare extended image */
-		ipSource = ip.createProcessor(
-				hfov == ( float )( 2 * Math.PI ) ? imp.getWidth() + 1 : imp.getWidth(),
-				vfov == ( float )Math.PI ? imp.getHeight() + 1 : imp.getHeight() );
-		prepareExtendedImage( imp.getProcessor(), ipSource );
+		/* prepare extended images */
+		extendWidth = hfov == ( float )( 2 * Math.PI );
+		extendHeight = vfov == ( float )Math.PI;
+		preparePyramid( imp.getProcessor() );
 		
 		/* instantiate and run painter */
-		painter = new MappingThread( imp, impViewer, ipSource, ip, mapping, p );
+		painter = new MappingThread( imp, impViewer, ip, p );
 		
 		impViewer.show();
 		
@@ -362,6 +366,25 @@ final public void run(
 		update( false );
     }
 	
+	/**
+	 * Build the multi-resolution pyramid of the panorama and the extended
+	 * image of each of its levels.
+	 */
+	final private void preparePyramid( final ImageProcessor source )
+	{
+		pyramid = new ImagePyramid( source, 64 );
+		final ImageProcessor[] sources = new ImageProcessor[ pyramid.numLevels() ];
+		for ( int l = 0; l < sources.length; ++l )
+		{
+			final ImageProcessor level = pyramid.get( l );
+			sources[ l ] = level.createProcessor(
+					extendWidth ? level.getWidth() + 1 : level.getWidth(),
+					extendHeight ? level.getHeight() + 1 : level.getHeight() );
+			prepareExtendedImage( level, sources[ l ] );
+		}
+		ipSources = sources;
+	}
+	
 	final static private void prepareExtendedImage(
 			final ImageProcessor source,
 			final ImageProcessor target )
@@ -437,7 +460,7 @@ else if ( e.getKeyCode() == KeyEvent.VK_MINUS )
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_SPACE )
 			{
-				prepareExtendedImage( imp.getProcessor(), ipSource );
+				preparePyramid( imp.getProcessor() );
 				update( false );
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_I )
@@ -86,10 +86,26 @@ final public void applyInverseInPlace( final float[] point ) throws Noninvertibl
 		/* calculate sphere cut */
 		final float t = 1.0f / sqrt( x * x + y * y + f * f );
 		
-		final float tx = t * x;
-		final float ty = t * y;
-		final float tz = t * f;
-		
+		applyInverseToRay( t * x, t * y, t * f, point );
+	}
+	
+	/**
+	 * Map a unit ray in camera coordinates to the equirectangular source.
+	 * The ray of a target pixel depends on the target size and f only, so
+	 * it can be computed once and reused while panning and tilting (see
+	 * {@link EquirectangularRayMapping}).
+	 * 
+	 * @param tx
+	 * @param ty
+	 * @param tz
+	 * @param point receives the source coordinates
+	 */
+	final public void applyInverseToRay(
+			final float tx,
+			final float ty,
+			final float tz,
+			final float[] point )
+	{
 		/* rotate */
 		final float rx = i.m00 * tx + i.m01 * ty  + i.m02 * tz;
 		final float ry = i.m10 * tx + i.m11 * ty  + i.m12 * tz;
@@ -0,0 +1,146 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Maps an equirectangular panorama into a rectlinear view using a lookup
+ * table of the unit rays of all target pixels.  The rays depend on the
+ * target size and the focal length only and are recomputed when one of
+ * them changes.  Panning and tilting only rotate the cached rays.
+ *
+ * Rows are mapped in parallel bands.  With a step larger than 1, only every
+ * step-th pixel in x and y is mapped and the step&times;step block is
+ * filled with its value, which is used for a fast preview while dragging.
+ */
+public class EquirectangularRayMapping
+{
+	final private RowBandExecutor exec;
+
+	/* interleaved x, y, z of the unit ray of each target pixel */
+	private float[] rays = new float[ 0 ];
+	private int rayWidth = 0;
+	private int rayHeight = 0;
+	private float rayF = Float.NaN;
+
+	public EquirectangularRayMapping( final RowBandExecutor exec )
+	{
+		this.exec = exec;
+	}
+
+	/**
+	 * Update the ray lookup table if the target size or the focal length
+	 * changed.
+	 *
+	 * @return true if the rays were recomputed
+	 */
+	final public boolean updateRays( final int width, final int height, final float f )
+	{
+		if ( width == rayWidth && height == rayHeight && f == rayF )
+			return false;
+
+		if ( rays.length != 3 * width * height )
+			rays = new float[ 3 * width * height ];
+		final float[] r = rays;
+		final float maxSize = Math.max( width, height );
+		exec.run( height, 1, new RowBandExecutor.Band()
+		{
+			final public void map( final int minY, final int maxY )
+			{
+				for ( int y = minY; y < maxY; ++y )
+				{
+					final float ys = ( y - 0.5f * height ) / maxSize;
+					int i = 3 * y * width;
+					for ( int x = 0; x < width; ++x )
+					{
+						final float xs = ( x - 0.5f * width ) / maxSize;
+						final float t = 1.0f / ( float )Math.sqrt( xs * xs + ys * ys + f * f );
+						r[ i++ ] = t * xs;
+						r[ i++ ] = t * ys;
+						r[ i++ ] = t * f;
+					}
+				}
+			}
+		} );
+		rayWidth = width;
+		rayHeight = height;
+		rayF = f;
+		return true;
+	}
+
+	/**
+	 * Map source into target.
+	 *
+	 * @param source the (extended) equirectangular source
+	 * @param p projection whose scales match source
+	 * @param target
+	 * @param interpolate
+	 * @param step 1 for full resolution, &gt;1 for a block-filled preview
+	 */
+	final public void map(
+			final ImageProcessor source,
+			final EquirectangularProjection p,
+			final ImageProcessor target,
+			final boolean interpolate,
+			final int step )
+	{
+		final int tw = target.getWidth();
+		final int th = target.getHeight();
+		updateRays( tw, th, p.getF() );
+
+		final float[] r = rays;
+		final int sw = source.getWidth() - 1;
+		final int sh = source.getHeight() - 1;
+
+		exec.run( th, step, new RowBandExecutor.Band()
+		{
+			final public void map( final int minY, final int maxY )
+			{
+				final float[] t = new float[ 2 ];
+				for ( int y = minY; y < maxY; y += step )
+				{
+					final int yMax = Math.min( y + step, maxY );
+					for ( int x = 0; x < tw; x += step )
+					{
+						final int i = 3 * ( y * tw + x );
+						p.applyInverseToRay( r[ i ], r[ i + 1 ], r[ i + 2 ], t );
+						final int value;
+						if ( interpolate )
+						{
+							if ( t[ 0 ] < 0 || t[ 0 ] > sw || t[ 1 ] < 0 || t[ 1 ] > sh )
+								continue;
+							value = source.getPixelInterpolated( t[ 0 ], t[ 1 ] );
+						}
+						else
+						{
+							final int sx = ( int )( t[ 0 ] + 0.5f );
+							final int sy = ( int )( t[ 1 ] + 0.5f );
+							if ( sx < 0 || sx > sw || sy < 0 || sy > sh )
+								continue;
+							value = source.getPixel( sx, sy );
+						}
+						final int xMax = Math.min( x + step, tw );
+						for ( int yy = y; yy < yMax; ++yy )
+							for ( int xx = x; xx < xMax; ++xx )
+								target.putPixel( xx, yy, value );
+					}
+				}
+			}
+		} );
+	}
+}
@@ -38,16 +38,30 @@ public HomogeneousMapping( final T t )
 	public void map(
 			final ImageProcessor source,
 			final ImageProcessor target )
+	{
+		map( source, target, 1, 0, target.getHeight() );
+	}
+	
+	/**
+	 * Map the rows [minY, maxY) of target.  Only every step-th pixel is
+	 * mapped, filling a step&times;step block, for fast previews.  Disjoint
+	 * row ranges can be mapped concurrently.
+	 */
+	public void map(
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int step,
+			final int minY,
+			final int maxY )
 	{
 		final float[] t = new float[ 3 ];
 		final int sw = source.getWidth() - 1;
 		final int sh = source.getHeight() - 1;
 		final int tw = target.getWidth();
-		final int th = target.getHeight();
-		for ( int y = 0; y < th; ++y )
+		for ( int y = minY; y < maxY; y += step )
 		{
-			final int row = tw * y;
-			for ( int x = 0; x < tw; ++x )
+			final int yMax = Math.min( y + step, maxY );
+			for ( int x = 0; x < tw; x += step )
 			{
 				t[ 0 ] = x;
 				t[ 1 ] = y;
@@ -64,7 +78,16 @@ public void map(
 							tx <= sw &&
 							ty >= 0 &&
 							ty <= sh )
-						target.set( row + x, source.getPixel( tx, ty ) );
+					{
+						final int value = source.getPixel( tx, ty );
+						final int xMax = Math.min( x + step, tw );
+						for ( int yy = y; yy < yMax; ++yy )
+						{
+							final int row = tw * yy;
+							for ( int xx = x; xx < xMax; ++xx )
+								target.set( row + xx, value );
+						}
+					}
 				}
 				catch ( NoninvertibleModelException e ){}
 			}
@@ -75,15 +98,30 @@ public void map(
 	public void mapInterpolated(
 			final ImageProcessor source,
 			final ImageProcessor target )
+	{
+		mapInterpolated( source, target, 1, 0, target.getHeight() );
+	}
+	
+	/**
+	 * Map the rows [minY, maxY) of target with interpolation.  Only every
+	 * step-th pixel is mapped, filling a step&times;step block, for fast
+	 * previews.  Disjoint row ranges can be mapped concurrently.
+	 */
+	public void mapInterpolated(
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int step,
+			final int minY,
+			final int maxY )
 	{
 		final float[] t = new float[ 3 ];
 		final int sw = source.getWidth() - 1;
 		final int sh = source.getHeight() - 1;
 		final int tw = target.getWidth();
-		final int th = target.getHeight();
-		for ( int y = 0; y < th; ++y )
+		for ( int y = minY; y < maxY; y += step )
 		{
-			for ( int x = 0; x < tw; ++x )
+			final int yMax = Math.min( y + step, maxY );
+			for ( int x = 0; x < tw; x += step )
 			{
 				t[ 0 ] = x;
 				t[ 1 ] = y;
@@ -100,7 +138,13 @@ public void mapInterpolated(
 							tx <= sw &&
 							ty >= 0 &&
 							ty <= sh )
-						target.putPixel( x, y, source.getPixelInterpolated( tx, ty ) );
+					{
+						final int value = source.getPixelInterpolated( tx, ty );
+						final int xMax = Math.min( x + step, tw );
+						for ( int yy = y; yy < yMax; ++yy )
+							for ( int xx = x; xx < xMax; ++xx )
+								target.putPixel( xx, yy, value );
+					}
 				}
 				catch ( NoninvertibleModelException e ){}
 			}
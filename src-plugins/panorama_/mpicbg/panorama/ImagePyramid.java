@@ -0,0 +1,95 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+/**
+ * A multi-resolution pyramid of an image.  Level 0 is the image itself,
+ * each further level is half the size of the previous one, generated by
+ * averaging.  Mapping from the level that matches the zoom avoids the
+ * aliasing of sampling a large source sparsely.
+ */
+public class ImagePyramid
+{
+	final private ArrayList< ImageProcessor > levels = new ArrayList< ImageProcessor >();
+
+	/**
+	 * @param ip level 0
+	 * @param minSize no level smaller than minSize in width or height is
+	 *   generated
+	 */
+	public ImagePyramid( final ImageProcessor ip, final int minSize )
+	{
+		levels.add( ip );
+		/* level 0 belongs to the caller, so restore its interpolation method */
+		final int interpolationMethod = ip.getInterpolationMethod();
+		try
+		{
+			ImageProcessor level = ip;
+			while ( level.getWidth() / 2 >= minSize && level.getHeight() / 2 >= minSize )
+			{
+				level.setInterpolationMethod( ImageProcessor.BILINEAR );
+				level = level.resize( level.getWidth() / 2, level.getHeight() / 2, true );
+				levels.add( level );
+			}
+		}
+		finally
+		{
+			ip.setInterpolationMethod( interpolationMethod );
+		}
+	}
+
+	final public int numLevels(){ return levels.size(); }
+
+	final public ImageProcessor get( final int level ){ return levels.get( level ); }
+
+	/**
+	 * The scale of a level relative to level 0 in x.
+	 */
+	final public float getScaleX( final int level )
+	{
+		return ( float )get( level ).getWidth() / get( 0 ).getWidth();
+	}
+
+	/**
+	 * The scale of a level relative to level 0 in y.
+	 */
+	final public float getScaleY( final int level )
+	{
+		return ( float )get( level ).getHeight() / get( 0 ).getHeight();
+	}
+
+	/**
+	 * Find the level at which one target pixel covers about one source pixel.
+	 *
+	 * @param sourcePixelsPerTargetPixel the sampling ratio at level 0
+	 */
+	final public int level( final float sourcePixelsPerTargetPixel )
+	{
+		int l = 0;
+		float s = sourcePixelsPerTargetPixel;
+		while ( s >= 2 && l < levels.size() - 1 )
+		{
+			s /= 2;
+			++l;
+		}
+		return l;
+	}
+}
@@ -21,6 +21,7 @@
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.geom.GeneralPath;
+import java.util.ArrayList;
 
 public class Panorama_View implements PlugIn, KeyListener, MouseWheelListener, MouseListener, MouseMotionListener
 {
@@ -147,7 +148,11 @@ final void clearGui()
 	abstract private class Mapper
 	{
 		protected boolean interpolate = true;
-		abstract public void map( final ImageProcessor target );
+		/**
+		 * @param target
+		 * @param step 1 for full resolution, &gt;1 for a block-filled preview
+		 */
+		abstract public void map( final ImageProcessor target, final int step );
 		final public void toggleInterpolation()
 		{
 			interpolate = !interpolate;
@@ -156,13 +161,9 @@ final public void toggleInterpolation()
 	
 	final private class CubeFaceMapper extends Mapper
 	{
-		final private ImageProcessor frontSource;
-		final private ImageProcessor backSource;
-		final private ImageProcessor leftSource;
-		final private ImageProcessor rightSource;
-		final private ImageProcessor topSource;
-		final private ImageProcessor bottomSource;
-		final private HomogeneousMapping< RectlinearCamera > mapping = new HomogeneousMapping< RectlinearCamera >( new RectlinearCamera() );
+		/* front, right, back, left, top, bottom */
+		final private ImageProcessor[] sources;
+		final private ImagePyramid[] pyramids;
 		final private PanoramaCamera< ? > camera;
 		final private RectlinearCamera front;
 		
@@ -175,98 +176,73 @@ public CubeFaceMapper(
 				final ImageProcessor bottomSource,
 				final PanoramaCamera< ? > camera )
 		{
-			this.frontSource = frontSource;
-			this.backSource = backSource;
-			this.leftSource = leftSource;
-			this.rightSource = rightSource;
-			this.topSource = topSource;
-			this.bottomSource = bottomSource;
+			this.sources = new ImageProcessor[]{ frontSource, rightSource, backSource, leftSource, topSource, bottomSource };
+			this.pyramids = new ImagePyramid[ sources.length ];
+			updatePyramids();
 			this.camera = camera;
 			this.front = new RectlinearCamera();
 			front.setCamera( camera );
-			
-			/* cubefaces have a width and height of +1px each for off-range interpolation */ 
-			front.setSourceWidth( frontSource.getWidth() - 1 );
-			front.setSourceHeight( frontSource.getHeight() - 1 );
 		}
 		
-		final public void map( final ImageProcessor target )
+		/**
+		 * Rebuild the multi-resolution pyramids after the cube faces were
+		 * rendered.
+		 */
+		final public void updatePyramids()
+		{
+			for ( int i = 0; i < sources.length; ++i )
+				pyramids[ i ] = new ImagePyramid( sources[ i ], 32 );
+		}
+		
+		final public void map( final ImageProcessor target, final int step )
 		{
 			front.setTargetWidth( target.getWidth() );
 			front.setTargetHeight( target.getHeight() );
-			
 			front.setCamera( camera );
-			final RectlinearCamera face = front.clone();
-			face.resetOrientation();
-			target.reset();
-			if ( interpolate ) /* TODO This is stupid---the mapping should have the interpolation method as a state */
+			
+			/* pick the pyramid level that matches the zoom, all faces have the same size */
+			final float cubeSize = sources[ 0 ].getWidth() - 1;
+			final int level = pyramids[ 0 ].level( cubeSize / ( 2 * front.getF() * Math.max( target.getWidth(), target.getHeight() ) ) );
+			
+			/* cubefaces have a width and height of +1px each for off-range interpolation */ 
+			front.setSourceWidth( pyramids[ 0 ].get( level ).getWidth() - 1 );
+			front.setSourceHeight( pyramids[ 0 ].get( level ).getHeight() - 1 );
+			
+			/* one camera per face, set up once and shared read-only by all bands */
+			final ArrayList< HomogeneousMapping< RectlinearCamera > > mappings = new ArrayList< HomogeneousMapping< RectlinearCamera > >();
+			mappings.add( new HomogeneousMapping< RectlinearCamera >( front.clone() ) );
+			final float[][] orientations = new float[][]{
+					{ ( float )Math.PI / 2, 0 },
+					{ ( float )Math.PI, 0 },
+					{ 3 * ( float )Math.PI / 2, 0 },
+					{ 0, ( float )Math.PI / 2 },
+					{ 0, -( float )Math.PI / 2 } };
+			for ( final float[] o : orientations )
 			{
-				mapping.getTransform().set( front );
-				mapping.mapInterpolated( frontSource, target );
-				
-				face.pan( ( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( rightSource, target );
-				
-				face.resetOrientation();
-				face.pan( ( float )Math.PI );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( backSource, target );
-				
-				face.resetOrientation();
-				face.pan( 3 * ( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( leftSource, target );
-				
+				final RectlinearCamera face = front.clone();
 				face.resetOrientation();
-				face.tilt( ( float )Math.PI / 2 );
+				if ( o[ 0 ] != 0 ) face.pan( o[ 0 ] );
+				if ( o[ 1 ] != 0 ) face.tilt( o[ 1 ] );
 				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( topSource, target );
-				
-				face.resetOrientation();
-				face.tilt( -( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( bottomSource, target );
+				mappings.add( new HomogeneousMapping< RectlinearCamera >( face ) );
 			}
-			else
+			
+			final boolean interpolate = this.interpolate;
+			target.reset();
+			exec.run( target.getHeight(), step, new RowBandExecutor.Band()
 			{
-				mapping.getTransform().set( front );
-				mapping.map( frontSource, target );
-				
-				face.pan( ( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( rightSource, target );
-				
-				face.resetOrientation();
-				face.pan( ( float )Math.PI );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( backSource, target );
-				
-				face.resetOrientation();
-				face.pan( 3 * ( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( leftSource, target );
-				
-				face.resetOrientation();
-				face.tilt( ( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( topSource, target );
-				
-				face.resetOrientation();
-				face.tilt( -( float )Math.PI / 2 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( bottomSource, target );
-			}
+				final public void map( final int minY, final int maxY )
+				{
+					for ( int i = 0; i < mappings.size(); ++i )
+					{
+						final ImageProcessor source = pyramids[ i ].get( level );
+						if ( interpolate )
+							mappings.get( i ).mapInterpolated( source, target, step, minY, maxY );
+						else
+							mappings.get( i ).map( source, target, step, minY, maxY );
+					}
+				}
+			} );
 		}
 	}
 	
@@ -309,9 +285,11 @@ final public void run()
 			while ( !isInterrupted() )
 			{
 				final boolean b;
+				final boolean preview;
 				synchronized ( this )
 				{
 					b = pleaseRepaint;
+					preview = keepPainting;
 					pleaseRepaint = keepPainting;
 				}
 				if ( b )
@@ -323,7 +301,7 @@ final public void run()
 					
 					this.camera.setOrientation( lambda, phi, rho );
 					
-					mapper.map( temp );
+					mapper.map( temp, preview ? PREVIEW_STEP : 1 );
 					
 					final Object targetPixels = target.getPixels();
 					target.setPixels( temp.getPixels() );
@@ -341,9 +319,10 @@ final public void run()
 					{
 						if ( !pleaseRepaint ) wait();
 					}
-					catch ( InterruptedException e ){}
+					catch ( InterruptedException e ){ interrupt(); }
 				}
 			}
+			exec.shutdown();
 		}
 		
 		final public void repaint( final boolean keepPainting )
@@ -386,7 +365,12 @@ final public void toggleVisualization()
 	static private float vfov = ( float )Math.PI;
 	static private boolean showCubefaces = false;
 	
+	/* pixel block size of the low resolution rendering while dragging */
+	final static private int PREVIEW_STEP = 4;
+	
 	final private EquirectangularProjection p = new EquirectangularProjection();
+	final private RowBandExecutor exec = new RowBandExecutor();
+	private CubeFaceMapper cubeFaceMapper;
 	
 	final static private float step = ( float )Math.PI / 180;
 	
@@ -499,7 +483,7 @@ final public void run(
 		renderCubeFaces( hfov, vfov );
 		
 		/* instantiate and run mapper and painter */
-		final Mapper mapper = new CubeFaceMapper(
+		cubeFaceMapper = new CubeFaceMapper(
 				frontSource,
 				backSource,
 				leftSource,
@@ -510,7 +494,7 @@ final public void run(
 		painter = new MappingThread(
 				imp,
 				impViewer,
-				mapper,
+				cubeFaceMapper,
 				ip,
 				p );
 		
@@ -657,6 +641,7 @@ else if ( e.getKeyCode() == KeyEvent.VK_MINUS )
 			else if ( e.getKeyCode() == KeyEvent.VK_SPACE )
 			{
 				renderCubeFaces( hfov, vfov );
+				cubeFaceMapper.updatePyramids();
 				update( false );
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_I )
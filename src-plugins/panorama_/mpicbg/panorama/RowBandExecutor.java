@@ -0,0 +1,124 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.panorama;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits the rows of a target image into bands and maps them in parallel on
+ * a fixed pool of daemon threads.  The pool lives as long as the viewer so
+ * that repaints do not pay for thread creation.
+ */
+public class RowBandExecutor
+{
+	/**
+	 * Maps the rows [minY, maxY) of the target.
+	 */
+	public interface Band
+	{
+		public void map( final int minY, final int maxY );
+	}
+
+	final private ExecutorService exec;
+	final private int numThreads;
+
+	public RowBandExecutor()
+	{
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	public RowBandExecutor( final int numThreads )
+	{
+		this.numThreads = numThreads;
+		exec = Executors.newFixedThreadPool( numThreads, new ThreadFactory()
+		{
+			private int i = 0;
+
+			final public Thread newThread( final Runnable r )
+			{
+				final Thread t = new Thread( r, "RowBandExecutor-" + ( i++ ) );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+	}
+
+	final public int getNumThreads(){ return numThreads; }
+
+	/**
+	 * Map all rows [0, height) and wait until all bands are done.
+	 *
+	 * @param height number of rows
+	 * @param alignment band boundaries are multiples of alignment, so that
+	 *   block-filling preview renderings never share rows across bands
+	 * @param band
+	 */
+	final public void run( final int height, final int alignment, final Band band )
+	{
+		/* a few bands per thread balance rows of different cost */
+		final int numBands = Math.max( 1, Math.min( numThreads * 4, height / Math.max( 1, alignment ) ) );
+		int bandHeight = ( height + numBands - 1 ) / numBands;
+		bandHeight = ( ( bandHeight + alignment - 1 ) / alignment ) * alignment;
+
+		if ( numThreads == 1 || bandHeight >= height )
+		{
+			band.map( 0, height );
+			return;
+		}
+
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+		for ( int y = 0; y < height; y += bandHeight )
+		{
+			final int minY = y;
+			final int maxY = Math.min( height, y + bandHeight );
+			futures.add( exec.submit( new Callable< Void >()
+			{
+				final public Void call()
+				{
+					band.map( minY, maxY );
+					return null;
+				}
+			} ) );
+		}
+		try
+		{
+			for ( final Future< Void > f : futures )
+				f.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< Void > f : futures )
+				f.cancel( true );
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	final public void shutdown()
+	{
+		exec.shutdownNow();
+	}
+}